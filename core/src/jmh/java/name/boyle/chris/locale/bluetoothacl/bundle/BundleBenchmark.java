@@ -0,0 +1,133 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.test.FakeParcel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of scrubbing a Bundle from Locale while it is still parcelled, by the number of extras it holds.
+ * <p>
+ * The walk runs over a {@link FakeParcel} laid out as {@code Bundle.writeToParcel()} lays out plain values, as the Android
+ * classes on the JVM are stubs. Unparcelling the Bundle, which {@code BundleScrubber.scrub(Bundle)} falls back to, and the key
+ * lookups of {@code PluginBundleManager.isBundleValid()} can only run on a device; the instrumentation tests' benchmarks measure
+ * them there.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BundleBenchmark
+{
+    /**
+     * Number of extras in the Bundle.
+     */
+    @Param({ "1", "100", "10000" })
+    public int extraCount;
+
+    /**
+     * A Bundle of {@link #extraCount} plain values.
+     */
+    private FakeParcel mClean;
+
+    /**
+     * {@link #mClean}, with a Serializable as its last extra.
+     */
+    private FakeParcel mSerializable;
+
+    /**
+     * Writes the Bundles.
+     */
+    @Setup
+    public void setUp()
+    {
+        mClean = newParcel(extraCount, false);
+        mSerializable = newParcel(extraCount, true);
+    }
+
+    /**
+     * Scrubs a Bundle of plain values with the limit for Bundles from Locale, which rejects the largest ones by size alone.
+     *
+     * @return result of the inspection.
+     */
+    @Benchmark
+    public int scrubClean()
+    {
+        return ParcelInspector.inspect(mClean, ParcelInspector.MAX_PARCEL_SIZE);
+    }
+
+    /**
+     * Walks every extra of a Bundle of plain values.
+     *
+     * @return result of the inspection.
+     */
+    @Benchmark
+    public int inspectClean()
+    {
+        return ParcelInspector.inspect(mClean, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Walks every extra of a Bundle to reject the Serializable at its end.
+     *
+     * @return result of the inspection.
+     */
+    @Benchmark
+    public int inspectSerializable()
+    {
+        return ParcelInspector.inspect(mSerializable, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param count number of extras.
+     * @param isSerializableLast true to replace the last extra by a Serializable.
+     * @return a parcelled Bundle, positioned at its number of extras.
+     */
+    private static FakeParcel newParcel(final int count, final boolean isSerializableLast)
+    {
+        final FakeParcel parcel = new FakeParcel();
+        parcel.writeInt(count);
+        for (int x = 0; x < count; x++)
+        {
+            parcel.writeInt(ParcelInspector.VAL_STRING);
+            parcel.writeString("com.twofortyfouram.locale.extra." + x); //$NON-NLS-1$
+
+            if (isSerializableLast && count - 1 == x)
+            {
+                parcel.writeInt(ParcelInspector.VAL_SERIALIZABLE);
+                parcel.writeString("com.example.Payload"); //$NON-NLS-1$
+                parcel.writeByteArray(new byte[64]);
+                continue;
+            }
+
+            switch (x % 4)
+            {
+                case 0:
+                    parcel.writeInt(ParcelInspector.VAL_STRING);
+                    parcel.writeString("00:11:22:33:44:55"); //$NON-NLS-1$
+                    break;
+                case 1:
+                    parcel.writeInt(ParcelInspector.VAL_INTEGER);
+                    parcel.writeInt(x);
+                    break;
+                case 2:
+                    parcel.writeInt(ParcelInspector.VAL_BOOLEAN);
+                    parcel.writeInt(1);
+                    break;
+                default:
+                    parcel.writeInt(ParcelInspector.VAL_BYTEARRAY);
+                    parcel.writeByteArray(new byte[11]);
+                    break;
+            }
+        }
+        parcel.setDataPosition(0);
+        return parcel;
+    }
+}
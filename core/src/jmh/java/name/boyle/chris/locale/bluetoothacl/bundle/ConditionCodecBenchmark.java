@@ -0,0 +1,58 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the payload check which {@code PluginBundleManager.isBundleValid()} makes on a compact Bundle, by the number of devices
+ * in the condition. A payload holds at most {@link ConditionCodec#MAX_DEVICES}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConditionCodecBenchmark
+{
+    /**
+     * Number of devices in the condition.
+     */
+    @Param({ "1", "100", "255" })
+    public int deviceCount;
+
+    /**
+     * The payload.
+     */
+    private byte[] mPayload;
+
+    /**
+     * Encodes the payload.
+     */
+    @Setup
+    public void setUp()
+    {
+        final long[] macs = new long[deviceCount];
+        for (int x = 0; x < deviceCount; x++)
+        {
+            macs[x] = 0x001122000000L + x;
+        }
+        mPayload = ConditionCodec.encodeDevices(macs, true, DeviceCondition.QUANTIFIER_ANY, 1);
+    }
+
+    /**
+     * @return whether the payload is valid.
+     */
+    @Benchmark
+    public boolean isValid()
+    {
+        return ConditionCodec.isValid(mPayload);
+    }
+}
@@ -0,0 +1,143 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.io.File;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A store which already knows {@link #deviceCount} devices, half of them connected, shared by the benchmarks. The first
+ * {@link #QUERIED_DEVICE_COUNT} devices are the ones some condition asks about: a handful of configured conditions, out of every
+ * device the radio has seen.
+ * <p>
+ * Every benchmark gets its store from {@link #newStore(String, File)}, so a new implementation is measured against the
+ * existing one by adding it there and listing both in {@link #store}.
+ */
+@State(Scope.Benchmark)
+public class KnownDevices
+{
+    /**
+     * Number of devices which conditions ask about, capped at {@link #deviceCount}.
+     */
+    public static final int QUERIED_DEVICE_COUNT = 16;
+
+    /**
+     * Class reported by every device: an audio/video headset.
+     */
+    private static final int DEVICE_CLASS = 0x0404;
+
+    /**
+     * Number of devices the store knows.
+     */
+    @Param({ "1", "100", "10000" })
+    public int deviceCount;
+
+    /**
+     * Store implementation under test, as understood by {@link #newStore(String, File)}.
+     */
+    @Param({ "journal" })
+    public String store;
+
+    /**
+     * Packed MACs of the known devices.
+     */
+    /* package */long[] mMacs;
+
+    /**
+     * {@link #mMacs}, formatted as the system reports them.
+     */
+    /* package */String[] mMacStrings;
+
+    /**
+     * The store.
+     */
+    /* package */ConnectionStateStore mStore;
+
+    /**
+     * Devices which some condition asks about.
+     */
+    /* package */WatchedDeviceRegistry mRegistry;
+
+    /**
+     * Directory holding the files of {@link #mStore} and {@link #mRegistry}.
+     */
+    private File mDirectory;
+
+    /**
+     * Creates the store and tells it about every device.
+     */
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        mDirectory = new File(System.getProperty("java.io.tmpdir"), "bluetoothacl-benchmark-" + System.nanoTime()); //$NON-NLS-1$ //$NON-NLS-2$
+        if (!mDirectory.mkdirs())
+        {
+            throw new IllegalStateException("Couldn't create " + mDirectory); //$NON-NLS-1$
+        }
+
+        mStore = newStore(store, mDirectory);
+        mRegistry = new WatchedDeviceRegistry(mDirectory, Clock.SYSTEM);
+        mMacs = new long[deviceCount];
+        mMacStrings = new String[deviceCount];
+        for (int x = 0; x < deviceCount; x++)
+        {
+            mMacs[x] = 0x001122000000L + x;
+            mMacStrings[x] = MacCodec.decode(mMacs[x]);
+            mStore.setDeviceClass(mMacs[x], DEVICE_CLASS);
+            mStore.setConnected(mMacs[x], 0 == x % 2, 0, false);
+            if (x < QUERIED_DEVICE_COUNT)
+            {
+                mRegistry.touch(mMacs[x]);
+                mStore.persist(mMacs[x], 0);
+            }
+        }
+        mStore.flush();
+    }
+
+    /**
+     * Discards the store and deletes its files.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        mStore.discard();
+
+        final File[] files = mDirectory.listFiles();
+        if (null != files)
+        {
+            for (final File file : files)
+            {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * @return number of devices which conditions ask about.
+     */
+    /* package */int getQueriedDeviceCount()
+    {
+        return Math.min(QUERIED_DEVICE_COUNT, deviceCount);
+    }
+
+    /**
+     * @param name name of the implementation, as listed in {@link #store}.
+     * @param directory directory for its files.
+     * @return a new, empty store.
+     * @throws IllegalArgumentException if {@code name} is unknown.
+     */
+    private static ConnectionStateStore newStore(final String name, final File directory)
+    {
+        if ("journal".equals(name)) //$NON-NLS-1$
+        {
+            return new ConnectionStateStore(directory);
+        }
+
+        throw new IllegalArgumentException(String.format("Unknown store %s", name)); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,96 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.bundle.ConditionCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of answering a query on a single device condition, in its compact encoding, cycling through the devices conditions ask
+ * about. {@link #validate(KnownDevices)} is the check {@code PluginBundleManager.isBundleValid} makes of the payload, and
+ * {@link #query(KnownDevices)} adds the evaluation the query receiver then makes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QueryBenchmark
+{
+    /**
+     * Evaluator under test.
+     */
+    private ConditionEvaluator mEvaluator;
+
+    /**
+     * Encoded condition on each queried device.
+     */
+    private byte[][] mPayloads;
+
+    /**
+     * Index of the next payload.
+     */
+    private int mNext = 0;
+
+    /**
+     * Encodes a condition on each queried device.
+     *
+     * @param devices the store.
+     */
+    @Setup(Level.Trial)
+    public void setUp(final KnownDevices devices)
+    {
+        mEvaluator = new ConditionEvaluator(devices.mStore, devices.mRegistry, Clock.SYSTEM);
+        mPayloads = new byte[devices.getQueriedDeviceCount()][];
+        for (int x = 0; x < mPayloads.length; x++)
+        {
+            mPayloads[x] = ConditionCodec.encodeDevices(new long[] { devices.mMacs[x] }, true, DeviceCondition.QUANTIFIER_ANY, 1);
+        }
+    }
+
+    /**
+     * Validates a payload.
+     *
+     * @param devices the store.
+     * @return whether the payload is valid.
+     */
+    @Benchmark
+    public boolean validate(final KnownDevices devices)
+    {
+        return ConditionCodec.isValid(next());
+    }
+
+    /**
+     * Validates a payload and evaluates its condition.
+     *
+     * @param devices the store.
+     * @return whether the condition is satisfied.
+     */
+    @Benchmark
+    public boolean query(final KnownDevices devices)
+    {
+        final byte[] payload = next();
+        if (!ConditionCodec.isValid(payload))
+        {
+            throw new AssertionError();
+        }
+
+        return mEvaluator.isSatisfied(ConditionCodec.getDeviceMac(payload, 0), ConditionCodec.isConnectedExpected(payload));
+    }
+
+    /**
+     * @return the next payload.
+     */
+    private byte[] next()
+    {
+        final byte[] payload = mPayloads[mNext];
+        mNext = mNext + 1 == mPayloads.length ? 0 : mNext + 1;
+        return payload;
+    }
+}
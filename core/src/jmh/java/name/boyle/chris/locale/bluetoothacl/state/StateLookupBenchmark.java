@@ -0,0 +1,59 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of looking up the state of a device, cycling through every known device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StateLookupBenchmark
+{
+    /**
+     * Index of the next device to look up.
+     */
+    private int mNext = 0;
+
+    /**
+     * Looks up a device by packed MAC, as conditions do.
+     *
+     * @param devices the store.
+     * @return whether the device is connected.
+     */
+    @Benchmark
+    public boolean isConnectedPacked(final KnownDevices devices)
+    {
+        return devices.mStore.isConnected(devices.mMacs[next(devices)]);
+    }
+
+    /**
+     * Looks up a device by MAC string, which is parsed first.
+     *
+     * @param devices the store.
+     * @return whether the device is connected.
+     */
+    @Benchmark
+    public boolean isConnectedString(final KnownDevices devices)
+    {
+        return devices.mStore.isConnected(devices.mMacStrings[next(devices)]);
+    }
+
+    /**
+     * @param devices the store.
+     * @return index of the next device to look up.
+     */
+    private int next(final KnownDevices devices)
+    {
+        final int index = mNext;
+        mNext = index + 1 == devices.deviceCount ? 0 : index + 1;
+        return index;
+    }
+}
@@ -0,0 +1,113 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.core.BackgroundScheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of taking in an ACL broadcast, as the app's receiver does: parse the MAC, record the class, check whether anything
+ * watches the device and hand the transition to a {@link TransitionProcessor}. Each operation flips the next known device.
+ * <p>
+ * As in the app, the processor runs on the real clock with the default debounce window, so windows close, and watched devices'
+ * transitions are committed, on background threads while the benchmark runs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TransitionIngestBenchmark
+{
+    /**
+     * Class reported with each transition.
+     */
+    private static final int DEVICE_CLASS = 0x0404;
+
+    /**
+     * Executor on which the processor closes windows.
+     */
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Processor under test.
+     */
+    private TransitionProcessor mProcessor;
+
+    /**
+     * State each device is reported in next.
+     */
+    private boolean[] mIsConnected;
+
+    /**
+     * Index of the next device to report.
+     */
+    private int mNext = 0;
+
+    /**
+     * Number of requeries the processor asked for. Only read to keep the sender from being optimized away.
+     */
+    private volatile int mRequeryCount = 0;
+
+    /**
+     * Creates the processor over the shared store.
+     *
+     * @param devices the store.
+     */
+    @Setup(Level.Trial)
+    public void setUp(final KnownDevices devices)
+    {
+        mExecutor = BackgroundScheduler.newInstance(TransitionProcessor.class.getSimpleName());
+        mProcessor = new TransitionProcessor(devices.mStore, devices.mRegistry, Clock.SYSTEM, TransitionDebouncer.DEFAULT_WINDOW_MILLIS, new TransitionProcessor.RequerySender()
+        {
+            public void requestRequery()
+            {
+                mRequeryCount++;
+            }
+        }, mExecutor);
+
+        mIsConnected = new boolean[devices.deviceCount];
+        for (int x = 0; x < mIsConnected.length; x++)
+        {
+            mIsConnected[x] = 0 != x % 2;
+        }
+    }
+
+    /**
+     * Stops closing windows. Those still open are dropped with the store.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Takes in one broadcast.
+     *
+     * @param devices the store.
+     * @return whether the device is watched.
+     */
+    @Benchmark
+    public boolean ingest(final KnownDevices devices)
+    {
+        final int index = mNext;
+        mNext = index + 1 == devices.deviceCount ? 0 : index + 1;
+        final boolean isConnected = mIsConnected[index];
+        mIsConnected[index] = !isConnected;
+
+        final long mac = MacCodec.encode(devices.mMacStrings[index]);
+        devices.mStore.setDeviceClass(mac, DEVICE_CLASS);
+        final boolean isWatched = devices.mRegistry.isWatched(mac) || devices.mRegistry.isClassWatched(DEVICE_CLASS);
+        mProcessor.onTransition(mac, isConnected, null);
+        return isWatched;
+    }
+}
@@ -0,0 +1,340 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import java.util.Arrays;
+
+import name.boyle.chris.locale.bluetoothacl.state.DeviceClass;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Compact binary encoding of a condition, as carried by {@code PluginBundleManager.BUNDLE_EXTRA_BYTE_ARRAY_CONDITION}.
+ * <p>
+ * Byte 0 is {@link #SCHEMA_VERSION}, byte 1 the kind and byte 2 flags, of which bit 0 is set if devices are expected to be
+ * connected. The rest depends on the kind:
+ * <ul>
+ * <li>{@link #KIND_DEVICES}: bits 1 and 2 of the flags are the quantifier, as {@link DeviceCondition#QUANTIFIER_ANY}. Byte 3
+ * is the minimum count, which is 1 unless the quantifier is {@link DeviceCondition#QUANTIFIER_AT_LEAST}. Byte 4 is the number
+ * of devices, from 1 to {@link #MAX_DEVICES}, followed by each MAC as six bytes, in strictly ascending order.</li>
+ * <li>{@link #KIND_DEVICE_CLASS}: bit 1 of the flags is set for a major class. Bytes 3 and 4 are the class, big-endian.</li>
+ * </ul>
+ * A single device condition is 11 bytes, where the original format holds a 17 character MAC and a boolean under two keys.
+ * <p>
+ * {@link #isValid(byte[])} checks a payload in one pass. After that, every accessor reads fixed offsets, so decoding allocates
+ * nothing.
+ */
+public final class ConditionCodec
+{
+    /**
+     * Version of the encoding, in byte 0.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    /**
+     * Kind of a condition on one or more devices.
+     */
+    public static final int KIND_DEVICES = 0;
+
+    /**
+     * Kind of a condition on a class of devices.
+     */
+    public static final int KIND_DEVICE_CLASS = 1;
+
+    /**
+     * Largest number of devices a condition can name.
+     */
+    public static final int MAX_DEVICES = 255;
+
+    /**
+     * Offset of the kind.
+     */
+    private static final int OFFSET_KIND = 1;
+
+    /**
+     * Offset of the flags.
+     */
+    private static final int OFFSET_FLAGS = 2;
+
+    /**
+     * Offset of the minimum count, for {@link #KIND_DEVICES}.
+     */
+    private static final int OFFSET_MIN_COUNT = 3;
+
+    /**
+     * Offset of the number of devices, for {@link #KIND_DEVICES}.
+     */
+    private static final int OFFSET_DEVICE_COUNT = 4;
+
+    /**
+     * Offset of the first MAC, for {@link #KIND_DEVICES}.
+     */
+    private static final int OFFSET_MACS = 5;
+
+    /**
+     * Offset of the class, for {@link #KIND_DEVICE_CLASS}.
+     */
+    private static final int OFFSET_CLASS = 3;
+
+    /**
+     * Length of a payload of {@link #KIND_DEVICE_CLASS}.
+     */
+    private static final int DEVICE_CLASS_LENGTH = 5;
+
+    /**
+     * Length of a MAC.
+     */
+    private static final int MAC_LENGTH = 6;
+
+    /**
+     * Flag set if devices are expected to be connected.
+     */
+    private static final int FLAG_CONNECTED = 1;
+
+    /**
+     * Flag set for a major class, for {@link #KIND_DEVICE_CLASS}.
+     */
+    private static final int FLAG_MAJOR = 2;
+
+    /**
+     * Shift of the quantifier in the flags, for {@link #KIND_DEVICES}.
+     */
+    private static final int QUANTIFIER_SHIFT = 1;
+
+    /**
+     * Private constructor prevents instantiation
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private ConditionCodec()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Encodes a condition on one or more devices.
+     *
+     * @param macs MACs of the devices, packed by {@link MacCodec}. Cannot be null. Duplicates are ignored.
+     * @param isConnectedExpected true if devices must be connected, false if they must be disconnected.
+     * @param quantifier one of {@link DeviceCondition#QUANTIFIER_ANY}, {@link DeviceCondition#QUANTIFIER_ALL} or
+     *            {@link DeviceCondition#QUANTIFIER_AT_LEAST}.
+     * @param minCount number of devices which must be in the expected state, for {@link DeviceCondition#QUANTIFIER_AT_LEAST}.
+     *            Ignored otherwise.
+     * @return a valid payload.
+     * @throws IllegalArgumentException if a MAC is {@link MacCodec#INVALID}, there are no devices or more than
+     *             {@link #MAX_DEVICES}, the quantifier is unknown, or {@code minCount} is out of range.
+     */
+    public static byte[] encodeDevices(final long[] macs, final boolean isConnectedExpected, final int quantifier, final int minCount)
+    {
+        final long[] sorted = macs.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int x = 0; x < sorted.length; x++)
+        {
+            if (MacCodec.INVALID == sorted[x])
+            {
+                throw new IllegalArgumentException("macs cannot contain INVALID"); //$NON-NLS-1$
+            }
+            if (0 == x || sorted[x] != sorted[x - 1])
+            {
+                sorted[count++] = sorted[x];
+            }
+        }
+
+        if (0 == count || count > MAX_DEVICES)
+        {
+            throw new IllegalArgumentException(String.format("%d devices is not between 1 and %d", Integer.valueOf(count), Integer.valueOf(MAX_DEVICES))); //$NON-NLS-1$
+        }
+        if (!DeviceCondition.isValidQuantifier(quantifier))
+        {
+            throw new IllegalArgumentException(String.format("unknown quantifier %d", Integer.valueOf(quantifier))); //$NON-NLS-1$
+        }
+        final boolean isAtLeast = DeviceCondition.QUANTIFIER_AT_LEAST == quantifier;
+        if (isAtLeast && (minCount < 1 || minCount > count))
+        {
+            throw new IllegalArgumentException(String.format("minCount %d is not between 1 and %d", Integer.valueOf(minCount), Integer.valueOf(count))); //$NON-NLS-1$
+        }
+
+        final byte[] result = new byte[OFFSET_MACS + count * MAC_LENGTH];
+        result[0] = SCHEMA_VERSION;
+        result[OFFSET_KIND] = KIND_DEVICES;
+        result[OFFSET_FLAGS] = (byte) ((isConnectedExpected ? FLAG_CONNECTED : 0) | (quantifier << QUANTIFIER_SHIFT));
+        result[OFFSET_MIN_COUNT] = (byte) (isAtLeast ? minCount : 1);
+        result[OFFSET_DEVICE_COUNT] = (byte) count;
+        for (int x = 0; x < count; x++)
+        {
+            final int offset = OFFSET_MACS + x * MAC_LENGTH;
+            for (int b = 0; b < MAC_LENGTH; b++)
+            {
+                result[offset + b] = (byte) (sorted[x] >>> (8 * (MAC_LENGTH - 1 - b)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Encodes a condition on a class of devices.
+     *
+     * @param isMajor true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a major class or device class, as for {@link DeviceClass}.
+     * @param isConnectedExpected true if any device of the class must be connected, false if none may be.
+     * @return a valid payload.
+     * @throws IllegalArgumentException if {@code classValue} isn't valid.
+     */
+    public static byte[] encodeDeviceClass(final boolean isMajor, final int classValue, final boolean isConnectedExpected)
+    {
+        if (isMajor ? !DeviceClass.isValidMajor(classValue) : !DeviceClass.isValid(classValue))
+        {
+            throw new IllegalArgumentException(String.format("0x%x is not a valid class", Integer.valueOf(classValue))); //$NON-NLS-1$
+        }
+
+        final byte[] result = new byte[DEVICE_CLASS_LENGTH];
+        result[0] = SCHEMA_VERSION;
+        result[OFFSET_KIND] = KIND_DEVICE_CLASS;
+        result[OFFSET_FLAGS] = (byte) ((isConnectedExpected ? FLAG_CONNECTED : 0) | (isMajor ? FLAG_MAJOR : 0));
+        result[OFFSET_CLASS] = (byte) (classValue >>> 8);
+        result[OFFSET_CLASS + 1] = (byte) classValue;
+        return result;
+    }
+
+    /**
+     * Checks a payload in one pass. Payloads of a later schema version are rejected, as their meaning is unknown.
+     *
+     * @param payload payload to check. May be null, which is invalid.
+     * @return true if {@code payload} is valid.
+     */
+    public static boolean isValid(final byte[] payload)
+    {
+        if (null == payload || payload.length <= OFFSET_FLAGS || SCHEMA_VERSION != payload[0])
+        {
+            return false;
+        }
+
+        final int flags = payload[OFFSET_FLAGS] & 0xFF;
+        switch (payload[OFFSET_KIND])
+        {
+            case KIND_DEVICES:
+            {
+                if (payload.length < OFFSET_MACS || 0 != (flags & ~(FLAG_CONNECTED | (3 << QUANTIFIER_SHIFT))))
+                {
+                    return false;
+                }
+
+                final int quantifier = flags >>> QUANTIFIER_SHIFT;
+                final int minCount = payload[OFFSET_MIN_COUNT] & 0xFF;
+                final int count = payload[OFFSET_DEVICE_COUNT] & 0xFF;
+                if (0 == count || payload.length != OFFSET_MACS + count * MAC_LENGTH)
+                {
+                    return false;
+                }
+                if (DeviceCondition.QUANTIFIER_AT_LEAST == quantifier ? minCount < 1 || minCount > count
+                        : 1 != minCount || (DeviceCondition.QUANTIFIER_ANY != quantifier && DeviceCondition.QUANTIFIER_ALL != quantifier))
+                {
+                    return false;
+                }
+
+                long previous = -1;
+                for (int x = 0; x < count; x++)
+                {
+                    final long mac = getDeviceMac(payload, x);
+                    if (mac <= previous)
+                    {
+                        return false;
+                    }
+                    previous = mac;
+                }
+                return true;
+            }
+            case KIND_DEVICE_CLASS:
+            {
+                if (DEVICE_CLASS_LENGTH != payload.length || 0 != (flags & ~(FLAG_CONNECTED | FLAG_MAJOR)))
+                {
+                    return false;
+                }
+
+                final int classValue = getDeviceClass(payload);
+                return 0 != (flags & FLAG_MAJOR) ? DeviceClass.isValidMajor(classValue) : DeviceClass.isValid(classValue);
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param payload a valid payload.
+     * @return {@link #KIND_DEVICES} or {@link #KIND_DEVICE_CLASS}.
+     */
+    public static int getKind(final byte[] payload)
+    {
+        return payload[OFFSET_KIND];
+    }
+
+    /**
+     * @param payload a valid payload.
+     * @return true if devices are expected to be connected, false if they are expected to be disconnected.
+     */
+    public static boolean isConnectedExpected(final byte[] payload)
+    {
+        return 0 != (payload[OFFSET_FLAGS] & FLAG_CONNECTED);
+    }
+
+    /**
+     * @param payload a valid payload of {@link #KIND_DEVICES}.
+     * @return the quantifier, as {@link DeviceCondition#QUANTIFIER_ANY}.
+     */
+    public static int getQuantifier(final byte[] payload)
+    {
+        return (payload[OFFSET_FLAGS] & 0xFF) >>> QUANTIFIER_SHIFT;
+    }
+
+    /**
+     * @param payload a valid payload of {@link #KIND_DEVICES}.
+     * @return number of devices which must be in the expected state, for {@link DeviceCondition#QUANTIFIER_AT_LEAST}. 1 for
+     *         the other quantifiers.
+     */
+    public static int getMinCount(final byte[] payload)
+    {
+        return payload[OFFSET_MIN_COUNT] & 0xFF;
+    }
+
+    /**
+     * @param payload a valid payload of {@link #KIND_DEVICES}.
+     * @return number of distinct devices.
+     */
+    public static int getDeviceCount(final byte[] payload)
+    {
+        return payload[OFFSET_DEVICE_COUNT] & 0xFF;
+    }
+
+    /**
+     * @param payload a valid payload of {@link #KIND_DEVICES}.
+     * @param position position of the device, from 0 to {@link #getDeviceCount(byte[])} - 1.
+     * @return MAC of the device, packed by {@link MacCodec}. Devices are in ascending order.
+     */
+    public static long getDeviceMac(final byte[] payload, final int position)
+    {
+        final int offset = OFFSET_MACS + position * MAC_LENGTH;
+        long mac = 0;
+        for (int b = 0; b < MAC_LENGTH; b++)
+        {
+            mac = (mac << 8) | (payload[offset + b] & 0xFF);
+        }
+        return mac;
+    }
+
+    /**
+     * @param payload a valid payload of {@link #KIND_DEVICE_CLASS}.
+     * @return true if the condition is on a major class, false if it is on a device class.
+     */
+    public static boolean isMajorDeviceClass(final byte[] payload)
+    {
+        return 0 != (payload[OFFSET_FLAGS] & FLAG_MAJOR);
+    }
+
+    /**
+     * @param payload a valid payload of {@link #KIND_DEVICE_CLASS}.
+     * @return the major class or device class, as told by {@link #isMajorDeviceClass(byte[])}.
+     */
+    public static int getDeviceClass(final byte[] payload)
+    {
+        return ((payload[OFFSET_CLASS] & 0xFF) << 8) | (payload[OFFSET_CLASS + 1] & 0xFF);
+    }
+}
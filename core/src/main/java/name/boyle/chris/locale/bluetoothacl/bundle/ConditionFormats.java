@@ -0,0 +1,255 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import java.text.ParseException;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+import name.boyle.chris.locale.bluetoothacl.state.ConditionExpression;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceClass;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Rules of the formats in which a condition is saved, on the plain values they hold. {@code PluginBundleManager} reads the values
+ * out of a Bundle's extras and checks their types; what they must be, and how a condition in one of the older formats converts to
+ * a {@link ConditionCodec} payload, is decided here.
+ * <p>
+ * The original format names one device and says whether it must be connected. {@link #FORMAT_MULTI_DEVICE} names a set of
+ * devices with a quantifier, {@link #FORMAT_EXPRESSION} holds the text of a {@link ConditionExpression}, and
+ * {@link #FORMAT_DEVICE_CLASS} names a major class or device class. The compact format holds any of them but an expression, as
+ * one {@link ConditionCodec} payload.
+ * <p>
+ * A value which breaks a rule is logged through {@link CoreLog}.
+ */
+public final class ConditionFormats
+{
+    /**
+     * Format of a condition on a set of devices.
+     */
+    public static final int FORMAT_MULTI_DEVICE = 2;
+
+    /**
+     * Format of an expression over device states.
+     */
+    public static final int FORMAT_EXPRESSION = 3;
+
+    /**
+     * Format of a condition on a class of devices.
+     */
+    public static final int FORMAT_DEVICE_CLASS = 4;
+
+    /**
+     * Private constructor prevents instantiation
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private ConditionFormats()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * @param format value of a format marker.
+     * @return true if {@code format} is one of {@link #FORMAT_MULTI_DEVICE}, {@link #FORMAT_EXPRESSION} or
+     *         {@link #FORMAT_DEVICE_CLASS}.
+     */
+    public static boolean isKnownFormat(final int format)
+    {
+        switch (format)
+        {
+            case FORMAT_MULTI_DEVICE:
+            case FORMAT_EXPRESSION:
+            case FORMAT_DEVICE_CLASS:
+                return true;
+            default:
+                if (CoreLog.isLoggable())
+                {
+                    CoreLog.e(String.format("Unknown format %d", Integer.valueOf(format)), null); //$NON-NLS-1$
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Checks the values of a condition in format {@link #FORMAT_MULTI_DEVICE}. Unlike the original format, it has only ever been
+     * written by a version which validates MACs, so a malformed one means the condition is corrupt.
+     *
+     * @param macs MACs of the devices, uppercase with colons. May be null, which is invalid.
+     * @param quantifier the quantifier.
+     * @param minCount number of devices which must be in the expected state. Only checked for
+     *            {@link DeviceCondition#QUANTIFIER_AT_LEAST}.
+     * @return true if the values are valid.
+     */
+    public static boolean isMultiDeviceValid(final String[] macs, final int quantifier, final int minCount)
+    {
+        if (null == macs || 0 == macs.length)
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("The devices must be a non-empty String[]", null); //$NON-NLS-1$
+            }
+            return false;
+        }
+        for (final String mac : macs)
+        {
+            if (MacCodec.INVALID == MacCodec.encode(mac))
+            {
+                if (CoreLog.isLoggable())
+                {
+                    CoreLog.e(String.format("The devices contain malformed MAC %s", mac), null); //$NON-NLS-1$
+                }
+                return false;
+            }
+        }
+
+        if (!DeviceCondition.isValidQuantifier(quantifier))
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e(String.format("Unknown quantifier %d", Integer.valueOf(quantifier)), null); //$NON-NLS-1$
+            }
+            return false;
+        }
+
+        if (DeviceCondition.QUANTIFIER_AT_LEAST == quantifier)
+        {
+            final int deviceCount = DeviceCondition.countDistinct(encodeMacs(macs));
+            if (minCount < 1 || minCount > deviceCount)
+            {
+                if (CoreLog.isLoggable())
+                {
+                    CoreLog.e(String.format("Minimum count is %d, but there are %d devices", Integer.valueOf(minCount), Integer.valueOf(deviceCount)), null); //$NON-NLS-1$
+                }
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks the value of a condition in format {@link #FORMAT_EXPRESSION}. A valid expression is compiled and cached on the way.
+     *
+     * @param expression text of the expression. May be null, which is invalid.
+     * @return true if the expression is valid.
+     */
+    public static boolean isExpressionValid(final String expression)
+    {
+        if (null == expression)
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("The expression must be a String", null); //$NON-NLS-1$
+            }
+            return false;
+        }
+
+        try
+        {
+            ConditionExpression.compile(expression);
+        }
+        catch (final ParseException e)
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e(String.format("Not a valid expression: %s at %d", e.getMessage(), Integer.valueOf(e.getErrorOffset())), null); //$NON-NLS-1$
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks the value of a condition in format {@link #FORMAT_DEVICE_CLASS}.
+     *
+     * @param isMajor true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue the class.
+     * @return true if {@code classValue} is a valid class of its kind.
+     */
+    public static boolean isDeviceClassValid(final boolean isMajor, final int classValue)
+    {
+        if (isMajor ? !DeviceClass.isValidMajor(classValue) : !DeviceClass.isValid(classValue))
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e(String.format("Invalid %s 0x%x", isMajor ? "major class" : "device class", Integer.valueOf(classValue)), null); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Converts a valid condition on a set of devices, in the original format or format {@link #FORMAT_MULTI_DEVICE}, to the
+     * compact format.
+     *
+     * @param macs MACs of the devices, uppercase with colons. Cannot be null.
+     * @param isConnectedExpected true if devices must be connected, false if they must be disconnected.
+     * @param quantifier the quantifier. {@link DeviceCondition#QUANTIFIER_ANY} for the original format.
+     * @param minCount number of devices which must be in the expected state. 1 for the original format.
+     * @return the payload, or null if the condition holds a malformed MAC or more than {@link ConditionCodec#MAX_DEVICES} devices,
+     *         which the compact format can't.
+     */
+    public static byte[] toPayload(final String[] macs, final boolean isConnectedExpected, final int quantifier, final int minCount)
+    {
+        final long[] packed = encodeMacs(macs);
+        if (packed.length > ConditionCodec.MAX_DEVICES)
+        {
+            return null;
+        }
+        for (final long mac : packed)
+        {
+            if (MacCodec.INVALID == mac)
+            {
+                return null;
+            }
+        }
+
+        return ConditionCodec.encodeDevices(packed, isConnectedExpected, quantifier, minCount);
+    }
+
+    /**
+     * Builds the condition a compact payload describes.
+     *
+     * @param payload a valid payload of {@link ConditionCodec#KIND_DEVICES}. Cannot be null.
+     * @return the condition.
+     */
+    public static DeviceCondition toCondition(final byte[] payload)
+    {
+        final long[] macs = new long[ConditionCodec.getDeviceCount(payload)];
+        for (int x = 0; x < macs.length; x++)
+        {
+            macs[x] = ConditionCodec.getDeviceMac(payload, x);
+        }
+        return DeviceCondition.quantified(macs, ConditionCodec.isConnectedExpected(payload), ConditionCodec.getQuantifier(payload), ConditionCodec.getMinCount(payload));
+    }
+
+    /**
+     * @param payload a valid payload of {@link ConditionCodec#KIND_DEVICES}. Cannot be null.
+     * @return MACs of the devices, uppercase with colons.
+     */
+    public static String[] getDeviceMacs(final byte[] payload)
+    {
+        final String[] result = new String[ConditionCodec.getDeviceCount(payload)];
+        for (int x = 0; x < result.length; x++)
+        {
+            result[x] = MacCodec.decode(ConditionCodec.getDeviceMac(payload, x));
+        }
+        return result;
+    }
+
+    /**
+     * @param macs MACs, uppercase with colons. Cannot be null.
+     * @return the MACs packed by {@link MacCodec}, {@link MacCodec#INVALID} for any which is malformed.
+     */
+    public static long[] encodeMacs(final String[] macs)
+    {
+        final long[] result = new long[macs.length];
+        for (int x = 0; x < macs.length; x++)
+        {
+            result[x] = MacCodec.encode(macs[x]);
+        }
+        return result;
+    }
+}
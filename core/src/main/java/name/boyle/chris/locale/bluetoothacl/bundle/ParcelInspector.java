@@ -0,0 +1,257 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+/**
+ * Walks the extras of a parcelled Bundle by their type tags, without reading any of them, to tell whether the Bundle holds only
+ * plain values.
+ * <p>
+ * The parcel is read through {@link Source}, which {@code android.os.Parcel} satisfies method for method. That keeps this class
+ * free of Android, so that it can be tested and benchmarked on a plain JVM against a stand-in parcel.
+ */
+public final class ParcelInspector
+{
+    /**
+     * Read access to a parcel, as {@code android.os.Parcel} provides it. Values are 32-bit aligned.
+     */
+    public interface Source
+    {
+        /**
+         * @return current position, in bytes.
+         */
+        int dataPosition();
+
+        /**
+         * @return end of the data, in bytes.
+         */
+        int dataSize();
+
+        /**
+         * @param position new position, in bytes.
+         */
+        void setDataPosition(int position);
+
+        /**
+         * @return the int at the current position, which moves past it.
+         */
+        int readInt();
+    }
+
+    /**
+     * Largest parcelled Bundle to accept from Locale. Far more than any valid condition.
+     */
+    public static final int MAX_PARCEL_SIZE = 64 * 1024;
+
+    /**
+     * Result of {@link #inspect(Source, int)}: every extra is a plain value.
+     */
+    public static final int CLEAN = 0;
+
+    /**
+     * Result of {@link #inspect(Source, int)}: the parcel is too large, or an extra names its own class.
+     */
+    public static final int REJECT = 1;
+
+    /**
+     * Result of {@link #inspect(Source, int)}: the parcel isn't laid out as expected.
+     */
+    public static final int UNKNOWN = 2;
+
+    /*
+     * Type tags written by Parcel.writeValue()
+     */
+    public static final int VAL_NULL = -1;
+    public static final int VAL_STRING = 0;
+    public static final int VAL_INTEGER = 1;
+    public static final int VAL_PARCELABLE = 4;
+    public static final int VAL_SHORT = 5;
+    public static final int VAL_LONG = 6;
+    public static final int VAL_FLOAT = 7;
+    public static final int VAL_DOUBLE = 8;
+    public static final int VAL_BOOLEAN = 9;
+    public static final int VAL_BYTEARRAY = 13;
+    public static final int VAL_STRINGARRAY = 14;
+    public static final int VAL_PARCELABLEARRAY = 16;
+    public static final int VAL_INTARRAY = 18;
+    public static final int VAL_LONGARRAY = 19;
+    public static final int VAL_BYTE = 20;
+    public static final int VAL_SERIALIZABLE = 21;
+    public static final int VAL_BOOLEANARRAY = 23;
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private ParcelInspector()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Walks the extras of a parcelled Bundle without reading any of them. The parcel is left at the position it was found at.
+     *
+     * @param parcel the Bundle's parcel, positioned at the number of extras as Bundle.unparcel() expects. Cannot be null.
+     * @param maxParcelSize largest parcel to accept, in bytes.
+     * @return {@link #CLEAN} if every extra is a plain value, {@link #REJECT} if the parcel is too large or an extra names its own
+     *         class, or {@link #UNKNOWN} if the parcel isn't laid out as expected.
+     */
+    public static int inspect(final Source parcel, final int maxParcelSize)
+    {
+        final int start = parcel.dataPosition();
+        final int end = parcel.dataSize();
+        if (end - start > maxParcelSize)
+        {
+            return REJECT;
+        }
+
+        try
+        {
+            if (end - start < 4)
+            {
+                return UNKNOWN;
+            }
+            final int count = parcel.readInt();
+            if (count < 0)
+            {
+                return UNKNOWN;
+            }
+
+            for (int x = 0; x < count; x++)
+            {
+                /*
+                 * Keys are written as values too, and must be strings
+                 */
+                if (parcel.dataPosition() + 4 > end || VAL_STRING != parcel.readInt() || !skipString(parcel, end))
+                {
+                    return UNKNOWN;
+                }
+
+                if (parcel.dataPosition() + 4 > end)
+                {
+                    return UNKNOWN;
+                }
+                final int type = parcel.readInt();
+                if (VAL_PARCELABLE == type || VAL_PARCELABLEARRAY == type || VAL_SERIALIZABLE == type)
+                {
+                    return REJECT;
+                }
+                if (!skipValue(parcel, type, end))
+                {
+                    return UNKNOWN;
+                }
+            }
+
+            return end == parcel.dataPosition() ? CLEAN : UNKNOWN;
+        }
+        finally
+        {
+            parcel.setDataPosition(start);
+        }
+    }
+
+    /**
+     * Skips a plain value.
+     *
+     * @param parcel parcel positioned after the type tag.
+     * @param type type tag of the value.
+     * @param end end of the parcel.
+     * @return true if the value was skipped, false if {@code type} isn't a plain value or the value overruns the parcel.
+     */
+    private static boolean skipValue(final Source parcel, final int type, final int end)
+    {
+        switch (type)
+        {
+            case VAL_NULL:
+                return true;
+            case VAL_STRING:
+                return skipString(parcel, end);
+            case VAL_INTEGER:
+            case VAL_SHORT:
+            case VAL_FLOAT:
+            case VAL_BOOLEAN:
+            case VAL_BYTE:
+                return skip(parcel, 4, end);
+            case VAL_LONG:
+            case VAL_DOUBLE:
+                return skip(parcel, 8, end);
+            case VAL_BYTEARRAY:
+                return skipArray(parcel, 1, end);
+            case VAL_INTARRAY:
+            case VAL_BOOLEANARRAY:
+                return skipArray(parcel, 4, end);
+            case VAL_LONGARRAY:
+                return skipArray(parcel, 8, end);
+            case VAL_STRINGARRAY:
+            {
+                if (parcel.dataPosition() + 4 > end)
+                {
+                    return false;
+                }
+                final int length = parcel.readInt();
+                for (int x = 0; x < length; x++)
+                {
+                    if (!skipString(parcel, end))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Skips a string: its length in chars, or -1 for null, then the chars and a terminating NUL, padded to four bytes.
+     *
+     * @param parcel parcel positioned at the string.
+     * @param end end of the parcel.
+     * @return true if the string was skipped, false if it overruns the parcel.
+     */
+    private static boolean skipString(final Source parcel, final int end)
+    {
+        if (parcel.dataPosition() + 4 > end)
+        {
+            return false;
+        }
+        final int length = parcel.readInt();
+        return length < 0 || skip(parcel, ((long) length + 1) * 2, end);
+    }
+
+    /**
+     * Skips an array of primitives: its length, or -1 for null, then the elements padded to four bytes.
+     *
+     * @param parcel parcel positioned at the array.
+     * @param elementSize size of each element in bytes.
+     * @param end end of the parcel.
+     * @return true if the array was skipped, false if it overruns the parcel.
+     */
+    private static boolean skipArray(final Source parcel, final int elementSize, final int end)
+    {
+        if (parcel.dataPosition() + 4 > end)
+        {
+            return false;
+        }
+        final int length = parcel.readInt();
+        return length < 0 || skip(parcel, (long) length * elementSize, end);
+    }
+
+    /**
+     * Moves past {@code size} bytes, padded to four.
+     *
+     * @param parcel the parcel.
+     * @param size number of bytes.
+     * @param end end of the parcel.
+     * @return true if they were skipped, false if they overrun the parcel.
+     */
+    private static boolean skip(final Source parcel, final long size, final int end)
+    {
+        final long position = parcel.dataPosition() + ((size + 3) & ~3L);
+        if (position > end)
+        {
+            return false;
+        }
+        parcel.setDataPosition((int) position);
+        return true;
+    }
+}
@@ -0,0 +1,46 @@
+package name.boyle.chris.locale.bluetoothacl.core;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads on which the core runs delayed work, such as committing writes or closing debounce windows.
+ */
+public final class BackgroundScheduler
+{
+    /**
+     * Priority of the threads. Android maps this Java priority to {@code Process.THREAD_PRIORITY_BACKGROUND}, which is what
+     * the {@code HandlerThread}s these replace ran at.
+     */
+    private static final int PRIORITY = Thread.NORM_PRIORITY - 1;
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private BackgroundScheduler()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * @param name name of the thread. Cannot be null.
+     * @return a new single-threaded scheduler. Its thread is a daemon, so it doesn't keep a JVM alive, and is started by the
+     *         first task.
+     */
+    public static ScheduledExecutorService newInstance(final String name)
+    {
+        return new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                thread.setPriority(PRIORITY);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,22 @@
+package name.boyle.chris.locale.bluetoothacl.core;
+
+/**
+ * Class of constants used by the core, which can't see the plug-in's {@code Constants}. Keep these in step with it.
+ */
+public final class CoreConstants
+{
+    /**
+     * Private constructor prevents instantiation
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private CoreConstants()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Flag to enable runtime checking of method parameters
+     */
+    public static final boolean IS_PARAMETER_CHECKING_ENABLED = false;
+}
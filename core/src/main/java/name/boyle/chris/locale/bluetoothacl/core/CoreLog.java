@@ -0,0 +1,121 @@
+package name.boyle.chris.locale.bluetoothacl.core;
+
+/**
+ * Logging for the core, which can't use {@code android.util.Log}. Messages go to a {@link Sink} installed by whoever embeds the
+ * core: the plug-in installs one writing to logcat when {@code Constants.IS_LOGGABLE} is set, and a benchmark can install one
+ * writing to standard error. With no sink, nothing is logged.
+ * <p>
+ * Callers check {@link #isLoggable()} before building a message, as the plug-in checks {@code Constants.IS_LOGGABLE}, so that a
+ * hot path allocates nothing when logging is off.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class CoreLog
+{
+    /**
+     * Priority of a verbose message, as {@code android.util.Log#VERBOSE}.
+     */
+    public static final int VERBOSE = 2;
+
+    /**
+     * Priority of a warning, as {@code android.util.Log#WARN}.
+     */
+    public static final int WARN = 5;
+
+    /**
+     * Priority of an error, as {@code android.util.Log#ERROR}.
+     */
+    public static final int ERROR = 6;
+
+    /**
+     * Receives log messages.
+     */
+    public interface Sink
+    {
+        /**
+         * @param priority one of {@link CoreLog#VERBOSE}, {@link CoreLog#WARN} or {@link CoreLog#ERROR}.
+         * @param message the message. Cannot be null.
+         * @param throwable cause of the message. May be null.
+         */
+        void log(int priority, String message, Throwable throwable);
+    }
+
+    /**
+     * The installed sink, or null if logging is off.
+     */
+    private static volatile Sink sSink = null;
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private CoreLog()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * @param sink receives every message from now on. May be null to turn logging off.
+     */
+    public static void setSink(final Sink sink)
+    {
+        sSink = sink;
+    }
+
+    /**
+     * @return true if messages are going anywhere.
+     */
+    public static boolean isLoggable()
+    {
+        return null != sSink;
+    }
+
+    /**
+     * @param message the message. Cannot be null.
+     */
+    public static void v(final String message)
+    {
+        log(VERBOSE, message, null);
+    }
+
+    /**
+     * @param message the message. Cannot be null.
+     */
+    public static void w(final String message)
+    {
+        log(WARN, message, null);
+    }
+
+    /**
+     * @param message the message. Cannot be null.
+     * @param throwable cause of the message. May be null.
+     */
+    public static void w(final String message, final Throwable throwable)
+    {
+        log(WARN, message, throwable);
+    }
+
+    /**
+     * @param message the message. Cannot be null.
+     * @param throwable cause of the message. May be null.
+     */
+    public static void e(final String message, final Throwable throwable)
+    {
+        log(ERROR, message, throwable);
+    }
+
+    /**
+     * @param priority priority of the message.
+     * @param message the message. Cannot be null.
+     * @param throwable cause of the message. May be null.
+     */
+    private static void log(final int priority, final String message, final Throwable throwable)
+    {
+        final Sink sink = sSink;
+        if (null != sink)
+        {
+            sink.log(priority, message, throwable);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A recorded stream of ACL broadcasts, for replaying field incidents through {@link TraceReplayer}.
+ * <p>
+ * A trace is a UTF-8 text file with one broadcast per line, as five fields separated by spaces: the elapsed realtime at which it
+ * was taken in, in milliseconds; the MAC of the device, uppercase with colons; 1 if the device connected or 0 if it
+ * disconnected; the device class reported with it, or -1 if none was; and 1 if some condition watched the device or its class at
+ * the time, or 0 if not. Blank lines and lines starting with {@code #} are ignored, so a trace can be annotated by hand.
+ */
+public final class AclTrace
+{
+    /**
+     * One recorded broadcast.
+     */
+    public static final class Event
+    {
+        /**
+         * Elapsed realtime at which the broadcast was taken in.
+         */
+        private final long mElapsedRealtime;
+
+        /**
+         * Packed MAC of the device.
+         */
+        private final long mDeviceMac;
+
+        /**
+         * True if the device connected.
+         */
+        private final boolean mIsConnected;
+
+        /**
+         * Class reported with the broadcast.
+         */
+        private final int mDeviceClass;
+
+        /**
+         * True if some condition watched the device or its class.
+         */
+        private final boolean mIsWatched;
+
+        /**
+         * @param elapsedRealtime elapsed realtime at which the broadcast was taken in.
+         * @param deviceMac packed MAC of the device.
+         * @param isConnected true if the device connected, false if it disconnected.
+         * @param deviceClass class reported with the broadcast, or {@link DeviceClass#UNKNOWN}.
+         * @param isWatched true if some condition watched the device or its class.
+         */
+        public Event(final long elapsedRealtime, final long deviceMac, final boolean isConnected, final int deviceClass, final boolean isWatched)
+        {
+            mElapsedRealtime = elapsedRealtime;
+            mDeviceMac = deviceMac;
+            mIsConnected = isConnected;
+            mDeviceClass = deviceClass;
+            mIsWatched = isWatched;
+        }
+
+        /**
+         * @return elapsed realtime at which the broadcast was taken in.
+         */
+        public long getElapsedRealtime()
+        {
+            return mElapsedRealtime;
+        }
+
+        /**
+         * @return packed MAC of the device.
+         */
+        public long getDeviceMac()
+        {
+            return mDeviceMac;
+        }
+
+        /**
+         * @return true if the device connected, false if it disconnected.
+         */
+        public boolean isConnected()
+        {
+            return mIsConnected;
+        }
+
+        /**
+         * @return class reported with the broadcast, or {@link DeviceClass#UNKNOWN}.
+         */
+        public int getDeviceClass()
+        {
+            return mDeviceClass;
+        }
+
+        /**
+         * @return true if some condition watched the device or its class.
+         */
+        public boolean isWatched()
+        {
+            return mIsWatched;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%d %s %d %d %d", Long.valueOf(mElapsedRealtime), MacCodec.decode(mDeviceMac), Integer.valueOf(mIsConnected ? 1 : 0), //$NON-NLS-1$
+                                 Integer.valueOf(mDeviceClass), Integer.valueOf(mIsWatched ? 1 : 0));
+        }
+    }
+
+    /**
+     * Appends events to a trace file. Each event is flushed as it is written, so a trace survives the process being killed.
+     * <p>
+     * This class is not thread-safe.
+     */
+    public static final class Recorder implements Closeable
+    {
+        /**
+         * The open file.
+         */
+        private final Writer mWriter;
+
+        /**
+         * @param file trace file, which is created if it doesn't exist and appended to if it does. Cannot be null.
+         * @throws IOException if the file can't be opened.
+         */
+        public Recorder(final File file) throws IOException
+        {
+            mWriter = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"); //$NON-NLS-1$
+        }
+
+        /**
+         * @param event event to append. Cannot be null.
+         * @throws IOException if the event can't be written.
+         */
+        public void write(final Event event) throws IOException
+        {
+            mWriter.write(event.toString());
+            mWriter.write('\n');
+            mWriter.flush();
+        }
+
+        public void close() throws IOException
+        {
+            mWriter.close();
+        }
+    }
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private AclTrace()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Reads a whole trace.
+     *
+     * @param file trace file. Cannot be null.
+     * @return the events, in the order they were recorded.
+     * @throws IOException if the file can't be read, or a line is malformed. The message names the line.
+     */
+    public static List<Event> read(final File file) throws IOException
+    {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8")); //$NON-NLS-1$
+        try
+        {
+            final List<Event> events = new ArrayList<Event>();
+            int lineNumber = 0;
+            for (String line = reader.readLine(); null != line; line = reader.readLine())
+            {
+                lineNumber++;
+                line = line.trim();
+                if (0 == line.length() || line.startsWith("#")) //$NON-NLS-1$
+                {
+                    continue;
+                }
+
+                final Event event = parse(line);
+                if (null == event)
+                {
+                    throw new IOException(String.format("%s:%d: malformed event: %s", file, Integer.valueOf(lineNumber), line)); //$NON-NLS-1$
+                }
+                events.add(event);
+            }
+            return events;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @param line a line of a trace, trimmed. Cannot be null.
+     * @return the event on the line, or null if it is malformed.
+     */
+    /* package */static Event parse(final String line)
+    {
+        final String[] fields = line.split(" +"); //$NON-NLS-1$
+        if (5 != fields.length)
+        {
+            return null;
+        }
+
+        try
+        {
+            final long deviceMac = MacCodec.encode(fields[1]);
+            if (MacCodec.INVALID == deviceMac || !isFlag(fields[2]) || !isFlag(fields[4]))
+            {
+                return null;
+            }
+
+            return new Event(Long.parseLong(fields[0]), deviceMac, "1".equals(fields[2]), Integer.parseInt(fields[3]), "1".equals(fields[4])); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        catch (final NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param field a field.
+     * @return true if {@code field} is 0 or 1.
+     */
+    private static boolean isFlag(final String field)
+    {
+        return "0".equals(field) || "1".equals(field); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
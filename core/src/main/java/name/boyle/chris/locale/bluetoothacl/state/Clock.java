@@ -0,0 +1,34 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+/**
+ * Source of time for the state machinery, so that tests can substitute a fake.
+ */
+public interface Clock
+{
+    /**
+     * The real clock.
+     */
+    Clock SYSTEM = new Clock()
+    {
+        public long elapsedRealtime()
+        {
+            return System.nanoTime() / 1000000;
+        }
+
+        public long currentTimeMillis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * @return monotonic milliseconds, on the same time base as a {@link java.util.concurrent.ScheduledExecutorService}'s delays.
+     *         Used for timeouts.
+     */
+    long elapsedRealtime();
+
+    /**
+     * @return wall clock milliseconds since the epoch, as {@link System#currentTimeMillis()}. Used for timestamps which are stored.
+     */
+    long currentTimeMillis();
+}
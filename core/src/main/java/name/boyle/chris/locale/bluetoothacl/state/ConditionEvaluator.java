@@ -0,0 +1,267 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreConstants;
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Answers queries on conditions of every kind from a {@link ConnectionStateStore}.
+ * <p>
+ * Being asked about a device is the only way to learn that a condition uses it, so every device or class a query names is
+ * touched in the {@link WatchedDeviceRegistry}. A device that wasn't watched until then may have changed state in memory only, so
+ * its state is committed too. Once the state is loaded, a query allocates nothing unless {@link CoreLog} has a sink.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ConditionEvaluator
+{
+    /**
+     * Store of device states.
+     */
+    private final ConnectionStateStore mStore;
+
+    /**
+     * Devices and classes which some condition asks about.
+     */
+    private final WatchedDeviceRegistry mRegistry;
+
+    /**
+     * Source of the time recorded when a newly watched device's state is committed.
+     */
+    private final Clock mClock;
+
+    /**
+     * @param store store of device states. Cannot be null.
+     * @param registry devices and classes which some condition asks about. Cannot be null.
+     * @param clock source of time. Cannot be null.
+     */
+    public ConditionEvaluator(final ConnectionStateStore store, final WatchedDeviceRegistry registry, final Clock clock)
+    {
+        if (CoreConstants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == store)
+            {
+                throw new IllegalArgumentException("store cannot be null"); //$NON-NLS-1$
+            }
+            if (null == registry)
+            {
+                throw new IllegalArgumentException("registry cannot be null"); //$NON-NLS-1$
+            }
+            if (null == clock)
+            {
+                throw new IllegalArgumentException("clock cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        mStore = store;
+        mRegistry = registry;
+        mClock = clock;
+    }
+
+    /**
+     * @return the store queries are answered from.
+     */
+    public ConnectionStateStore getStore()
+    {
+        return mStore;
+    }
+
+    /**
+     * @return true once the store and the registry have been read from disk. Touching a device or class that has just become
+     *         watched, or once a day one that already is, still rewrites the registry file; the {@code isAnsweredFromMemory}
+     *         methods tell whether a given query would. Doesn't block.
+     */
+    public boolean isLoaded()
+    {
+        return mStore.isLoaded() && mRegistry.isLoaded();
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}. May be {@link MacCodec#INVALID}.
+     * @return true if {@link #isSatisfied(long, boolean)} would neither read nor write a file. Committing a newly watched device's
+     *         state only queues it for the writer thread. Doesn't block.
+     */
+    public boolean isAnsweredFromMemory(final long deviceMac)
+    {
+        return MacCodec.INVALID == deviceMac || (mStore.isLoaded() && !mRegistry.isTouchDue(deviceMac));
+    }
+
+    /**
+     * @param condition the condition. Cannot be null.
+     * @return true if {@link #isSatisfied(DeviceCondition)} would neither read nor write a file. Doesn't block.
+     */
+    public boolean isAnsweredFromMemory(final DeviceCondition condition)
+    {
+        if (!mStore.isLoaded())
+        {
+            return false;
+        }
+
+        for (int x = 0; x < condition.getDeviceCount(); x++)
+        {
+            final long deviceMac = condition.getDeviceMac(x);
+            if (MacCodec.INVALID != deviceMac && mRegistry.isTouchDue(deviceMac))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param expression the compiled expression. Cannot be null.
+     * @return true if {@link #isSatisfied(ConditionExpression)} would neither read nor write a file. Doesn't block.
+     */
+    public boolean isAnsweredFromMemory(final ConditionExpression expression)
+    {
+        if (!mStore.isLoaded())
+        {
+            return false;
+        }
+
+        for (int x = 0; x < expression.getDeviceCount(); x++)
+        {
+            if (mRegistry.isTouchDue(expression.getDeviceMac(x)))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param isMajorClass true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class.
+     * @return true if {@link #isClassSatisfied(boolean, int, boolean)} would neither read nor write a file. Doesn't block.
+     */
+    public boolean isClassAnsweredFromMemory(final boolean isMajorClass, final int classValue)
+    {
+        return mStore.isLoaded() && !mRegistry.isTouchDue(DeviceClass.getWatchKey(isMajorClass, classValue));
+    }
+
+    /**
+     * Evaluates a condition on one device. May load state from disk.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}. May be {@link MacCodec#INVALID}.
+     * @param isConnectedExpected state the condition expects.
+     * @return true if the condition is satisfied.
+     */
+    public boolean isSatisfied(final long deviceMac, final boolean isConnectedExpected)
+    {
+        /*
+         * A malformed MAC can never have connected
+         */
+        if (MacCodec.INVALID == deviceMac)
+        {
+            return !isConnectedExpected;
+        }
+
+        touch(deviceMac);
+
+        final boolean isSatisfied = mStore.isSatisfied(deviceMac, isConnectedExpected);
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("Device %s expected connected=%b, satisfied=%b", MacCodec.decode(deviceMac), Boolean.valueOf(isConnectedExpected), Boolean.valueOf(isSatisfied))); //$NON-NLS-1$
+        }
+
+        return isSatisfied;
+    }
+
+    /**
+     * Evaluates a condition on a set of devices. May load state from disk.
+     *
+     * @param condition the condition. Cannot be null.
+     * @return true if the condition is satisfied.
+     */
+    public boolean isSatisfied(final DeviceCondition condition)
+    {
+        for (int x = 0; x < condition.getDeviceCount(); x++)
+        {
+            final long deviceMac = condition.getDeviceMac(x);
+            if (MacCodec.INVALID != deviceMac)
+            {
+                touch(deviceMac);
+            }
+        }
+
+        final boolean isSatisfied = mStore.isSatisfied(condition);
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("Condition %s, satisfied=%b", condition, Boolean.valueOf(isSatisfied))); //$NON-NLS-1$
+        }
+
+        return isSatisfied;
+    }
+
+    /**
+     * Evaluates an expression over device states. May load state from disk.
+     *
+     * @param expression the compiled expression. Cannot be null.
+     * @return true if the expression is satisfied.
+     */
+    public boolean isSatisfied(final ConditionExpression expression)
+    {
+        for (int x = 0; x < expression.getDeviceCount(); x++)
+        {
+            touch(expression.getDeviceMac(x));
+        }
+
+        final boolean isSatisfied = mStore.isSatisfied(expression);
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("Expression %s, satisfied=%b", expression, Boolean.valueOf(isSatisfied))); //$NON-NLS-1$
+        }
+
+        return isSatisfied;
+    }
+
+    /**
+     * Evaluates a condition on a class of devices. The store keeps a count of connected devices per class, so this reads one
+     * counter rather than looking at every device. May load state from disk.
+     *
+     * @param isMajorClass true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class.
+     * @param isConnectedExpected true if the condition is satisfied by any device of the class being connected, false if it is
+     *            satisfied by none being connected.
+     * @return true if the condition is satisfied.
+     */
+    public boolean isClassSatisfied(final boolean isMajorClass, final int classValue, final boolean isConnectedExpected)
+    {
+        /*
+         * Devices of the class become watched, so their transitions are committed and cause a requery from now on. Their states
+         * so far may only be in memory, so commit them too, as touch(long) does for a single device.
+         */
+        if (mRegistry.touch(DeviceClass.getWatchKey(isMajorClass, classValue)))
+        {
+            mStore.persistClass(isMajorClass, classValue, mClock.currentTimeMillis());
+        }
+
+        final int connectedCount = isMajorClass ? mStore.getConnectedCountByMajorClass(classValue) : mStore.getConnectedCountByDeviceClass(classValue);
+        final boolean isSatisfied = (connectedCount > 0) == isConnectedExpected;
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("%s has %d connected, expected connected=%b, satisfied=%b", DeviceClass.describeWatchKey(DeviceClass.getWatchKey(isMajorClass, classValue)), //$NON-NLS-1$
+                                    Integer.valueOf(connectedCount), Boolean.valueOf(isConnectedExpected), Boolean.valueOf(isSatisfied)));
+        }
+
+        return isSatisfied;
+    }
+
+    /**
+     * Marks a device as watched, committing its state if it wasn't watched before.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     */
+    private void touch(final long deviceMac)
+    {
+        if (mRegistry.touch(deviceMac))
+        {
+            mStore.persist(deviceMac, mClock.currentTimeMillis());
+        }
+    }
+}
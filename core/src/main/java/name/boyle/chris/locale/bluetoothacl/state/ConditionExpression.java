@@ -0,0 +1,510 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A boolean expression over device states, such as {@code (00:11:22:33:44:55 AND NOT 66:77:88:99:AA:BB) OR CC:DD:EE:FF:00:11}.
+ * <p>
+ * A MAC stands for "this device is connected". {@code NOT}, {@code AND} and {@code OR} bind in that order, either case is
+ * accepted, and {@code !}, {@code &} and {@code |} may be used instead. Parentheses group as usual.
+ * <p>
+ * An expression is parsed once into a flat postfix program over a table of its distinct devices, so evaluating it is a single
+ * loop with no recursion and no allocation. Compiled expressions are cached by their text, which is all a Bundle holds of them,
+ * so Locale's repeated queries never parse again. {@link ConnectionStateStore} maps each device of the table to its bit in the
+ * connected bitset, as it does for the mask of a {@link DeviceCondition}, and evaluates the program on a stack of its own.
+ * <p>
+ * This class is immutable apart from that mapping, which is cached in an immutable {@link SlotBits} replaced whole, so instances
+ * can be shared between threads and stores. {@link #compile(String)} is thread-safe.
+ */
+public final class ConditionExpression
+{
+    /**
+     * Deepest nesting of parentheses and {@code NOT}s accepted, so that a malicious Bundle can't overflow the parser's stack.
+     */
+    public static final int MAX_NESTING = 64;
+
+    /**
+     * Number of compiled expressions kept by {@link #compile(String)}.
+     */
+    /* package */static final int CACHE_SIZE = 32;
+
+    /**
+     * Opcode pushing whether the device in the operand slot is connected.
+     */
+    /* package */static final int OP_LOAD = 0;
+
+    /**
+     * Opcode negating the top of the stack.
+     */
+    /* package */static final int OP_NOT = 1;
+
+    /**
+     * Opcode replacing the top two values of the stack by their conjunction.
+     */
+    /* package */static final int OP_AND = 2;
+
+    /**
+     * Opcode replacing the top two values of the stack by their disjunction.
+     */
+    /* package */static final int OP_OR = 3;
+
+    /**
+     * Number of low bits of an instruction holding its opcode. The rest hold the operand.
+     */
+    /* package */static final int OP_BITS = 2;
+
+    /**
+     * Mask of the opcode in an instruction.
+     */
+    /* package */static final int OP_MASK = (1 << OP_BITS) - 1;
+
+    /**
+     * Compiled expressions by text, least recently used first. Guarded by its own lock.
+     */
+    private static final Map<String, ConditionExpression> sCache = new LinkedHashMap<String, ConditionExpression>(CACHE_SIZE * 2, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, ConditionExpression> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Text of the expression.
+     */
+    private final String mSource;
+
+    /**
+     * Packed MACs of the distinct devices, indexed by operand slot.
+     */
+    private final long[] mMacs;
+
+    /**
+     * The postfix program. Each instruction is an opcode, with the operand slot above {@link #OP_BITS} for {@link #OP_LOAD}.
+     */
+    /* package */final int[] mProgram;
+
+    /**
+     * Deepest the evaluation stack gets while running {@link #mProgram}.
+     */
+    /* package */final int mMaxDepth;
+
+    /**
+     * Bits of the devices in the connected bitset of the {@link ConnectionStateStore} which last evaluated this, or null until
+     * one has. It is replaced whole rather than updated, so an expression shared between threads and stores never sees bits from
+     * two different indexes.
+     */
+    /* package */volatile SlotBits mBits = null;
+
+    /**
+     * @param source text of the expression.
+     * @param macs packed MACs of the distinct devices.
+     * @param program the postfix program.
+     * @param maxDepth deepest the stack gets while running {@code program}.
+     */
+    private ConditionExpression(final String source, final long[] macs, final int[] program, final int maxDepth)
+    {
+        mSource = source;
+        mMacs = macs;
+        mProgram = program;
+        mMaxDepth = maxDepth;
+    }
+
+    /**
+     * Compiles an expression, or returns the cached compilation of the same text.
+     *
+     * @param source text of the expression. Cannot be null.
+     * @return the compiled expression.
+     * @throws ParseException if {@code source} is not a valid expression. The error offset is where parsing stopped.
+     */
+    public static ConditionExpression compile(final String source) throws ParseException
+    {
+        synchronized (sCache)
+        {
+            final ConditionExpression cached = sCache.get(source);
+            if (null != cached)
+            {
+                return cached;
+            }
+        }
+
+        final ConditionExpression expression = new Parser(source).parse();
+        synchronized (sCache)
+        {
+            sCache.put(source, expression);
+        }
+        return expression;
+    }
+
+    /**
+     * Empties the cache used by {@link #compile(String)}.
+     */
+    /* package */static void clearCache()
+    {
+        synchronized (sCache)
+        {
+            sCache.clear();
+        }
+    }
+
+    /**
+     * @return number of distinct devices the expression mentions.
+     */
+    public int getDeviceCount()
+    {
+        return mMacs.length;
+    }
+
+    /**
+     * @param slot operand slot of the device, from 0 to {@link #getDeviceCount()} - 1.
+     * @return packed MAC of the device.
+     */
+    public long getDeviceMac(final int slot)
+    {
+        return mMacs[slot];
+    }
+
+    /**
+     * @return number of instructions in the compiled program.
+     */
+    public int getProgramLength()
+    {
+        return mProgram.length;
+    }
+
+    /**
+     * @return a non-negative hash of the expression's text. Equal texts have equal fingerprints.
+     */
+    public long getFingerprint()
+    {
+        long hash = 0xCBF29CE484222325L;
+        for (int x = 0; x < mSource.length(); x++)
+        {
+            hash = (hash ^ mSource.charAt(x)) * 0x100000001B3L;
+        }
+        return hash & Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString()
+    {
+        return mSource;
+    }
+
+    /**
+     * The bit of each device of an expression in a {@link DeviceIndex}. Instances are immutable.
+     */
+    /* package */static final class SlotBits
+    {
+        /**
+         * Bit index in {@link #mIndex} of the device in each operand slot, or -1 if it has none.
+         */
+        /* package */final int[] mBits;
+
+        /**
+         * The index {@link #mBits} was compiled against.
+         */
+        /* package */final DeviceIndex mIndex;
+
+        /**
+         * Size of {@link #mIndex} when {@link #mBits} was compiled.
+         */
+        /* package */final int mIndexSize;
+
+        /**
+         * Whether some device had no index when {@link #mBits} was compiled, so that the bits are stale once the index grows.
+         */
+        /* package */final boolean mIsPartial;
+
+        /**
+         * @param bits bit index of the device in each operand slot, or -1.
+         * @param index the index {@code bits} was compiled against.
+         * @param isPartial whether some device had no index.
+         */
+        /* package */SlotBits(final int[] bits, final DeviceIndex index, final boolean isPartial)
+        {
+            mBits = bits;
+            mIndex = index;
+            mIndexSize = index.size();
+            mIsPartial = isPartial;
+        }
+    }
+
+    /**
+     * Recursive descent parser emitting the postfix program as it goes.
+     */
+    private static final class Parser
+    {
+        /**
+         * Text being parsed.
+         */
+        private final String mSource;
+
+        /**
+         * Offset of the next character to read.
+         */
+        private int mPosition = 0;
+
+        /**
+         * Current nesting depth.
+         */
+        private int mNesting = 0;
+
+        /**
+         * Program emitted so far.
+         */
+        private int[] mProgram = new int[16];
+
+        /**
+         * Number of instructions emitted.
+         */
+        private int mProgramLength = 0;
+
+        /**
+         * Distinct devices seen so far, indexed by operand slot.
+         */
+        private long[] mMacs = new long[4];
+
+        /**
+         * Number of distinct devices.
+         */
+        private int mMacCount = 0;
+
+        /**
+         * Operand slot of each device seen so far.
+         */
+        private final DeviceIndex mSlots = new DeviceIndex();
+
+        /**
+         * Stack depth after the instructions emitted so far.
+         */
+        private int mDepth = 0;
+
+        /**
+         * Deepest the stack has been.
+         */
+        private int mMaxDepth = 0;
+
+        /**
+         * @param source text to parse. Cannot be null.
+         */
+        public Parser(final String source)
+        {
+            mSource = source;
+        }
+
+        /**
+         * @return the compiled expression.
+         * @throws ParseException if the text is not a valid expression.
+         */
+        public ConditionExpression parse() throws ParseException
+        {
+            parseOr();
+            skipSpace();
+            if (mPosition < mSource.length())
+            {
+                throw new ParseException(String.format("Unexpected '%c'", Character.valueOf(mSource.charAt(mPosition))), mPosition); //$NON-NLS-1$
+            }
+
+            final int[] program = new int[mProgramLength];
+            System.arraycopy(mProgram, 0, program, 0, mProgramLength);
+            final long[] macs = new long[mMacCount];
+            System.arraycopy(mMacs, 0, macs, 0, mMacCount);
+            return new ConditionExpression(mSource, macs, program, mMaxDepth);
+        }
+
+        /**
+         * Parses {@code and (OR and)*}.
+         *
+         * @throws ParseException if the text is not a valid expression.
+         */
+        private void parseOr() throws ParseException
+        {
+            parseAnd();
+            while (acceptOperator('|', "OR")) //$NON-NLS-1$
+            {
+                parseAnd();
+                emit(OP_OR);
+            }
+        }
+
+        /**
+         * Parses {@code unary (AND unary)*}.
+         *
+         * @throws ParseException if the text is not a valid expression.
+         */
+        private void parseAnd() throws ParseException
+        {
+            parseUnary();
+            while (acceptOperator('&', "AND")) //$NON-NLS-1$
+            {
+                parseUnary();
+                emit(OP_AND);
+            }
+        }
+
+        /**
+         * Parses {@code NOT unary | ( or ) | MAC}.
+         *
+         * @throws ParseException if the text is not a valid expression.
+         */
+        private void parseUnary() throws ParseException
+        {
+            skipSpace();
+            if (mPosition >= mSource.length())
+            {
+                throw new ParseException("Expected a device", mPosition); //$NON-NLS-1$
+            }
+
+            if (acceptOperator('!', "NOT")) //$NON-NLS-1$
+            {
+                enter();
+                parseUnary();
+                mNesting--;
+                emit(OP_NOT);
+                return;
+            }
+
+            if ('(' == mSource.charAt(mPosition))
+            {
+                enter();
+                mPosition++;
+                parseOr();
+                skipSpace();
+                if (mPosition >= mSource.length() || ')' != mSource.charAt(mPosition))
+                {
+                    throw new ParseException("Expected ')'", mPosition); //$NON-NLS-1$
+                }
+                mPosition++;
+                mNesting--;
+                return;
+            }
+
+            final int start = mPosition;
+            final int end = wordEnd();
+            final long mac = MacCodec.encode(mSource.substring(start, end));
+            if (MacCodec.INVALID == mac)
+            {
+                throw new ParseException("Expected a device MAC", start); //$NON-NLS-1$
+            }
+            mPosition = end;
+
+            int slot = mSlots.indexOf(mac);
+            if (slot < 0)
+            {
+                slot = mSlots.add(mac);
+                if (mMacCount == mMacs.length)
+                {
+                    final long[] macs = new long[mMacCount * 2];
+                    System.arraycopy(mMacs, 0, macs, 0, mMacCount);
+                    mMacs = macs;
+                }
+                mMacs[mMacCount++] = mac;
+            }
+            emit(OP_LOAD | (slot << OP_BITS));
+        }
+
+        /**
+         * Consumes an operator, given as a symbol or a keyword, if it is next.
+         *
+         * @param symbol symbol form of the operator.
+         * @param keyword keyword form of the operator, in uppercase.
+         * @return true if the operator was consumed.
+         */
+        private boolean acceptOperator(final char symbol, final String keyword)
+        {
+            skipSpace();
+            if (mPosition >= mSource.length())
+            {
+                return false;
+            }
+
+            if (symbol == mSource.charAt(mPosition))
+            {
+                mPosition++;
+                return true;
+            }
+
+            final int end = wordEnd();
+            if (end - mPosition == keyword.length() && mSource.regionMatches(true, mPosition, keyword, 0, keyword.length()))
+            {
+                mPosition = end;
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * @return offset just past the word starting at the current position. A word is a run of letters, digits and colons.
+         */
+        private int wordEnd()
+        {
+            int end = mPosition;
+            while (end < mSource.length() && (Character.isLetterOrDigit(mSource.charAt(end)) || ':' == mSource.charAt(end)))
+            {
+                end++;
+            }
+            return end;
+        }
+
+        /**
+         * Skips whitespace.
+         */
+        private void skipSpace()
+        {
+            while (mPosition < mSource.length() && Character.isWhitespace(mSource.charAt(mPosition)))
+            {
+                mPosition++;
+            }
+        }
+
+        /**
+         * Goes one level deeper.
+         *
+         * @throws ParseException if that is deeper than {@link ConditionExpression#MAX_NESTING}.
+         */
+        private void enter() throws ParseException
+        {
+            if (++mNesting > MAX_NESTING)
+            {
+                throw new ParseException("Nested too deeply", mPosition); //$NON-NLS-1$
+            }
+        }
+
+        /**
+         * Appends an instruction and tracks the stack depth.
+         *
+         * @param instruction the instruction.
+         */
+        private void emit(final int instruction)
+        {
+            if (mProgramLength == mProgram.length)
+            {
+                final int[] program = new int[mProgramLength * 2];
+                System.arraycopy(mProgram, 0, program, 0, mProgramLength);
+                mProgram = program;
+            }
+            mProgram[mProgramLength++] = instruction;
+
+            switch (instruction & OP_MASK)
+            {
+                case OP_LOAD:
+                    mDepth++;
+                    mMaxDepth = Math.max(mMaxDepth, mDepth);
+                    break;
+                case OP_AND:
+                case OP_OR:
+                    mDepth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,1029 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Store of the last known connection state of each Bluetooth device, backed by a {@link TransitionJournal} in a directory.
+ * <p>
+ * The journal is read once, on the first lookup. After that, lookups are answered from
+ * memory and writes update memory before they are persisted, so the cache never disagrees with what this process has written.
+ * Writes reach the disk through a {@link WriteBehindPersister}, so they are batched and never block the caller.
+ * <p>
+ * Query results are memoized too, keyed by device and expected state, and a device's results are invalidated only when its state
+ * changes. A repeated query is then answered by one probe of a primitive table.
+ * <p>
+ * Conditions on a set of devices are evaluated against a bitset of which devices are connected, so their cost is a few words of
+ * {@link Long#bitCount(long)} however many devices they name. Each {@link DeviceCondition} keeps the mask of its devices, which is
+ * compiled on first use and only again when the {@link DeviceIndex} behind the bitset has grown to take in one of its devices.
+ * A {@link ConditionExpression} keeps the bit of each of its devices in the same way, and its program reads them directly.
+ * <p>
+ * The {@link DeviceClass} of each device is kept too, along with the number of connected devices of each major class and of each
+ * device class. Those counters are updated as devices connect and disconnect, so a condition on a class is answered by reading
+ * one counter, however many devices have been seen.
+ * <p>
+ * When transitions may have been missed, {@link #forget()} drops every state but remembers which devices had one, as
+ * {@link StaleDevices}. Those devices are neither connected nor disconnected as far as {@link #isKnown(long)} and its overloads are
+ * concerned, until their next transition. Like every other method once the journal has been read, it only holds the lock for work
+ * in memory, so a query never waits for the disk behind it.
+ * <p>
+ * Subclasses can import states from elsewhere before the journal is first read, through
+ * {@link #importLegacyStates(TransitionJournal)}.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ConnectionStateStore
+{
+    /**
+     * Directory holding the journal.
+     */
+    private final File mDirectory;
+
+    /**
+     * The backing store.
+     */
+    private final TransitionJournal mJournal;
+
+    /**
+     * Commits writes to the journal in the background.
+     */
+    private final WriteBehindPersister mPersister;
+
+    /**
+     * Held by {@link #forget()} and {@link #clear()} across their whole run, outside {@code this}, so that the files they write
+     * after releasing {@code this} are written in the order of the changes they record.
+     */
+    private final Object mDiskLock = new Object();
+
+    /**
+     * Connection state of each device. Guarded by {@code this}.
+     */
+    private final DeviceStateTable mStates = new DeviceStateTable();
+
+    /**
+     * State of each device as last written to the backing store, so that a device which has a state on disk never has a stale one
+     * there. Guarded by {@code this}.
+     */
+    private final DeviceStateTable mPersistedStates = new DeviceStateTable();
+
+    /**
+     * Memoized query results, keyed by {@link #getQueryKey(long, boolean)}. The stored state is connected if the condition is
+     * satisfied. Guarded by {@code this}.
+     */
+    private final DeviceStateTable mQueryResults = new DeviceStateTable();
+
+    /**
+     * Bit index of each device which has ever connected, or had its class recorded, since the states were last cleared. Replaced rather than cleared, so
+     * that masks compiled against the old one are recognisably stale. Guarded by {@code this}.
+     */
+    private DeviceIndex mIndex = new DeviceIndex();
+
+    /**
+     * Bit {@code i} is set if the device with index {@code i} in {@link #mIndex} is connected. Guarded by {@code this}.
+     */
+    private long[] mConnectedBits = new long[1];
+
+    /**
+     * Stack on which {@link #isSatisfied(ConditionExpression)} runs programs, grown to the deepest one seen. Guarded by
+     * {@code this}.
+     */
+    private boolean[] mStack = new boolean[16];
+
+    /**
+     * {@link DeviceClass} of the device with each index in {@link #mIndex}, or {@link DeviceClass#UNKNOWN}. Guarded by
+     * {@code this}.
+     */
+    private int[] mDeviceClasses = newDeviceClasses(16);
+
+    /**
+     * Number of connected devices of each major class, indexed by the major class shifted right by 8. Devices of unknown class
+     * aren't counted. Guarded by {@code this}.
+     */
+    private final int[] mConnectedByMajorClass = new int[(DeviceClass.MAJOR_MASK >>> 8) + 1];
+
+    /**
+     * Number of connected devices of each device class, indexed by the device class shifted right by 2. Devices of unknown class
+     * aren't counted. Guarded by {@code this}.
+     */
+    private final int[] mConnectedByDeviceClass = new int[(DeviceClass.DEVICE_MASK >>> 2) + 1];
+
+    /**
+     * Devices whose state was forgotten and hasn't been seen since. Guarded by {@code this}.
+     */
+    private final StaleDevices mStaleDevices;
+
+    /**
+     * Number of queries answered from {@link #mQueryResults}. Guarded by {@code this}.
+     */
+    private long mQueryHitCount = 0;
+
+    /**
+     * Number of queries which had to be evaluated. Guarded by {@code this}.
+     */
+    private long mQueryMissCount = 0;
+
+    /**
+     * Whether {@link #mStates} has been loaded from the backing store. Written with the lock held; volatile so that
+     * {@link #isLoaded()} can read it without.
+     */
+    private volatile boolean mIsLoaded = false;
+
+    /**
+     * Number of lookups answered from memory. Guarded by {@code this}.
+     */
+    private long mHitCount = 0;
+
+    /**
+     * Number of lookups which had to load the backing store. Guarded by {@code this}.
+     */
+    private long mMissCount = 0;
+
+    /**
+     * @param directory directory holding the journal. Cannot be null.
+     */
+    public ConnectionStateStore(final File directory)
+    {
+        mDirectory = directory;
+        mJournal = new TransitionJournal(directory);
+        mPersister = new WriteBehindPersister(mJournal);
+        mStaleDevices = new StaleDevices(directory);
+    }
+
+    /**
+     * @param directory directory holding the journal. Cannot be null.
+     * @param executor executor on which writes are committed, such as a {@link VirtualScheduler}. Cannot be null.
+     */
+    public ConnectionStateStore(final File directory, final ScheduledExecutorService executor)
+    {
+        mDirectory = directory;
+        mJournal = new TransitionJournal(directory);
+        mPersister = new WriteBehindPersister(mJournal, executor);
+        mStaleDevices = new StaleDevices(directory);
+    }
+
+    /**
+     * @return true once the states have been read from the backing store, so that lookups are answered from memory and never
+     *         wait for the disk. Doesn't take the lock.
+     */
+    public boolean isLoaded()
+    {
+        return mIsLoaded;
+    }
+
+    /**
+     * @param deviceMac MAC of the device, uppercase with colons. May be null.
+     * @return true if the last recorded transition for {@code deviceMac} was a connection. False if {@code deviceMac} is null
+     *         or malformed.
+     */
+    public boolean isConnected(final String deviceMac)
+    {
+        return isConnected(MacCodec.encode(deviceMac));
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return true if the last recorded transition for {@code deviceMac} was a connection.
+     */
+    public synchronized boolean isConnected(final long deviceMac)
+    {
+        if (mIsLoaded)
+        {
+            mHitCount++;
+        }
+        else
+        {
+            mMissCount++;
+            load();
+        }
+
+        return DeviceStateTable.STATE_CONNECTED == mStates.get(deviceMac);
+    }
+
+    /**
+     * Evaluates a condition on a device, from memoized results where possible.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param isConnectedExpected true if the condition is satisfied by the device being connected, false if it is satisfied by
+     *            the device being disconnected.
+     * @return true if the condition is satisfied.
+     */
+    public synchronized boolean isSatisfied(final long deviceMac, final boolean isConnectedExpected)
+    {
+        final long key = getQueryKey(deviceMac, isConnectedExpected);
+        final byte memo = mQueryResults.get(key);
+        if (DeviceStateTable.STATE_UNKNOWN != memo)
+        {
+            mQueryHitCount++;
+            return DeviceStateTable.STATE_CONNECTED == memo;
+        }
+
+        mQueryMissCount++;
+        final boolean isSatisfied = isConnected(deviceMac) == isConnectedExpected;
+        mQueryResults.put(key, isSatisfied);
+        return isSatisfied;
+    }
+
+    /**
+     * Evaluates a condition on a set of devices in one pass over the connected bitset.
+     *
+     * @param condition the condition. Cannot be null.
+     * @return true if the condition is satisfied.
+     */
+    public synchronized boolean isSatisfied(final DeviceCondition condition)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        DeviceCondition.Mask compiled = condition.mMask;
+        if (null == compiled || compiled.mIndex != mIndex || (compiled.mIsPartial && compiled.mIndexSize != mIndex.size()))
+        {
+            compiled = compileMask(condition);
+            condition.mMask = compiled;
+        }
+
+        final long[] mask = compiled.mBits;
+        final long[] bits = mConnectedBits;
+        final int words = Math.min(mask.length, bits.length);
+        int connected = 0;
+        for (int w = 0; w < words; w++)
+        {
+            connected += Long.bitCount(mask[w] & bits[w]);
+        }
+
+        final int matching = condition.isConnectedExpected() ? connected : condition.getDeviceCount() - connected;
+        return matching >= condition.getRequiredCount();
+    }
+
+    /**
+     * Evaluates an expression by running its program against the connected bitset.
+     *
+     * @param expression the expression. Cannot be null.
+     * @return true if the expression is satisfied.
+     */
+    public synchronized boolean isSatisfied(final ConditionExpression expression)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        ConditionExpression.SlotBits compiled = expression.mBits;
+        if (null == compiled || compiled.mIndex != mIndex || (compiled.mIsPartial && compiled.mIndexSize != mIndex.size()))
+        {
+            compiled = compileBits(expression);
+            expression.mBits = compiled;
+        }
+        if (mStack.length < expression.mMaxDepth)
+        {
+            mStack = new boolean[expression.mMaxDepth];
+        }
+
+        final int[] program = expression.mProgram;
+        final int[] slotBits = compiled.mBits;
+        final boolean[] stack = mStack;
+        final long[] bits = mConnectedBits;
+        int top = -1;
+        for (final int instruction : program)
+        {
+            switch (instruction & ConditionExpression.OP_MASK)
+            {
+                case ConditionExpression.OP_LOAD:
+                    final int bit = slotBits[instruction >>> ConditionExpression.OP_BITS];
+                    stack[++top] = bit >= 0 && 0 != (bits[bit >>> 6] & (1L << bit));
+                    break;
+                case ConditionExpression.OP_NOT:
+                    stack[top] = !stack[top];
+                    break;
+                case ConditionExpression.OP_AND:
+                    top--;
+                    stack[top] = stack[top] & stack[top + 1];
+                    break;
+                default:
+                    top--;
+                    stack[top] = stack[top] | stack[top + 1];
+                    break;
+            }
+        }
+
+        return stack[0];
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return false if the device's state was forgotten by {@link #forget()} and it hasn't had a transition since, so whether it
+     *         is connected isn't known.
+     */
+    public synchronized boolean isKnown(final long deviceMac)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        return !mStaleDevices.contains(deviceMac);
+    }
+
+    /**
+     * @param condition the condition. Cannot be null.
+     * @return false if the state of any device of the condition isn't known, as for {@link #isKnown(long)}.
+     */
+    public synchronized boolean isKnown(final DeviceCondition condition)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        if (0 == mStaleDevices.size())
+        {
+            return true;
+        }
+
+        for (int x = 0; x < condition.getDeviceCount(); x++)
+        {
+            if (mStaleDevices.contains(condition.getDeviceMac(x)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param expression the expression. Cannot be null.
+     * @return false if the state of any device of the expression isn't known, as for {@link #isKnown(long)}.
+     */
+    public synchronized boolean isKnown(final ConditionExpression expression)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        if (0 == mStaleDevices.size())
+        {
+            return true;
+        }
+
+        for (int x = 0; x < expression.getDeviceCount(); x++)
+        {
+            if (mStaleDevices.contains(expression.getDeviceMac(x)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether a condition on a class of devices can be answered. A connected device of the class answers it whatever the
+     * stale devices are doing; otherwise a stale device of the class might be connected.
+     *
+     * @param isMajorClass true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class.
+     * @return false if no device of the class is known to be connected, and some device of the class is stale.
+     */
+    public synchronized boolean isClassKnown(final boolean isMajorClass, final int classValue)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        if (isMajorClass)
+        {
+            return !DeviceClass.isValidMajor(classValue) || 0 != mConnectedByMajorClass[classValue >>> 8]
+                    || 0 == mStaleDevices.getCountByMajorClass(classValue);
+        }
+        return !DeviceClass.isValid(classValue) || 0 != mConnectedByDeviceClass[classValue >>> 2] || 0 == mStaleDevices.getCountByDeviceClass(classValue);
+    }
+
+    /**
+     * @param majorClass a major class, as {@link android.bluetooth.BluetoothClass#getMajorDeviceClass()}.
+     * @return number of connected devices of {@code majorClass}. 0 if {@code majorClass} isn't valid.
+     */
+    public synchronized int getConnectedCountByMajorClass(final int majorClass)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        return DeviceClass.isValidMajor(majorClass) ? mConnectedByMajorClass[majorClass >>> 8] : 0;
+    }
+
+    /**
+     * @param deviceClass a device class, as {@link android.bluetooth.BluetoothClass#getDeviceClass()}.
+     * @return number of connected devices of {@code deviceClass}. 0 if {@code deviceClass} isn't valid.
+     */
+    public synchronized int getConnectedCountByDeviceClass(final int deviceClass)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        return DeviceClass.isValid(deviceClass) ? mConnectedByDeviceClass[deviceClass >>> 2] : 0;
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return the class of the device, or {@link DeviceClass#UNKNOWN}.
+     */
+    public synchronized int getDeviceClass(final long deviceMac)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        return getDeviceClassLocked(deviceMac);
+    }
+
+    /**
+     * Records the class of a device, as reported with its last transition. The class is written to disk with the device's next
+     * transition. If the device is connected, it moves from the counters of its old class to those of its new one.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param deviceClass class of the device. {@link DeviceClass#UNKNOWN} or anything else invalid is ignored, so that a
+     *            device's class isn't forgotten because one transition didn't report it.
+     * @return true if the device's class changed.
+     */
+    public synchronized boolean setDeviceClass(final long deviceMac, final int deviceClass)
+    {
+        if (!DeviceClass.isValid(deviceClass))
+        {
+            return false;
+        }
+
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        return applyDeviceClass(deviceMac, deviceClass);
+    }
+
+    /**
+     * Records a transition. The in-memory state is updated immediately, and the write is committed to disk within
+     * {@link WriteBehindPersister#FLUSH_DELAY_MILLIS}.
+     *
+     * @param deviceMac MAC of the device, uppercase with colons. Malformed MACs are ignored.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @return true if the device's state changed.
+     */
+    public boolean setConnected(final String deviceMac, final boolean isConnected)
+    {
+        final long packed = MacCodec.encode(deviceMac);
+        if (MacCodec.INVALID == packed)
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.w(String.format("Ignoring malformed MAC %s", deviceMac)); //$NON-NLS-1$
+            }
+            return false;
+        }
+
+        return setConnected(packed, isConnected, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a transition. The in-memory state is updated immediately, and the write is committed to disk within
+     * {@link WriteBehindPersister#FLUSH_DELAY_MILLIS}. A transition to the state the device is already in changes nothing, so
+     * nothing is written.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param timestamp wall clock time of the transition.
+     * @return true if the device's state changed.
+     */
+    public boolean setConnected(final long deviceMac, final boolean isConnected, final long timestamp)
+    {
+        return setConnected(deviceMac, isConnected, timestamp, true);
+    }
+
+    /**
+     * Records a transition. The in-memory state is updated immediately. A transition to the state the device is already in changes
+     * nothing, so nothing is written.
+     * <p>
+     * A device which already has a state on disk is written even if {@code isPersisted} is false, whenever its state differs from
+     * the one on disk. Otherwise a device that stopped being watched would keep its old state on disk, and report it again once a
+     * new process loads it.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param timestamp wall clock time of the transition.
+     * @param isPersisted true to commit the change to disk within {@link WriteBehindPersister#FLUSH_DELAY_MILLIS}, false to
+     *            keep it in memory only unless the device has a state on disk.
+     * @return true if the device's state changed.
+     */
+    public synchronized boolean setConnected(final long deviceMac, final boolean isConnected, final long timestamp, final boolean isPersisted)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        final byte previous = mStates.put(deviceMac, isConnected);
+        mStaleDevices.remove(deviceMac);
+        if ((isConnected ? DeviceStateTable.STATE_CONNECTED : DeviceStateTable.STATE_DISCONNECTED) == previous)
+        {
+            return false;
+        }
+
+        mQueryResults.remove(getQueryKey(deviceMac, true));
+        mQueryResults.remove(getQueryKey(deviceMac, false));
+        setConnectedBit(deviceMac, isConnected);
+
+        final int deviceClass = getDeviceClassLocked(deviceMac);
+        if (DeviceClass.UNKNOWN != deviceClass && (isConnected || DeviceStateTable.STATE_CONNECTED == previous))
+        {
+            countConnected(deviceClass, isConnected ? 1 : -1);
+        }
+
+        final byte persisted = mPersistedStates.get(deviceMac);
+        if (isPersisted || (DeviceStateTable.STATE_UNKNOWN != persisted && mStates.get(deviceMac) != persisted))
+        {
+            write(new Transition(deviceMac, isConnected, timestamp, deviceClass));
+        }
+        return true;
+    }
+
+    /**
+     * Commits the in-memory state of a device, which may only have been tracked in memory so far. Does nothing if the state of the
+     * device is unknown.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param timestamp wall clock time to record.
+     */
+    public synchronized void persist(final long deviceMac, final long timestamp)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        final byte state = mStates.get(deviceMac);
+        if (DeviceStateTable.STATE_UNKNOWN != state)
+        {
+            write(new Transition(deviceMac, DeviceStateTable.STATE_CONNECTED == state, timestamp, getDeviceClassLocked(deviceMac)));
+        }
+    }
+
+    /**
+     * Commits the in-memory state of every device of a class, as {@link #persist(long, long)} does for one device. Called when the
+     * class becomes watched, so that a new process knows the states of its devices without waiting for each to reconnect. This
+     * looks at every device whose class is known, which is fine as it happens once per class each time it becomes watched.
+     *
+     * @param isMajorClass true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class.
+     * @param timestamp wall clock time to record.
+     * @return number of devices whose state was written.
+     */
+    public synchronized int persistClass(final boolean isMajorClass, final int classValue, final long timestamp)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        int count = 0;
+        for (int index = 0; index < mIndex.size(); index++)
+        {
+            final int deviceClass = mDeviceClasses[index];
+            if (DeviceClass.UNKNOWN == deviceClass || (isMajorClass ? DeviceClass.getMajor(deviceClass) : deviceClass) != classValue)
+            {
+                continue;
+            }
+
+            final long deviceMac = mIndex.getMac(index);
+            final byte state = mStates.get(deviceMac);
+            if (DeviceStateTable.STATE_UNKNOWN != state && mPersistedStates.get(deviceMac) != state)
+            {
+                write(new Transition(deviceMac, DeviceStateTable.STATE_CONNECTED == state, timestamp, deviceClass));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Forgets the state of every device, in memory and on disk, but remembers which devices had one, and their classes. Used when
+     * transitions may have been missed, so that stale states aren't reported: until its next transition, a device that had a state
+     * is reported as not known by {@link #isKnown(long)}, rather than as disconnected.
+     * <p>
+     * The files are written on the calling thread once the lock is released, and before this returns.
+     */
+    public void forget()
+    {
+        synchronized (mDiskLock)
+        {
+            final ByteBuffer staleDevices;
+            synchronized (this)
+            {
+                if (!mIsLoaded)
+                {
+                    load();
+                }
+
+                for (final long deviceMac : mStates.getMacs())
+                {
+                    mStaleDevices.add(deviceMac, getDeviceClassLocked(deviceMac));
+                }
+                staleDevices = mStaleDevices.encode();
+
+                /*
+                 * The index and the classes are kept, as they don't go stale; so masks compiled against the index stay valid
+                 */
+                mStates.clear();
+                mPersistedStates.clear();
+                mQueryResults.clear();
+                Arrays.fill(mConnectedBits, 0);
+                Arrays.fill(mConnectedByMajorClass, 0);
+                Arrays.fill(mConnectedByDeviceClass, 0);
+                mPersister.clearLater();
+            }
+
+            /*
+             * Transitions recorded from here on are committed after the journal is emptied, as they are queued behind the clear
+             */
+            mStaleDevices.write(staleDevices);
+            mPersister.flush();
+        }
+    }
+
+    /**
+     * Forgets everything about every device, in memory and on disk, including which devices {@link #forget()} left stale. The
+     * files are written on the calling thread once the lock is released, and before this returns.
+     */
+    public void clear()
+    {
+        synchronized (mDiskLock)
+        {
+            synchronized (this)
+            {
+                mStaleDevices.clear();
+                mStates.clear();
+                mPersistedStates.clear();
+                mQueryResults.clear();
+                mIndex = new DeviceIndex();
+                mConnectedBits = new long[1];
+                mDeviceClasses = newDeviceClasses(16);
+                Arrays.fill(mConnectedByMajorClass, 0);
+                Arrays.fill(mConnectedByDeviceClass, 0);
+                mIsLoaded = true;
+                mPersister.clearLater();
+            }
+
+            mStaleDevices.delete();
+            mPersister.flush();
+        }
+    }
+
+    /**
+     * Runs {@code callback} on a background thread once every transition recorded so far is on disk.
+     *
+     * @param callback callback to run. Cannot be null.
+     */
+    public void flushThen(final Runnable callback)
+    {
+        mPersister.flushThen(callback);
+    }
+
+    /**
+     * Commits every recorded transition on the calling thread.
+     */
+    public void flush()
+    {
+        mPersister.flush();
+    }
+
+    /**
+     * Stops writing and closes the journal, dropping pending writes as if the process had been killed. The store can't be used
+     * afterwards.
+     */
+    /* package */void discard()
+    {
+        mPersister.discard();
+        mJournal.close();
+    }
+
+    /**
+     * @return number of batches of writes committed, each of which cost one sync to disk.
+     */
+    public long getCommitCount()
+    {
+        return mPersister.getCommitCount();
+    }
+
+    /**
+     * @return number of transitions committed.
+     */
+    public long getCommittedTransitionCount()
+    {
+        return mPersister.getCommittedTransitionCount();
+    }
+
+    /**
+     * @return number of lookups answered from memory.
+     */
+    public synchronized long getHitCount()
+    {
+        return mHitCount;
+    }
+
+    /**
+     * @return number of lookups which had to read the backing store.
+     */
+    public synchronized long getMissCount()
+    {
+        return mMissCount;
+    }
+
+    /**
+     * @return number of queries answered from memoized results.
+     */
+    public synchronized long getQueryHitCount()
+    {
+        return mQueryHitCount;
+    }
+
+    /**
+     * @return number of queries which had to be evaluated.
+     */
+    public synchronized long getQueryMissCount()
+    {
+        return mQueryMissCount;
+    }
+
+    /**
+     * Queues a transition for the backing store. Must be called with the lock held.
+     *
+     * @param transition transition to write.
+     */
+    private void write(final Transition transition)
+    {
+        mPersistedStates.put(transition.getDeviceMac(), transition.isConnected());
+        mPersister.write(transition);
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param isConnectedExpected the state the condition expects.
+     * @return key of the condition in {@link #mQueryResults}. Packed MACs have 48 bits, so this is never negative.
+     */
+    private static long getQueryKey(final long deviceMac, final boolean isConnectedExpected)
+    {
+        return (deviceMac << 1) | (isConnectedExpected ? 1 : 0);
+    }
+
+    /**
+     * @param length length of the array.
+     * @return an array of {@link DeviceClass#UNKNOWN}.
+     */
+    private static int[] newDeviceClasses(final int length)
+    {
+        final int[] deviceClasses = new int[length];
+        Arrays.fill(deviceClasses, DeviceClass.UNKNOWN);
+        return deviceClasses;
+    }
+
+    /**
+     * Finds the index of a device in {@link #mIndex}, adding it and growing the arrays indexed by it if necessary. Must be called
+     * with the lock held.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return index of the device.
+     */
+    private int addToIndex(final long deviceMac)
+    {
+        int index = mIndex.indexOf(deviceMac);
+        if (index >= 0)
+        {
+            return index;
+        }
+
+        index = mIndex.add(deviceMac);
+        if (index >>> 6 >= mConnectedBits.length)
+        {
+            final long[] bits = new long[mConnectedBits.length * 2];
+            System.arraycopy(mConnectedBits, 0, bits, 0, mConnectedBits.length);
+            mConnectedBits = bits;
+        }
+        if (index >= mDeviceClasses.length)
+        {
+            final int[] deviceClasses = newDeviceClasses(mDeviceClasses.length * 2);
+            System.arraycopy(mDeviceClasses, 0, deviceClasses, 0, mDeviceClasses.length);
+            mDeviceClasses = deviceClasses;
+        }
+        return index;
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return the class of the device, or {@link DeviceClass#UNKNOWN}. Must be called with the lock held.
+     */
+    private int getDeviceClassLocked(final long deviceMac)
+    {
+        final int index = mIndex.indexOf(deviceMac);
+        return index < 0 ? DeviceClass.UNKNOWN : mDeviceClasses[index];
+    }
+
+    /**
+     * Implements {@link #setDeviceClass(long, int)}. Must be called with the lock held.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param deviceClass a valid device class.
+     * @return true if the device's class changed.
+     */
+    private boolean applyDeviceClass(final long deviceMac, final int deviceClass)
+    {
+        final int index = addToIndex(deviceMac);
+        final int previous = mDeviceClasses[index];
+        if (previous == deviceClass)
+        {
+            return false;
+        }
+
+        mDeviceClasses[index] = deviceClass;
+        if (DeviceStateTable.STATE_CONNECTED == mStates.get(deviceMac))
+        {
+            if (DeviceClass.UNKNOWN != previous)
+            {
+                countConnected(previous, -1);
+            }
+            countConnected(deviceClass, 1);
+        }
+        return true;
+    }
+
+    /**
+     * Adjusts the connected counters of a class. Must be called with the lock held.
+     *
+     * @param deviceClass a valid device class.
+     * @param delta 1 when a device of the class connects, -1 when one disconnects.
+     */
+    private void countConnected(final int deviceClass, final int delta)
+    {
+        mConnectedByMajorClass[deviceClass >>> 8] += delta;
+        mConnectedByDeviceClass[deviceClass >>> 2] += delta;
+    }
+
+    /**
+     * Updates the bit of a device in {@link #mConnectedBits}. A device only gets an index once it connects or its class is
+     * recorded. Must be called with the lock held.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param isConnected true if the device is connected.
+     */
+    private void setConnectedBit(final long deviceMac, final boolean isConnected)
+    {
+        int index = mIndex.indexOf(deviceMac);
+        if (index < 0)
+        {
+            if (!isConnected)
+            {
+                return;
+            }
+
+            index = addToIndex(deviceMac);
+        }
+
+        if (isConnected)
+        {
+            mConnectedBits[index >>> 6] |= 1L << index;
+        }
+        else
+        {
+            mConnectedBits[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    /**
+     * Compiles the mask of a condition against {@link #mIndex}. Devices without an index have never connected, so they are left
+     * out of the mask; they count as disconnected, which is what they are. Must be called with the lock held.
+     *
+     * @param condition the condition. Cannot be null.
+     * @return the mask.
+     */
+    private DeviceCondition.Mask compileMask(final DeviceCondition condition)
+    {
+        final long[] mask = new long[Math.max(1, (mIndex.size() + 63) >>> 6)];
+        boolean isPartial = false;
+        for (int x = 0; x < condition.getDeviceCount(); x++)
+        {
+            final long deviceMac = condition.getDeviceMac(x);
+            final int index = MacCodec.INVALID == deviceMac ? -1 : mIndex.indexOf(deviceMac);
+            if (index < 0)
+            {
+                isPartial |= MacCodec.INVALID != deviceMac;
+            }
+            else
+            {
+                mask[index >>> 6] |= 1L << index;
+            }
+        }
+
+        return new DeviceCondition.Mask(mask, mIndex, isPartial);
+    }
+
+    /**
+     * Looks up the bit of each device of an expression in {@link #mIndex}, as {@link #compileMask(DeviceCondition)} does for a
+     * condition. Must be called with the lock held.
+     *
+     * @param expression the expression. Cannot be null.
+     * @return the bits.
+     */
+    private ConditionExpression.SlotBits compileBits(final ConditionExpression expression)
+    {
+        final int[] slotBits = new int[expression.getDeviceCount()];
+        boolean isPartial = false;
+        for (int x = 0; x < slotBits.length; x++)
+        {
+            slotBits[x] = mIndex.indexOf(expression.getDeviceMac(x));
+            isPartial |= slotBits[x] < 0;
+        }
+
+        return new ConditionExpression.SlotBits(slotBits, mIndex, isPartial);
+    }
+
+    /**
+     * Reads every device state from the backing store. Must be called with the lock held.
+     */
+    private void load()
+    {
+        if (!TransitionJournal.exists(mDirectory))
+        {
+            importLegacyStates(mJournal);
+        }
+
+        try
+        {
+            final Collection<Transition> transitions = mJournal.load();
+            for (final Transition transition : transitions)
+            {
+                mStates.put(transition.getDeviceMac(), transition.isConnected());
+                mPersistedStates.put(transition.getDeviceMac(), transition.isConnected());
+                setConnectedBit(transition.getDeviceMac(), transition.isConnected());
+                if (DeviceClass.isValid(transition.getDeviceClass()))
+                {
+                    applyDeviceClass(transition.getDeviceMac(), transition.getDeviceClass());
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            /*
+             * Carry on with an empty state, which is what the plug-in reports after a reboot anyway
+             */
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("Couldn't load device states", e); //$NON-NLS-1$
+            }
+        }
+
+        /*
+         * A stale device with a state in the journal has had a transition since it went stale. Going backwards visits each device
+         * once, as removing one moves the last into its place.
+         */
+        mStaleDevices.load();
+        for (int x = mStaleDevices.size() - 1; x >= 0; x--)
+        {
+            final long deviceMac = mStaleDevices.getMac(x);
+            if (DeviceStateTable.STATE_UNKNOWN != mStates.get(deviceMac))
+            {
+                mStaleDevices.remove(deviceMac);
+            }
+            else if (DeviceClass.UNKNOWN != mStaleDevices.getDeviceClass(x))
+            {
+                applyDeviceClass(deviceMac, mStaleDevices.getDeviceClass(x));
+            }
+        }
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("Loaded %d device states", Integer.valueOf(mStates.size()))); //$NON-NLS-1$
+        }
+
+        mIsLoaded = true;
+    }
+
+    /**
+     * Called with the lock held before the journal is first read, if there is no journal yet, to bring in states kept elsewhere
+     * by older versions. Does nothing by default.
+     *
+     * @param journal the journal, empty and not yet read. Transitions appended to it are loaded as if they had always been there.
+     */
+    protected void importLegacyStates(final TransitionJournal journal)
+    {
+        // no legacy states
+    }
+}
@@ -0,0 +1,102 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+/**
+ * Helpers for Bluetooth device classes, as returned by {@link android.bluetooth.BluetoothClass#getDeviceClass()}: a major class
+ * in bits 8 to 12 and a minor class in bits 2 to 7. A major class on its own is the same value with the minor bits clear, as
+ * returned by {@link android.bluetooth.BluetoothClass#getMajorDeviceClass()}.
+ * <p>
+ * Conditions on a class are watched by {@link WatchedDeviceRegistry} under a key from {@link #getWatchKey(boolean, int)}. Those
+ * keys have bit 48 set, so they never collide with a MAC packed by {@link MacCodec}.
+ */
+public final class DeviceClass
+{
+    /**
+     * The class of a device which hasn't reported one.
+     */
+    public static final int UNKNOWN = -1;
+
+    /**
+     * Bits of a device class which hold the major class.
+     */
+    public static final int MAJOR_MASK = 0x1F00;
+
+    /**
+     * Bits of a device class which hold the major and minor class.
+     */
+    public static final int DEVICE_MASK = 0x1FFC;
+
+    /**
+     * Bit set in every watch key.
+     */
+    private static final long WATCH_KEY_FLAG = 1L << 48;
+
+    /**
+     * Bit set in the watch key of a major class.
+     */
+    private static final long WATCH_KEY_MAJOR = 1L << 16;
+
+    /**
+     * Private constructor prevents instantiation
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private DeviceClass()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * @param deviceClass a value which may be a device class.
+     * @return true if {@code deviceClass} is a device class, with no bits outside {@link #DEVICE_MASK}.
+     */
+    public static boolean isValid(final int deviceClass)
+    {
+        return deviceClass >= 0 && 0 == (deviceClass & ~DEVICE_MASK);
+    }
+
+    /**
+     * @param majorClass a value which may be a major class.
+     * @return true if {@code majorClass} is a major class, with no bits outside {@link #MAJOR_MASK}.
+     */
+    public static boolean isValidMajor(final int majorClass)
+    {
+        return majorClass >= 0 && 0 == (majorClass & ~MAJOR_MASK);
+    }
+
+    /**
+     * @param deviceClass a valid device class.
+     * @return the major class of {@code deviceClass}.
+     */
+    public static int getMajor(final int deviceClass)
+    {
+        return deviceClass & MAJOR_MASK;
+    }
+
+    /**
+     * @param isMajor true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class.
+     * @return the key under which {@link WatchedDeviceRegistry} watches conditions on {@code classValue}.
+     */
+    public static long getWatchKey(final boolean isMajor, final int classValue)
+    {
+        return WATCH_KEY_FLAG | (isMajor ? WATCH_KEY_MAJOR : 0) | classValue;
+    }
+
+    /**
+     * @param key a MAC packed by {@link MacCodec}, or a key from {@link #getWatchKey(boolean, int)}.
+     * @return true if {@code key} is a watch key.
+     */
+    public static boolean isWatchKey(final long key)
+    {
+        return 0 != (key & WATCH_KEY_FLAG);
+    }
+
+    /**
+     * @param key a key from {@link #getWatchKey(boolean, int)}.
+     * @return a description of the class {@code key} watches, for logging.
+     */
+    public static String describeWatchKey(final long key)
+    {
+        return String.format(0 != (key & WATCH_KEY_MAJOR) ? "major class 0x%04X" : "device class 0x%04X", Integer.valueOf((int) (key & DEVICE_MASK))); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
@@ -0,0 +1,287 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.Arrays;
+
+/**
+ * A condition over a set of devices: at least {@link #getRequiredCount()} of them must be in the expected state. "Any" and "all"
+ * are the special cases of one device and every device. Devices whose state is unknown count as disconnected.
+ * <p>
+ * The set may contain {@link MacCodec#INVALID}, standing for a malformed MAC. It can never connect, so it always counts as
+ * disconnected.
+ * <p>
+ * This class is immutable apart from the bitset mask {@link ConnectionStateStore} compiles into it, which is cached in an
+ * immutable {@link Mask} replaced whole, so instances can be shared between threads and stores.
+ */
+public final class DeviceCondition
+{
+    /**
+     * Quantifier of a condition satisfied by any one of its devices being in the expected state.
+     */
+    public static final int QUANTIFIER_ANY = 0;
+
+    /**
+     * Quantifier of a condition satisfied by every one of its devices being in the expected state.
+     */
+    public static final int QUANTIFIER_ALL = 1;
+
+    /**
+     * Quantifier of a condition satisfied by at least a minimum count of its devices being in the expected state.
+     */
+    public static final int QUANTIFIER_AT_LEAST = 2;
+
+    /**
+     * Packed MACs of the devices, sorted and without duplicates.
+     */
+    private final long[] mMacs;
+
+    /**
+     * True if devices must be connected, false if they must be disconnected.
+     */
+    private final boolean mIsConnectedExpected;
+
+    /**
+     * Number of devices which must be in the expected state.
+     */
+    private final int mRequiredCount;
+
+    /**
+     * Hash of the whole condition, from {@link #getFingerprint()}.
+     */
+    private final long mFingerprint;
+
+    /**
+     * Mask of the devices in the connected bitset of the {@link ConnectionStateStore} which last evaluated this, or null until
+     * one has. It is replaced whole rather than updated, so a condition shared between threads and stores never sees a mask from
+     * one index with the size of another.
+     */
+    /* package */volatile Mask mMask = null;
+
+    /**
+     * @param macs packed MACs of the devices. Cannot be null or empty. Duplicates are ignored.
+     * @param isConnectedExpected true if devices must be connected, false if they must be disconnected.
+     * @param requiredCount number of distinct devices which must be in the expected state. Must be between 1 and the number of
+     *            distinct devices.
+     * @throws IllegalArgumentException if {@code macs} is empty, or {@code requiredCount} is out of range.
+     */
+    public DeviceCondition(final long[] macs, final boolean isConnectedExpected, final int requiredCount)
+    {
+        mMacs = distinct(macs);
+        mIsConnectedExpected = isConnectedExpected;
+        mRequiredCount = requiredCount;
+        mFingerprint = fingerprint(mMacs, isConnectedExpected, requiredCount);
+
+        if (requiredCount < 1 || requiredCount > mMacs.length)
+        {
+            throw new IllegalArgumentException(String.format("requiredCount %d is not between 1 and %d", Integer.valueOf(requiredCount), Integer.valueOf(mMacs.length))); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @param mac packed MAC of the device.
+     * @param isConnectedExpected true if the device must be connected, false if it must be disconnected.
+     * @return a condition on one device.
+     */
+    public static DeviceCondition single(final long mac, final boolean isConnectedExpected)
+    {
+        return new DeviceCondition(new long[] { mac }, isConnectedExpected, 1);
+    }
+
+    /**
+     * @param macs packed MACs of the devices. Cannot be null or empty. Duplicates are ignored.
+     * @param isConnectedExpected true if devices must be connected, false if they must be disconnected.
+     * @param quantifier one of {@link #QUANTIFIER_ANY}, {@link #QUANTIFIER_ALL} or {@link #QUANTIFIER_AT_LEAST}. Anything else is
+     *            taken as {@link #QUANTIFIER_ANY}.
+     * @param minCount number of distinct devices which must be in the expected state, for {@link #QUANTIFIER_AT_LEAST}. Ignored
+     *            otherwise.
+     * @return the condition.
+     * @throws IllegalArgumentException if {@code macs} is empty, or {@code minCount} is out of range.
+     */
+    public static DeviceCondition quantified(final long[] macs, final boolean isConnectedExpected, final int quantifier, final int minCount)
+    {
+        switch (quantifier)
+        {
+            case QUANTIFIER_ALL:
+                return new DeviceCondition(macs, isConnectedExpected, countDistinct(macs));
+            case QUANTIFIER_AT_LEAST:
+                return new DeviceCondition(macs, isConnectedExpected, minCount);
+            default:
+                return new DeviceCondition(macs, isConnectedExpected, 1);
+        }
+    }
+
+    /**
+     * @param quantifier a quantifier.
+     * @return true if {@code quantifier} is one of {@link #QUANTIFIER_ANY}, {@link #QUANTIFIER_ALL} or
+     *         {@link #QUANTIFIER_AT_LEAST}.
+     */
+    public static boolean isValidQuantifier(final int quantifier)
+    {
+        return QUANTIFIER_ANY == quantifier || QUANTIFIER_ALL == quantifier || QUANTIFIER_AT_LEAST == quantifier;
+    }
+
+    /**
+     * @param macs packed MACs. Cannot be null.
+     * @return number of distinct MACs in {@code macs}.
+     */
+    public static int countDistinct(final long[] macs)
+    {
+        return distinct(macs).length;
+    }
+
+    /**
+     * @return number of distinct devices.
+     */
+    public int getDeviceCount()
+    {
+        return mMacs.length;
+    }
+
+    /**
+     * @param position position of the device, from 0 to {@link #getDeviceCount()} - 1.
+     * @return packed MAC of the device. Devices are in ascending order.
+     */
+    public long getDeviceMac(final int position)
+    {
+        return mMacs[position];
+    }
+
+    /**
+     * @return true if devices must be connected, false if they must be disconnected.
+     */
+    public boolean isConnectedExpected()
+    {
+        return mIsConnectedExpected;
+    }
+
+    /**
+     * @return number of devices which must be in the expected state.
+     */
+    public int getRequiredCount()
+    {
+        return mRequiredCount;
+    }
+
+    /**
+     * @return a non-negative hash of the whole condition. Equal conditions have equal fingerprints.
+     */
+    public long getFingerprint()
+    {
+        return mFingerprint;
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (!(o instanceof DeviceCondition))
+        {
+            return false;
+        }
+
+        final DeviceCondition other = (DeviceCondition) o;
+        return mIsConnectedExpected == other.mIsConnectedExpected && mRequiredCount == other.mRequiredCount && Arrays.equals(mMacs, other.mMacs);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int) (mFingerprint ^ (mFingerprint >>> 32));
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(mRequiredCount).append(" of "); //$NON-NLS-1$
+        for (int x = 0; x < mMacs.length; x++)
+        {
+            builder.append(0 == x ? "[" : ", "); //$NON-NLS-1$ //$NON-NLS-2$
+            builder.append(MacCodec.INVALID == mMacs[x] ? "invalid" : MacCodec.decode(mMacs[x])); //$NON-NLS-1$
+        }
+        builder.append(mIsConnectedExpected ? "] connected" : "] disconnected"); //$NON-NLS-1$ //$NON-NLS-2$
+        return builder.toString();
+    }
+
+    /**
+     * @param macs packed MACs. Cannot be null.
+     * @return the distinct MACs in {@code macs}, in ascending order.
+     */
+    private static long[] distinct(final long[] macs)
+    {
+        final long[] sorted = macs.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int x = 0; x < sorted.length; x++)
+        {
+            if (0 == x || sorted[x] != sorted[x - 1])
+            {
+                sorted[count++] = sorted[x];
+            }
+        }
+
+        if (count == sorted.length)
+        {
+            return sorted;
+        }
+
+        final long[] result = new long[count];
+        System.arraycopy(sorted, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @param macs packed MACs of the devices, sorted and without duplicates.
+     * @param isConnectedExpected true if devices must be connected.
+     * @param requiredCount number of devices which must be in the expected state.
+     * @return a non-negative hash of the condition.
+     */
+    private static long fingerprint(final long[] macs, final boolean isConnectedExpected, final int requiredCount)
+    {
+        long hash = isConnectedExpected ? 1 : 2;
+        hash = hash * 0x9E3779B97F4A7C15L + requiredCount;
+        for (final long mac : macs)
+        {
+            hash = (hash ^ mac) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+        }
+        return hash & Long.MAX_VALUE;
+    }
+
+    /**
+     * The mask of a condition's devices in a {@link DeviceIndex}. Instances are immutable.
+     */
+    /* package */static final class Mask
+    {
+        /**
+         * Bit {@code i} is set if the device with index {@code i} in {@link #mIndex} is in the set.
+         */
+        /* package */final long[] mBits;
+
+        /**
+         * The index {@link #mBits} was compiled against.
+         */
+        /* package */final DeviceIndex mIndex;
+
+        /**
+         * Size of {@link #mIndex} when {@link #mBits} was compiled.
+         */
+        /* package */final int mIndexSize;
+
+        /**
+         * Whether some device had no index when {@link #mBits} was compiled, so that the mask is stale once the index grows.
+         */
+        /* package */final boolean mIsPartial;
+
+        /**
+         * @param bits the mask.
+         * @param index the index {@code bits} was compiled against.
+         * @param isPartial whether some device had no index.
+         */
+        /* package */Mask(final long[] bits, final DeviceIndex index, final boolean isPartial)
+        {
+            mBits = bits;
+            mIndex = index;
+            mIndexSize = index.size();
+            mIsPartial = isPartial;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.Arrays;
+
+/**
+ * Assigns each packed MAC (see {@link MacCodec}) a small dense index, so that per-device flags can be kept in a bitset.
+ * <p>
+ * Indices are handed out in order from 0 and never reused; the only way to forget a device is to discard the whole index. The
+ * table is laid out like {@link DeviceStateTable}: open addressing over parallel primitive arrays.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class DeviceIndex
+{
+    /**
+     * Marks an empty slot. Packed MACs are never negative, so this can't collide with one.
+     */
+    private static final long EMPTY = -1;
+
+    /**
+     * Capacity of a new table. Must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Packed MAC in each slot, or {@link #EMPTY}.
+     */
+    private long[] mKeys;
+
+    /**
+     * Index in each slot.
+     */
+    private int[] mIndices;
+
+    /**
+     * Packed MAC of each index.
+     */
+    private long[] mMacs = new long[INITIAL_CAPACITY];
+
+    /**
+     * Number of devices, which is also the next index.
+     */
+    private int mSize = 0;
+
+    /**
+     * Constructs an empty index.
+     */
+    public DeviceIndex()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param mac packed MAC. Cannot be {@link MacCodec#INVALID}, which is the empty marker.
+     * @return index of {@code mac}, or -1 if it has none.
+     */
+    public int indexOf(final long mac)
+    {
+        final long[] keys = mKeys;
+        final int mask = keys.length - 1;
+        for (int slot = DeviceStateTable.hash(mac) & mask;; slot = (slot + 1) & mask)
+        {
+            final long key = keys[slot];
+            if (key == mac)
+            {
+                return mIndices[slot];
+            }
+            if (EMPTY == key)
+            {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @param mac packed MAC. Cannot be {@link MacCodec#INVALID}.
+     * @return index of {@code mac}, which is assigned now if it had none.
+     */
+    public int add(final long mac)
+    {
+        final int mask = mKeys.length - 1;
+        for (int slot = DeviceStateTable.hash(mac) & mask;; slot = (slot + 1) & mask)
+        {
+            final long key = mKeys[slot];
+            if (key == mac)
+            {
+                return mIndices[slot];
+            }
+            if (EMPTY == key)
+            {
+                final int index = mSize++;
+                mKeys[slot] = mac;
+                mIndices[slot] = index;
+                if (index == mMacs.length)
+                {
+                    final long[] macs = new long[index * 2];
+                    System.arraycopy(mMacs, 0, macs, 0, index);
+                    mMacs = macs;
+                }
+                mMacs[index] = mac;
+                if (mSize * 2 > mKeys.length)
+                {
+                    grow();
+                }
+                return index;
+            }
+        }
+    }
+
+    /**
+     * @param index an index less than {@link #size()}.
+     * @return the packed MAC which has {@code index}.
+     */
+    public long getMac(final int index)
+    {
+        return mMacs[index];
+    }
+
+    /**
+     * @return number of devices, which is one more than the highest index.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * Doubles the capacity and reinserts every device.
+     */
+    private void grow()
+    {
+        final long[] oldKeys = mKeys;
+        final int[] oldIndices = mIndices;
+        allocate(oldKeys.length * 2);
+
+        final int mask = mKeys.length - 1;
+        for (int x = 0; x < oldKeys.length; x++)
+        {
+            if (EMPTY != oldKeys[x])
+            {
+                int slot = DeviceStateTable.hash(oldKeys[x]) & mask;
+                while (EMPTY != mKeys[slot])
+                {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = oldKeys[x];
+                mIndices[slot] = oldIndices[x];
+            }
+        }
+    }
+
+    /**
+     * @param capacity number of slots. Must be a power of two.
+     */
+    private void allocate(final int capacity)
+    {
+        mKeys = new long[capacity];
+        mIndices = new int[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+}
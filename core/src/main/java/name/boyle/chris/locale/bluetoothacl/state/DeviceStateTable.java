@@ -0,0 +1,236 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from packed MAC (see {@link MacCodec}) to connection state.
+ * <p>
+ * Keys and states live in two parallel primitive arrays, probed linearly, so lookups neither box nor allocate, and there are no
+ * per-entry objects. The table doubles when it is half full, and never shrinks. Removal shifts later entries of the probe run back
+ * into the gap, so there are no tombstones to slow down lookups.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class DeviceStateTable
+{
+    /**
+     * State of a device which has no recorded transition.
+     */
+    public static final byte STATE_UNKNOWN = 0;
+
+    /**
+     * State of a device whose last transition was a disconnection.
+     */
+    public static final byte STATE_DISCONNECTED = 1;
+
+    /**
+     * State of a device whose last transition was a connection.
+     */
+    public static final byte STATE_CONNECTED = 2;
+
+    /**
+     * Marks an empty slot. Packed MACs are never negative, so this can't collide with one.
+     */
+    private static final long EMPTY = -1;
+
+    /**
+     * Capacity of a new table. Must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Packed MAC in each slot, or {@link #EMPTY}.
+     */
+    private long[] mKeys;
+
+    /**
+     * State in each slot.
+     */
+    private byte[] mStates;
+
+    /**
+     * Number of occupied slots.
+     */
+    private int mSize = 0;
+
+    /**
+     * Constructs an empty table.
+     */
+    public DeviceStateTable()
+    {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param mac packed MAC.
+     * @return {@link #STATE_CONNECTED}, {@link #STATE_DISCONNECTED}, or {@link #STATE_UNKNOWN} if {@code mac} isn't in the table.
+     */
+    public byte get(final long mac)
+    {
+        final long[] keys = mKeys;
+        final int mask = keys.length - 1;
+        for (int slot = hash(mac) & mask;; slot = (slot + 1) & mask)
+        {
+            final long key = keys[slot];
+            if (key == mac)
+            {
+                return mStates[slot];
+            }
+            if (EMPTY == key)
+            {
+                return STATE_UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * @param mac packed MAC. Cannot be {@link MacCodec#INVALID}.
+     * @param isConnected the device's new state.
+     * @return the device's previous state, as returned by {@link #get(long)}.
+     */
+    public byte put(final long mac, final boolean isConnected)
+    {
+        final byte state = isConnected ? STATE_CONNECTED : STATE_DISCONNECTED;
+        final int mask = mKeys.length - 1;
+        for (int slot = hash(mac) & mask;; slot = (slot + 1) & mask)
+        {
+            final long key = mKeys[slot];
+            if (key == mac)
+            {
+                final byte previous = mStates[slot];
+                mStates[slot] = state;
+                return previous;
+            }
+            if (EMPTY == key)
+            {
+                mKeys[slot] = mac;
+                mStates[slot] = state;
+                if (++mSize * 2 > mKeys.length)
+                {
+                    grow();
+                }
+                return STATE_UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * @param mac packed MAC.
+     * @return the device's state before it was removed, as returned by {@link #get(long)}.
+     */
+    public byte remove(final long mac)
+    {
+        final int mask = mKeys.length - 1;
+        int hole = hash(mac) & mask;
+        while (mKeys[hole] != mac)
+        {
+            if (EMPTY == mKeys[hole])
+            {
+                return STATE_UNKNOWN;
+            }
+            hole = (hole + 1) & mask;
+        }
+        final byte previous = mStates[hole];
+
+        /*
+         * Move back every later entry of the run which may no longer be reachable from its home slot past the hole
+         */
+        for (int slot = (hole + 1) & mask; EMPTY != mKeys[slot]; slot = (slot + 1) & mask)
+        {
+            final int home = hash(mKeys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask))
+            {
+                mKeys[hole] = mKeys[slot];
+                mStates[hole] = mStates[slot];
+                hole = slot;
+            }
+        }
+        mKeys[hole] = EMPTY;
+        mSize--;
+
+        return previous;
+    }
+
+    /**
+     * @return number of devices in the table.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * @return a new array of the MAC of every device in the table, in no particular order.
+     */
+    public long[] getMacs()
+    {
+        final long[] macs = new long[mSize];
+        int count = 0;
+        for (final long key : mKeys)
+        {
+            if (EMPTY != key)
+            {
+                macs[count++] = key;
+            }
+        }
+        return macs;
+    }
+
+    /**
+     * Removes every device.
+     */
+    public void clear()
+    {
+        allocate(INITIAL_CAPACITY);
+        mSize = 0;
+    }
+
+    /**
+     * Doubles the capacity and reinserts every device.
+     */
+    private void grow()
+    {
+        final long[] oldKeys = mKeys;
+        final byte[] oldStates = mStates;
+        allocate(oldKeys.length * 2);
+
+        final int mask = mKeys.length - 1;
+        for (int x = 0; x < oldKeys.length; x++)
+        {
+            if (EMPTY != oldKeys[x])
+            {
+                int slot = hash(oldKeys[x]) & mask;
+                while (EMPTY != mKeys[slot])
+                {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = oldKeys[x];
+                mStates[slot] = oldStates[x];
+            }
+        }
+    }
+
+    /**
+     * @param capacity number of slots. Must be a power of two.
+     */
+    private void allocate(final int capacity)
+    {
+        mKeys = new long[capacity];
+        mStates = new byte[capacity];
+        Arrays.fill(mKeys, EMPTY);
+    }
+
+    /**
+     * Mixes every bit of a packed MAC into the low bits. Adjacent MACs from one vendor differ only in their last octets, which a
+     * plain truncation would cluster.
+     *
+     * @param mac packed MAC.
+     * @return the hash.
+     */
+    /* package */static int hash(final long mac)
+    {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+}
@@ -0,0 +1,92 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+/**
+ * Converts Bluetooth MACs between their string form and a {@code long}.
+ * <p>
+ * A packed MAC holds the six octets in its low 48 bits, most significant octet first, so it is never negative and never equal
+ * to {@link #INVALID}. Packed MACs hash and compare as a single word, where the string form costs a 17 character comparison.
+ */
+public final class MacCodec
+{
+    /**
+     * Returned by {@link #encode(String)} for anything that isn't a MAC.
+     */
+    public static final long INVALID = -1;
+
+    /**
+     * Length of a MAC in its string form.
+     */
+    private static final int STRING_LENGTH = 17;
+
+    /**
+     * Uppercase hex digits, indexed by value.
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray(); //$NON-NLS-1$
+
+    /**
+     * Private constructor prevents instantiation
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private MacCodec()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Packs a MAC. Either case is accepted. This method does not allocate.
+     *
+     * @param mac MAC as six hex octets separated by colons. May be null.
+     * @return the packed MAC, or {@link #INVALID} if {@code mac} is null or malformed.
+     */
+    public static long encode(final String mac)
+    {
+        if (null == mac || STRING_LENGTH != mac.length())
+        {
+            return INVALID;
+        }
+
+        long packed = 0;
+        for (int x = 0; x < STRING_LENGTH; x += 3)
+        {
+            final int high = Character.digit(mac.charAt(x), 16);
+            final int low = Character.digit(mac.charAt(x + 1), 16);
+            if (high < 0 || low < 0 || (x + 2 < STRING_LENGTH && ':' != mac.charAt(x + 2)))
+            {
+                return INVALID;
+            }
+            packed = (packed << 8) | (high << 4) | low;
+        }
+
+        return packed;
+    }
+
+    /**
+     * Unpacks a MAC.
+     *
+     * @param packed MAC packed by {@link #encode(String)}.
+     * @return the MAC, uppercase with colons.
+     * @throws IllegalArgumentException if {@code packed} has bits set above the low 48.
+     */
+    public static String decode(final long packed)
+    {
+        if (0 != (packed >>> 48))
+        {
+            throw new IllegalArgumentException("Not a packed MAC: " + packed); //$NON-NLS-1$
+        }
+
+        final char[] chars = new char[STRING_LENGTH];
+        for (int x = 0; x < 6; x++)
+        {
+            final int octet = (int) (packed >>> (40 - 8 * x)) & 0xFF;
+            chars[3 * x] = HEX_DIGITS[octet >>> 4];
+            chars[3 * x + 1] = HEX_DIGITS[octet & 0xF];
+            if (x < 5)
+            {
+                chars[3 * x + 2] = ':';
+            }
+        }
+
+        return new String(chars);
+    }
+}
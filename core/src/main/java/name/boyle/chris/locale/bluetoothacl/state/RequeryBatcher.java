@@ -0,0 +1,233 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreConstants;
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Merges requery requests from every device into as few requeries as possible.
+ * <p>
+ * A request opens a batch which is sent {@link #BATCH_WINDOW_MILLIS} later, and requests made while a batch is open join it. A
+ * batch is never sent sooner than {@link #MIN_INTERVAL_MILLIS} after the previous one, so requests made in the meantime also join
+ * the next batch. Either way Locale queries every condition of the plug-in in response to one broadcast, so nothing is lost by
+ * merging.
+ * <p>
+ * Batches are timed by a {@link Clock} and sent on a {@link ScheduledExecutorService}, so a {@link VirtualScheduler} can drive
+ * both when a trace is replayed.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class RequeryBatcher implements TransitionProcessor.RequerySender
+{
+    /**
+     * Time a batch stays open for other devices to join it. Devices that connect together, such as a car kit and a watch on
+     * entering a car, usually settle within this of each other.
+     */
+    public static final long BATCH_WINDOW_MILLIS = 250;
+
+    /**
+     * Minimum time between two requeries.
+     */
+    public static final long MIN_INTERVAL_MILLIS = 2000;
+
+    /**
+     * Sends the merged requeries.
+     */
+    private final TransitionProcessor.RequerySender mSender;
+
+    /**
+     * Source of time.
+     */
+    private final Clock mClock;
+
+    /**
+     * Executor on which batches are sent.
+     */
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * Whether a batch is open. Guarded by {@code this}.
+     */
+    private boolean mIsPending = false;
+
+    /**
+     * Elapsed realtime at which the open batch is due. Guarded by {@code this}.
+     */
+    private long mDueAt = 0;
+
+    /**
+     * The scheduled send of the open batch, or null. Guarded by {@code this}.
+     */
+    private Future<?> mScheduledSend = null;
+
+    /**
+     * Whether a batch has been sent yet. Guarded by {@code this}.
+     */
+    private boolean mHasSent = false;
+
+    /**
+     * Elapsed realtime at which the last batch was sent. Guarded by {@code this}.
+     */
+    private long mLastSentAt = 0;
+
+    /**
+     * Number of requeries sent. Guarded by {@code this}.
+     */
+    private long mSentCount = 0;
+
+    /**
+     * Number of requests which joined an open batch instead of causing a requery of their own. Guarded by {@code this}.
+     */
+    private long mSuppressedCount = 0;
+
+    /**
+     * Callbacks to run once the open batch has been sent. Guarded by {@code this}.
+     */
+    private List<Runnable> mSentCallbacks = new ArrayList<Runnable>();
+
+    /**
+     * Scheduled to send the open batch.
+     */
+    private final Runnable mSendRunnable = new Runnable()
+    {
+        public void run()
+        {
+            sendDue();
+        }
+    };
+
+    /**
+     * @param sender sends the merged requeries. Cannot be null.
+     * @param clock source of time. Cannot be null.
+     * @param executor executor on which batches are sent. Cannot be null.
+     */
+    public RequeryBatcher(final TransitionProcessor.RequerySender sender, final Clock clock, final ScheduledExecutorService executor)
+    {
+        if (CoreConstants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == sender)
+            {
+                throw new IllegalArgumentException("sender cannot be null"); //$NON-NLS-1$
+            }
+            if (null == clock)
+            {
+                throw new IllegalArgumentException("clock cannot be null"); //$NON-NLS-1$
+            }
+            if (null == executor)
+            {
+                throw new IllegalArgumentException("executor cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        mSender = sender;
+        mClock = clock;
+        mExecutor = executor;
+    }
+
+    /**
+     * Adds a request to the open batch, opening one if necessary.
+     */
+    public void requestRequery()
+    {
+        synchronized (this)
+        {
+            if (mIsPending)
+            {
+                mSuppressedCount++;
+                return;
+            }
+
+            final long now = mClock.elapsedRealtime();
+            mIsPending = true;
+            mDueAt = now + BATCH_WINDOW_MILLIS;
+            if (mHasSent)
+            {
+                mDueAt = Math.max(mDueAt, mLastSentAt + MIN_INTERVAL_MILLIS);
+            }
+
+            mScheduledSend = mExecutor.schedule(mSendRunnable, mDueAt - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Runs {@code callback} once the open batch has been sent, or on the calling thread now if there is none. Lets a receiver
+     * holding a {@code PendingResult} keep the process alive until its requery has gone out.
+     *
+     * @param callback callback to run. Cannot be null.
+     */
+    public void runWhenSent(final Runnable callback)
+    {
+        synchronized (this)
+        {
+            if (mIsPending)
+            {
+                mSentCallbacks.add(callback);
+                return;
+            }
+        }
+
+        callback.run();
+    }
+
+    /**
+     * Sends the open batch if it is due.
+     */
+    public void sendDue()
+    {
+        final List<Runnable> callbacks;
+        synchronized (this)
+        {
+            final long now = mClock.elapsedRealtime();
+            if (!mIsPending || now < mDueAt)
+            {
+                return;
+            }
+
+            mIsPending = false;
+            mHasSent = true;
+            mLastSentAt = now;
+            mSentCount++;
+            if (null != mScheduledSend)
+            {
+                mScheduledSend.cancel(false);
+                mScheduledSend = null;
+            }
+
+            callbacks = mSentCallbacks;
+            mSentCallbacks = new ArrayList<Runnable>();
+        }
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("Requesting requery, %d requests suppressed so far", Long.valueOf(getSuppressedCount()))); //$NON-NLS-1$
+        }
+
+        mSender.requestRequery();
+
+        for (final Runnable callback : callbacks)
+        {
+            callback.run();
+        }
+    }
+
+    /**
+     * @return number of requeries sent.
+     */
+    public synchronized long getSentCount()
+    {
+        return mSentCount;
+    }
+
+    /**
+     * @return number of requests which were merged into another requery rather than sent.
+     */
+    public synchronized long getSuppressedCount()
+    {
+        return mSuppressedCount;
+    }
+}
@@ -0,0 +1,369 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Devices whose state was forgotten because their transitions may have been missed, and which haven't had a transition since.
+ * Whether such a device is connected isn't known until it next connects or disconnects.
+ * <p>
+ * The set is kept in a file next to the journal, so that a new process doesn't take a stale device for a disconnected one. The
+ * file is only rewritten when devices are added. A device which has had a transition since is still in it, and is dropped when the
+ * file is next read, as its state is then in the journal. Its format is {@link #MAGIC}, {@link #FORMAT_VERSION}, a count, then a
+ * big-endian long MAC packed by {@link MacCodec} and an int {@link DeviceClass} per device.
+ * <p>
+ * Membership is checked through a {@link DeviceStateTable}, so a query doesn't allocate. The number of stale devices of each
+ * class is counted, so that a condition on a class can tell whether any of its devices is stale.
+ * <p>
+ * This class is not thread-safe.
+ */
+/* package */final class StaleDevices
+{
+    /**
+     * Name of the file.
+     */
+    /* package */static final String FILE_NAME = "stale_devices"; //$NON-NLS-1$
+
+    /**
+     * First word of the file.
+     */
+    private static final int MAGIC = 0x42545344; // "BTSD"
+
+    /**
+     * Second word of the file.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Size of the file header: magic, version and count.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Size of one record.
+     */
+    private static final int RECORD_SIZE = 12;
+
+    /**
+     * The file.
+     */
+    private final File mFile;
+
+    /**
+     * Every stale device, stored as disconnected.
+     */
+    private final DeviceStateTable mDevices = new DeviceStateTable();
+
+    /**
+     * Packed MACs of the stale devices, in no particular order.
+     */
+    private long[] mMacs = new long[4];
+
+    /**
+     * Class of each device in {@link #mMacs}, or {@link DeviceClass#UNKNOWN}.
+     */
+    private int[] mDeviceClasses = new int[4];
+
+    /**
+     * Number of entries in use.
+     */
+    private int mCount = 0;
+
+    /**
+     * Number of stale devices of each major class, indexed as the store's counters of connected devices are.
+     */
+    private final int[] mCountByMajorClass = new int[(DeviceClass.MAJOR_MASK >>> 8) + 1];
+
+    /**
+     * Number of stale devices of each device class, indexed as the store's counters of connected devices are.
+     */
+    private final int[] mCountByDeviceClass = new int[(DeviceClass.DEVICE_MASK >>> 2) + 1];
+
+    /**
+     * @param directory directory holding the file. Cannot be null.
+     */
+    /* package */StaleDevices(final File directory)
+    {
+        mFile = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return true if the device is stale.
+     */
+    /* package */boolean contains(final long deviceMac)
+    {
+        return DeviceStateTable.STATE_UNKNOWN != mDevices.get(deviceMac);
+    }
+
+    /**
+     * @return number of stale devices.
+     */
+    /* package */int size()
+    {
+        return mCount;
+    }
+
+    /**
+     * @param index index of a device, between 0 and {@link #size()}.
+     * @return the packed MAC of the device.
+     */
+    /* package */long getMac(final int index)
+    {
+        return mMacs[index];
+    }
+
+    /**
+     * @param index index of a device, between 0 and {@link #size()}.
+     * @return the class of the device, or {@link DeviceClass#UNKNOWN}.
+     */
+    /* package */int getDeviceClass(final int index)
+    {
+        return mDeviceClasses[index];
+    }
+
+    /**
+     * @param majorClass a valid major class.
+     * @return number of stale devices of {@code majorClass}.
+     */
+    /* package */int getCountByMajorClass(final int majorClass)
+    {
+        return mCountByMajorClass[majorClass >>> 8];
+    }
+
+    /**
+     * @param deviceClass a valid device class.
+     * @return number of stale devices of {@code deviceClass}.
+     */
+    /* package */int getCountByDeviceClass(final int deviceClass)
+    {
+        return mCountByDeviceClass[deviceClass >>> 2];
+    }
+
+    /**
+     * Marks a device as stale, in memory only. Does nothing if it already is.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param deviceClass class of the device, or {@link DeviceClass#UNKNOWN}.
+     */
+    /* package */void add(final long deviceMac, final int deviceClass)
+    {
+        if (DeviceStateTable.STATE_UNKNOWN != mDevices.put(deviceMac, false))
+        {
+            return;
+        }
+
+        if (mCount == mMacs.length)
+        {
+            final long[] macs = new long[mCount * 2];
+            System.arraycopy(mMacs, 0, macs, 0, mCount);
+            mMacs = macs;
+            final int[] deviceClasses = new int[mCount * 2];
+            System.arraycopy(mDeviceClasses, 0, deviceClasses, 0, mCount);
+            mDeviceClasses = deviceClasses;
+        }
+        mMacs[mCount] = deviceMac;
+        mDeviceClasses[mCount] = deviceClass;
+        mCount++;
+        count(deviceClass, 1);
+    }
+
+    /**
+     * Marks a device as no longer stale, in memory only.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return true if the device was stale.
+     */
+    /* package */boolean remove(final long deviceMac)
+    {
+        if (DeviceStateTable.STATE_UNKNOWN == mDevices.remove(deviceMac))
+        {
+            return false;
+        }
+
+        for (int x = 0; x < mCount; x++)
+        {
+            if (mMacs[x] == deviceMac)
+            {
+                count(mDeviceClasses[x], -1);
+                mCount--;
+                mMacs[x] = mMacs[mCount];
+                mDeviceClasses[x] = mDeviceClasses[mCount];
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets every stale device. The file is left alone; {@link #delete()} deletes it.
+     */
+    /* package */void clear()
+    {
+        mDevices.clear();
+        mCount = 0;
+        Arrays.fill(mCountByMajorClass, 0);
+        Arrays.fill(mCountByDeviceClass, 0);
+    }
+
+    /**
+     * Deletes the file. Touches nothing in memory, so it may be called without the lock guarding this set.
+     */
+    /* package */void delete()
+    {
+        mFile.delete();
+    }
+
+    /**
+     * Replaces the devices in memory with those in the file. A missing or corrupt file leaves the set empty.
+     */
+    /* package */void load()
+    {
+        mDevices.clear();
+        mCount = 0;
+        Arrays.fill(mCountByMajorClass, 0);
+        Arrays.fill(mCountByDeviceClass, 0);
+
+        if (!mFile.exists())
+        {
+            return;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(mFile, "r"); //$NON-NLS-1$
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+            {
+                // keep reading
+            }
+            buffer.flip();
+
+            if (buffer.remaining() < HEADER_SIZE || MAGIC != buffer.getInt() || FORMAT_VERSION != buffer.getInt())
+            {
+                return;
+            }
+
+            final int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / RECORD_SIZE)
+            {
+                return;
+            }
+
+            for (int x = 0; x < count; x++)
+            {
+                final long deviceMac = buffer.getLong();
+                final int deviceClass = buffer.getInt();
+                add(deviceMac, DeviceClass.isValid(deviceClass) ? deviceClass : DeviceClass.UNKNOWN);
+            }
+        }
+        catch (final IOException e)
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("Couldn't read the stale devices", e); //$NON-NLS-1$
+            }
+        }
+        finally
+        {
+            if (null != file)
+            {
+                try
+                {
+                    file.close();
+                }
+                catch (final IOException e)
+                {
+                    // nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the contents of the file for the devices in memory, to pass to {@link #write(ByteBuffer)}.
+     */
+    /* package */ByteBuffer encode()
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mCount * RECORD_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(mCount);
+        for (int x = 0; x < mCount; x++)
+        {
+            buffer.putLong(mMacs[x]);
+            buffer.putInt(mDeviceClasses[x]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Rewrites the file. The file is written to a temporary file and renamed into place, so a crash leaves either the old set or
+     * the new one. Touches nothing in memory, so it may be called without the lock guarding this set, as long as writes happen in
+     * the order their contents were encoded.
+     *
+     * @param buffer contents from {@link #encode()}. Cannot be null.
+     */
+    /* package */void write(final ByteBuffer buffer)
+    {
+        final File temp = new File(mFile.getPath() + ".tmp"); //$NON-NLS-1$
+        try
+        {
+            final RandomAccessFile file = new RandomAccessFile(temp, "rw"); //$NON-NLS-1$
+            try
+            {
+                final FileChannel channel = file.getChannel();
+                channel.truncate(0);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            finally
+            {
+                file.close();
+            }
+
+            if (!temp.renameTo(mFile))
+            {
+                throw new IOException("Couldn't rename " + temp + " to " + mFile); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        catch (final IOException e)
+        {
+            /*
+             * This process still knows which devices are stale; a new one would take them for disconnected, as before they were
+             * tracked
+             */
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("Couldn't save the stale devices", e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Adds {@code delta} to the counters of a class.
+     *
+     * @param deviceClass class of a device. Nothing is counted for {@link DeviceClass#UNKNOWN}.
+     * @param delta amount to add.
+     */
+    private void count(final int deviceClass, final int delta)
+    {
+        if (DeviceClass.UNKNOWN != deviceClass)
+        {
+            mCountByMajorClass[deviceClass >>> 8] += delta;
+            mCountByDeviceClass[deviceClass >>> 2] += delta;
+        }
+    }
+}
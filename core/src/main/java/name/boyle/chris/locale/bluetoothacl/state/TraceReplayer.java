@@ -0,0 +1,247 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays an {@link AclTrace} through a {@link TransitionProcessor}, the way the app's receiver feeds it, and counts what the
+ * trace cost: transitions committed to disk, syncs and requeries. Requests for a requery go through a {@link RequeryBatcher}, as
+ * in the app, so the requeries counted are the broadcasts Locale would have received. Used to reproduce flapping incidents from the field, and to
+ * check that a change to debouncing or batching helps with them.
+ * <p>
+ * Everything runs on one {@link VirtualScheduler}, so debounce windows, write batches and requery batches close at the times they would have in
+ * the field, however fast the replay runs, and the same trace always gives the same counts. The devices a trace marks as watched
+ * are watched from the start.
+ * <p>
+ * Run from the command line with the trace file and, optionally, a debounce window in milliseconds:
+ *
+ * <pre>
+ * java -cp core/target/classes name.boyle.chris.locale.bluetoothacl.state.TraceReplayer acl_trace.txt [window]
+ * </pre>
+ */
+public final class TraceReplayer
+{
+    /**
+     * What a replay cost.
+     */
+    public static final class Result
+    {
+        /**
+         * Number of broadcasts replayed.
+         */
+        private final int mEventCount;
+
+        /**
+         * Number of transitions merged away by debouncing.
+         */
+        private final long mMergedCount;
+
+        /**
+         * Number of batches committed to disk.
+         */
+        private final long mCommitCount;
+
+        /**
+         * Number of transitions committed to disk.
+         */
+        private final long mCommittedTransitionCount;
+
+        /**
+         * Number of requeries sent.
+         */
+        private final long mRequeryCount;
+
+        /**
+         * Number of requests for a requery merged into another by batching or rate limiting.
+         */
+        private final long mSuppressedRequeryCount;
+
+        /**
+         * @param eventCount number of broadcasts replayed.
+         * @param mergedCount number of transitions merged away by debouncing.
+         * @param commitCount number of batches committed to disk.
+         * @param committedTransitionCount number of transitions committed to disk.
+         * @param requeryCount number of requeries sent.
+         * @param suppressedRequeryCount number of requests for a requery merged into another.
+         */
+        /* package */Result(final int eventCount, final long mergedCount, final long commitCount, final long committedTransitionCount, final long requeryCount,
+                            final long suppressedRequeryCount)
+        {
+            mEventCount = eventCount;
+            mMergedCount = mergedCount;
+            mCommitCount = commitCount;
+            mCommittedTransitionCount = committedTransitionCount;
+            mRequeryCount = requeryCount;
+            mSuppressedRequeryCount = suppressedRequeryCount;
+        }
+
+        /**
+         * @return number of broadcasts replayed.
+         */
+        public int getEventCount()
+        {
+            return mEventCount;
+        }
+
+        /**
+         * @return number of transitions merged away by debouncing.
+         */
+        public long getMergedCount()
+        {
+            return mMergedCount;
+        }
+
+        /**
+         * @return number of batches committed to disk, each of which cost one sync.
+         */
+        public long getCommitCount()
+        {
+            return mCommitCount;
+        }
+
+        /**
+         * @return number of transitions committed to disk.
+         */
+        public long getCommittedTransitionCount()
+        {
+            return mCommittedTransitionCount;
+        }
+
+        /**
+         * @return number of requeries sent by the {@link RequeryBatcher}, each of which costs Locale a query of every condition.
+         */
+        public long getRequeryCount()
+        {
+            return mRequeryCount;
+        }
+
+        /**
+         * @return number of requests for a requery which the {@link RequeryBatcher} merged into another. Added to
+         *         {@link #getRequeryCount()}, this is the number the processor asked for.
+         */
+        public long getSuppressedRequeryCount()
+        {
+            return mSuppressedRequeryCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "events=%d merged=%d commits=%d committed transitions=%d requeries=%d suppressed requeries=%d", Integer.valueOf(mEventCount), //$NON-NLS-1$
+                                 Long.valueOf(mMergedCount), Long.valueOf(mCommitCount), Long.valueOf(mCommittedTransitionCount), Long.valueOf(mRequeryCount),
+                                 Long.valueOf(mSuppressedRequeryCount));
+        }
+    }
+
+    /**
+     * Stands in for the broadcast which the app's batcher sends. The batcher counts what it sends.
+     */
+    private static final TransitionProcessor.RequerySender NULL_SENDER = new TransitionProcessor.RequerySender()
+    {
+        public void requestRequery()
+        {
+            // nobody to ask
+        }
+    };
+
+    /**
+     * Idle callback passed with watched devices' transitions, as the receiver passes one to keep its broadcast open.
+     */
+    private static final Runnable IDLE_CALLBACK = new Runnable()
+    {
+        public void run()
+        {
+            // nothing to finish
+        }
+    };
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private TraceReplayer()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Replays a trace against a new store, and waits for every window and batch it opened to close.
+     *
+     * @param events the trace. Cannot be null.
+     * @param directory empty directory for the store's files. Cannot be null.
+     * @param debounceWindowMillis length of a debounce window.
+     * @return what the replay cost.
+     */
+    public static Result replay(final List<AclTrace.Event> events, final File directory, final long debounceWindowMillis)
+    {
+        final VirtualScheduler scheduler = new VirtualScheduler(events.isEmpty() ? 0 : events.get(0).getElapsedRealtime());
+        final ConnectionStateStore store = new ConnectionStateStore(directory, scheduler);
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(directory, scheduler);
+        final RequeryBatcher batcher = new RequeryBatcher(NULL_SENDER, scheduler, scheduler);
+        final TransitionProcessor processor = new TransitionProcessor(store, registry, scheduler, debounceWindowMillis, batcher, scheduler);
+
+        for (final AclTrace.Event event : events)
+        {
+            if (event.isWatched())
+            {
+                registry.touch(event.getDeviceMac());
+            }
+        }
+
+        for (final AclTrace.Event event : events)
+        {
+            scheduler.advanceTo(event.getElapsedRealtime());
+            processor.onAclTransition(event.getDeviceMac(), event.getDeviceClass(), event.isConnected(), IDLE_CALLBACK);
+        }
+        scheduler.runUntilIdle();
+
+        final Result result = new Result(events.size(), processor.getMergedCount(), store.getCommitCount(), store.getCommittedTransitionCount(), batcher.getSentCount(),
+                                         batcher.getSuppressedCount());
+        store.discard();
+        return result;
+    }
+
+    /**
+     * Replays the trace named on the command line and prints what it cost.
+     *
+     * @param args the trace file and, optionally, the debounce window in milliseconds.
+     * @throws IOException if the trace can't be read, or the store's files can't be created.
+     */
+    public static void main(final String[] args) throws IOException
+    {
+        if (args.length < 1 || args.length > 2)
+        {
+            System.err.println("Usage: TraceReplayer <trace> [debounce window millis]"); //$NON-NLS-1$
+            System.exit(2);
+        }
+
+        final List<AclTrace.Event> events = AclTrace.read(new File(args[0]));
+        final long window = args.length > 1 ? Long.parseLong(args[1]) : TransitionDebouncer.DEFAULT_WINDOW_MILLIS;
+
+        final File directory = File.createTempFile("replay", ""); //$NON-NLS-1$ //$NON-NLS-2$
+        if (!directory.delete() || !directory.mkdir())
+        {
+            throw new IOException("Couldn't create " + directory); //$NON-NLS-1$
+        }
+
+        try
+        {
+            System.out.println(replay(events, directory, window));
+        }
+        finally
+        {
+            final File[] files = directory.listFiles();
+            if (null != files)
+            {
+                for (final File file : files)
+                {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+/**
+ * An immutable record of one device connecting or disconnecting.
+ */
+public final class Transition
+{
+    /**
+     * MAC of the device, packed by {@link MacCodec}.
+     */
+    private final long mDeviceMac;
+
+    /**
+     * True if the device connected, false if it disconnected.
+     */
+    private final boolean mIsConnected;
+
+    /**
+     * Wall clock time of the transition, in milliseconds since the epoch.
+     */
+    private final long mTimestamp;
+
+    /**
+     * Bluetooth device class of the device, or {@link DeviceClass#UNKNOWN}.
+     */
+    private final int mDeviceClass;
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param timestamp wall clock time of the transition, in milliseconds since the epoch.
+     */
+    public Transition(final long deviceMac, final boolean isConnected, final long timestamp)
+    {
+        this(deviceMac, isConnected, timestamp, DeviceClass.UNKNOWN);
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param timestamp wall clock time of the transition, in milliseconds since the epoch.
+     * @param deviceClass Bluetooth device class of the device, or {@link DeviceClass#UNKNOWN}.
+     */
+    public Transition(final long deviceMac, final boolean isConnected, final long timestamp, final int deviceClass)
+    {
+        mDeviceMac = deviceMac;
+        mIsConnected = isConnected;
+        mTimestamp = timestamp;
+        mDeviceClass = deviceClass;
+    }
+
+    /**
+     * @return MAC of the device, packed by {@link MacCodec}.
+     */
+    public long getDeviceMac()
+    {
+        return mDeviceMac;
+    }
+
+    /**
+     * @return true if the device connected, false if it disconnected.
+     */
+    public boolean isConnected()
+    {
+        return mIsConnected;
+    }
+
+    /**
+     * @return wall clock time of the transition, in milliseconds since the epoch.
+     */
+    public long getTimestamp()
+    {
+        return mTimestamp;
+    }
+
+    /**
+     * @return Bluetooth device class of the device, or {@link DeviceClass#UNKNOWN}.
+     */
+    public int getDeviceClass()
+    {
+        return mDeviceClass;
+    }
+
+    @Override
+    public String toString()
+    {
+        return MacCodec.decode(mDeviceMac) + (mIsConnected ? " connected at " : " disconnected at ") + mTimestamp; //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
@@ -0,0 +1,192 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges bursts of transitions of a device into one net transition.
+ * <p>
+ * The first transition of a device opens a window of {@link #getWindowMillis()}. Transitions of that device within the window
+ * replace the pending state, and when the window closes the latest one is released by {@link #drainDue(long)}. The window is not
+ * extended by later transitions, so a device that flaps continuously still settles at least once per window.
+ * <p>
+ * Windows close in the order they were opened, so open windows are kept in that order and finding or draining the due ones only
+ * looks at the oldest, however many devices are pending. To keep that order when the window is shortened, a window never closes
+ * before one opened earlier.
+ * <p>
+ * Time is passed in by the caller, so this class can be driven by a fake clock. This class is not thread-safe.
+ */
+public final class TransitionDebouncer
+{
+    /**
+     * Default length of a debounce window. Long enough to cover the connect/disconnect/connect bursts of car kits and cheap
+     * headsets, and short enough that a real change is reported promptly.
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 750;
+
+    /**
+     * A device with an open window.
+     */
+    private static final class Pending
+    {
+        /**
+         * Latest state reported in the window.
+         */
+        /* package */boolean mIsConnected;
+
+        /**
+         * Wall clock time of the latest transition in the window.
+         */
+        /* package */long mTimestamp;
+
+        /**
+         * Elapsed realtime at which the window closes.
+         */
+        /* package */long mDeadline;
+    }
+
+    /**
+     * Devices with an open window, keyed by packed MAC, in the order their windows were opened and so also in order of deadline.
+     */
+    private final Map<Long, Pending> mPending = new LinkedHashMap<Long, Pending>();
+
+    /**
+     * Deadline of the most recently opened window, or {@link Long#MIN_VALUE}.
+     */
+    private long mLastDeadline = Long.MIN_VALUE;
+
+    /**
+     * Length of a window.
+     */
+    private long mWindowMillis;
+
+    /**
+     * Number of transitions that were superseded within their window.
+     */
+    private long mMergedCount = 0;
+
+    /**
+     * @param windowMillis length of a window. 0 releases every transition as soon as it is offered.
+     */
+    public TransitionDebouncer(final long windowMillis)
+    {
+        setWindowMillis(windowMillis);
+    }
+
+    /**
+     * @param windowMillis length of windows opened from now on. Must not be negative.
+     * @throws IllegalArgumentException if {@code windowMillis} is negative.
+     */
+    public void setWindowMillis(final long windowMillis)
+    {
+        if (windowMillis < 0)
+        {
+            throw new IllegalArgumentException("windowMillis cannot be negative"); //$NON-NLS-1$
+        }
+
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * @return length of a window.
+     */
+    public long getWindowMillis()
+    {
+        return mWindowMillis;
+    }
+
+    /**
+     * Records a transition, opening a window for the device if it doesn't have one.
+     *
+     * @param deviceMac packed MAC of the device.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param timestamp wall clock time of the transition.
+     * @param now current elapsed realtime.
+     */
+    public void offer(final long deviceMac, final boolean isConnected, final long timestamp, final long now)
+    {
+        final Long key = Long.valueOf(deviceMac);
+        Pending pending = mPending.get(key);
+        if (null == pending)
+        {
+            pending = new Pending();
+            pending.mDeadline = Math.max(now + mWindowMillis, mLastDeadline);
+            mLastDeadline = pending.mDeadline;
+            mPending.put(key, pending);
+        }
+        else
+        {
+            mMergedCount++;
+        }
+
+        pending.mIsConnected = isConnected;
+        pending.mTimestamp = timestamp;
+    }
+
+    /**
+     * Removes and returns the devices whose windows have closed.
+     *
+     * @param now current elapsed realtime.
+     * @return the latest transition of each device whose window closed at or before {@code now}. Never null.
+     */
+    public List<Transition> drainDue(final long now)
+    {
+        final List<Transition> result = new ArrayList<Transition>();
+        for (final Iterator<Map.Entry<Long, Pending>> iterator = mPending.entrySet().iterator(); iterator.hasNext();)
+        {
+            final Map.Entry<Long, Pending> entry = iterator.next();
+            final Pending pending = entry.getValue();
+            if (pending.mDeadline > now)
+            {
+                break;
+            }
+
+            result.add(new Transition(entry.getKey().longValue(), pending.mIsConnected, pending.mTimestamp));
+            iterator.remove();
+        }
+
+        return result;
+    }
+
+    /**
+     * Removes and returns every pending device, whether or not its window has closed.
+     *
+     * @return the latest transition of every device with an open window. Never null.
+     */
+    public List<Transition> drainAll()
+    {
+        return drainDue(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the elapsed realtime at which the next window closes, or {@link Long#MAX_VALUE} if no window is open.
+     */
+    public long getNextDeadline()
+    {
+        if (mPending.isEmpty())
+        {
+            return Long.MAX_VALUE;
+        }
+
+        return mPending.values().iterator().next().mDeadline;
+    }
+
+    /**
+     * @return true if no window is open.
+     */
+    public boolean isIdle()
+    {
+        return mPending.isEmpty();
+    }
+
+    /**
+     * @return number of transitions that were superseded within their window, and so never reached the store.
+     */
+    public long getMergedCount()
+    {
+        return mMergedCount;
+    }
+}
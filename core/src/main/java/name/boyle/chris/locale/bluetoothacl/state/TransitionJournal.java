@@ -0,0 +1,537 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreConstants;
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Persistent store of device transitions, made of a snapshot file and an append-only journal.
+ * <p>
+ * Each transition is appended to a memory-mapped journal as a fixed-size binary record, so recording a transition writes 16 bytes
+ * instead of rewriting a file. The journal is compacted, writing the latest transition of every device to a new snapshot and
+ * emptying the journal, whenever it holds {@link #COMPACTION_THRESHOLD} records at a load or at {@link #compactIfDue()}, which the
+ * writer calls when it goes idle, and in any case when it is full. Loading therefore usually reads one small snapshot plus a tail
+ * of fewer than {@link #COMPACTION_THRESHOLD} records, and never more than {@link #JOURNAL_CAPACITY}.
+ * <p>
+ * A journal of an unexpected size, for example one cut short by a full disk, is not thrown away: the complete records in it are
+ * recovered into a new snapshot before the journal is recreated.
+ * <p>
+ * Both files start with {@link #MAGIC} and {@link #FORMAT_VERSION}. A record is two big-endian longs: the MAC packed by
+ * {@link MacCodec} and shifted left by 8, with a state byte of {@link #STATE_DISCONNECTED} or {@link #STATE_CONNECTED} in the low 8 bits; then
+ * the timestamp in the low 48 bits, with the device class plus one in the high 16 bits. The state byte is never 0, so a zero word
+ * marks the end of the journal. The snapshot holds a record count after its header.
+ * <p>
+ * Version 1 had no device class, so its high 16 bits are always 0, which reads as {@link DeviceClass#UNKNOWN}. Files of that
+ * version are therefore read as they are, and rewritten as the current version the next time they are written.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class TransitionJournal
+{
+    /**
+     * Name of the snapshot file.
+     */
+    /* package */static final String SNAPSHOT_FILE = "transitions.snapshot"; //$NON-NLS-1$
+
+    /**
+     * Name of the journal file.
+     */
+    /* package */static final String JOURNAL_FILE = "transitions.journal"; //$NON-NLS-1$
+
+    /**
+     * First word of both files.
+     */
+    private static final int MAGIC = 0x42544143; // "BTAC"
+
+    /**
+     * Second word of both files.
+     */
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Version of files written before the device class was recorded, which are still readable.
+     */
+    private static final int FORMAT_VERSION_1 = 1;
+
+    /**
+     * Bits of the second long of a record which hold the timestamp.
+     */
+    private static final long TIMESTAMP_MASK = (1L << 48) - 1;
+
+    /**
+     * Size of the file header: magic and version.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * Size of one record.
+     */
+    /* package */static final int RECORD_SIZE = 16;
+
+    /**
+     * Number of records the journal holds before it is compacted.
+     */
+    /* package */static final int JOURNAL_CAPACITY = 1024;
+
+    /**
+     * Number of records in the journal at which a load or {@link #compactIfDue()} compacts it.
+     */
+    /* package */static final int COMPACTION_THRESHOLD = JOURNAL_CAPACITY / 4;
+
+    /**
+     * State byte of a disconnection.
+     */
+    private static final int STATE_DISCONNECTED = 1;
+
+    /**
+     * State byte of a connection.
+     */
+    private static final int STATE_CONNECTED = 2;
+
+    /**
+     * Snapshot file.
+     */
+    private final File mSnapshotFile;
+
+    /**
+     * Journal file.
+     */
+    private final File mJournalFile;
+
+    /**
+     * Latest transition of each device, keyed by MAC. This is what a compaction writes. Guarded by {@code this}.
+     */
+    private final Map<Long, Transition> mLatest = new HashMap<Long, Transition>();
+
+    /**
+     * Open journal file. Null until {@link #load()}. Guarded by {@code this}.
+     */
+    private RandomAccessFile mJournal = null;
+
+    /**
+     * Mapping of the whole journal file, positioned after the last record. Null until {@link #load()}. Guarded by {@code this}.
+     */
+    private MappedByteBuffer mJournalBuffer = null;
+
+    /**
+     * Number of records in the journal. Guarded by {@code this}.
+     */
+    private int mTailCount = 0;
+
+    /**
+     * @param directory directory holding the snapshot and journal. Cannot be null.
+     */
+    public TransitionJournal(final File directory)
+    {
+        if (CoreConstants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == directory)
+            {
+                throw new IllegalArgumentException("directory cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        mSnapshotFile = new File(directory, SNAPSHOT_FILE);
+        mJournalFile = new File(directory, JOURNAL_FILE);
+    }
+
+    /**
+     * @param directory directory which may hold a snapshot and journal. Cannot be null.
+     * @return true if either file exists in {@code directory}.
+     */
+    public static boolean exists(final File directory)
+    {
+        return new File(directory, SNAPSHOT_FILE).exists() || new File(directory, JOURNAL_FILE).exists();
+    }
+
+    /**
+     * Reads the snapshot and journal, and opens the journal for appending. A long journal is compacted. Unreadable or corrupt
+     * files are treated as empty.
+     *
+     * @return the latest transition of each device.
+     * @throws IOException if the journal cannot be opened for writing.
+     */
+    public synchronized Collection<Transition> load() throws IOException
+    {
+        mLatest.clear();
+        readSnapshot();
+        openJournal();
+        compactIfDue();
+
+        return new ArrayList<Transition>(mLatest.values());
+    }
+
+    /**
+     * Appends a transition to the journal, compacting first if the journal is full. The record is visible to the next
+     * {@link #load()} in any process once this returns, even if this process is killed; {@link #force()} makes it survive a
+     * power loss too.
+     *
+     * @param transition transition to record. Cannot be null.
+     * @throws IOException if compaction fails.
+     */
+    public synchronized void append(final Transition transition) throws IOException
+    {
+        if (null == mJournalBuffer)
+        {
+            load();
+        }
+
+        if (JOURNAL_CAPACITY == mTailCount)
+        {
+            compact();
+        }
+
+        writeRecord(mJournalBuffer, transition);
+        mTailCount++;
+        mLatest.put(Long.valueOf(transition.getDeviceMac()), transition);
+    }
+
+    /**
+     * Writes appended records through to the storage device.
+     */
+    public synchronized void force()
+    {
+        if (null != mJournalBuffer)
+        {
+            mJournalBuffer.force();
+        }
+    }
+
+    /**
+     * Writes the latest transition of every device to a new snapshot, then empties the journal. The snapshot is written to a
+     * temporary file and renamed into place, so a crash at any point leaves either the old snapshot and full journal, or the new
+     * snapshot and a journal whose records it already contains.
+     *
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public synchronized void compact() throws IOException
+    {
+        final File temp = new File(mSnapshotFile.getPath() + ".tmp"); //$NON-NLS-1$
+        final RandomAccessFile file = new RandomAccessFile(temp, "rw"); //$NON-NLS-1$
+        try
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 + mLatest.size() * RECORD_SIZE);
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT_VERSION);
+            buffer.putInt(mLatest.size());
+            for (final Transition transition : mLatest.values())
+            {
+                writeRecord(buffer, transition);
+            }
+            buffer.flip();
+
+            final FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        if (!temp.renameTo(mSnapshotFile))
+        {
+            throw new IOException("Couldn't rename " + temp + " to " + mSnapshotFile); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        if (null != mJournalBuffer)
+        {
+            mJournalBuffer.position(HEADER_SIZE);
+            for (int x = 0; x < mTailCount * RECORD_SIZE; x++)
+            {
+                mJournalBuffer.put((byte) 0);
+            }
+            mJournalBuffer.force();
+            mJournalBuffer.position(HEADER_SIZE);
+        }
+        mTailCount = 0;
+    }
+
+    /**
+     * Compacts the journal if it holds at least {@link #COMPACTION_THRESHOLD} records, so that the next load replays a short tail
+     * even if the journal never fills. Meant to be called when nothing is waiting to be appended.
+     *
+     * @return true if the journal was compacted.
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public synchronized boolean compactIfDue() throws IOException
+    {
+        if (mTailCount < COMPACTION_THRESHOLD)
+        {
+            return false;
+        }
+
+        compact();
+        return true;
+    }
+
+    /**
+     * Forgets every device: empties the snapshot and the journal.
+     *
+     * @throws IOException if the snapshot cannot be written.
+     */
+    public synchronized void clear() throws IOException
+    {
+        if (null == mJournalBuffer)
+        {
+            /*
+             * Open the journal first, so that the compaction empties it too
+             */
+            load();
+        }
+
+        mLatest.clear();
+        compact();
+    }
+
+    /**
+     * @return number of records in the journal, which is the number a load will have to replay after the snapshot.
+     */
+    public synchronized int getTailCount()
+    {
+        return mTailCount;
+    }
+
+    /**
+     * Closes the journal. The next call to {@link #append(Transition)} reopens it.
+     */
+    public synchronized void close()
+    {
+        mJournalBuffer = null;
+        if (null != mJournal)
+        {
+            try
+            {
+                mJournal.close();
+            }
+            catch (final IOException e)
+            {
+                if (CoreLog.isLoggable())
+                {
+                    CoreLog.w("Couldn't close the journal", e); //$NON-NLS-1$
+                }
+            }
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Reads the snapshot into {@link #mLatest}. Must be called with the lock held.
+     */
+    private void readSnapshot()
+    {
+        if (!mSnapshotFile.exists())
+        {
+            return;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(mSnapshotFile, "r"); //$NON-NLS-1$
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (!readHeader(buffer) || buffer.remaining() < 4)
+            {
+                return;
+            }
+
+            final int count = buffer.getInt();
+            for (int x = 0; x < count && buffer.remaining() >= RECORD_SIZE; x++)
+            {
+                final Transition transition = readRecord(buffer);
+                if (null != transition)
+                {
+                    mLatest.put(Long.valueOf(transition.getDeviceMac()), transition);
+                }
+            }
+        }
+        catch (final IOException e)
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("Couldn't read the snapshot", e); //$NON-NLS-1$
+            }
+        }
+        finally
+        {
+            if (null != file)
+            {
+                try
+                {
+                    file.close();
+                }
+                catch (final IOException e)
+                {
+                    // nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps the journal, replays its records into {@link #mLatest}, and positions the mapping after the last one. Must be called
+     * with the lock held.
+     *
+     * @throws IOException if the journal cannot be created or mapped.
+     */
+    private void openJournal() throws IOException
+    {
+        close();
+
+        final long size = HEADER_SIZE + (long) JOURNAL_CAPACITY * RECORD_SIZE;
+        mJournal = new RandomAccessFile(mJournalFile, "rw"); //$NON-NLS-1$
+        final long length = mJournal.length();
+        if (0 != length && size != length)
+        {
+            /*
+             * The snapshot must hold the recovered records before the journal is wiped
+             */
+            recoverJournal(length);
+            compact();
+        }
+
+        mJournal.setLength(size);
+        mJournalBuffer = mJournal.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        mTailCount = 0;
+        if (size == length && readHeader(mJournalBuffer))
+        {
+            while (mJournalBuffer.remaining() >= RECORD_SIZE)
+            {
+                final int position = mJournalBuffer.position();
+                final Transition transition = readRecord(mJournalBuffer);
+                if (null == transition)
+                {
+                    mJournalBuffer.position(position);
+                    break;
+                }
+                mLatest.put(Long.valueOf(transition.getDeviceMac()), transition);
+                mTailCount++;
+            }
+
+            /*
+             * Records from an older version are still valid, but records appended from now on may not be readable by it
+             */
+            mJournalBuffer.putInt(4, FORMAT_VERSION);
+        }
+        else
+        {
+            if (size == length && CoreLog.isLoggable())
+            {
+                CoreLog.w("Journal header is corrupt; falling back to the snapshot"); //$NON-NLS-1$
+            }
+
+            /*
+             * New, recovered, or from an unknown format, so start empty
+             */
+            mJournalBuffer.position(0);
+            mJournalBuffer.putInt(MAGIC);
+            mJournalBuffer.putInt(FORMAT_VERSION);
+            while (mJournalBuffer.hasRemaining())
+            {
+                mJournalBuffer.put((byte) 0);
+            }
+            mJournalBuffer.force();
+            mJournalBuffer.position(HEADER_SIZE);
+        }
+    }
+
+    /**
+     * Replays the complete records of a journal of an unexpected size into {@link #mLatest}. A partial record at the end is
+     * dropped, and a journal without a valid header is skipped, leaving the snapshot. Must be called with the lock held and
+     * {@link #mJournal} open.
+     *
+     * @param length length of the journal file.
+     * @throws IOException if the journal cannot be mapped.
+     */
+    private void recoverJournal(final long length) throws IOException
+    {
+        final ByteBuffer buffer = mJournal.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        if (!readHeader(buffer))
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.w(String.format("Journal of unexpected size %d has a corrupt header; falling back to the snapshot", Long.valueOf(length))); //$NON-NLS-1$
+            }
+            return;
+        }
+
+        int count = 0;
+        while (buffer.remaining() >= RECORD_SIZE)
+        {
+            final Transition transition = readRecord(buffer);
+            if (null == transition)
+            {
+                break;
+            }
+            mLatest.put(Long.valueOf(transition.getDeviceMac()), transition);
+            count++;
+        }
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.w(String.format("Recovered %d records from a journal of unexpected size %d", Integer.valueOf(count), Long.valueOf(length))); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @param buffer buffer positioned at the start of a file.
+     * @return true if the header is valid, of this version or {@link #FORMAT_VERSION_1}. The buffer is positioned after the header
+     *         either way.
+     */
+    private static boolean readHeader(final ByteBuffer buffer)
+    {
+        if (buffer.remaining() < HEADER_SIZE)
+        {
+            return false;
+        }
+
+        final int magic = buffer.getInt();
+        final int version = buffer.getInt();
+        return MAGIC == magic && (FORMAT_VERSION == version || FORMAT_VERSION_1 == version);
+    }
+
+    /**
+     * @param buffer buffer positioned at a record.
+     * @return the transition, or null if the record is empty or invalid.
+     */
+    private static Transition readRecord(final ByteBuffer buffer)
+    {
+        final long word = buffer.getLong();
+        final long timestampAndClass = buffer.getLong();
+        final int state = (int) (word & 0xFF);
+        if (STATE_CONNECTED != state && STATE_DISCONNECTED != state)
+        {
+            return null;
+        }
+
+        return new Transition(word >>> 8, STATE_CONNECTED == state, timestampAndClass & TIMESTAMP_MASK, (int) (timestampAndClass >>> 48) - 1);
+    }
+
+    /**
+     * @param buffer buffer positioned where the record should be written.
+     * @param transition transition to write.
+     */
+    private static void writeRecord(final ByteBuffer buffer, final Transition transition)
+    {
+        buffer.putLong((transition.getDeviceMac() << 8) | (transition.isConnected() ? STATE_CONNECTED : STATE_DISCONNECTED));
+        final int deviceClass = DeviceClass.isValid(transition.getDeviceClass()) ? transition.getDeviceClass() : DeviceClass.UNKNOWN;
+        buffer.putLong((transition.getTimestamp() & TIMESTAMP_MASK) | ((long) (deviceClass + 1) << 48));
+    }
+}
@@ -0,0 +1,281 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Takes ACL transitions through debouncing into a {@link ConnectionStateStore}, and asks the host to requery when a device's
+ * settled state has changed.
+ * <p>
+ * A burst of transitions of one device is merged by a {@link TransitionDebouncer}, so it costs at most one write and one requery,
+ * and none at all if the device ends the burst in the state it started in. Devices which no condition is watching, according to the
+ * {@link WatchedDeviceRegistry}, never cause a requery, and are only tracked in memory unless they were persisted while watched, in
+ * which case the store keeps their state on disk current.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class TransitionProcessor
+{
+    /**
+     * Sends requery requests. Separated out so that tests can count them.
+     */
+    public interface RequerySender
+    {
+        /**
+         * Asks the host to query this plug-in's conditions again.
+         */
+        void requestRequery();
+    }
+
+    /**
+     * Store of settled states.
+     */
+    private final ConnectionStateStore mStore;
+
+    /**
+     * Devices whose transitions are persisted and reported.
+     */
+    private final WatchedDeviceRegistry mRegistry;
+
+    /**
+     * Source of time.
+     */
+    private final Clock mClock;
+
+    /**
+     * Merges bursts. Guarded by {@code this}.
+     */
+    private final TransitionDebouncer mDebouncer;
+
+    /**
+     * Sends requeries.
+     */
+    private final RequerySender mRequerySender;
+
+    /**
+     * Executor on which windows are closed.
+     */
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * Callbacks to run once every open window has closed and its transition is on disk. Guarded by {@code this}.
+     */
+    private List<Runnable> mIdleCallbacks = new ArrayList<Runnable>();
+
+    /**
+     * Elapsed realtime for which {@link #mProcessRunnable} is scheduled, or {@link Long#MAX_VALUE}. Guarded by {@code this}.
+     */
+    private long mScheduledDeadline = Long.MAX_VALUE;
+
+    /**
+     * The scheduled run of {@link #mProcessRunnable}, or null. Guarded by {@code this}.
+     */
+    private Future<?> mScheduledProcess = null;
+
+    /**
+     * Held across draining the debouncer and applying the result to the store, so that a batch can't be applied after a later
+     * one.
+     */
+    private final Object mProcessLock = new Object();
+
+    /**
+     * Scheduled to close windows.
+     */
+    private final Runnable mProcessRunnable = new Runnable()
+    {
+        public void run()
+        {
+            processDue();
+        }
+    };
+
+    /**
+     * @param store store of settled states. Cannot be null.
+     * @param registry devices whose transitions are persisted and reported. Cannot be null.
+     * @param clock source of time. Cannot be null.
+     * @param debounceWindowMillis length of a debounce window.
+     * @param requerySender sends requeries. Cannot be null.
+     * @param executor executor on which windows are closed. Cannot be null.
+     */
+    public TransitionProcessor(final ConnectionStateStore store, final WatchedDeviceRegistry registry, final Clock clock, final long debounceWindowMillis, final RequerySender requerySender, final ScheduledExecutorService executor)
+    {
+        mStore = store;
+        mRegistry = registry;
+        mClock = clock;
+        mDebouncer = new TransitionDebouncer(debounceWindowMillis);
+        mRequerySender = requerySender;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return the store of settled states.
+     */
+    public ConnectionStateStore getStore()
+    {
+        return mStore;
+    }
+
+    /**
+     * Records a transition. It reaches the store when its debounce window closes.
+     *
+     * @param deviceMac packed MAC of the device.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param idleCallback run once every open window has closed and the results are on disk. May be null.
+     */
+    public synchronized void onTransition(final long deviceMac, final boolean isConnected, final Runnable idleCallback)
+    {
+        mDebouncer.offer(deviceMac, isConnected, mClock.currentTimeMillis(), mClock.elapsedRealtime());
+
+        if (null != idleCallback)
+        {
+            mIdleCallbacks.add(idleCallback);
+        }
+
+        schedule();
+    }
+
+    /**
+     * Takes in an ACL broadcast: records the class of the device straight away, and the transition through
+     * {@link #onTransition(long, boolean, Runnable)}. The class doesn't flap, and class conditions need it to count the device
+     * once it settles, so it isn't debounced. This is the whole of what the app's receiver does with a broadcast, so that a
+     * replayed trace takes the same path.
+     *
+     * @param deviceMac packed MAC of the device.
+     * @param deviceClass class reported with the broadcast, or {@link DeviceClass#UNKNOWN}.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param idleCallback run once every open window has closed and the results are on disk, if any condition watches the
+     *            device or its class. Dropped otherwise, as there is nothing to wait for. May be null.
+     * @return true if any condition watches the device or its class. If not, its state is only kept in memory.
+     */
+    public boolean onAclTransition(final long deviceMac, final int deviceClass, final boolean isConnected, final Runnable idleCallback)
+    {
+        mStore.setDeviceClass(deviceMac, deviceClass);
+
+        final boolean isWatched = mRegistry.isWatched(deviceMac) || mRegistry.isClassWatched(deviceClass);
+        onTransition(deviceMac, isConnected, isWatched ? idleCallback : null);
+        return isWatched;
+    }
+
+    /**
+     * Closes every window whose deadline has passed: applies the net transitions to the store, and requests one requery if the
+     * state of any watched device changed.
+     */
+    public void processDue()
+    {
+        process(false);
+    }
+
+    /**
+     * Closes every open window now, regardless of deadlines, and commits the results on the calling thread. For callers that
+     * can't keep the process alive until the windows close.
+     */
+    public void settleAll()
+    {
+        process(true);
+        mStore.flush();
+    }
+
+    /**
+     * @param windowMillis length of debounce windows opened from now on. Must not be negative.
+     * @throws IllegalArgumentException if {@code windowMillis} is negative.
+     */
+    public synchronized void setDebounceWindowMillis(final long windowMillis)
+    {
+        mDebouncer.setWindowMillis(windowMillis);
+    }
+
+    /**
+     * @return number of transitions merged away by debouncing.
+     */
+    public synchronized long getMergedCount()
+    {
+        return mDebouncer.getMergedCount();
+    }
+
+    /**
+     * @param isForced true to close every window, false to close only the windows that are due.
+     */
+    private void process(final boolean isForced)
+    {
+        synchronized (mProcessLock)
+        {
+            processLocked(isForced);
+        }
+    }
+
+    /**
+     * Implements {@link #process(boolean)}. Must be called with {@link #mProcessLock} held.
+     *
+     * @param isForced true to close every window, false to close only the windows that are due.
+     */
+    private void processLocked(final boolean isForced)
+    {
+        final List<Transition> settled;
+        List<Runnable> idleCallbacks = null;
+        synchronized (this)
+        {
+            settled = isForced ? mDebouncer.drainAll() : mDebouncer.drainDue(mClock.elapsedRealtime());
+            if (mDebouncer.isIdle())
+            {
+                idleCallbacks = mIdleCallbacks;
+                mIdleCallbacks = new ArrayList<Runnable>();
+            }
+
+            mScheduledDeadline = Long.MAX_VALUE;
+            schedule();
+        }
+
+        boolean isChanged = false;
+        for (final Transition transition : settled)
+        {
+            final boolean isWatched = mRegistry.isWatched(transition.getDeviceMac()) || mRegistry.isClassWatched(mStore.getDeviceClass(transition.getDeviceMac()));
+            if (mStore.setConnected(transition.getDeviceMac(), transition.isConnected(), transition.getTimestamp(), isWatched) && isWatched)
+            {
+                isChanged = true;
+            }
+        }
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("Settled %d devices, changed=%b", Integer.valueOf(settled.size()), Boolean.valueOf(isChanged))); //$NON-NLS-1$
+        }
+
+        if (isChanged)
+        {
+            mRequerySender.requestRequery();
+        }
+
+        if (null != idleCallbacks)
+        {
+            for (final Runnable callback : idleCallbacks)
+            {
+                mStore.flushThen(callback);
+            }
+        }
+    }
+
+    /**
+     * Schedules {@link #mProcessRunnable} for the next deadline, unless it is already scheduled for that time. Must be called with the
+     * lock held.
+     */
+    private void schedule()
+    {
+        final long deadline = mDebouncer.getNextDeadline();
+        if (Long.MAX_VALUE == deadline || deadline >= mScheduledDeadline)
+        {
+            return;
+        }
+
+        if (null != mScheduledProcess)
+        {
+            mScheduledProcess.cancel(false);
+        }
+        mScheduledDeadline = deadline;
+        mScheduledProcess = mExecutor.schedule(mProcessRunnable, Math.max(0, deadline - mClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,251 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ScheduledExecutorService} and {@link Clock} on virtual time, which only moves when {@link #advanceTo(long)} is called.
+ * Tasks run on the thread which advances time, in order of their deadlines and then of submission. Giving the same instance to
+ * everything that schedules work makes a run deterministic, and lets hours of traffic be replayed in moments.
+ * <p>
+ * Both of the clock's timelines read the virtual time. A periodic task is queued again each time it runs, so
+ * {@link #runUntilIdle()} doesn't return while one is scheduled and not cancelled. As with a
+ * {@link java.util.concurrent.ScheduledThreadPoolExecutor}, a periodic task stops once it throws or the scheduler is shut down.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService, Clock
+{
+    /**
+     * A task and the virtual time at which it is due.
+     *
+     * @param <V> result type.
+     */
+    private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V>
+    {
+        /**
+         * Virtual time at which the task is next due.
+         */
+        private long mDeadline;
+
+        /**
+         * Order of submission, which breaks ties between equal deadlines. A periodic task is numbered again each time it is
+         * queued.
+         */
+        private long mSequence;
+
+        /**
+         * Period in milliseconds: positive for a fixed rate, negative for a fixed delay, 0 for a task which runs once.
+         */
+        private final long mPeriod;
+
+        /**
+         * @param callable work to do.
+         * @param deadline virtual time at which the task is first due.
+         * @param period period in milliseconds: positive for a fixed rate, negative for a fixed delay, 0 to run once.
+         */
+        /* package */Task(final Callable<V> callable, final long deadline, final long period)
+        {
+            super(callable);
+            mDeadline = deadline;
+            mSequence = mNextSequence++;
+            mPeriod = period;
+        }
+
+        @Override
+        public void run()
+        {
+            if (0 == mPeriod)
+            {
+                super.run();
+            }
+            else if (mIsShutdown)
+            {
+                cancel(false);
+            }
+            else if (runAndReset())
+            {
+                mDeadline = 0 < mPeriod ? mDeadline + mPeriod : mNow - mPeriod;
+                mSequence = mNextSequence++;
+                mQueue.add(this);
+            }
+        }
+
+        public long getDelay(final TimeUnit unit)
+        {
+            return unit.convert(mDeadline - mNow, TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(final Delayed other)
+        {
+            final Task<?> task = (Task<?>) other;
+            if (mDeadline != task.mDeadline)
+            {
+                return mDeadline < task.mDeadline ? -1 : 1;
+            }
+            return mSequence < task.mSequence ? -1 : mSequence == task.mSequence ? 0 : 1;
+        }
+    }
+
+    /**
+     * Current virtual time.
+     */
+    private long mNow;
+
+    /**
+     * Sequence number of the next task.
+     */
+    private long mNextSequence = 0;
+
+    /**
+     * Tasks not yet run, cancelled ones included.
+     */
+    private final PriorityQueue<Task<?>> mQueue = new PriorityQueue<Task<?>>();
+
+    /**
+     * Whether {@link #shutdown()} has been called.
+     */
+    private boolean mIsShutdown = false;
+
+    /**
+     * @param now virtual time to start at.
+     */
+    public VirtualScheduler(final long now)
+    {
+        mNow = now;
+    }
+
+    public long elapsedRealtime()
+    {
+        return mNow;
+    }
+
+    public long currentTimeMillis()
+    {
+        return mNow;
+    }
+
+    /**
+     * Moves time forward to {@code time}, running every task which falls due on the way at its own deadline. Tasks scheduled by
+     * those tasks run too, if they fall due by {@code time}.
+     *
+     * @param time virtual time to move to. Earlier times are taken as the current time.
+     */
+    public void advanceTo(final long time)
+    {
+        for (Task<?> task = mQueue.peek(); null != task && task.mDeadline <= time; task = mQueue.peek())
+        {
+            mQueue.poll();
+            mNow = Math.max(mNow, task.mDeadline);
+            task.run();
+        }
+
+        mNow = Math.max(mNow, time);
+    }
+
+    /**
+     * Moves time forward until no task is left, running each at its deadline.
+     */
+    public void runUntilIdle()
+    {
+        for (Task<?> task = mQueue.peek(); null != task; task = mQueue.peek())
+        {
+            advanceTo(task.mDeadline);
+        }
+    }
+
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit)
+    {
+        return schedule(Executors.callable(command), delay, unit);
+    }
+
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit)
+    {
+        return enqueue(callable, delay, 0, unit);
+    }
+
+    public ScheduledFuture<?> scheduleAtFixedRate(final Runnable command, final long initialDelay, final long period, final TimeUnit unit)
+    {
+        if (0 >= unit.toMillis(period))
+        {
+            throw new IllegalArgumentException("period must be at least 1 ms"); //$NON-NLS-1$
+        }
+
+        return enqueue(Executors.callable(command), initialDelay, unit.toMillis(period), unit);
+    }
+
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit)
+    {
+        if (0 >= unit.toMillis(delay))
+        {
+            throw new IllegalArgumentException("delay must be at least 1 ms"); //$NON-NLS-1$
+        }
+
+        return enqueue(Executors.callable(command), initialDelay, -unit.toMillis(delay), unit);
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param callable work to do.
+     * @param delay delay before the task is first due, in {@code unit}. Negative delays are taken as 0.
+     * @param periodMillis period in milliseconds: positive for a fixed rate, negative for a fixed delay, 0 to run once.
+     * @param unit unit of {@code delay}.
+     * @return the queued task.
+     * @throws RejectedExecutionException if the scheduler is shut down.
+     */
+    private <V> Task<V> enqueue(final Callable<V> callable, final long delay, final long periodMillis, final TimeUnit unit)
+    {
+        if (mIsShutdown)
+        {
+            throw new RejectedExecutionException("Scheduler is shut down"); //$NON-NLS-1$
+        }
+
+        final Task<V> task = new Task<V>(callable, mNow + Math.max(0, unit.toMillis(delay)), periodMillis);
+        mQueue.add(task);
+        return task;
+    }
+
+    public void execute(final Runnable command)
+    {
+        schedule(command, 0, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown()
+    {
+        mIsShutdown = true;
+    }
+
+    public List<Runnable> shutdownNow()
+    {
+        mIsShutdown = true;
+        final List<Runnable> pending = new ArrayList<Runnable>(mQueue);
+        mQueue.clear();
+        return pending;
+    }
+
+    public boolean isShutdown()
+    {
+        return mIsShutdown;
+    }
+
+    public boolean isTerminated()
+    {
+        return mIsShutdown && mQueue.isEmpty();
+    }
+
+    public boolean awaitTermination(final long timeout, final TimeUnit unit)
+    {
+        return isTerminated();
+    }
+}
@@ -0,0 +1,511 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import name.boyle.chris.locale.bluetoothacl.core.CoreConstants;
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Persistent set of the devices which some Locale condition is asking about.
+ * <p>
+ * Locale only tells a plug-in about a condition by querying it, so each query records its MAC here with the time it was asked.
+ * Transitions of devices which aren't watched are only tracked in memory: they aren't written to disk and don't cause a requery. A
+ * device which hasn't been asked about for {@link #EXPIRY_MILLIS} is no longer watched, so deleted conditions stop costing
+ * anything eventually.
+ * <p>
+ * Conditions on a class of devices are recorded the same way, under a key from {@link DeviceClass#getWatchKey(boolean, int)}, and
+ * {@link #isClassWatched(int)} tells whether a device's class is watched. The methods taking a MAC accept those keys too.
+ * <p>
+ * There are only ever a handful of watched devices, so they are kept in two parallel arrays and searched linearly, which is
+ * faster than hashing at that size and doesn't allocate. The file is rewritten whole when a device is added, and at most once per
+ * {@link #REFRESH_MILLIS} per device otherwise, so queries almost never touch the disk. Its format is {@link #MAGIC},
+ * {@link #FORMAT_VERSION}, a count, then a big-endian long MAC packed by {@link MacCodec} and a long timestamp per device.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class WatchedDeviceRegistry
+{
+    /**
+     * Name of the registry file.
+     */
+    /* package */static final String FILE_NAME = "watched_devices"; //$NON-NLS-1$
+
+    /**
+     * Time after the last query about a device at which it stops being watched.
+     */
+    public static final long EXPIRY_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Minimum age of the stored query time of a device before another query rewrites it.
+     */
+    public static final long REFRESH_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * First word of the file.
+     */
+    private static final int MAGIC = 0x42545744; // "BTWD"
+
+    /**
+     * Second word of the file.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Size of the file header: magic, version and count.
+     */
+    private static final int HEADER_SIZE = 12;
+
+    /**
+     * Size of one record.
+     */
+    private static final int RECORD_SIZE = 16;
+
+    /**
+     * The process-wide instance. Guarded by the class lock.
+     */
+    private static WatchedDeviceRegistry sInstance = null;
+
+    /**
+     * Registry file.
+     */
+    private final File mFile;
+
+    /**
+     * Source of time.
+     */
+    private final Clock mClock;
+
+    /**
+     * Packed MACs of the watched devices. Guarded by {@code this}.
+     */
+    private long[] mMacs = new long[4];
+
+    /**
+     * Wall clock time each device was last asked about, as stored in the file. Parallel to {@link #mMacs}. Guarded by
+     * {@code this}.
+     */
+    private long[] mQueriedAt = new long[4];
+
+    /**
+     * Number of entries in use. Guarded by {@code this}.
+     */
+    private int mCount = 0;
+
+    /**
+     * Whether the file has been read. Written with the lock held; volatile so that {@link #isLoaded()} can read it without.
+     */
+    private volatile boolean mIsLoaded = false;
+
+    /**
+     * Copy of the entries as of the last read or save of the file, so that {@link #isTouchDue(long)} can read them without the
+     * lock, which is held across the sync of a save. Replaced whole.
+     */
+    private volatile Entries mEntries = new Entries(new long[0], new long[0]);
+
+    /**
+     * @param directory directory holding the registry file. Cannot be null.
+     * @param clock source of time. Cannot be null.
+     */
+    public WatchedDeviceRegistry(final File directory, final Clock clock)
+    {
+        if (CoreConstants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == directory)
+            {
+                throw new IllegalArgumentException("directory cannot be null"); //$NON-NLS-1$
+            }
+            if (null == clock)
+            {
+                throw new IllegalArgumentException("clock cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        mFile = new File(directory, FILE_NAME);
+        mClock = clock;
+    }
+
+    /**
+     * Gets the process-wide registry.
+     *
+     * @param directory directory holding the registry file, such as the app's files directory. Only the first call in a process
+     *            reads it. Cannot be null.
+     * @return the registry for this process.
+     */
+    public static synchronized WatchedDeviceRegistry getInstance(final File directory)
+    {
+        if (null == sInstance)
+        {
+            sInstance = new WatchedDeviceRegistry(directory, Clock.SYSTEM);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Discards the process-wide registry, so that the next {@link #getInstance(File)} rereads the file.
+     */
+    /* package */static synchronized void resetInstance()
+    {
+        sInstance = null;
+    }
+
+    /**
+     * @return true once the file has been read, so that only adding or refreshing a device touches the disk. Doesn't take the
+     *         lock.
+     */
+    public boolean isLoaded()
+    {
+        return mIsLoaded;
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return true if a condition has asked about {@code deviceMac} within {@link #EXPIRY_MILLIS}.
+     */
+    public synchronized boolean isWatched(final long deviceMac)
+    {
+        final int index = indexOf(deviceMac);
+        return index >= 0 && !isExpired(index, mClock.currentTimeMillis());
+    }
+
+    /**
+     * @param deviceClass class of a device, or {@link DeviceClass#UNKNOWN}.
+     * @return true if a condition has asked about the major class or device class of {@code deviceClass} within
+     *         {@link #EXPIRY_MILLIS}. False if the class is unknown.
+     */
+    public synchronized boolean isClassWatched(final int deviceClass)
+    {
+        if (!DeviceClass.isValid(deviceClass))
+        {
+            return false;
+        }
+
+        return isWatched(DeviceClass.getWatchKey(true, DeviceClass.getMajor(deviceClass))) || isWatched(DeviceClass.getWatchKey(false, deviceClass));
+    }
+
+    /**
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return true if {@link #touch(long)} would read or rewrite the file for {@code deviceMac}: the file hasn't been read, the
+     *         device isn't watched, or its query time is due for a refresh. Doesn't take the lock, so it never waits for a save on
+     *         another thread.
+     */
+    public boolean isTouchDue(final long deviceMac)
+    {
+        if (!mIsLoaded)
+        {
+            return true;
+        }
+
+        final Entries entries = mEntries;
+        final long now = mClock.currentTimeMillis();
+        for (int x = 0; x < entries.mMacs.length; x++)
+        {
+            if (entries.mMacs[x] == deviceMac)
+            {
+                return now - entries.mQueriedAt[x] >= REFRESH_MILLIS;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Records that a condition has asked about a device.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return true if the device was not watched before this call.
+     */
+    public synchronized boolean touch(final long deviceMac)
+    {
+        final long now = mClock.currentTimeMillis();
+        final int index = indexOf(deviceMac);
+        if (index >= 0)
+        {
+            final boolean wasExpired = isExpired(index, now);
+            if (wasExpired || now - mQueriedAt[index] >= REFRESH_MILLIS)
+            {
+                mQueriedAt[index] = now;
+                save(now);
+            }
+            return wasExpired;
+        }
+
+        if (mCount == mMacs.length)
+        {
+            final long[] macs = new long[mCount * 2];
+            final long[] queriedAt = new long[mCount * 2];
+            System.arraycopy(mMacs, 0, macs, 0, mCount);
+            System.arraycopy(mQueriedAt, 0, queriedAt, 0, mCount);
+            mMacs = macs;
+            mQueriedAt = queriedAt;
+        }
+        mMacs[mCount] = deviceMac;
+        mQueriedAt[mCount] = now;
+        mCount++;
+        save(now);
+
+        if (CoreLog.isLoggable())
+        {
+            CoreLog.v(String.format("Now watching %s", DeviceClass.isWatchKey(deviceMac) ? DeviceClass.describeWatchKey(deviceMac) : MacCodec.decode(deviceMac))); //$NON-NLS-1$
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if any device has been asked about within {@link #EXPIRY_MILLIS}.
+     */
+    public synchronized boolean hasWatchedDevices()
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        final long now = mClock.currentTimeMillis();
+        for (int x = 0; x < mCount; x++)
+        {
+            if (!isExpired(x, now))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return number of watched devices, including expired ones not yet pruned.
+     */
+    public synchronized int size()
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        return mCount;
+    }
+
+    /**
+     * Finds a device, loading the file first if necessary. Must be called with the lock held.
+     *
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}.
+     * @return index of {@code deviceMac}, or -1.
+     */
+    private int indexOf(final long deviceMac)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        for (int x = 0; x < mCount; x++)
+        {
+            if (mMacs[x] == deviceMac)
+            {
+                return x;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @param index index of a device.
+     * @param now current wall clock time.
+     * @return true if the device at {@code index} has not been asked about within {@link #EXPIRY_MILLIS}. Must be called with the
+     *         lock held.
+     */
+    private boolean isExpired(final int index, final long now)
+    {
+        return now - mQueriedAt[index] >= EXPIRY_MILLIS;
+    }
+
+    /**
+     * Reads the registry file, once. Must be called with the lock held.
+     */
+    private void load()
+    {
+        mCount = 0;
+        read();
+        publish();
+        mIsLoaded = true;
+    }
+
+    /**
+     * Reads the registry file. A missing or corrupt file leaves the registry empty. Must be called with the lock held.
+     */
+    private void read()
+    {
+        if (!mFile.exists())
+        {
+            return;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(mFile, "r"); //$NON-NLS-1$
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+            {
+                // keep reading
+            }
+            buffer.flip();
+
+            if (buffer.remaining() < HEADER_SIZE || MAGIC != buffer.getInt() || FORMAT_VERSION != buffer.getInt())
+            {
+                return;
+            }
+
+            final int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / RECORD_SIZE)
+            {
+                return;
+            }
+
+            final int capacity = Math.max(4, Integer.highestOneBit(Math.max(1, count)) * 2);
+            mMacs = new long[capacity];
+            mQueriedAt = new long[capacity];
+            for (int x = 0; x < count; x++)
+            {
+                mMacs[x] = buffer.getLong();
+                mQueriedAt[x] = buffer.getLong();
+            }
+            mCount = count;
+        }
+        catch (final IOException e)
+        {
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("Couldn't read the watched devices", e); //$NON-NLS-1$
+            }
+        }
+        finally
+        {
+            if (null != file)
+            {
+                try
+                {
+                    file.close();
+                }
+                catch (final IOException e)
+                {
+                    // nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops expired devices and rewrites the registry file. The file is written to a temporary file and renamed into place, so a
+     * crash leaves either the old registry or the new one. Must be called with the lock held.
+     *
+     * @param now current wall clock time.
+     */
+    private void save(final long now)
+    {
+        int kept = 0;
+        for (int x = 0; x < mCount; x++)
+        {
+            if (!isExpired(x, now))
+            {
+                mMacs[kept] = mMacs[x];
+                mQueriedAt[kept] = mQueriedAt[x];
+                kept++;
+            }
+        }
+        mCount = kept;
+        publish();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + mCount * RECORD_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putInt(mCount);
+        for (int x = 0; x < mCount; x++)
+        {
+            buffer.putLong(mMacs[x]);
+            buffer.putLong(mQueriedAt[x]);
+        }
+        buffer.flip();
+
+        final File temp = new File(mFile.getPath() + ".tmp"); //$NON-NLS-1$
+        try
+        {
+            final RandomAccessFile file = new RandomAccessFile(temp, "rw"); //$NON-NLS-1$
+            try
+            {
+                final FileChannel channel = file.getChannel();
+                channel.truncate(0);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            finally
+            {
+                file.close();
+            }
+
+            if (!temp.renameTo(mFile))
+            {
+                throw new IOException("Couldn't rename " + temp + " to " + mFile); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        catch (final IOException e)
+        {
+            /*
+             * The in-memory registry is still right for this process; the next successful save catches the file up
+             */
+            if (CoreLog.isLoggable())
+            {
+                CoreLog.e("Couldn't save the watched devices", e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Publishes a copy of the entries for {@link #isTouchDue(long)}. Must be called with the lock held.
+     */
+    private void publish()
+    {
+        final long[] macs = new long[mCount];
+        final long[] queriedAt = new long[mCount];
+        System.arraycopy(mMacs, 0, macs, 0, mCount);
+        System.arraycopy(mQueriedAt, 0, queriedAt, 0, mCount);
+        mEntries = new Entries(macs, queriedAt);
+    }
+
+    /**
+     * The watched devices and their query times, as stored in the file. Instances are immutable.
+     */
+    private static final class Entries
+    {
+        /**
+         * Packed MACs of the watched devices.
+         */
+        /* package */final long[] mMacs;
+
+        /**
+         * Wall clock time each device was last asked about. Parallel to {@link #mMacs}.
+         */
+        /* package */final long[] mQueriedAt;
+
+        /**
+         * @param macs packed MACs of the watched devices.
+         * @param queriedAt wall clock time each device was last asked about.
+         */
+        /* package */Entries(final long[] macs, final long[] queriedAt)
+        {
+            mMacs = macs;
+            mQueriedAt = queriedAt;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.core.BackgroundScheduler;
+import name.boyle.chris.locale.bluetoothacl.core.CoreConstants;
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+
+/**
+ * Batches transitions and commits them to a {@link TransitionJournal} on a background thread.
+ * <p>
+ * Transitions are held in memory for at most {@link #FLUSH_DELAY_MILLIS} before being committed together, so a burst of
+ * transitions costs one sync to disk rather than one per transition. Only the latest transition of each device in a batch is
+ * committed, as the earlier ones no longer affect any state. Callers which need the data on disk before they let the process go idle
+ * (e.g. a {@code BroadcastReceiver} holding a {@code PendingResult}) can use {@link #flushThen(Runnable)}.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class WriteBehindPersister
+{
+    /**
+     * Maximum time a write may wait in memory before it is committed.
+     */
+    public static final long FLUSH_DELAY_MILLIS = 500;
+
+    /**
+     * The backing store.
+     */
+    private final TransitionJournal mJournal;
+
+    /**
+     * Runs commits on the writer thread.
+     */
+    private final ScheduledExecutorService mExecutor;
+
+    /**
+     * Transitions not yet committed, keyed by device MAC. Later transitions of a device replace earlier ones. Guarded by
+     * {@code this}.
+     */
+    private Map<Long, Transition> mPending = new HashMap<Long, Transition>();
+
+    /**
+     * Callbacks to run once the writes currently pending have been committed. Guarded by {@code this}.
+     */
+    private List<Runnable> mCallbacks = new ArrayList<Runnable>();
+
+    /**
+     * The scheduled run of {@link #mFlushRunnable}, or null if it isn't scheduled. Guarded by {@code this}.
+     */
+    private Future<?> mScheduledFlush = null;
+
+    /**
+     * Held across taking a batch and committing it, so that batches are committed in the order they were taken. Otherwise an
+     * older batch could be committed after a newer one and overwrite it.
+     */
+    private final Object mCommitLock = new Object();
+
+    /**
+     * Run on the writer thread to commit whatever is pending.
+     */
+    private final Runnable mFlushRunnable = new Runnable()
+    {
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    /**
+     * Whether the journal is to be emptied before the next batch is committed. Guarded by {@code this}.
+     */
+    private boolean mIsClearPending = false;
+
+    /**
+     * Number of batches committed. Guarded by {@code this}.
+     */
+    private long mCommitCount = 0;
+
+    /**
+     * Number of transitions committed. Guarded by {@code this}.
+     */
+    private long mCommittedTransitionCount = 0;
+
+    /**
+     * @param journal the backing store. Cannot be null.
+     */
+    public WriteBehindPersister(final TransitionJournal journal)
+    {
+        this(journal, BackgroundScheduler.newInstance(WriteBehindPersister.class.getSimpleName()));
+    }
+
+    /**
+     * @param journal the backing store. Cannot be null.
+     * @param executor executor on which commits run. It is shut down by {@link #discard()}. Cannot be null.
+     */
+    public WriteBehindPersister(final TransitionJournal journal, final ScheduledExecutorService executor)
+    {
+        if (CoreConstants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == journal)
+            {
+                throw new IllegalArgumentException("journal cannot be null"); //$NON-NLS-1$
+            }
+            if (null == executor)
+            {
+                throw new IllegalArgumentException("executor cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        mJournal = journal;
+        mExecutor = executor;
+    }
+
+    /**
+     * Queues a transition. It will be committed within {@link #FLUSH_DELAY_MILLIS}.
+     *
+     * @param transition transition to record. Cannot be null.
+     */
+    public synchronized void write(final Transition transition)
+    {
+        mPending.put(Long.valueOf(transition.getDeviceMac()), transition);
+        scheduleFlush();
+    }
+
+    /**
+     * Runs {@code callback} on the writer thread once every write queued before this call has been committed.
+     *
+     * @param callback callback to run. Cannot be null.
+     */
+    public synchronized void flushThen(final Runnable callback)
+    {
+        mCallbacks.add(callback);
+
+        if (mPending.isEmpty())
+        {
+            /*
+             * Nothing to wait for, but a batch may still be committing on another thread. Flushing through the commit lock orders
+             * the callback after it.
+             */
+            mExecutor.execute(mFlushRunnable);
+        }
+        else
+        {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Commits every pending write on the calling thread. Used when the process may be about to die, for example from
+     * {@code Application#onTrimMemory(int)}.
+     */
+    public void flush()
+    {
+        synchronized (mCommitLock)
+        {
+            final Map<Long, Transition> batch;
+            final List<Runnable> callbacks;
+            final boolean isClearing;
+            synchronized (this)
+            {
+                batch = mPending;
+                callbacks = mCallbacks;
+                isClearing = mIsClearPending;
+                mPending = new HashMap<Long, Transition>();
+                mCallbacks = new ArrayList<Runnable>();
+                mIsClearPending = false;
+                cancelFlush();
+            }
+
+            if (isClearing)
+            {
+                try
+                {
+                    mJournal.clear();
+                }
+                catch (final IOException e)
+                {
+                    if (CoreLog.isLoggable())
+                    {
+                        CoreLog.e("Failed to clear device states", e); //$NON-NLS-1$
+                    }
+                }
+            }
+
+            if (!batch.isEmpty())
+            {
+                try
+                {
+                    for (final Transition transition : batch.values())
+                    {
+                        mJournal.append(transition);
+                    }
+                    mJournal.force();
+
+                    if (!hasPendingWrites())
+                    {
+                        /*
+                         * Idle, so this is a good time to keep the tail that the next process start replays short
+                         */
+                        mJournal.compactIfDue();
+                    }
+
+                    synchronized (this)
+                    {
+                        mCommitCount++;
+                        mCommittedTransitionCount += batch.size();
+                    }
+                }
+                catch (final IOException e)
+                {
+                    /*
+                     * The in-memory state is still correct, so keep running; at worst a restart loses these transitions
+                     */
+                    if (CoreLog.isLoggable())
+                    {
+                        CoreLog.e("Failed to commit device states", e); //$NON-NLS-1$
+                    }
+                }
+            }
+
+            for (final Runnable callback : callbacks)
+            {
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * Drops every pending write and empties the journal, on the calling thread, as {@link #clearLater()} followed by
+     * {@link #flush()}.
+     */
+    public void clear()
+    {
+        clearLater();
+        flush();
+    }
+
+    /**
+     * Drops every pending write, and has the next commit empty the journal before it appends the writes queued after this call.
+     * Doesn't touch the disk, so it can be called with a lock that queries need; {@link #flush()} then commits the clear without
+     * it.
+     */
+    public synchronized void clearLater()
+    {
+        mPending.clear();
+        mIsClearPending = true;
+        scheduleFlush();
+    }
+
+    /**
+     * @return true if there are writes, or a clear, which have not been committed yet.
+     */
+    public synchronized boolean hasPendingWrites()
+    {
+        return !mPending.isEmpty() || mIsClearPending;
+    }
+
+    /**
+     * @return number of batches committed, each of which cost one sync to disk.
+     */
+    public synchronized long getCommitCount()
+    {
+        return mCommitCount;
+    }
+
+    /**
+     * @return number of transitions committed.
+     */
+    public synchronized long getCommittedTransitionCount()
+    {
+        return mCommittedTransitionCount;
+    }
+
+    /**
+     * Stops the writer thread and drops any pending writes without committing them, as if the process had been killed.
+     */
+    /* package */synchronized void discard()
+    {
+        mPending.clear();
+        mCallbacks.clear();
+        mIsClearPending = false;
+        cancelFlush();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Schedules {@link #mFlushRunnable} unless it is already scheduled. Must be called with the lock held.
+     */
+    private void scheduleFlush()
+    {
+        if (null == mScheduledFlush)
+        {
+            mScheduledFlush = mExecutor.schedule(mFlushRunnable, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels the scheduled run of {@link #mFlushRunnable}, if any. Must be called with the lock held.
+     */
+    private void cancelFlush()
+    {
+        if (null != mScheduledFlush)
+        {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+    }
+}
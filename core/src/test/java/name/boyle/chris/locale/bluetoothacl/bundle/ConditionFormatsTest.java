@@ -0,0 +1,86 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ConditionFormats}.
+ */
+public final class ConditionFormatsTest
+{
+    /**
+     * MACs of test devices.
+     */
+    private static final String MAC_1 = "00:11:22:33:44:01", MAC_2 = "00:11:22:33:44:02"; //$NON-NLS-1$ //$NON-NLS-2$
+
+    /**
+     * Tests the rules of format {@link ConditionFormats#FORMAT_MULTI_DEVICE}.
+     */
+    @Test
+    public void testMultiDevice()
+    {
+        assertTrue(ConditionFormats.isMultiDeviceValid(new String[] { MAC_1, MAC_2 }, DeviceCondition.QUANTIFIER_ALL, 1));
+        assertTrue(ConditionFormats.isMultiDeviceValid(new String[] { MAC_1, MAC_2 }, DeviceCondition.QUANTIFIER_AT_LEAST, 2));
+
+        assertFalse(ConditionFormats.isMultiDeviceValid(null, DeviceCondition.QUANTIFIER_ANY, 1));
+        assertFalse(ConditionFormats.isMultiDeviceValid(new String[0], DeviceCondition.QUANTIFIER_ANY, 1));
+        assertFalse(ConditionFormats.isMultiDeviceValid(new String[] { MAC_1, "not a MAC" }, DeviceCondition.QUANTIFIER_ANY, 1)); //$NON-NLS-1$
+        assertFalse(ConditionFormats.isMultiDeviceValid(new String[] { MAC_1 }, 42, 1));
+        assertFalse(ConditionFormats.isMultiDeviceValid(new String[] { MAC_1, MAC_1 }, DeviceCondition.QUANTIFIER_AT_LEAST, 2));
+        assertFalse(ConditionFormats.isMultiDeviceValid(new String[] { MAC_1, MAC_2 }, DeviceCondition.QUANTIFIER_AT_LEAST, 0));
+    }
+
+    /**
+     * Tests the rules of formats {@link ConditionFormats#FORMAT_EXPRESSION} and {@link ConditionFormats#FORMAT_DEVICE_CLASS}, and
+     * which formats are known.
+     */
+    @Test
+    public void testOtherFormats()
+    {
+        assertTrue(ConditionFormats.isExpressionValid(MAC_1 + " AND NOT " + MAC_2)); //$NON-NLS-1$
+        assertFalse(ConditionFormats.isExpressionValid(null));
+        assertFalse(ConditionFormats.isExpressionValid(MAC_1 + " AND")); //$NON-NLS-1$
+
+        assertTrue(ConditionFormats.isDeviceClassValid(true, 0x0400));
+        assertTrue(ConditionFormats.isDeviceClassValid(false, 0x0404));
+        assertFalse(ConditionFormats.isDeviceClassValid(true, 0x0404));
+
+        assertTrue(ConditionFormats.isKnownFormat(ConditionFormats.FORMAT_MULTI_DEVICE));
+        assertTrue(ConditionFormats.isKnownFormat(ConditionFormats.FORMAT_EXPRESSION));
+        assertTrue(ConditionFormats.isKnownFormat(ConditionFormats.FORMAT_DEVICE_CLASS));
+        assertFalse(ConditionFormats.isKnownFormat(0));
+    }
+
+    /**
+     * Tests that a condition on devices converts to a payload which decodes to the same condition, unless the compact format can't
+     * hold it.
+     */
+    @Test
+    public void testToPayload()
+    {
+        final byte[] payload = ConditionFormats.toPayload(new String[] { MAC_2, MAC_1 }, false, DeviceCondition.QUANTIFIER_AT_LEAST, 2);
+        assertTrue(ConditionCodec.isValid(payload));
+        assertArrayEquals(new String[] { MAC_1, MAC_2 }, ConditionFormats.getDeviceMacs(payload));
+
+        final DeviceCondition condition = ConditionFormats.toCondition(payload);
+        assertEquals(2, condition.getDeviceCount());
+        assertFalse(condition.isConnectedExpected());
+
+        assertNull(ConditionFormats.toPayload(new String[] { "not a MAC" }, true, DeviceCondition.QUANTIFIER_ANY, 1)); //$NON-NLS-1$
+
+        final String[] tooMany = new String[ConditionCodec.MAX_DEVICES + 1];
+        for (int x = 0; x < tooMany.length; x++)
+        {
+            tooMany[x] = MacCodec.decode(0x001122000000L + x);
+        }
+        assertNull(ConditionFormats.toPayload(tooMany, true, DeviceCondition.QUANTIFIER_ANY, 1));
+    }
+}
@@ -0,0 +1,172 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import static org.junit.Assert.assertEquals;
+
+import name.boyle.chris.locale.bluetoothacl.test.FakeParcel;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link ParcelInspector} against parcels laid out as Bundle.writeToParcel() lays out plain values.
+ */
+public final class ParcelInspectorTest
+{
+    /**
+     * Tests that a parcel of plain values is clean, and left where it was found.
+     */
+    @Test
+    public void testClean()
+    {
+        final FakeParcel parcel = new FakeParcel();
+        parcel.writeInt(6);
+        writeKey(parcel, "string"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_STRING);
+        parcel.writeString("value"); //$NON-NLS-1$
+        writeKey(parcel, "null"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_NULL);
+        writeKey(parcel, "int"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_INTEGER);
+        parcel.writeInt(42);
+        writeKey(parcel, "long"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_LONG);
+        parcel.writeLong(42);
+        writeKey(parcel, "bytes"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_BYTEARRAY);
+        parcel.writeByteArray(new byte[] { 1, 2, 3, 4, 5 });
+        writeKey(parcel, "strings"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_STRINGARRAY);
+        parcel.writeInt(2);
+        parcel.writeString("a"); //$NON-NLS-1$
+        parcel.writeString(null);
+        parcel.setDataPosition(0);
+
+        assertEquals(ParcelInspector.CLEAN, ParcelInspector.inspect(parcel, ParcelInspector.MAX_PARCEL_SIZE));
+        assertEquals(0, parcel.dataPosition());
+    }
+
+    /**
+     * Tests that an empty Bundle is clean.
+     */
+    @Test
+    public void testEmpty()
+    {
+        final FakeParcel parcel = new FakeParcel();
+        parcel.writeInt(0);
+        parcel.setDataPosition(0);
+
+        assertEquals(ParcelInspector.CLEAN, ParcelInspector.inspect(parcel, ParcelInspector.MAX_PARCEL_SIZE));
+    }
+
+    /**
+     * Tests that extras which name their own class are rejected.
+     */
+    @Test
+    public void testReject()
+    {
+        for (final int type : new int[] { ParcelInspector.VAL_PARCELABLE, ParcelInspector.VAL_PARCELABLEARRAY,
+                ParcelInspector.VAL_SERIALIZABLE })
+        {
+            final FakeParcel parcel = new FakeParcel();
+            parcel.writeInt(2);
+            writeKey(parcel, "int"); //$NON-NLS-1$
+            parcel.writeInt(ParcelInspector.VAL_INTEGER);
+            parcel.writeInt(42);
+            writeKey(parcel, "object"); //$NON-NLS-1$
+            parcel.writeInt(type);
+            parcel.writeString("com.example.Payload"); //$NON-NLS-1$
+            parcel.setDataPosition(0);
+
+            assertEquals(ParcelInspector.REJECT, ParcelInspector.inspect(parcel, ParcelInspector.MAX_PARCEL_SIZE));
+            assertEquals(0, parcel.dataPosition());
+        }
+    }
+
+    /**
+     * Tests that a parcel over the size limit is rejected without being walked.
+     */
+    @Test
+    public void testOversized()
+    {
+        final FakeParcel parcel = new FakeParcel();
+        parcel.writeInt(1);
+        writeKey(parcel, "padding"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_BYTEARRAY);
+        parcel.writeByteArray(new byte[ParcelInspector.MAX_PARCEL_SIZE]);
+        parcel.setDataPosition(0);
+
+        assertEquals(ParcelInspector.REJECT, ParcelInspector.inspect(parcel, ParcelInspector.MAX_PARCEL_SIZE));
+        assertEquals(ParcelInspector.CLEAN, ParcelInspector.inspect(parcel, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Tests that parcels which aren't laid out as a Bundle of plain values are unknown.
+     */
+    @Test
+    public void testUnknown()
+    {
+        final FakeParcel truncated = new FakeParcel();
+        truncated.writeInt(1);
+        writeKey(truncated, "bytes"); //$NON-NLS-1$
+        truncated.writeInt(ParcelInspector.VAL_BYTEARRAY);
+        truncated.writeByteArray(new byte[16]);
+        truncated.setDataSize(truncated.dataSize() - 4);
+        truncated.setDataPosition(0);
+        assertEquals(ParcelInspector.UNKNOWN, ParcelInspector.inspect(truncated, ParcelInspector.MAX_PARCEL_SIZE));
+        assertEquals(0, truncated.dataPosition());
+
+        final FakeParcel missing = new FakeParcel();
+        missing.writeInt(2);
+        writeKey(missing, "int"); //$NON-NLS-1$
+        missing.writeInt(ParcelInspector.VAL_INTEGER);
+        missing.writeInt(42);
+        missing.setDataPosition(0);
+        assertEquals(ParcelInspector.UNKNOWN, ParcelInspector.inspect(missing, ParcelInspector.MAX_PARCEL_SIZE));
+
+        final FakeParcel trailing = new FakeParcel();
+        trailing.writeInt(0);
+        trailing.writeInt(42);
+        trailing.setDataPosition(0);
+        assertEquals(ParcelInspector.UNKNOWN, ParcelInspector.inspect(trailing, ParcelInspector.MAX_PARCEL_SIZE));
+
+        final FakeParcel unknownType = new FakeParcel();
+        unknownType.writeInt(1);
+        writeKey(unknownType, "list"); //$NON-NLS-1$
+        unknownType.writeInt(11);
+        unknownType.writeInt(0);
+        unknownType.setDataPosition(0);
+        assertEquals(ParcelInspector.UNKNOWN, ParcelInspector.inspect(unknownType, ParcelInspector.MAX_PARCEL_SIZE));
+
+        final FakeParcel empty = new FakeParcel();
+        assertEquals(ParcelInspector.UNKNOWN, ParcelInspector.inspect(empty, ParcelInspector.MAX_PARCEL_SIZE));
+    }
+
+    /**
+     * Tests that the walk starts at the parcel's position, as a Bundle's parcel is positioned past its header.
+     */
+    @Test
+    public void testStartPosition()
+    {
+        final FakeParcel parcel = new FakeParcel();
+        parcel.writeInt(0x4C444E42);
+        parcel.writeInt(1);
+        writeKey(parcel, "int"); //$NON-NLS-1$
+        parcel.writeInt(ParcelInspector.VAL_INTEGER);
+        parcel.writeInt(42);
+        parcel.setDataPosition(4);
+
+        assertEquals(ParcelInspector.CLEAN, ParcelInspector.inspect(parcel, ParcelInspector.MAX_PARCEL_SIZE));
+        assertEquals(4, parcel.dataPosition());
+    }
+
+    /**
+     * Writes a key as Parcel.writeValue() writes a string.
+     *
+     * @param parcel the parcel.
+     * @param key the key.
+     */
+    private static void writeKey(final FakeParcel parcel, final String key)
+    {
+        parcel.writeInt(ParcelInspector.VAL_STRING);
+        parcel.writeString(key);
+    }
+}
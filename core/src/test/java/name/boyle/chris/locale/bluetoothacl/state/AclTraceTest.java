@@ -0,0 +1,94 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link AclTrace}.
+ */
+public final class AclTraceTest
+{
+    /**
+     * Directory holding the trace.
+     */
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that recorded events read back as they were written, across recorders.
+     */
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        final File file = new File(mDirectory, "trace"); //$NON-NLS-1$
+        AclTrace.Recorder recorder = new AclTrace.Recorder(file);
+        recorder.write(new AclTrace.Event(100, MacCodec.encode("00:11:22:33:44:55"), true, 0x0404, true)); //$NON-NLS-1$
+        recorder.close();
+        recorder = new AclTrace.Recorder(file);
+        recorder.write(new AclTrace.Event(250, MacCodec.encode("00:11:22:33:44:66"), false, DeviceClass.UNKNOWN, false)); //$NON-NLS-1$
+        recorder.close();
+
+        final List<AclTrace.Event> events = AclTrace.read(file);
+        assertEquals(2, events.size());
+        assertEquals(100, events.get(0).getElapsedRealtime());
+        assertEquals(MacCodec.encode("00:11:22:33:44:55"), events.get(0).getDeviceMac()); //$NON-NLS-1$
+        assertTrue(events.get(0).isConnected());
+        assertEquals(0x0404, events.get(0).getDeviceClass());
+        assertTrue(events.get(0).isWatched());
+        assertEquals(250, events.get(1).getElapsedRealtime());
+        assertFalse(events.get(1).isConnected());
+        assertEquals(DeviceClass.UNKNOWN, events.get(1).getDeviceClass());
+        assertFalse(events.get(1).isWatched());
+    }
+
+    /**
+     * Tests that comments and blank lines are skipped, and malformed lines rejected.
+     */
+    @Test
+    public void testParse() throws IOException
+    {
+        assertNotNull(AclTrace.parse("1 00:11:22:33:44:55 1 -1 0")); //$NON-NLS-1$
+        assertNull(AclTrace.parse("1 00:11:22:33:44:55 1 -1")); //$NON-NLS-1$
+        assertNull(AclTrace.parse("1 00:11:22:33:44 1 -1 0")); //$NON-NLS-1$
+        assertNull(AclTrace.parse("1 00:11:22:33:44:55 2 -1 0")); //$NON-NLS-1$
+        assertNull(AclTrace.parse("x 00:11:22:33:44:55 1 -1 0")); //$NON-NLS-1$
+
+        final File file = new File(mDirectory, "trace"); //$NON-NLS-1$
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write("# flapping headset\n\n1 00:11:22:33:44:55 1 -1 0\nbogus\n".getBytes("UTF-8")); //$NON-NLS-1$ //$NON-NLS-2$
+        out.close();
+        try
+        {
+            AclTrace.read(file);
+            fail();
+        }
+        catch (final IOException e)
+        {
+            assertTrue(e.getMessage().contains(":4:")); //$NON-NLS-1$
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import name.boyle.chris.locale.bluetoothacl.test.FakeClock;
+
+/**
+ * Tests {@link ConditionEvaluator} and {@link TransitionProcessor} together on a plain JVM, as the app wires them.
+ */
+public final class ConditionEvaluatorTest
+{
+    /**
+     * A packed MAC.
+     */
+    private static final long MAC_1 = MacCodec.encode("00:11:22:33:44:01"); //$NON-NLS-1$
+
+    /**
+     * Another packed MAC.
+     */
+    private static final long MAC_2 = MacCodec.encode("00:11:22:33:44:02"); //$NON-NLS-1$
+
+    /**
+     * Debounce window used by these tests.
+     */
+    private static final long WINDOW = TransitionDebouncer.DEFAULT_WINDOW_MILLIS;
+
+    /**
+     * Directory holding the store's and registry's files.
+     */
+    private File mDirectory;
+
+    /**
+     * Clock driving the processor and registry.
+     */
+    private FakeClock mClock;
+
+    /**
+     * Number of requeries sent by the processor.
+     */
+    private int mRequeryCount;
+
+    /**
+     * Executor for the processor. The fake clock never reaches its deadlines in real time, so the tests close windows
+     * themselves.
+     */
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Store of device states.
+     */
+    private ConnectionStateStore mStore;
+
+    /**
+     * Evaluator under test.
+     */
+    private ConditionEvaluator mEvaluator;
+
+    /**
+     * Processor feeding {@link #mStore}.
+     */
+    private TransitionProcessor mProcessor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+        mClock = new FakeClock();
+        mRequeryCount = 0;
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mStore = new ConnectionStateStore(mDirectory);
+
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        mEvaluator = new ConditionEvaluator(mStore, registry, mClock);
+        mProcessor = new TransitionProcessor(mStore, registry, mClock, WINDOW, new TransitionProcessor.RequerySender()
+        {
+            public void requestRequery()
+            {
+                mRequeryCount++;
+            }
+        }, mExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mExecutor.shutdownNow();
+        mStore.discard();
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that a malformed MAC is never connected.
+     */
+    @Test
+    public void testInvalidMac()
+    {
+        assertTrue(mEvaluator.isSatisfied(MacCodec.INVALID, false));
+        assertFalse(mEvaluator.isSatisfied(MacCodec.INVALID, true));
+    }
+
+    /**
+     * Tests that a query is answered from memory only once its devices are watched and the state is loaded.
+     */
+    @Test
+    public void testAnsweredFromMemory()
+    {
+        final DeviceCondition condition = new DeviceCondition(new long[] { MAC_1, MAC_2 }, true, 1);
+        assertTrue(mEvaluator.isAnsweredFromMemory(MacCodec.INVALID));
+        assertFalse(mEvaluator.isAnsweredFromMemory(MAC_1));
+
+        mEvaluator.isSatisfied(MAC_1, true);
+        assertTrue(mEvaluator.isAnsweredFromMemory(MAC_1));
+        assertFalse(mEvaluator.isAnsweredFromMemory(condition));
+
+        mEvaluator.isSatisfied(condition);
+        assertTrue(mEvaluator.isAnsweredFromMemory(condition));
+        assertFalse(mEvaluator.isClassAnsweredFromMemory(true, 0x0400));
+
+        mEvaluator.isClassSatisfied(true, 0x0400, true);
+        assertTrue(mEvaluator.isClassAnsweredFromMemory(true, 0x0400));
+
+        mClock.advance(WatchedDeviceRegistry.REFRESH_MILLIS);
+        assertFalse(mEvaluator.isAnsweredFromMemory(MAC_1));
+    }
+
+    /**
+     * Tests that only devices some query has asked about cause a requery when they settle.
+     */
+    @Test
+    public void testQueryWatchesDevice()
+    {
+        mProcessor.onTransition(MAC_1, true, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertEquals(0, mRequeryCount);
+        assertTrue(mEvaluator.isSatisfied(MAC_1, true));
+
+        mProcessor.onTransition(MAC_1, false, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertEquals(1, mRequeryCount);
+        assertTrue(mEvaluator.isSatisfied(MAC_1, false));
+    }
+
+    /**
+     * Tests that the first query on a device commits the state it had in memory only, so that a new process sees it.
+     */
+    @Test
+    public void testQueryCommitsState()
+    {
+        mProcessor.onTransition(MAC_1, true, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertTrue(mEvaluator.isSatisfied(MAC_1, true));
+        mStore.flush();
+        mStore.discard();
+
+        mStore = new ConnectionStateStore(mDirectory);
+        assertTrue(mStore.isConnected(MAC_1));
+    }
+
+    /**
+     * Tests conditions on several devices.
+     */
+    @Test
+    public void testQuantifiers()
+    {
+        mProcessor.onTransition(MAC_1, true, null);
+        mProcessor.settleAll();
+
+        final long[] macs = new long[] { MAC_1, MAC_2 };
+        assertTrue(mEvaluator.isSatisfied(DeviceCondition.quantified(macs, true, DeviceCondition.QUANTIFIER_ANY, 0)));
+        assertFalse(mEvaluator.isSatisfied(DeviceCondition.quantified(macs, true, DeviceCondition.QUANTIFIER_ALL, 0)));
+        assertTrue(mEvaluator.isSatisfied(DeviceCondition.quantified(macs, true, DeviceCondition.QUANTIFIER_AT_LEAST, 1)));
+        assertFalse(mEvaluator.isSatisfied(DeviceCondition.quantified(macs, true, DeviceCondition.QUANTIFIER_AT_LEAST, 2)));
+    }
+
+    /**
+     * Tests that a class condition reads the per-class count of connected devices.
+     */
+    @Test
+    public void testClassCondition()
+    {
+        final int audioVideo = 0x0400;
+        final int headset = 0x0404;
+        mStore.setDeviceClass(MAC_1, headset);
+        assertFalse(mEvaluator.isClassSatisfied(true, audioVideo, true));
+
+        mProcessor.onTransition(MAC_1, true, null);
+        mProcessor.settleAll();
+        assertTrue(mEvaluator.isClassSatisfied(true, audioVideo, true));
+        assertTrue(mEvaluator.isClassSatisfied(false, headset, true));
+        assertEquals(1, mRequeryCount);
+    }
+
+    /**
+     * Tests that a class condition commits the states of the devices of its class which were only in memory until then, so that
+     * a new process sees them without waiting for each device to reconnect.
+     */
+    @Test
+    public void testClassQueryCommitsStates()
+    {
+        final int headset = 0x0404;
+        final int phone = 0x020C;
+        mProcessor.onAclTransition(MAC_1, headset, true, null);
+        mProcessor.onAclTransition(MAC_2, phone, true, null);
+        mProcessor.settleAll();
+
+        assertTrue(mEvaluator.isClassSatisfied(true, 0x0400, true));
+        mStore.flush();
+        mStore.discard();
+
+        mStore = new ConnectionStateStore(mDirectory);
+        assertTrue(mStore.isConnected(MAC_1));
+        assertEquals(1, mStore.getConnectedCountByMajorClass(0x0400));
+        assertFalse(mStore.isConnected(MAC_2));
+    }
+}
@@ -0,0 +1,239 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ConditionExpression}.
+ */
+public final class ConditionExpressionTest
+{
+    /**
+     * MACs of test devices.
+     */
+    private static final String MAC_1 = "00:11:22:33:44:01", MAC_2 = "00:11:22:33:44:02", MAC_3 = "00:11:22:33:44:03"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    /**
+     * Directories holding the files of two stores.
+     */
+    private File mDirectory1, mDirectory2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        ConditionExpression.clearCache();
+        mDirectory1 = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+        mDirectory2 = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ConnectionStateStoreTest.deleteRecursively(mDirectory1);
+        ConnectionStateStoreTest.deleteRecursively(mDirectory2);
+    }
+
+    /**
+     * Tests that a repeated device gets one operand slot, and that the program is postfix with the usual precedence.
+     */
+    @Test
+    public void testCompile() throws ParseException
+    {
+        final ConditionExpression expression = ConditionExpression.compile(MAC_1 + " or " + MAC_2 + " AND NOT " + MAC_1); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals(2, expression.getDeviceCount());
+        assertEquals(MacCodec.encode(MAC_1), expression.getDeviceMac(0));
+        assertEquals(MacCodec.encode(MAC_2), expression.getDeviceMac(1));
+
+        final int[] expected = new int[]
+            { ConditionExpression.OP_LOAD, ConditionExpression.OP_LOAD | (1 << ConditionExpression.OP_BITS), ConditionExpression.OP_LOAD,
+                    ConditionExpression.OP_NOT, ConditionExpression.OP_AND, ConditionExpression.OP_OR };
+        assertEquals(expected.length, expression.getProgramLength());
+        for (int x = 0; x < expected.length; x++)
+        {
+            assertEquals(expected[x], expression.mProgram[x]);
+        }
+        assertEquals(3, expression.mMaxDepth);
+    }
+
+    /**
+     * Tests that symbols, keywords in any case and parentheses are accepted.
+     */
+    @Test
+    public void testSyntax() throws ParseException
+    {
+        ConditionExpression.compile("!(" + MAC_1 + "&" + MAC_2 + ")|" + MAC_3); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        ConditionExpression.compile(" ( ( " + MAC_1.toLowerCase() + " ) ) And nOt " + MAC_2 + " "); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
+    /**
+     * Tests that malformed expressions are rejected with the offset of the problem.
+     */
+    @Test
+    public void testErrors()
+    {
+        assertError("", 0); //$NON-NLS-1$
+        assertError(MAC_1 + " AND", 21); //$NON-NLS-1$
+        assertError("(" + MAC_1, 18); //$NON-NLS-1$
+        assertError(MAC_1 + " " + MAC_2, 18); //$NON-NLS-1$
+        assertError(MAC_1 + " XOR " + MAC_2, 18); //$NON-NLS-1$
+        assertError("headset", 0); //$NON-NLS-1$
+        assertError(MAC_1 + ")", 17); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that nesting is limited, so that a hostile Bundle can't overflow the stack.
+     */
+    @Test
+    public void testNesting() throws ParseException
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int x = 0; x < ConditionExpression.MAX_NESTING; x++)
+        {
+            builder.append('(');
+        }
+        builder.append(MAC_1);
+        for (int x = 0; x < ConditionExpression.MAX_NESTING; x++)
+        {
+            builder.append(')');
+        }
+        ConditionExpression.compile(builder.toString());
+
+        assertError("(" + builder + ")", ConditionExpression.MAX_NESTING); //$NON-NLS-1$ //$NON-NLS-2$
+
+        final StringBuilder nots = new StringBuilder();
+        for (int x = 0; x <= ConditionExpression.MAX_NESTING; x++)
+        {
+            nots.append('!');
+        }
+        assertError(nots + MAC_1, ConditionExpression.MAX_NESTING + 1);
+    }
+
+    /**
+     * Tests that compiled expressions are cached by their text, up to {@link ConditionExpression#CACHE_SIZE}.
+     */
+    @Test
+    public void testCache() throws ParseException
+    {
+        final ConditionExpression expression = ConditionExpression.compile(MAC_1);
+        assertSame(expression, ConditionExpression.compile(MAC_1));
+        assertNotSame(expression, ConditionExpression.compile(MAC_1 + " ")); //$NON-NLS-1$
+        assertEquals(expression.getFingerprint(), ConditionExpression.compile(MAC_1).getFingerprint());
+
+        for (int x = 0; x < ConditionExpression.CACHE_SIZE; x++)
+        {
+            ConditionExpression.compile(MacCodec.decode(0xAA0000000000L + x));
+        }
+        assertNotSame(expression, ConditionExpression.compile(MAC_1));
+    }
+
+    /**
+     * Tests that one compiled expression gives each store its own answer when the stores index its devices differently, including
+     * when they evaluate it at the same time.
+     */
+    @Test
+    public void testSharedBetweenStores() throws Exception
+    {
+        final ConnectionStateStore store1 = new ConnectionStateStore(mDirectory1);
+        store1.setConnected(MAC_2, true);
+        store1.setConnected(MAC_1, true);
+        final ConnectionStateStore store2 = new ConnectionStateStore(mDirectory2);
+        store2.setConnected(MAC_1, true);
+
+        final ConditionExpression expression = ConditionExpression.compile(MAC_1 + " AND NOT " + MAC_2); //$NON-NLS-1$
+        for (int x = 0; x < 3; x++)
+        {
+            assertFalse(store1.isSatisfied(expression));
+            assertTrue(store2.isSatisfied(expression));
+        }
+
+        final AtomicInteger errorCount = new AtomicInteger();
+        final Thread[] threads = new Thread[2];
+        for (int x = 0; x < threads.length; x++)
+        {
+            final ConnectionStateStore store = 0 == x ? store1 : store2;
+            final boolean isSatisfiedExpected = 0 != x;
+            threads[x] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int y = 0; y < 100000; y++)
+                    {
+                        if (isSatisfiedExpected != store.isSatisfied(expression))
+                        {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[x].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, errorCount.get());
+
+        store1.discard();
+        store2.discard();
+    }
+
+    /**
+     * Tests that a store evaluates an expression deeper than any it has evaluated before.
+     */
+    @Test
+    public void testDeepExpression() throws ParseException
+    {
+        final ConnectionStateStore store = new ConnectionStateStore(mDirectory1);
+        store.setConnected(MAC_1, true);
+        store.setConnected(MAC_2, true);
+
+        final StringBuilder source = new StringBuilder();
+        for (int x = 0; x < 40; x++)
+        {
+            source.append(0 == x % 2 ? MAC_1 : MAC_2).append(" AND ("); //$NON-NLS-1$
+        }
+        source.append(MAC_1);
+        for (int x = 0; x < 40; x++)
+        {
+            source.append(')');
+        }
+
+        final ConditionExpression expression = ConditionExpression.compile(source.toString());
+        assertEquals(41, expression.mMaxDepth);
+        assertTrue(store.isSatisfied(expression));
+        assertFalse(store.isSatisfied(ConditionExpression.compile(source.toString().replace(MAC_1, MAC_3))));
+        store.discard();
+    }
+
+    /**
+     * Asserts that an expression is rejected.
+     *
+     * @param source text of the expression.
+     * @param errorOffset expected offset of the error.
+     */
+    private static void assertError(final String source, final int errorOffset)
+    {
+        try
+        {
+            ConditionExpression.compile(source);
+            fail(source);
+        }
+        catch (final ParseException e)
+        {
+            assertEquals(source, errorOffset, e.getErrorOffset());
+        }
+    }
+}
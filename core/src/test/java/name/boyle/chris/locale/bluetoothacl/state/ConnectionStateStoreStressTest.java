@@ -0,0 +1,357 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress tests in the style of jcstress: writer threads hammer transitions of a few devices while reader threads read them back
+ * through every read path of the store, and each observation is checked against what the writers had started and finished at the
+ * time.
+ * <p>
+ * Each device has one writer, which writes alternating states and publishes the index of each write as it starts and as it
+ * finishes. A read made after write {@code b} finished and before write {@code a} started must show the state of some write
+ * between {@code b} and {@code a}: when no write is in flight, exactly the last one, so a stale "connected" surviving a later
+ * "disconnected" is caught. Successive reads by one thread must also never go back to an earlier write. Finally, the state left
+ * in memory must be the one read back from disk by a new store.
+ * <p>
+ * Every test runs against each entry of {@link #STORES}, so a new store implementation is covered by adding it there.
+ */
+public final class ConnectionStateStoreStressTest
+{
+    /**
+     * Creates the stores under test.
+     */
+    private interface StoreFactory
+    {
+        /**
+         * @param directory directory for the store's files.
+         * @return a new store over {@code directory}.
+         */
+        ConnectionStateStore newStore(File directory);
+    }
+
+    /**
+     * Reads the state of a device through one of the store's read paths.
+     */
+    private interface Reader
+    {
+        /**
+         * @param store the store.
+         * @param deviceMac packed MAC of the device.
+         * @param condition single device condition on the device, expecting it connected.
+         * @return true if the device is connected.
+         */
+        boolean isConnected(ConnectionStateStore store, long deviceMac, DeviceCondition condition);
+    }
+
+    /**
+     * Every store implementation.
+     */
+    private static final StoreFactory[] STORES = new StoreFactory[] { new StoreFactory()
+    {
+        public ConnectionStateStore newStore(final File directory)
+        {
+            return new ConnectionStateStore(directory);
+        }
+    } };
+
+    /**
+     * Every read path: the state table, the memoized query results, the bitset of connected devices and the per-class counters.
+     */
+    private static final Reader[] READERS = new Reader[] { new Reader()
+    {
+        public boolean isConnected(final ConnectionStateStore store, final long deviceMac, final DeviceCondition condition)
+        {
+            return store.isConnected(deviceMac);
+        }
+    }, new Reader()
+    {
+        public boolean isConnected(final ConnectionStateStore store, final long deviceMac, final DeviceCondition condition)
+        {
+            return store.isSatisfied(deviceMac, true);
+        }
+    }, new Reader()
+    {
+        public boolean isConnected(final ConnectionStateStore store, final long deviceMac, final DeviceCondition condition)
+        {
+            return store.isSatisfied(condition);
+        }
+    }, new Reader()
+    {
+        public boolean isConnected(final ConnectionStateStore store, final long deviceMac, final DeviceCondition condition)
+        {
+            return store.getConnectedCountByDeviceClass(getDeviceClass(deviceMac)) > 0;
+        }
+    } };
+
+    /**
+     * Number of devices written concurrently, each by its own writer.
+     */
+    private static final int DEVICE_COUNT = 2;
+
+    /**
+     * Number of transitions each writer writes.
+     */
+    private static final int WRITES = 20000;
+
+    /**
+     * Directory holding the store's files.
+     */
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that every read is consistent with the writes around it, and that reads never go back in time.
+     */
+    @Test
+    public void testLastWriterWins() throws InterruptedException
+    {
+        for (final StoreFactory factory : STORES)
+        {
+            ConnectionStateStoreTest.deleteRecursively(mDirectory);
+            assertTrue(mDirectory.mkdirs());
+
+            final ConnectionStateStore store = factory.newStore(mDirectory);
+            final long[] macs = new long[DEVICE_COUNT];
+            final DeviceCondition[] conditions = new DeviceCondition[DEVICE_COUNT];
+            for (int d = 0; d < DEVICE_COUNT; d++)
+            {
+                macs[d] = 0x001122334400L + d;
+                conditions[d] = new DeviceCondition(new long[] { macs[d] }, true, 1);
+                store.setDeviceClass(macs[d], getDeviceClass(macs[d]));
+                store.setConnected(macs[d], false, 0);
+            }
+
+            final int[] started = new int[DEVICE_COUNT];
+            final int[] finished = new int[DEVICE_COUNT];
+            final Object progressLock = new Object();
+            final AtomicReference<String> violation = new AtomicReference<String>();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch writersDone = new CountDownLatch(DEVICE_COUNT);
+            final List<Thread> threads = new ArrayList<Thread>();
+
+            for (int d = 0; d < DEVICE_COUNT; d++)
+            {
+                final int device = d;
+                threads.add(new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        await(start);
+                        for (int write = 1; write <= WRITES; write++)
+                        {
+                            synchronized (progressLock)
+                            {
+                                started[device] = write;
+                            }
+                            store.setConnected(macs[device], isConnectedAfter(write), write);
+                            synchronized (progressLock)
+                            {
+                                finished[device] = write;
+                            }
+                        }
+                        writersDone.countDown();
+                    }
+                }, "writer-" + d)); //$NON-NLS-1$
+            }
+
+            for (int r = 0; r < READERS.length; r++)
+            {
+                final Reader reader = READERS[r];
+                final int readerIndex = r;
+                threads.add(new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        await(start);
+                        final Random random = new Random(readerIndex);
+                        final int[] lowestSeen = new int[DEVICE_COUNT];
+                        while (writersDone.getCount() > 0 && null == violation.get())
+                        {
+                            final int device = random.nextInt(DEVICE_COUNT);
+                            final int before;
+                            synchronized (progressLock)
+                            {
+                                before = finished[device];
+                            }
+                            final boolean isConnected = reader.isConnected(store, macs[device], conditions[device]);
+                            final int after;
+                            synchronized (progressLock)
+                            {
+                                after = started[device];
+                            }
+
+                            /*
+                             * The write the read saw is one between before and after with the state read. States alternate, so
+                             * that is before or the one after it, if it had started.
+                             */
+                            final int lowest = isConnectedAfter(before) == isConnected ? before : before + 1;
+                            final int highest = isConnectedAfter(after) == isConnected ? after : after - 1;
+                            if (lowest > after)
+                            {
+                                violation.compareAndSet(null, String.format("reader %d saw connected=%b for device %d after write %d finished, and write %d hadn't started", //$NON-NLS-1$
+                                                                            Integer.valueOf(readerIndex), Boolean.valueOf(isConnected), Integer.valueOf(device), Integer.valueOf(before),
+                                                                            Integer.valueOf(before + 1)));
+                            }
+                            else if (highest < lowestSeen[device])
+                            {
+                                violation.compareAndSet(null, String.format("reader %d went back from write %d to write %d of device %d", //$NON-NLS-1$
+                                                                            Integer.valueOf(readerIndex), Integer.valueOf(lowestSeen[device]), Integer.valueOf(highest), Integer.valueOf(device)));
+                            }
+                            lowestSeen[device] = Math.max(lowestSeen[device], lowest);
+                        }
+                    }
+                }, "reader-" + r)); //$NON-NLS-1$
+            }
+
+            for (final Thread thread : threads)
+            {
+                thread.start();
+            }
+            start.countDown();
+            for (final Thread thread : threads)
+            {
+                thread.join();
+            }
+            assertNull(violation.get(), violation.get());
+
+            for (int d = 0; d < DEVICE_COUNT; d++)
+            {
+                for (final Reader reader : READERS)
+                {
+                    assertEquals(isConnectedAfter(WRITES), reader.isConnected(store, macs[d], conditions[d]));
+                }
+            }
+            assertPersisted(factory, store, macs);
+        }
+    }
+
+    /**
+     * Tests that when several writers race on one device, what a new store reads back from disk is whatever the last write in
+     * memory was.
+     */
+    @Test
+    public void testRacingWritersAgreeWithDisk() throws InterruptedException
+    {
+        for (final StoreFactory factory : STORES)
+        {
+            for (int round = 0; round < 20; round++)
+            {
+                ConnectionStateStoreTest.deleteRecursively(mDirectory);
+                assertTrue(mDirectory.mkdirs());
+
+                final ConnectionStateStore store = factory.newStore(mDirectory);
+                final long mac = 0x001122334455L;
+                final CountDownLatch start = new CountDownLatch(1);
+                final Thread[] writers = new Thread[4];
+                for (int w = 0; w < writers.length; w++)
+                {
+                    final Random random = new Random(round * writers.length + w);
+                    writers[w] = new Thread(new Runnable()
+                    {
+                        public void run()
+                        {
+                            await(start);
+                            for (int write = 0; write < 1000; write++)
+                            {
+                                store.setConnected(mac, random.nextBoolean(), write);
+                            }
+                        }
+                    });
+                    writers[w].start();
+                }
+                start.countDown();
+                for (final Thread writer : writers)
+                {
+                    writer.join();
+                }
+
+                assertPersisted(factory, store, new long[] { mac });
+            }
+        }
+    }
+
+    /**
+     * Commits and discards {@code store}, and checks that a new store over the same directory reads back the state each device
+     * had in memory.
+     *
+     * @param factory factory which made {@code store}.
+     * @param store the store, no longer being written.
+     * @param macs devices to check.
+     */
+    private void assertPersisted(final StoreFactory factory, final ConnectionStateStore store, final long[] macs)
+    {
+        final boolean[] inMemory = new boolean[macs.length];
+        for (int d = 0; d < macs.length; d++)
+        {
+            inMemory[d] = store.isConnected(macs[d]);
+        }
+        store.flush();
+        store.discard();
+
+        final ConnectionStateStore reloaded = factory.newStore(mDirectory);
+        for (int d = 0; d < macs.length; d++)
+        {
+            assertEquals(inMemory[d], reloaded.isConnected(macs[d]));
+        }
+        reloaded.discard();
+    }
+
+    /**
+     * @param write index of a write, where 0 is the initial state.
+     * @return the state the device is in after that write: disconnected initially, then alternating.
+     */
+    private static boolean isConnectedAfter(final int write)
+    {
+        return 1 == write % 2;
+    }
+
+    /**
+     * @param deviceMac packed MAC of a device.
+     * @return a device class of its own for the device, so that the class counter reflects that device alone.
+     */
+    private static int getDeviceClass(final long deviceMac)
+    {
+        return 0x0400 | (int) ((deviceMac & 0xF) << 2);
+    }
+
+    /**
+     * Waits for {@code latch}, giving up if interrupted.
+     *
+     * @param latch latch to wait for.
+     */
+    private static void await(final CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ConnectionStateStore} on a plain JVM.
+ */
+public final class ConnectionStateStoreTest
+{
+    /**
+     * MAC of the device under test.
+     */
+    private static final String MAC = "00:11:22:33:44:55"; //$NON-NLS-1$
+
+    /**
+     * Directory holding the store's files.
+     */
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = newTempDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that unknown devices are reported as disconnected.
+     */
+    @Test
+    public void testUnknownDevice()
+    {
+        final ConnectionStateStore store = new ConnectionStateStore(mDirectory);
+        assertFalse(store.isConnected(MAC));
+        store.discard();
+    }
+
+    /**
+     * Tests that a new store over the same directory sees flushed states, as a new process would.
+     */
+    @Test
+    public void testReload()
+    {
+        final ConnectionStateStore store = new ConnectionStateStore(mDirectory);
+        store.setConnected(MAC, true);
+        store.flush();
+        store.discard();
+
+        final ConnectionStateStore reloaded = new ConnectionStateStore(mDirectory);
+        assertTrue(reloaded.isConnected(MAC));
+        assertEquals(1, reloaded.getMissCount());
+        reloaded.discard();
+    }
+
+    /**
+     * Tests that a forgotten device isn't known, in this store or a new one, until its next transition, and that its class is
+     * kept.
+     */
+    @Test
+    public void testForget()
+    {
+        final long mac = MacCodec.encode(MAC);
+        final long other = MacCodec.encode("00:11:22:33:44:66"); //$NON-NLS-1$
+        final ConnectionStateStore store = new ConnectionStateStore(mDirectory);
+        store.setDeviceClass(mac, 0x0404);
+        store.setConnected(mac, true, 1);
+        store.setConnected(other, false, 2);
+        store.flush();
+
+        store.forget();
+        assertFalse(store.isConnected(mac));
+        assertFalse(store.isKnown(mac));
+        assertFalse(store.isKnown(other));
+        assertEquals(0x0404, store.getDeviceClass(mac));
+        assertFalse(store.isClassKnown(true, 0x0400));
+        assertTrue(store.isClassKnown(true, 0x0200));
+        store.discard();
+
+        final ConnectionStateStore reloaded = new ConnectionStateStore(mDirectory);
+        assertFalse(reloaded.isKnown(mac));
+        assertFalse(reloaded.isKnown(other));
+        assertFalse(reloaded.isClassKnown(false, 0x0404));
+        assertEquals(0x0404, reloaded.getDeviceClass(mac));
+
+        reloaded.setConnected(mac, true, 3);
+        assertTrue(reloaded.isKnown(mac));
+        assertTrue(reloaded.isClassKnown(false, 0x0404));
+        assertEquals(1, reloaded.getConnectedCountByDeviceClass(0x0404));
+        reloaded.flush();
+        reloaded.discard();
+
+        final ConnectionStateStore restarted = new ConnectionStateStore(mDirectory);
+        assertTrue(restarted.isKnown(mac));
+        assertTrue(restarted.isConnected(mac));
+        assertFalse(restarted.isKnown(other));
+
+        restarted.clear();
+        assertTrue(restarted.isKnown(other));
+        restarted.discard();
+    }
+
+    /**
+     * Tests that states tracked in memory only are lost with the process, and that committing one keeps it.
+     */
+    @Test
+    public void testPersist()
+    {
+        final long mac = MacCodec.encode(MAC);
+        final ConnectionStateStore store = new ConnectionStateStore(mDirectory);
+        store.setConnected(mac, true, 1, false);
+        store.flush();
+        store.discard();
+
+        ConnectionStateStore reloaded = new ConnectionStateStore(mDirectory);
+        assertFalse(reloaded.isConnected(mac));
+        reloaded.setConnected(mac, true, 2, false);
+        reloaded.persist(mac, 3);
+        reloaded.flush();
+        reloaded.discard();
+
+        reloaded = new ConnectionStateStore(mDirectory);
+        assertTrue(reloaded.isConnected(mac));
+        reloaded.discard();
+    }
+
+    /**
+     * Tests that a device with a state on disk has changes made in memory only written through, so that the state on disk never
+     * goes stale, while a device without one stays in memory only.
+     */
+    @Test
+    public void testPersistedStateKeptCurrent()
+    {
+        final long persisted = MacCodec.encode(MAC);
+        final long memoryOnly = MacCodec.encode("00:11:22:33:44:66"); //$NON-NLS-1$
+        ConnectionStateStore store = new ConnectionStateStore(mDirectory);
+        store.setConnected(persisted, true, 1);
+        store.setConnected(memoryOnly, true, 1, false);
+        store.flush();
+        store.discard();
+
+        store = new ConnectionStateStore(mDirectory);
+        assertFalse(store.setConnected(persisted, true, 2, false));
+        assertTrue(store.setConnected(persisted, false, 3, false));
+        store.setConnected(memoryOnly, false, 3, false);
+        store.flush();
+        assertEquals(1, store.getCommittedTransitionCount());
+        store.discard();
+
+        store = new ConnectionStateStore(mDirectory);
+        assertFalse(store.isConnected(persisted));
+        assertFalse(store.isConnected(memoryOnly));
+
+        /*
+         * Flapping back to the state on disk in memory only needs no write at all
+         */
+        store.setConnected(persisted, true, 4, false);
+        store.setConnected(persisted, false, 5, false);
+        store.flush();
+        assertEquals(1, store.getCommittedTransitionCount());
+        store.discard();
+    }
+
+    /**
+     * Tests that the legacy import hook runs only when there is no journal yet.
+     */
+    @Test
+    public void testImportLegacyStates()
+    {
+        final long mac = MacCodec.encode(MAC);
+        final int[] calls = new int[1];
+        final class ImportingStore extends ConnectionStateStore
+        {
+            ImportingStore()
+            {
+                super(mDirectory);
+            }
+
+            @Override
+            protected void importLegacyStates(final TransitionJournal journal)
+            {
+                calls[0]++;
+                try
+                {
+                    journal.append(new Transition(mac, true, 1));
+                    journal.compact();
+                    journal.close();
+                }
+                catch (final IOException e)
+                {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+
+        ConnectionStateStore store = new ImportingStore();
+        assertTrue(store.isConnected(mac));
+        store.discard();
+        assertEquals(1, calls[0]);
+
+        store = new ImportingStore();
+        assertTrue(store.isConnected(mac));
+        store.discard();
+        assertEquals(1, calls[0]);
+    }
+
+    /**
+     * @param name prefix of the directory name.
+     * @return a new, empty directory.
+     */
+    /* package */static File newTempDirectory(final String name)
+    {
+        final File directory = new File(System.getProperty("java.io.tmpdir"), name + '-' + System.nanoTime()); //$NON-NLS-1$
+        assertTrue(directory.mkdirs());
+        return directory;
+    }
+
+    /**
+     * @param file file or directory to delete, with everything in it.
+     */
+    /* package */static void deleteRecursively(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (null != children)
+        {
+            for (final File child : children)
+            {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,142 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link DeviceCondition}.
+ */
+public final class DeviceConditionTest
+{
+    /**
+     * Directories holding the files of two stores.
+     */
+    private File mDirectory1, mDirectory2;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory1 = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+        mDirectory2 = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ConnectionStateStoreTest.deleteRecursively(mDirectory1);
+        ConnectionStateStoreTest.deleteRecursively(mDirectory2);
+    }
+
+    /**
+     * Tests that duplicate devices are dropped and the rest sorted.
+     */
+    @Test
+    public void testDistinct()
+    {
+        final DeviceCondition condition = new DeviceCondition(new long[] { 3, 1, 3, 2, 1 }, true, 3);
+        assertEquals(3, condition.getDeviceCount());
+        assertEquals(1, condition.getDeviceMac(0));
+        assertEquals(2, condition.getDeviceMac(1));
+        assertEquals(3, condition.getDeviceMac(2));
+        assertEquals(3, DeviceCondition.countDistinct(new long[] { 3, 1, 3, 2, 1 }));
+    }
+
+    /**
+     * Tests that the required count must be between 1 and the number of distinct devices.
+     */
+    @Test
+    public void testRequiredCountRange()
+    {
+        for (final int requiredCount : new int[] { 0, 3 })
+        {
+            try
+            {
+                new DeviceCondition(new long[] { 1, 2, 2 }, true, requiredCount);
+                fail();
+            }
+            catch (final IllegalArgumentException e)
+            {
+                // expected exception
+            }
+        }
+    }
+
+    /**
+     * Tests that equal conditions have equal fingerprints, and that each part of a condition changes it.
+     */
+    @Test
+    public void testFingerprint()
+    {
+        final DeviceCondition condition = new DeviceCondition(new long[] { 1, 2 }, true, 1);
+        assertEquals(condition, new DeviceCondition(new long[] { 2, 1, 2 }, true, 1));
+        assertEquals(condition.getFingerprint(), new DeviceCondition(new long[] { 2, 1, 2 }, true, 1).getFingerprint());
+        assertEquals(condition.hashCode(), new DeviceCondition(new long[] { 2, 1, 2 }, true, 1).hashCode());
+
+        assertTrue(condition.getFingerprint() >= 0);
+        assertFalse(condition.getFingerprint() == new DeviceCondition(new long[] { 1, 2 }, false, 1).getFingerprint());
+        assertFalse(condition.getFingerprint() == new DeviceCondition(new long[] { 1, 2 }, true, 2).getFingerprint());
+        assertFalse(condition.getFingerprint() == new DeviceCondition(new long[] { 1, 3 }, true, 1).getFingerprint());
+    }
+
+    /**
+     * Tests that one condition gives each store its own answer when the stores index its devices differently, including when they
+     * evaluate it at the same time.
+     */
+    @Test
+    public void testSharedBetweenStores() throws Exception
+    {
+        final ConnectionStateStore store1 = new ConnectionStateStore(mDirectory1);
+        store1.setConnected(3, true, 0);
+        store1.setConnected(2, true, 0);
+        store1.setConnected(1, true, 0);
+        final ConnectionStateStore store2 = new ConnectionStateStore(mDirectory2);
+        store2.setConnected(1, true, 0);
+
+        final DeviceCondition condition = new DeviceCondition(new long[] { 1, 2 }, true, 2);
+        for (int x = 0; x < 3; x++)
+        {
+            assertTrue(store1.isSatisfied(condition));
+            assertFalse(store2.isSatisfied(condition));
+        }
+
+        final AtomicInteger errorCount = new AtomicInteger();
+        final Thread[] threads = new Thread[2];
+        for (int x = 0; x < threads.length; x++)
+        {
+            final ConnectionStateStore store = 0 == x ? store1 : store2;
+            final boolean isSatisfiedExpected = 0 == x;
+            threads[x] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int y = 0; y < 100000; y++)
+                    {
+                        if (isSatisfiedExpected != store.isSatisfied(condition))
+                        {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[x].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(0, errorCount.get());
+
+        store1.discard();
+        store2.discard();
+    }
+}
@@ -0,0 +1,48 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link DeviceIndex}.
+ */
+public final class DeviceIndexTest
+{
+    /**
+     * Tests that indices are dense, stable, and only assigned once.
+     */
+    @Test
+    public void testAdd()
+    {
+        final DeviceIndex index = new DeviceIndex();
+        assertEquals(-1, index.indexOf(42));
+        assertEquals(0, index.add(42));
+        assertEquals(1, index.add(7));
+        assertEquals(0, index.add(42));
+        assertEquals(0, index.indexOf(42));
+        assertEquals(1, index.indexOf(7));
+        assertEquals(2, index.size());
+    }
+
+    /**
+     * Tests that the index keeps every device as it grows, including MACs that differ only in their last octet.
+     */
+    @Test
+    public void testGrowth()
+    {
+        final DeviceIndex index = new DeviceIndex();
+        for (int x = 0; x < 10000; x++)
+        {
+            assertEquals(x, index.add(0x001122000000L + x));
+        }
+        assertEquals(10000, index.size());
+
+        for (int x = 0; x < 10000; x++)
+        {
+            assertEquals(x, index.indexOf(0x001122000000L + x));
+            assertEquals(0x001122000000L + x, index.getMac(x));
+        }
+        assertEquals(-1, index.indexOf(0x001122000000L + 10000));
+    }
+}
@@ -0,0 +1,122 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link DeviceStateTable}.
+ */
+public final class DeviceStateTableTest
+{
+    /**
+     * Tests lookups of devices that were never recorded.
+     */
+    @Test
+    public void testEmpty()
+    {
+        final DeviceStateTable table = new DeviceStateTable();
+        assertEquals(0, table.size());
+        assertEquals(DeviceStateTable.STATE_UNKNOWN, table.get(0));
+        assertEquals(DeviceStateTable.STATE_UNKNOWN, table.get(0xFFFFFFFFFFFFL));
+    }
+
+    /**
+     * Tests that put replaces the state and returns the previous one.
+     */
+    @Test
+    public void testPut()
+    {
+        final DeviceStateTable table = new DeviceStateTable();
+        assertEquals(DeviceStateTable.STATE_UNKNOWN, table.put(42, true));
+        assertEquals(DeviceStateTable.STATE_CONNECTED, table.get(42));
+        assertEquals(DeviceStateTable.STATE_CONNECTED, table.put(42, false));
+        assertEquals(DeviceStateTable.STATE_DISCONNECTED, table.get(42));
+        assertEquals(1, table.size());
+    }
+
+    /**
+     * Tests that the table keeps every device as it grows, including MACs that differ only in their last octet.
+     */
+    @Test
+    public void testGrowth()
+    {
+        final DeviceStateTable table = new DeviceStateTable();
+        for (int x = 0; x < 10000; x++)
+        {
+            table.put(0x001122000000L + x, 0 == x % 3);
+        }
+        assertEquals(10000, table.size());
+
+        for (int x = 0; x < 10000; x++)
+        {
+            assertEquals(0 == x % 3 ? DeviceStateTable.STATE_CONNECTED : DeviceStateTable.STATE_DISCONNECTED, table.get(0x001122000000L + x));
+        }
+        assertEquals(DeviceStateTable.STATE_UNKNOWN, table.get(0x001122000000L + 10000));
+    }
+
+    /**
+     * Tests that removing devices keeps every other device reachable, including ones further along the same probe run.
+     */
+    @Test
+    public void testRemove()
+    {
+        final DeviceStateTable table = new DeviceStateTable();
+        for (int x = 0; x < 1000; x++)
+        {
+            table.put(0x001122000000L + x, true);
+        }
+        assertEquals(DeviceStateTable.STATE_UNKNOWN, table.remove(0x001122000000L + 1000));
+
+        for (int x = 0; x < 1000; x += 2)
+        {
+            assertEquals(DeviceStateTable.STATE_CONNECTED, table.remove(0x001122000000L + x));
+        }
+        assertEquals(500, table.size());
+
+        for (int x = 0; x < 1000; x++)
+        {
+            assertEquals(0 == x % 2 ? DeviceStateTable.STATE_UNKNOWN : DeviceStateTable.STATE_CONNECTED, table.get(0x001122000000L + x));
+        }
+
+        table.put(0x001122000000L, false);
+        assertEquals(DeviceStateTable.STATE_DISCONNECTED, table.get(0x001122000000L));
+        assertEquals(501, table.size());
+    }
+
+    /**
+     * Tests that clear forgets every device.
+     */
+    @Test
+    public void testClear()
+    {
+        final DeviceStateTable table = new DeviceStateTable();
+        table.put(1, true);
+        table.clear();
+        assertEquals(0, table.size());
+        assertEquals(DeviceStateTable.STATE_UNKNOWN, table.get(1));
+    }
+
+    /**
+     * Tests that every device is listed.
+     */
+    @Test
+    public void testGetMacs()
+    {
+        final DeviceStateTable table = new DeviceStateTable();
+        for (int x = 1; x <= 100; x++)
+        {
+            table.put(x, 0 == x % 2);
+        }
+        table.remove(50);
+
+        final long[] macs = table.getMacs();
+        Arrays.sort(macs);
+        assertEquals(99, macs.length);
+        assertEquals(1, macs[0]);
+        assertEquals(51, macs[49]);
+        assertEquals(100, macs[98]);
+    }
+}
@@ -0,0 +1,65 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MacCodec}.
+ */
+public final class MacCodecTest
+{
+    /**
+     * Tests packing and unpacking a MAC.
+     */
+    @Test
+    public void testRoundTrip()
+    {
+        assertEquals(0x001122AABBFFL, MacCodec.encode("00:11:22:AA:BB:FF")); //$NON-NLS-1$
+        assertEquals("00:11:22:AA:BB:FF", MacCodec.decode(0x001122AABBFFL)); //$NON-NLS-1$
+        assertEquals("FF:FF:FF:FF:FF:FF", MacCodec.decode(MacCodec.encode("FF:FF:FF:FF:FF:FF"))); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals("00:00:00:00:00:00", MacCodec.decode(MacCodec.encode("00:00:00:00:00:00"))); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Tests that lowercase MACs pack to the same value and come back in the canonical form.
+     */
+    @Test
+    public void testCase()
+    {
+        assertEquals(MacCodec.encode("AA:BB:CC:DD:EE:FF"), MacCodec.encode("aa:bb:cc:dd:ee:ff")); //$NON-NLS-1$ //$NON-NLS-2$
+        assertEquals("AA:BB:CC:DD:EE:FF", MacCodec.decode(MacCodec.encode("aa:bb:cc:dd:ee:ff"))); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Tests that malformed MACs are rejected.
+     */
+    @Test
+    public void testMalformed()
+    {
+        assertEquals(MacCodec.INVALID, MacCodec.encode(null));
+        assertEquals(MacCodec.INVALID, MacCodec.encode("")); //$NON-NLS-1$
+        assertEquals(MacCodec.INVALID, MacCodec.encode("00:11:22:33:44")); //$NON-NLS-1$
+        assertEquals(MacCodec.INVALID, MacCodec.encode("00:11:22:33:44:555")); //$NON-NLS-1$
+        assertEquals(MacCodec.INVALID, MacCodec.encode("00-11-22-33-44-55")); //$NON-NLS-1$
+        assertEquals(MacCodec.INVALID, MacCodec.encode("00:11:22:33:44:5G")); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that values wider than 48 bits can't be decoded.
+     */
+    @Test
+    public void testDecodeInvalid()
+    {
+        try
+        {
+            MacCodec.decode(MacCodec.INVALID);
+            fail();
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // expected exception
+        }
+    }
+}
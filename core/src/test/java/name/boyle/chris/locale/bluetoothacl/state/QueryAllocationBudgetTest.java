@@ -0,0 +1,143 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.text.ParseException;
+
+import name.boyle.chris.locale.bluetoothacl.bundle.ConditionCodec;
+import name.boyle.chris.locale.bluetoothacl.test.FakeClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Counts what the core half of a steady-state query allocates: validating a compact payload, checking that the condition's
+ * devices are known, and evaluating it, for each kind of condition. The Bundle half can only be measured on a device, by the
+ * instrumentation tests' {@code QueryAllocationTest}.
+ * <p>
+ * Allocations are counted per thread by the JVM's {@code com.sun.management.ThreadMXBean}. The test is skipped on a JVM without
+ * it.
+ */
+public final class QueryAllocationBudgetTest
+{
+    /**
+     * Number of measured rounds of queries.
+     */
+    private static final int ROUNDS = 10000;
+
+    /**
+     * Bytes all the measured rounds together may allocate. A steady-state query allocates nothing; this only absorbs what the JVM
+     * itself may allocate on the thread while it is measured.
+     */
+    private static final long ALLOCATION_BUDGET = 1024;
+
+    /**
+     * Packed MACs of test devices.
+     */
+    private static final long MAC_1 = MacCodec.encode("00:11:22:33:44:01"), MAC_2 = MacCodec.encode("00:11:22:33:44:02"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    /**
+     * Class of the test devices: an audio/video headset.
+     */
+    private static final int DEVICE_CLASS = 0x0404;
+
+    /**
+     * Directory holding the store's and registry's files.
+     */
+    private File mDirectory;
+
+    /**
+     * Store of device states.
+     */
+    private ConnectionStateStore mStore;
+
+    /**
+     * Evaluator under test.
+     */
+    private ConditionEvaluator mEvaluator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+        mStore = new ConnectionStateStore(mDirectory);
+        final FakeClock clock = new FakeClock();
+        mEvaluator = new ConditionEvaluator(mStore, new WatchedDeviceRegistry(mDirectory, clock), clock);
+
+        mStore.setConnected(MAC_1, true, 0, false);
+        mStore.setDeviceClass(MAC_1, DEVICE_CLASS);
+        mStore.setConnected(MAC_2, false, 0, false);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mStore.discard();
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that steady-state queries of every kind stay within {@link #ALLOCATION_BUDGET}.
+     */
+    @Test
+    public void testQueryAllocations() throws ParseException
+    {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+
+        final byte[] payload = ConditionCodec.encodeDevices(new long[] { MAC_1, MAC_2 }, true, DeviceCondition.QUANTIFIER_ANY, 1);
+        final DeviceCondition condition = new DeviceCondition(new long[] { MAC_1, MAC_2 }, true, 1);
+        final ConditionExpression expression = ConditionExpression.compile(MacCodec.decode(MAC_1) + " AND NOT " + MacCodec.decode(MAC_2)); //$NON-NLS-1$
+
+        /*
+         * The first queries watch the devices and commit their states, which writes files; warming up also lets the JIT settle
+         */
+        for (int x = 0; x < ROUNDS; x++)
+        {
+            query(payload, condition, expression);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = counter.getThreadAllocatedBytes(threadId);
+        for (int x = 0; x < ROUNDS; x++)
+        {
+            query(payload, condition, expression);
+        }
+        final long allocations = counter.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(String.format("%d bytes over %d rounds", Long.valueOf(allocations), Integer.valueOf(ROUNDS)), allocations <= ALLOCATION_BUDGET); //$NON-NLS-1$
+    }
+
+    /**
+     * Runs one query of each kind, checking the answers.
+     *
+     * @param payload a compact payload.
+     * @param condition a condition on a set of devices.
+     * @param expression an expression.
+     */
+    private void query(final byte[] payload, final DeviceCondition condition, final ConditionExpression expression)
+    {
+        assertTrue(ConditionCodec.isValid(payload));
+
+        assertTrue(mStore.isKnown(MAC_1));
+        assertTrue(mEvaluator.isSatisfied(MAC_1, true));
+
+        assertTrue(mStore.isKnown(condition));
+        assertTrue(mEvaluator.isSatisfied(condition));
+
+        assertTrue(mStore.isKnown(expression));
+        assertTrue(mEvaluator.isSatisfied(expression));
+
+        assertTrue(mStore.isClassKnown(true, DeviceClass.getMajor(DEVICE_CLASS)));
+        assertTrue(mEvaluator.isClassSatisfied(true, DeviceClass.getMajor(DEVICE_CLASS), true));
+        assertFalse(mEvaluator.isClassSatisfied(false, DEVICE_CLASS, false));
+    }
+}
@@ -0,0 +1,131 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link RequeryBatcher} on a {@link VirtualScheduler}, which sends each batch at its deadline as time is moved forward.
+ */
+public final class RequeryBatcherTest
+{
+    /**
+     * Clock and executor driving the batcher.
+     */
+    private VirtualScheduler mScheduler;
+
+    /**
+     * Number of requeries the batcher sent.
+     */
+    /* package */int mSendCount;
+
+    /**
+     * Batcher under test.
+     */
+    private RequeryBatcher mBatcher;
+
+    @Before
+    public void setUp()
+    {
+        mScheduler = new VirtualScheduler(0);
+        mSendCount = 0;
+        mBatcher = new RequeryBatcher(new TransitionProcessor.RequerySender()
+        {
+            public void requestRequery()
+            {
+                mSendCount++;
+            }
+        }, mScheduler, mScheduler);
+    }
+
+    /**
+     * Tests that requests within the batch window become one requery.
+     */
+    @Test
+    public void testBatch()
+    {
+        mBatcher.requestRequery();
+        mScheduler.advanceTo(100);
+        mBatcher.requestRequery();
+        mBatcher.requestRequery();
+        mScheduler.advanceTo(RequeryBatcher.BATCH_WINDOW_MILLIS - 1);
+        assertEquals(0, mSendCount);
+
+        mScheduler.advanceTo(RequeryBatcher.BATCH_WINDOW_MILLIS);
+        assertEquals(1, mSendCount);
+        assertEquals(1, mBatcher.getSentCount());
+        assertEquals(2, mBatcher.getSuppressedCount());
+
+        mBatcher.sendDue();
+        mScheduler.runUntilIdle();
+        assertEquals(1, mSendCount);
+    }
+
+    /**
+     * Tests that a request soon after a requery waits for the minimum interval.
+     */
+    @Test
+    public void testMinimumInterval()
+    {
+        mBatcher.requestRequery();
+        mScheduler.advanceTo(RequeryBatcher.BATCH_WINDOW_MILLIS);
+        assertEquals(1, mSendCount);
+
+        mBatcher.requestRequery();
+        mScheduler.advanceTo(2 * RequeryBatcher.BATCH_WINDOW_MILLIS);
+        assertEquals(1, mSendCount);
+
+        mBatcher.requestRequery();
+        mScheduler.advanceTo(RequeryBatcher.BATCH_WINDOW_MILLIS + RequeryBatcher.MIN_INTERVAL_MILLIS - 1);
+        assertEquals(1, mSendCount);
+
+        mScheduler.advanceTo(RequeryBatcher.BATCH_WINDOW_MILLIS + RequeryBatcher.MIN_INTERVAL_MILLIS);
+        assertEquals(2, mSendCount);
+        assertEquals(1, mBatcher.getSuppressedCount());
+    }
+
+    /**
+     * Tests that a request long after a requery only waits for the batch window.
+     */
+    @Test
+    public void testAfterInterval()
+    {
+        mBatcher.requestRequery();
+        mScheduler.advanceTo(RequeryBatcher.BATCH_WINDOW_MILLIS);
+
+        final long requestedAt = RequeryBatcher.BATCH_WINDOW_MILLIS + RequeryBatcher.MIN_INTERVAL_MILLIS;
+        mScheduler.advanceTo(requestedAt);
+        mBatcher.requestRequery();
+        mScheduler.advanceTo(requestedAt + RequeryBatcher.BATCH_WINDOW_MILLIS);
+        assertEquals(2, mSendCount);
+        assertEquals(0, mBatcher.getSuppressedCount());
+    }
+
+    /**
+     * Tests that callbacks run after the batch they wait for is sent, or at once if there is none.
+     */
+    @Test
+    public void testRunWhenSent()
+    {
+        final int[] runs = new int[1];
+        final Runnable callback = new Runnable()
+        {
+            public void run()
+            {
+                assertEquals(runs[0], mSendCount);
+                runs[0]++;
+            }
+        };
+
+        mBatcher.runWhenSent(callback);
+        assertEquals(1, runs[0]);
+
+        mBatcher.requestRequery();
+        mBatcher.runWhenSent(callback);
+        assertEquals(1, runs[0]);
+
+        mScheduler.runUntilIdle();
+        assertEquals(2, runs[0]);
+    }
+}
@@ -0,0 +1,165 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link TraceReplayer} and the {@link VirtualScheduler} it runs on.
+ */
+public final class TraceReplayerTest
+{
+    /**
+     * A packed MAC.
+     */
+    private static final long MAC_1 = MacCodec.encode("00:11:22:33:44:01"); //$NON-NLS-1$
+
+    /**
+     * Another packed MAC.
+     */
+    private static final long MAC_2 = MacCodec.encode("00:11:22:33:44:02"); //$NON-NLS-1$
+
+    /**
+     * Debounce window used by these tests.
+     */
+    private static final long WINDOW = TransitionDebouncer.DEFAULT_WINDOW_MILLIS;
+
+    /**
+     * Directory holding the store's files.
+     */
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that tasks run in order of deadline, at their deadlines, and only as time reaches them.
+     */
+    @Test
+    public void testVirtualScheduler()
+    {
+        final VirtualScheduler scheduler = new VirtualScheduler(1000);
+        final List<Long> ranAt = new ArrayList<Long>();
+        final Runnable record = new Runnable()
+        {
+            public void run()
+            {
+                ranAt.add(Long.valueOf(scheduler.elapsedRealtime()));
+            }
+        };
+        scheduler.schedule(record, 200, TimeUnit.MILLISECONDS);
+        scheduler.schedule(record, 100, TimeUnit.MILLISECONDS);
+        scheduler.schedule(record, 300, TimeUnit.MILLISECONDS).cancel(false);
+
+        scheduler.advanceTo(1150);
+        assertEquals(1, ranAt.size());
+        assertEquals(1150, scheduler.currentTimeMillis());
+
+        scheduler.runUntilIdle();
+        assertEquals(2, ranAt.size());
+        assertEquals(Long.valueOf(1100), ranAt.get(0));
+        assertEquals(Long.valueOf(1200), ranAt.get(1));
+    }
+
+    /**
+     * Tests that periodic tasks run once per period until cancelled, and stop when the scheduler is shut down.
+     */
+    @Test
+    public void testVirtualSchedulerPeriodic()
+    {
+        final VirtualScheduler scheduler = new VirtualScheduler(1000);
+        final List<Long> rateRanAt = new ArrayList<Long>();
+        final List<Long> delayRanAt = new ArrayList<Long>();
+        final ScheduledFuture<?> rate = scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                rateRanAt.add(Long.valueOf(scheduler.elapsedRealtime()));
+            }
+        }, 50, 100, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                delayRanAt.add(Long.valueOf(scheduler.elapsedRealtime()));
+            }
+        }, 100, 100, TimeUnit.MILLISECONDS);
+
+        scheduler.advanceTo(1300);
+        assertEquals(Arrays.asList(Long.valueOf(1050), Long.valueOf(1150), Long.valueOf(1250)), rateRanAt);
+        assertEquals(Arrays.asList(Long.valueOf(1100), Long.valueOf(1200), Long.valueOf(1300)), delayRanAt);
+
+        rate.cancel(false);
+        scheduler.advanceTo(1400);
+        assertEquals(3, rateRanAt.size());
+        assertEquals(4, delayRanAt.size());
+
+        scheduler.shutdown();
+        scheduler.runUntilIdle();
+        assertEquals(4, delayRanAt.size());
+        assertTrue(scheduler.isTerminated());
+    }
+
+    /**
+     * Tests that a flapping burst on a watched device costs one commit and one requery.
+     */
+    @Test
+    public void testFlappingBurst()
+    {
+        final List<AclTrace.Event> events = new ArrayList<AclTrace.Event>();
+        for (int x = 0; x < 9; x++)
+        {
+            events.add(new AclTrace.Event(5000 + x * 50, MAC_1, 0 == x % 2, DeviceClass.UNKNOWN, true));
+        }
+
+        final TraceReplayer.Result result = TraceReplayer.replay(events, mDirectory, WINDOW);
+        assertEquals(9, result.getEventCount());
+        assertEquals(8, result.getMergedCount());
+        assertEquals(1, result.getCommitCount());
+        assertEquals(1, result.getCommittedTransitionCount());
+        assertEquals(1, result.getRequeryCount());
+        assertEquals(0, result.getSuppressedRequeryCount());
+    }
+
+    /**
+     * Tests that without debouncing, a burst asks for a requery per change, which the batcher's rate limit then thins, and that an
+     * unwatched device costs nothing.
+     */
+    @Test
+    public void testNoWindow()
+    {
+        final List<AclTrace.Event> events = new ArrayList<AclTrace.Event>();
+        for (int x = 0; x < 4; x++)
+        {
+            events.add(new AclTrace.Event(x * 1000, MAC_1, 0 == x % 2, DeviceClass.UNKNOWN, true));
+            events.add(new AclTrace.Event(x * 1000 + 10, MAC_2, 0 == x % 2, DeviceClass.UNKNOWN, false));
+        }
+
+        final TraceReplayer.Result result = TraceReplayer.replay(events, mDirectory, 0);
+        assertEquals(0, result.getMergedCount());
+        assertEquals(4, result.getCommitCount());
+        assertEquals(4, result.getCommittedTransitionCount());
+        // Sent at 250, 2250 for the requests at 1000 and 2000, and 4250 for the one at 3000
+        assertEquals(3, result.getRequeryCount());
+        assertEquals(1, result.getSuppressedRequeryCount());
+    }
+}
@@ -0,0 +1,181 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link TransitionDebouncer}.
+ */
+public final class TransitionDebouncerTest
+{
+    /**
+     * Window used by these tests.
+     */
+    private static final long WINDOW = 500;
+
+    /**
+     * Tests that a transition is held until its window closes.
+     */
+    @Test
+    public void testSingleTransition()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(WINDOW);
+        assertTrue(debouncer.isIdle());
+        assertEquals(Long.MAX_VALUE, debouncer.getNextDeadline());
+
+        debouncer.offer(1, true, 1000, 100);
+        assertFalse(debouncer.isIdle());
+        assertEquals(100 + WINDOW, debouncer.getNextDeadline());
+        assertTrue(debouncer.drainDue(100 + WINDOW - 1).isEmpty());
+
+        final List<Transition> due = debouncer.drainDue(100 + WINDOW);
+        assertEquals(1, due.size());
+        assertEquals(1, due.get(0).getDeviceMac());
+        assertTrue(due.get(0).isConnected());
+        assertEquals(1000, due.get(0).getTimestamp());
+        assertTrue(debouncer.isIdle());
+    }
+
+    /**
+     * Tests that a burst settles to its last state, at the deadline set by its first transition.
+     */
+    @Test
+    public void testBurst()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(WINDOW);
+        debouncer.offer(1, true, 0, 0);
+        debouncer.offer(1, false, 100, 100);
+        debouncer.offer(1, true, 200, 200);
+        debouncer.offer(1, false, 300, 300);
+        assertEquals(WINDOW, debouncer.getNextDeadline());
+        assertEquals(3, debouncer.getMergedCount());
+
+        final List<Transition> due = debouncer.drainDue(WINDOW);
+        assertEquals(1, due.size());
+        assertFalse(due.get(0).isConnected());
+        assertEquals(300, due.get(0).getTimestamp());
+    }
+
+    /**
+     * Tests that each device has its own window.
+     */
+    @Test
+    public void testDevicesIndependent()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(WINDOW);
+        debouncer.offer(1, true, 0, 0);
+        debouncer.offer(2, true, 200, 200);
+
+        List<Transition> due = debouncer.drainDue(WINDOW);
+        assertEquals(1, due.size());
+        assertEquals(1, due.get(0).getDeviceMac());
+        assertEquals(200 + WINDOW, debouncer.getNextDeadline());
+
+        due = debouncer.drainDue(200 + WINDOW);
+        assertEquals(1, due.size());
+        assertEquals(2, due.get(0).getDeviceMac());
+        assertEquals(0, debouncer.getMergedCount());
+    }
+
+    /**
+     * Tests that a new burst after a window closes opens a new window.
+     */
+    @Test
+    public void testNewWindow()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(WINDOW);
+        debouncer.offer(1, true, 0, 0);
+        assertEquals(1, debouncer.drainDue(WINDOW).size());
+
+        debouncer.offer(1, false, WINDOW + 10, WINDOW + 10);
+        assertEquals(2 * WINDOW + 10, debouncer.getNextDeadline());
+    }
+
+    /**
+     * Tests draining before the deadlines.
+     */
+    @Test
+    public void testDrainAll()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(WINDOW);
+        debouncer.offer(1, true, 0, 0);
+        debouncer.offer(2, false, 0, 0);
+        assertEquals(2, debouncer.drainAll().size());
+        assertTrue(debouncer.isIdle());
+    }
+
+    /**
+     * Tests that many open windows drain in the order they close, and that the next deadline follows the oldest open window.
+     */
+    @Test
+    public void testManyDevices()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(WINDOW);
+        for (int x = 0; x < 10000; x++)
+        {
+            debouncer.offer(x, true, x, x);
+        }
+        debouncer.offer(0, false, 10000, 10000);
+        assertEquals(WINDOW, debouncer.getNextDeadline());
+
+        final List<Transition> due = debouncer.drainDue(WINDOW + 4999);
+        assertEquals(5000, due.size());
+        assertEquals(0, due.get(0).getDeviceMac());
+        assertFalse(due.get(0).isConnected());
+        assertEquals(4999, due.get(4999).getDeviceMac());
+        assertEquals(WINDOW + 5000, debouncer.getNextDeadline());
+        assertEquals(5000, debouncer.drainAll().size());
+    }
+
+    /**
+     * Tests that a window opened after the window is shortened doesn't close before the windows opened earlier.
+     */
+    @Test
+    public void testShortenedWindow()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(WINDOW);
+        debouncer.offer(1, true, 0, 0);
+        debouncer.setWindowMillis(10);
+        debouncer.offer(2, true, 10, 10);
+        assertEquals(WINDOW, debouncer.getNextDeadline());
+        assertTrue(debouncer.drainDue(20).isEmpty());
+        assertEquals(2, debouncer.drainDue(WINDOW).size());
+
+        debouncer.offer(3, true, WINDOW + 10, WINDOW + 10);
+        assertEquals(WINDOW + 20, debouncer.getNextDeadline());
+    }
+
+    /**
+     * Tests that a zero window releases transitions immediately.
+     */
+    @Test
+    public void testZeroWindow()
+    {
+        final TransitionDebouncer debouncer = new TransitionDebouncer(0);
+        debouncer.offer(1, true, 0, 50);
+        assertEquals(1, debouncer.drainDue(50).size());
+    }
+
+    /**
+     * Tests that negative windows are rejected.
+     */
+    @Test
+    public void testNegativeWindow()
+    {
+        try
+        {
+            new TransitionDebouncer(-1);
+            fail();
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // expected exception
+        }
+    }
+}
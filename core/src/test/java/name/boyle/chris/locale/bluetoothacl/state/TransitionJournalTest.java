@@ -0,0 +1,355 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link TransitionJournal}.
+ */
+public final class TransitionJournalTest
+{
+    /**
+     * Directory holding the journal.
+     */
+    private File mDirectory;
+
+    /**
+     * Journal under test, in {@link #mDirectory}.
+     */
+    private TransitionJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+        mJournal = new TransitionJournal(mDirectory);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mJournal.close();
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests loading when neither file exists.
+     */
+    @Test
+    public void testEmpty() throws IOException
+    {
+        assertFalse(TransitionJournal.exists(mDirectory));
+        assertTrue(mJournal.load().isEmpty());
+        assertEquals(0, mJournal.getTailCount());
+        assertTrue(TransitionJournal.exists(mDirectory));
+    }
+
+    /**
+     * Tests that appended records are replayed, without a force, by a journal opened after this one is abandoned.
+     */
+    @Test
+    public void testAppendReload() throws IOException
+    {
+        mJournal.load();
+        mJournal.append(new Transition(MacCodec.encode("00:11:22:33:44:55"), true, 100)); //$NON-NLS-1$
+        mJournal.append(new Transition(MacCodec.encode("AA:BB:CC:DD:EE:FF"), true, 200)); //$NON-NLS-1$
+        mJournal.append(new Transition(MacCodec.encode("00:11:22:33:44:55"), false, 300)); //$NON-NLS-1$
+
+        final Map<String, Transition> loaded = reload();
+        assertEquals(2, loaded.size());
+        assertFalse(loaded.get("00:11:22:33:44:55").isConnected()); //$NON-NLS-1$
+        assertEquals(300, loaded.get("00:11:22:33:44:55").getTimestamp()); //$NON-NLS-1$
+        assertTrue(loaded.get("AA:BB:CC:DD:EE:FF").isConnected()); //$NON-NLS-1$
+        assertEquals(3, mJournal.getTailCount());
+    }
+
+    /**
+     * Tests that a full journal is compacted into the snapshot, leaving a short tail.
+     */
+    @Test
+    public void testCompaction() throws IOException
+    {
+        final long[] lastTimestamps = new long[4];
+        mJournal.load();
+        for (int x = 0; x < TransitionJournal.JOURNAL_CAPACITY + 10; x++)
+        {
+            mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(x % 4)), 0 == x % 2, x));
+            lastTimestamps[x % 4] = x;
+        }
+        assertEquals(10, mJournal.getTailCount());
+
+        final Map<String, Transition> loaded = reload();
+        assertEquals(4, loaded.size());
+        assertEquals(10, mJournal.getTailCount());
+        for (int x = 0; x < 4; x++)
+        {
+            final Transition transition = loaded.get(WriteBehindPersisterTest.mac(x));
+            assertEquals(0 == x % 2, transition.isConnected());
+            assertEquals(lastTimestamps[x], transition.getTimestamp());
+        }
+
+        assertEquals(4 + 8 + 4 * TransitionJournal.RECORD_SIZE, new File(mDirectory, TransitionJournal.SNAPSHOT_FILE).length());
+    }
+
+    /**
+     * Tests that a load compacts a journal which has reached the compaction threshold without filling up.
+     */
+    @Test
+    public void testCompactOnLoad() throws IOException
+    {
+        mJournal.load();
+        for (int x = 0; x < TransitionJournal.COMPACTION_THRESHOLD - 1; x++)
+        {
+            mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(x % 4)), true, x));
+        }
+        reload();
+        assertEquals(TransitionJournal.COMPACTION_THRESHOLD - 1, mJournal.getTailCount());
+
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(0)), false, 1000));
+        final Map<String, Transition> loaded = reload();
+        assertEquals(0, mJournal.getTailCount());
+        assertEquals(4, loaded.size());
+        assertFalse(loaded.get(WriteBehindPersisterTest.mac(0)).isConnected());
+        assertTrue(loaded.get(WriteBehindPersisterTest.mac(1)).isConnected());
+    }
+
+    /**
+     * Tests that compactIfDue only compacts once the threshold is reached.
+     */
+    @Test
+    public void testCompactIfDue() throws IOException
+    {
+        mJournal.load();
+        for (int x = 0; x < TransitionJournal.COMPACTION_THRESHOLD - 1; x++)
+        {
+            mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(0)), 0 == x % 2, x));
+        }
+        assertFalse(mJournal.compactIfDue());
+        assertEquals(TransitionJournal.COMPACTION_THRESHOLD - 1, mJournal.getTailCount());
+
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(0)), true, 1000));
+        assertTrue(mJournal.compactIfDue());
+        assertEquals(0, mJournal.getTailCount());
+        assertTrue(reload().get(WriteBehindPersisterTest.mac(0)).isConnected());
+    }
+
+    /**
+     * Tests that the complete records of a journal of an unexpected size are recovered, on top of the snapshot, and that the
+     * journal is recreated at its proper size.
+     */
+    @Test
+    public void testTruncatedJournal() throws IOException
+    {
+        mJournal.load();
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(0)), true, 1));
+        mJournal.compact();
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(1)), true, 2));
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(0)), false, 3));
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(2)), true, 4));
+        mJournal.close();
+
+        /*
+         * Cut the last record in half
+         */
+        setLength(TransitionJournal.JOURNAL_FILE, 8 + 2 * TransitionJournal.RECORD_SIZE + TransitionJournal.RECORD_SIZE / 2);
+
+        final Map<String, Transition> loaded = reload();
+        assertEquals(2, loaded.size());
+        assertFalse(loaded.get(WriteBehindPersisterTest.mac(0)).isConnected());
+        assertTrue(loaded.get(WriteBehindPersisterTest.mac(1)).isConnected());
+        assertEquals(0, mJournal.getTailCount());
+        assertEquals(8 + TransitionJournal.JOURNAL_CAPACITY * TransitionJournal.RECORD_SIZE, new File(mDirectory, TransitionJournal.JOURNAL_FILE).length());
+
+        /*
+         * The recovered records are in the snapshot now, so they survive the next load too
+         */
+        assertEquals(2, reload().size());
+    }
+
+    /**
+     * Tests that a journal of an unexpected size whose header is corrupt falls back to the snapshot.
+     */
+    @Test
+    public void testTruncatedCorruptJournal() throws IOException
+    {
+        mJournal.load();
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(0)), true, 1));
+        mJournal.compact();
+        mJournal.append(new Transition(MacCodec.encode(WriteBehindPersisterTest.mac(0)), false, 2));
+        mJournal.close();
+
+        setVersion(TransitionJournal.JOURNAL_FILE, 99);
+        setLength(TransitionJournal.JOURNAL_FILE, 8 + TransitionJournal.RECORD_SIZE);
+
+        final Map<String, Transition> loaded = reload();
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.get(WriteBehindPersisterTest.mac(0)).isConnected());
+    }
+
+    /**
+     * Tests that device classes survive the journal and a compaction, and that a timestamp is unaffected by the class stored
+     * beside it.
+     */
+    @Test
+    public void testDeviceClass() throws IOException
+    {
+        final long now = 1400000000000L;
+        mJournal.load();
+        mJournal.append(new Transition(MacCodec.encode("00:11:22:33:44:55"), true, now, 0x0418)); //$NON-NLS-1$
+        mJournal.append(new Transition(MacCodec.encode("AA:BB:CC:DD:EE:FF"), false, now + 1)); //$NON-NLS-1$
+
+        Map<String, Transition> loaded = reload();
+        assertEquals(0x0418, loaded.get("00:11:22:33:44:55").getDeviceClass()); //$NON-NLS-1$
+        assertEquals(now, loaded.get("00:11:22:33:44:55").getTimestamp()); //$NON-NLS-1$
+        assertEquals(DeviceClass.UNKNOWN, loaded.get("AA:BB:CC:DD:EE:FF").getDeviceClass()); //$NON-NLS-1$
+        assertEquals(now + 1, loaded.get("AA:BB:CC:DD:EE:FF").getTimestamp()); //$NON-NLS-1$
+
+        mJournal.compact();
+        loaded = reload();
+        assertEquals(0, mJournal.getTailCount());
+        assertEquals(0x0418, loaded.get("00:11:22:33:44:55").getDeviceClass()); //$NON-NLS-1$
+        assertEquals(now, loaded.get("00:11:22:33:44:55").getTimestamp()); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that a journal and snapshot of version 1, from before device classes were recorded, are replayed with unknown
+     * classes, and that the journal is upgraded once reopened.
+     */
+    @Test
+    public void testVersion1() throws IOException
+    {
+        mJournal.load();
+        mJournal.append(new Transition(MacCodec.encode("00:11:22:33:44:55"), true, 100)); //$NON-NLS-1$
+        mJournal.compact();
+        mJournal.append(new Transition(MacCodec.encode("AA:BB:CC:DD:EE:FF"), true, 200)); //$NON-NLS-1$
+        mJournal.close();
+
+        /*
+         * Records without a class are the same in both versions, so only the headers differ
+         */
+        setVersion(TransitionJournal.SNAPSHOT_FILE, 1);
+        setVersion(TransitionJournal.JOURNAL_FILE, 1);
+
+        final Map<String, Transition> loaded = reload();
+        assertEquals(2, loaded.size());
+        assertEquals(100, loaded.get("00:11:22:33:44:55").getTimestamp()); //$NON-NLS-1$
+        assertEquals(DeviceClass.UNKNOWN, loaded.get("00:11:22:33:44:55").getDeviceClass()); //$NON-NLS-1$
+        assertEquals(200, loaded.get("AA:BB:CC:DD:EE:FF").getTimestamp()); //$NON-NLS-1$
+        assertEquals(DeviceClass.UNKNOWN, loaded.get("AA:BB:CC:DD:EE:FF").getDeviceClass()); //$NON-NLS-1$
+        assertEquals(1, mJournal.getTailCount());
+
+        mJournal.close();
+        assertEquals(2, getVersion(TransitionJournal.JOURNAL_FILE));
+    }
+
+    /**
+     * Tests that a corrupt journal header is treated as an empty journal rather than replayed.
+     */
+    @Test
+    public void testCorruptJournal() throws IOException
+    {
+        mJournal.append(new Transition(MacCodec.encode("00:11:22:33:44:55"), true, 1)); //$NON-NLS-1$
+        mJournal.close();
+
+        final RandomAccessFile file = new RandomAccessFile(new File(mDirectory, TransitionJournal.JOURNAL_FILE), "rw"); //$NON-NLS-1$
+        try
+        {
+            file.writeInt(0);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        assertTrue(reload().isEmpty());
+    }
+
+    /**
+     * Overwrites the version in the header of a file.
+     *
+     * @param name name of the file in {@link #mDirectory}.
+     * @param version version to write.
+     */
+    private void setVersion(final String name, final int version) throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile(new File(mDirectory, name), "rw"); //$NON-NLS-1$
+        try
+        {
+            file.seek(4);
+            file.writeInt(version);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Truncates or extends a file.
+     *
+     * @param name name of the file in {@link #mDirectory}.
+     * @param length new length of the file.
+     */
+    private void setLength(final String name, final long length) throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile(new File(mDirectory, name), "rw"); //$NON-NLS-1$
+        try
+        {
+            file.setLength(length);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * @param name name of a file in {@link #mDirectory}.
+     * @return the version in the header of the file.
+     */
+    private int getVersion(final String name) throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile(new File(mDirectory, name), "r"); //$NON-NLS-1$
+        try
+        {
+            file.seek(4);
+            return file.readInt();
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * Abandons {@link #mJournal} without forcing it, and loads a new journal from the same directory.
+     *
+     * @return the loaded transitions, keyed by MAC.
+     */
+    private Map<String, Transition> reload() throws IOException
+    {
+        mJournal.close();
+        mJournal = new TransitionJournal(mDirectory);
+
+        final Collection<Transition> transitions = mJournal.load();
+        final Map<String, Transition> result = new HashMap<String, Transition>();
+        for (final Transition transition : transitions)
+        {
+            result.put(MacCodec.decode(transition.getDeviceMac()), transition);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,263 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import name.boyle.chris.locale.bluetoothacl.test.FakeClock;
+
+/**
+ * Tests {@link TransitionProcessor} with a fake clock.
+ */
+public final class TransitionProcessorTest
+{
+    /**
+     * A packed MAC.
+     */
+    private static final long MAC_1 = MacCodec.encode("00:11:22:33:44:01"); //$NON-NLS-1$
+
+    /**
+     * Another packed MAC.
+     */
+    private static final long MAC_2 = MacCodec.encode("00:11:22:33:44:02"); //$NON-NLS-1$
+
+    /**
+     * A packed MAC which no condition watches.
+     */
+    private static final long MAC_UNWATCHED = MacCodec.encode("00:11:22:33:44:03"); //$NON-NLS-1$
+
+    /**
+     * Debounce window used by these tests.
+     */
+    private static final long WINDOW = TransitionDebouncer.DEFAULT_WINDOW_MILLIS;
+
+    /**
+     * Directory holding the store and registry.
+     */
+    private File mDirectory;
+
+    /**
+     * Clock driving the processor.
+     */
+    private FakeClock mClock;
+
+    /**
+     * Store the processor writes to.
+     */
+    private ConnectionStateStore mStore;
+
+    /**
+     * Number of requeries sent by the processor.
+     */
+    private int mRequeryCount;
+
+    /**
+     * Executor for the processor. The fake clock never reaches its deadlines in real time, so the tests close windows
+     * themselves.
+     */
+    private ScheduledExecutorService mExecutor;
+
+    /**
+     * Processor under test.
+     */
+    private TransitionProcessor mProcessor;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+        mClock = new FakeClock();
+        mRequeryCount = 0;
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mStore = new ConnectionStateStore(mDirectory);
+
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        registry.touch(MAC_1);
+        registry.touch(MAC_2);
+
+        mProcessor = new TransitionProcessor(mStore, registry, mClock, WINDOW, new TransitionProcessor.RequerySender()
+        {
+            public void requestRequery()
+            {
+                mRequeryCount++;
+            }
+        }, mExecutor);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        mExecutor.shutdownNow();
+        mStore.discard();
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that a transition is applied, with one requery, only when its window closes.
+     */
+    @Test
+    public void testSingleTransition()
+    {
+        mProcessor.onTransition(MAC_1, true, null);
+        mProcessor.processDue();
+        assertFalse(isConnected(MAC_1));
+        assertEquals(0, mRequeryCount);
+
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertTrue(isConnected(MAC_1));
+        assertEquals(1, mRequeryCount);
+    }
+
+    /**
+     * Tests that a connect/disconnect/connect burst becomes one transition and one requery.
+     */
+    @Test
+    public void testFlappingBurst()
+    {
+        mProcessor.onTransition(MAC_1, true, null);
+        mClock.advance(100);
+        mProcessor.onTransition(MAC_1, false, null);
+        mClock.advance(100);
+        mProcessor.onTransition(MAC_1, true, null);
+
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertTrue(isConnected(MAC_1));
+        assertEquals(1, mRequeryCount);
+        assertEquals(2, mProcessor.getMergedCount());
+    }
+
+    /**
+     * Tests that a burst which ends in the state it started in causes no requery at all.
+     */
+    @Test
+    public void testNetNoChange()
+    {
+        mProcessor.onTransition(MAC_1, false, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertEquals(1, mRequeryCount);
+
+        mProcessor.onTransition(MAC_1, true, null);
+        mClock.advance(100);
+        mProcessor.onTransition(MAC_1, false, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertFalse(isConnected(MAC_1));
+        assertEquals(1, mRequeryCount);
+    }
+
+    /**
+     * Tests that devices whose windows close together share one requery.
+     */
+    @Test
+    public void testDevicesSettlingTogether()
+    {
+        mProcessor.onTransition(MAC_1, true, null);
+        mProcessor.onTransition(MAC_2, true, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertTrue(isConnected(MAC_1));
+        assertTrue(isConnected(MAC_2));
+        assertEquals(1, mRequeryCount);
+    }
+
+    /**
+     * Tests that transitions of unwatched devices are tracked in memory, but not persisted or reported.
+     */
+    @Test
+    public void testUnwatchedDevice()
+    {
+        mProcessor.onTransition(MAC_UNWATCHED, true, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertTrue(isConnected(MAC_UNWATCHED));
+        assertEquals(0, mRequeryCount);
+
+        mStore.flush();
+        mStore.discard();
+        mStore = new ConnectionStateStore(mDirectory);
+        assertFalse(isConnected(MAC_UNWATCHED));
+    }
+
+    /**
+     * Tests that a device which was persisted while watched has its state on disk kept current after it stops being watched, so
+     * that a new process doesn't load a stale state for it.
+     */
+    @Test
+    public void testUnwatchedDeviceWithPersistedState()
+    {
+        mStore.setConnected(MAC_UNWATCHED, true, 0);
+        mStore.flush();
+
+        mProcessor.onTransition(MAC_UNWATCHED, false, null);
+        mClock.advance(WINDOW);
+        mProcessor.processDue();
+        assertEquals(0, mRequeryCount);
+
+        mStore.flush();
+        mStore.discard();
+        mStore = new ConnectionStateStore(mDirectory);
+        assertFalse(isConnected(MAC_UNWATCHED));
+    }
+
+    /**
+     * Tests that settleAll applies open windows without waiting for them.
+     */
+    @Test
+    public void testSettleAll()
+    {
+        mProcessor.onTransition(MAC_1, true, null);
+        mProcessor.settleAll();
+        assertTrue(isConnected(MAC_1));
+        assertEquals(1, mRequeryCount);
+    }
+
+    /**
+     * Tests that the idle callback waits for every open window, not just its own.
+     */
+    @Test
+    public void testIdleCallback() throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mProcessor.onTransition(MAC_1, true, new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        });
+        mClock.advance(100);
+        mProcessor.onTransition(MAC_2, true, null);
+
+        mClock.advance(WINDOW - 100);
+        mProcessor.processDue();
+        assertTrue(isConnected(MAC_1));
+        assertFalse(isConnected(MAC_2));
+        assertEquals(1, latch.getCount());
+
+        mClock.advance(100);
+        mProcessor.processDue();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * @param mac packed MAC.
+     * @return the state the store reports for {@code mac}.
+     */
+    private boolean isConnected(final long mac)
+    {
+        return mStore.isConnected(mac);
+    }
+}
@@ -0,0 +1,215 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import name.boyle.chris.locale.bluetoothacl.test.FakeClock;
+
+/**
+ * Tests {@link WatchedDeviceRegistry}.
+ */
+public final class WatchedDeviceRegistryTest
+{
+    /**
+     * Directory holding the registry file.
+     */
+    private File mDirectory;
+
+    /**
+     * Clock driving the registry.
+     */
+    private FakeClock mClock;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+        mClock = new FakeClock();
+        mClock.advance(WatchedDeviceRegistry.EXPIRY_MILLIS);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that a device is watched once it has been asked about.
+     */
+    @Test
+    public void testTouch()
+    {
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        final long mac = MacCodec.encode(WriteBehindPersisterTest.mac(1));
+        assertFalse(registry.isWatched(mac));
+        assertTrue(registry.touch(mac));
+        assertTrue(registry.isWatched(mac));
+        assertFalse(registry.touch(mac));
+        assertEquals(1, registry.size());
+    }
+
+    /**
+     * Tests that a device's class is watched through either its major class or its device class, and that class keys don't
+     * collide with MACs.
+     */
+    @Test
+    public void testClass()
+    {
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        assertFalse(registry.isClassWatched(0x0404));
+        assertFalse(registry.isClassWatched(DeviceClass.UNKNOWN));
+
+        assertTrue(registry.touch(DeviceClass.getWatchKey(true, 0x0400)));
+        assertTrue(registry.isClassWatched(0x0404));
+        assertTrue(registry.isClassWatched(0x0400));
+        assertFalse(registry.isClassWatched(0x0204));
+        assertFalse(registry.isWatched(0x0400));
+
+        assertTrue(registry.touch(DeviceClass.getWatchKey(false, 0x0204)));
+        assertTrue(registry.isClassWatched(0x0204));
+        assertFalse(registry.isClassWatched(0x0208));
+        assertFalse(registry.isClassWatched(DeviceClass.UNKNOWN));
+
+        final WatchedDeviceRegistry reloaded = new WatchedDeviceRegistry(mDirectory, mClock);
+        assertTrue(reloaded.isClassWatched(0x0418));
+        assertTrue(reloaded.isClassWatched(0x0204));
+        assertTrue(reloaded.hasWatchedDevices());
+    }
+
+    /**
+     * Tests that the registry survives a restart, and grows past its initial capacity.
+     */
+    @Test
+    public void testReload()
+    {
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        for (int x = 0; x < 10; x++)
+        {
+            registry.touch(MacCodec.encode(WriteBehindPersisterTest.mac(x)));
+        }
+
+        final WatchedDeviceRegistry reloaded = new WatchedDeviceRegistry(mDirectory, mClock);
+        assertEquals(10, reloaded.size());
+        for (int x = 0; x < 10; x++)
+        {
+            assertTrue(reloaded.isWatched(MacCodec.encode(WriteBehindPersisterTest.mac(x))));
+        }
+        assertFalse(reloaded.isWatched(MacCodec.encode(WriteBehindPersisterTest.mac(10))));
+    }
+
+    /**
+     * Tests that devices stop being watched once they haven't been asked about for the expiry time, and that queries within
+     * that time keep them watched.
+     */
+    @Test
+    public void testExpiry()
+    {
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        final long kept = MacCodec.encode(WriteBehindPersisterTest.mac(1));
+        final long expired = MacCodec.encode(WriteBehindPersisterTest.mac(2));
+        registry.touch(kept);
+        registry.touch(expired);
+
+        mClock.advance(WatchedDeviceRegistry.EXPIRY_MILLIS - 1);
+        assertTrue(registry.isWatched(expired));
+        assertFalse(registry.touch(kept));
+
+        mClock.advance(1);
+        assertFalse(registry.isWatched(expired));
+        assertTrue(registry.isWatched(kept));
+
+        final WatchedDeviceRegistry reloaded = new WatchedDeviceRegistry(mDirectory, mClock);
+        assertTrue(reloaded.isWatched(kept));
+        assertFalse(reloaded.isWatched(expired));
+
+        assertTrue(reloaded.touch(expired));
+        assertTrue(reloaded.isWatched(expired));
+    }
+
+    /**
+     * Tests that queries only rewrite the file once per refresh interval.
+     */
+    @Test
+    public void testRefresh()
+    {
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        final long mac = MacCodec.encode(WriteBehindPersisterTest.mac(1));
+        registry.touch(mac);
+        assertTrue(getFile().delete());
+
+        mClock.advance(WatchedDeviceRegistry.REFRESH_MILLIS - 1);
+        registry.touch(mac);
+        assertFalse(getFile().exists());
+
+        mClock.advance(1);
+        registry.touch(mac);
+        assertTrue(getFile().exists());
+    }
+
+    /**
+     * Tests that {@link WatchedDeviceRegistry#isTouchDue(long)} tells exactly when a touch would read or rewrite the file.
+     */
+    @Test
+    public void testIsTouchDue()
+    {
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        final long mac = MacCodec.encode(WriteBehindPersisterTest.mac(1));
+        assertTrue(registry.isTouchDue(mac));
+
+        registry.touch(mac);
+        assertFalse(registry.isTouchDue(mac));
+        assertTrue(registry.isTouchDue(MacCodec.encode(WriteBehindPersisterTest.mac(2))));
+
+        mClock.advance(WatchedDeviceRegistry.REFRESH_MILLIS - 1);
+        assertFalse(registry.isTouchDue(mac));
+        mClock.advance(1);
+        assertTrue(registry.isTouchDue(mac));
+
+        registry.touch(mac);
+        assertFalse(registry.isTouchDue(mac));
+
+        final WatchedDeviceRegistry reloaded = new WatchedDeviceRegistry(mDirectory, mClock);
+        assertTrue(reloaded.isTouchDue(mac));
+        reloaded.size();
+        assertFalse(reloaded.isTouchDue(mac));
+    }
+
+    /**
+     * Tests that a corrupt file is treated as empty.
+     */
+    @Test
+    public void testCorruptFile() throws IOException
+    {
+        final FileOutputStream out = new FileOutputStream(getFile());
+        try
+        {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        final WatchedDeviceRegistry registry = new WatchedDeviceRegistry(mDirectory, mClock);
+        assertEquals(0, registry.size());
+        assertTrue(registry.touch(MacCodec.encode(WriteBehindPersisterTest.mac(1))));
+    }
+
+    /**
+     * @return the registry file.
+     */
+    private File getFile()
+    {
+        return new File(mDirectory, WatchedDeviceRegistry.FILE_NAME);
+    }
+}
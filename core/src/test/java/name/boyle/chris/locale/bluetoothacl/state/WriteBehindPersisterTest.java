@@ -0,0 +1,297 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link WriteBehindPersister}, and that {@link ConnectionStateStore} loses no transitions across a process restart.
+ */
+public final class WriteBehindPersisterTest
+{
+    /**
+     * Number of distinct devices used by the restart tests.
+     */
+    private static final int DEVICE_COUNT = 10;
+
+    /**
+     * Number of transitions recorded by the restart tests. Deliberately not a multiple of {@link #DEVICE_COUNT}, so that the
+     * devices end up in different states.
+     */
+    private static final int TRANSITION_COUNT = 1003;
+
+    /**
+     * Directory holding the journal.
+     */
+    private File mDirectory;
+
+    /**
+     * Store used by the restart tests, or null.
+     */
+    private ConnectionStateStore mStore;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        mDirectory = ConnectionStateStoreTest.newTempDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (null != mStore)
+        {
+            mStore.discard();
+        }
+        ConnectionStateStoreTest.deleteRecursively(mDirectory);
+    }
+
+    /**
+     * Tests that writes are committed without an explicit flush, within the bounded delay.
+     */
+    @Test
+    public void testBoundedDelay() throws InterruptedException, IOException
+    {
+        final TransitionJournal journal = new TransitionJournal(mDirectory);
+        final WriteBehindPersister persister = new WriteBehindPersister(journal);
+        try
+        {
+            persister.write(new Transition(MacCodec.encode(mac(0)), true, 1));
+            assertTrue(persister.hasPendingWrites());
+
+            Thread.sleep(4 * WriteBehindPersister.FLUSH_DELAY_MILLIS);
+
+            assertFalse(persister.hasPendingWrites());
+            assertEquals(1, journal.getTailCount());
+        }
+        finally
+        {
+            persister.discard();
+            journal.close();
+        }
+    }
+
+    /**
+     * Tests that a burst of writes to the same key keeps only the latest value.
+     */
+    @Test
+    public void testCoalescing() throws IOException
+    {
+        final TransitionJournal journal = new TransitionJournal(mDirectory);
+        final WriteBehindPersister persister = new WriteBehindPersister(journal);
+        try
+        {
+            persister.write(new Transition(MacCodec.encode(mac(0)), true, 1));
+            persister.write(new Transition(MacCodec.encode(mac(0)), false, 2));
+            persister.write(new Transition(MacCodec.encode(mac(0)), true, 3));
+            persister.flush();
+
+            assertFalse(persister.hasPendingWrites());
+            assertEquals(1, journal.getTailCount());
+        }
+        finally
+        {
+            persister.discard();
+            journal.close();
+        }
+
+        final Transition transition = new TransitionJournal(mDirectory).load().iterator().next();
+        assertTrue(transition.isConnected());
+        assertEquals(3, transition.getTimestamp());
+    }
+
+    /**
+     * Tests that a clear requested in memory drops the writes queued before it, and keeps those queued after it.
+     */
+    @Test
+    public void testClearLater() throws IOException
+    {
+        final TransitionJournal journal = new TransitionJournal(mDirectory);
+        final WriteBehindPersister persister = new WriteBehindPersister(journal);
+        try
+        {
+            persister.write(new Transition(MacCodec.encode(mac(0)), true, 1));
+            persister.flush();
+            persister.write(new Transition(MacCodec.encode(mac(1)), true, 2));
+            persister.clearLater();
+            assertTrue(persister.hasPendingWrites());
+
+            persister.write(new Transition(MacCodec.encode(mac(2)), true, 3));
+            persister.flush();
+            assertFalse(persister.hasPendingWrites());
+        }
+        finally
+        {
+            persister.discard();
+            journal.close();
+        }
+
+        final Collection<Transition> transitions = new TransitionJournal(mDirectory).load();
+        assertEquals(1, transitions.size());
+        assertEquals(MacCodec.encode(mac(2)), transitions.iterator().next().getDeviceMac());
+    }
+
+    /**
+     * Tests that a commit which leaves the writer idle compacts a journal that has reached the compaction threshold.
+     */
+    @Test
+    public void testCompactWhenIdle() throws IOException
+    {
+        final TransitionJournal journal = new TransitionJournal(mDirectory);
+        final WriteBehindPersister persister = new WriteBehindPersister(journal);
+        try
+        {
+            for (int x = 0; x < TransitionJournal.COMPACTION_THRESHOLD - 1; x++)
+            {
+                persister.write(new Transition(MacCodec.encode(mac(x % 100)), true, x));
+                if (99 == x % 100)
+                {
+                    persister.flush();
+                }
+            }
+            persister.flush();
+            assertEquals(TransitionJournal.COMPACTION_THRESHOLD - 1, journal.getTailCount());
+
+            persister.write(new Transition(MacCodec.encode(mac(0)), false, 1000));
+            persister.flush();
+            assertEquals(0, journal.getTailCount());
+        }
+        finally
+        {
+            persister.discard();
+            journal.close();
+        }
+    }
+
+    /**
+     * Tests that the flushThen callback only runs once the write is on disk.
+     */
+    @Test
+    public void testFlushThen() throws InterruptedException
+    {
+        final TransitionJournal journal = new TransitionJournal(mDirectory);
+        final WriteBehindPersister persister = new WriteBehindPersister(journal);
+        try
+        {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final int[] tailCount = new int[1];
+
+            persister.write(new Transition(MacCodec.encode(mac(0)), true, 1));
+            persister.flushThen(new Runnable()
+            {
+                public void run()
+                {
+                    tailCount[0] = journal.getTailCount();
+                    latch.countDown();
+                }
+            });
+
+            assertTrue(latch.await(4 * WriteBehindPersister.FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(1, tailCount[0]);
+        }
+        finally
+        {
+            persister.discard();
+            journal.close();
+        }
+    }
+
+    /**
+     * Tests that transitions survive the process being killed after the trim-memory flush.
+     */
+    @Test
+    public void testRestartAfterFlush()
+    {
+        final boolean[] expected = recordTransitions();
+
+        mStore.flush();
+        restart();
+
+        assertStates(expected);
+    }
+
+    /**
+     * Tests that transitions survive the process being killed as soon as the receiver's pending result is finished.
+     */
+    @Test
+    public void testRestartAfterPendingResult() throws InterruptedException
+    {
+        final boolean[] expected = recordTransitions();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        mStore.flushThen(new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(4 * WriteBehindPersister.FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS));
+
+        restart();
+
+        assertStates(expected);
+    }
+
+    /**
+     * Records {@link #TRANSITION_COUNT} transitions spread over {@link #DEVICE_COUNT} devices.
+     *
+     * @return the final state of each device.
+     */
+    private boolean[] recordTransitions()
+    {
+        mStore = new ConnectionStateStore(mDirectory);
+        final boolean[] expected = new boolean[DEVICE_COUNT];
+        for (int x = 0; x < TRANSITION_COUNT; x++)
+        {
+            final int device = x % DEVICE_COUNT;
+            expected[device] = !expected[device];
+            mStore.setConnected(mac(device), expected[device]);
+        }
+
+        return expected;
+    }
+
+    /**
+     * Discards {@link #mStore} with any pending writes, as a killed process would, and loads a new store from the same
+     * directory.
+     */
+    private void restart()
+    {
+        mStore.discard();
+        mStore = new ConnectionStateStore(mDirectory);
+    }
+
+    /**
+     * Asserts that a freshly loaded store reports {@code expected}.
+     *
+     * @param expected the expected state of each device.
+     */
+    private void assertStates(final boolean[] expected)
+    {
+        for (int x = 0; x < expected.length; x++)
+        {
+            assertEquals(mac(x), Boolean.valueOf(expected[x]), Boolean.valueOf(mStore.isConnected(mac(x))));
+        }
+        assertEquals(1, mStore.getMissCount());
+    }
+
+    /**
+     * @param device index of the device.
+     * @return a MAC for the device at {@code device}.
+     */
+    /* package */static String mac(final int device)
+    {
+        return String.format("00:11:22:33:44:%02X", Integer.valueOf(device)); //$NON-NLS-1$
+    }
+}
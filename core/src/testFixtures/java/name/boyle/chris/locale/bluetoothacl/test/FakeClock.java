@@ -0,0 +1,33 @@
+package name.boyle.chris.locale.bluetoothacl.test;
+
+import name.boyle.chris.locale.bluetoothacl.state.Clock;
+
+/**
+ * A {@link Clock} which only moves when told to. Both of its timelines start at 0 and advance together. Shared by the core
+ * and instrumentation tests.
+ */
+public final class FakeClock implements Clock
+{
+    /**
+     * Current time. Guarded by {@code this}.
+     */
+    private long mNow = 0;
+
+    public synchronized long elapsedRealtime()
+    {
+        return mNow;
+    }
+
+    public synchronized long currentTimeMillis()
+    {
+        return mNow;
+    }
+
+    /**
+     * @param millis amount to move the clock forward by.
+     */
+    public synchronized void advance(final long millis)
+    {
+        mNow += millis;
+    }
+}
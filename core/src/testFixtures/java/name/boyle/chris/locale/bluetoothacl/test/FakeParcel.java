@@ -0,0 +1,168 @@
+package name.boyle.chris.locale.bluetoothacl.test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import name.boyle.chris.locale.bluetoothacl.bundle.ParcelInspector;
+
+/**
+ * A stand-in for {@code android.os.Parcel} on a plain JVM, laid out as the native parcel is: little-endian, every value padded
+ * to four bytes. It only writes what a Bundle of plain values needs, and is read through {@link ParcelInspector.Source}. Shared
+ * by the core tests and benchmarks.
+ */
+public final class FakeParcel implements ParcelInspector.Source
+{
+    /**
+     * The data. Its limit is the data size.
+     */
+    private ByteBuffer mData = (ByteBuffer) ByteBuffer.allocate(64).order(ByteOrder.LITTLE_ENDIAN).limit(0);
+
+    /**
+     * Current read or write position.
+     */
+    private int mPosition = 0;
+
+    public int dataPosition()
+    {
+        return mPosition;
+    }
+
+    public int dataSize()
+    {
+        return mData.limit();
+    }
+
+    public void setDataPosition(final int position)
+    {
+        mPosition = position;
+    }
+
+    public int readInt()
+    {
+        final int value = mData.getInt(mPosition);
+        mPosition += 4;
+        return value;
+    }
+
+    /**
+     * Cuts the data short, or extends it with zeros.
+     *
+     * @param size new data size, in bytes.
+     */
+    public void setDataSize(final int size)
+    {
+        if (size < mData.limit())
+        {
+            Arrays.fill(mData.array(), size, mData.limit(), (byte) 0);
+        }
+        ensureCapacity(size);
+        mData.limit(size);
+        mPosition = Math.min(mPosition, size);
+    }
+
+    /**
+     * @param value value to write at the current position.
+     */
+    public void writeInt(final int value)
+    {
+        ensureSize(mPosition + 4);
+        mData.putInt(mPosition, value);
+        mPosition += 4;
+    }
+
+    /**
+     * @param value value to write at the current position.
+     */
+    public void writeLong(final long value)
+    {
+        ensureSize(mPosition + 8);
+        mData.putLong(mPosition, value);
+        mPosition += 8;
+    }
+
+    /**
+     * Writes a string as {@code Parcel.writeString()} does: its length in chars, or -1 for null, then the chars and a
+     * terminating NUL.
+     *
+     * @param value value to write at the current position. May be null.
+     */
+    public void writeString(final String value)
+    {
+        if (null == value)
+        {
+            writeInt(-1);
+            return;
+        }
+
+        writeInt(value.length());
+        final int start = mPosition;
+        ensureSize(pad(start + (value.length() + 1) * 2));
+        for (int x = 0; x < value.length(); x++)
+        {
+            mData.putChar(start + x * 2, value.charAt(x));
+        }
+        mPosition = pad(start + (value.length() + 1) * 2);
+    }
+
+    /**
+     * Writes a byte array as {@code Parcel.writeByteArray()} does: its length, or -1 for null, then the bytes.
+     *
+     * @param value value to write at the current position. May be null.
+     */
+    public void writeByteArray(final byte[] value)
+    {
+        if (null == value)
+        {
+            writeInt(-1);
+            return;
+        }
+
+        writeInt(value.length);
+        final int start = mPosition;
+        ensureSize(pad(start + value.length));
+        for (int x = 0; x < value.length; x++)
+        {
+            mData.put(start + x, value[x]);
+        }
+        mPosition = pad(start + value.length);
+    }
+
+    /**
+     * Grows the data size to at least {@code size}. What is added is zero, as the data is only ever cut short by
+     * {@link #setDataSize(int)}, which zeros what it cuts.
+     *
+     * @param size data size needed, in bytes.
+     */
+    private void ensureSize(final int size)
+    {
+        if (size > mData.limit())
+        {
+            ensureCapacity(size);
+            mData.limit(size);
+        }
+    }
+
+    /**
+     * @param size capacity needed, in bytes.
+     */
+    private void ensureCapacity(final int size)
+    {
+        if (size > mData.capacity())
+        {
+            final int limit = mData.limit();
+            final byte[] data = Arrays.copyOf(mData.array(), Math.max(size, mData.capacity() * 2));
+            mData = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            mData.limit(limit);
+        }
+    }
+
+    /**
+     * @param size a size in bytes.
+     * @return {@code size} rounded up to four bytes.
+     */
+    private static int pad(final int size)
+    {
+        return (size + 3) & ~3;
+    }
+}
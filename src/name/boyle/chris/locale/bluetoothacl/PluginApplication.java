@@ -12,6 +12,7 @@
 package name.boyle.chris.locale.bluetoothacl;
 
 import android.app.Application;
+import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.os.Build;
 import android.util.Log;
@@ -19,19 +20,59 @@ import android.util.Log;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
+import name.boyle.chris.locale.bluetoothacl.core.CoreLog;
+import name.boyle.chris.locale.bluetoothacl.receiver.ColdStartTimer;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+
 /**
  * Implements an application object for the plug-in.
  * <p>
- * This application is non-essential for the plug-in's operation; it simply enables debugging options globally for the app.
+ * This application makes sure recorded connection states reach the disk when the process is likely to be killed. Every ACL
+ * broadcast can start the background process just to run a receiver, so nothing else is done when the application is created:
+ * debugging options are enabled by the UI, through {@link #enableDebugOptions(Context)}, and state is loaded by whichever
+ * receiver needs it first.
  */
 public final class PluginApplication extends Application
 {
-    @Override
-    public void onCreate()
+    static
     {
-        super.onCreate();
+        ColdStartTimer.onProcessStart();
 
-        if ((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+        /*
+         * The core logs through a sink rather than logcat directly. Without one its messages are never built.
+         */
+        if (Constants.IS_LOGGABLE)
+        {
+            CoreLog.setSink(new CoreLog.Sink()
+            {
+                public void log(final int priority, final String message, final Throwable throwable)
+                {
+                    Log.println(priority, Constants.LOG_TAG, null == throwable ? message : message + '\n' + Log.getStackTraceString(throwable));
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether {@link #enableDebugOptions(Context)} has run in this process.
+     */
+    private static boolean sIsDebugEnabled = false;
+
+    /**
+     * Enables additional debugging, such as {@code StrictMode}, if the application is debuggable. Only the first call in a process
+     * has any effect.
+     *
+     * @param context Context. Cannot be null.
+     */
+    public static synchronized void enableDebugOptions(final Context context)
+    {
+        if (sIsDebugEnabled)
+        {
+            return;
+        }
+        sIsDebugEnabled = true;
+
+        if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
         {
             if (Constants.IS_LOGGABLE)
             {
@@ -79,4 +120,110 @@ public final class PluginApplication extends Application
             }
         }
     }
+
+    /**
+     * Lets the calling thread read from disk despite {@code StrictMode}, which {@link #enableDebugOptions(Context)} may have
+     * turned on. {@code StrictMode} is reached through reflection, as it doesn't exist before API 9.
+     *
+     * @return the thread's previous policy, to pass to {@link #restoreThreadPolicy(Object)}. Null before API 9.
+     */
+    public static Object allowThreadDiskReads()
+    {
+        if (Build.VERSION.SDK_INT < 9)
+        {
+            return null;
+        }
+
+        return invokeStrictMode("allowThreadDiskReads", new Class<?>[0], new Object[0]); //$NON-NLS-1$
+    }
+
+    /**
+     * Restores the thread policy that {@link #allowThreadDiskReads()} replaced.
+     *
+     * @param policy the result of {@link #allowThreadDiskReads()}. May be null, in which case nothing is done.
+     */
+    public static void restoreThreadPolicy(final Object policy)
+    {
+        if (null == policy)
+        {
+            return;
+        }
+
+        final Class<?> policyClass;
+        try
+        {
+            policyClass = Class.forName("android.os.StrictMode$ThreadPolicy"); //$NON-NLS-1$
+        }
+        catch (final ClassNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+        invokeStrictMode("setThreadPolicy", new Class<?>[] { policyClass }, new Object[] { policy }); //$NON-NLS-1$
+    }
+
+    /**
+     * Calls a static method of {@code StrictMode}. Only valid on API 9 and later.
+     *
+     * @param name name of the method.
+     * @param parameterTypes types of its parameters.
+     * @param arguments its arguments.
+     * @return what the method returned.
+     */
+    private static Object invokeStrictMode(final String name, final Class<?>[] parameterTypes, final Object[] arguments)
+    {
+        try
+        {
+            final Class<?> strictModeClass = Class.forName("android.os.StrictMode"); //$NON-NLS-1$
+            return strictModeClass.getMethod(name, parameterTypes).invoke(strictModeClass, arguments);
+        }
+        catch (final ClassNotFoundException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (final SecurityException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (final NoSuchMethodException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (final IllegalAccessException e)
+        {
+            throw new RuntimeException(e);
+        }
+        catch (final InvocationTargetException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+
+        ConnectionStateCache.flushIfLoaded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrimMemory(final int level)
+    {
+        super.onTrimMemory(level);
+
+        /*
+         * At every trim level the process is a candidate for being killed without further warning
+         */
+        ConnectionStateCache.flushIfLoaded();
+    }
 }
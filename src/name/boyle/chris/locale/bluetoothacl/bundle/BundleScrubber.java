@@ -13,17 +13,47 @@ package name.boyle.chris.locale.bluetoothacl.bundle;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Parcel;
+
+import java.lang.reflect.Field;
 
 /**
  * Helper class to scrub Bundles of invalid extras. This is a workaround for an Android bug:
  * <http://code.google.com/p/android/issues/detail?id=16006>.
+ * <p>
+ * {@link #scrub(Bundle)} finds a private serializable by unparcelling the whole Bundle and catching the exception.
+ * {@link #scrub(Bundle, int)} first looks at the Bundle while it is still parcelled: it rejects an oversized one outright, and
+ * walks the type tags of the extras with {@link ParcelInspector}, so a Bundle of plain values is passed and one holding objects
+ * which name their own class is cleared, both without unparcelling or throwing. Anything it can't tell falls back to
+ * {@link #scrub(Bundle)}.
  */
 public final class BundleScrubber
 {
+    /**
+     * Largest parcelled Bundle {@link #scrub(Bundle, int)} should accept from Locale. Far more than any valid condition.
+     */
+    public static final int MAX_PARCEL_SIZE = ParcelInspector.MAX_PARCEL_SIZE;
+
+    /**
+     * The hidden field in which a Bundle keeps its parcel until it is first read, or null if this platform has none.
+     */
+    private static final Field PARCELLED_DATA = findParcelledDataField();
+
+    /**
+     * Adapter through which each thread hands a parcel to {@link ParcelInspector}, so that scrubbing doesn't allocate.
+     */
+    private static final ThreadLocal<ParcelSource> SOURCE = new ThreadLocal<ParcelSource>()
+    {
+        @Override
+        protected ParcelSource initialValue()
+        {
+            return new ParcelSource();
+        }
+    };
 
     /**
      * Scrubs Intents for private serializable subclasses in the Intent extras. If the Intent's extras contain a private
-     * serializable subclass, the Bundle is cleared. The Bundle will not be set to null. If the Bundle is null, has no extras, or
+     * serializable subclass, the extras are removed. If the Bundle is null, has no extras, or
      * the extras do not contain a private serializable subclass, the Bundle is not mutated.
      *
      * @param intent {@code Intent} to scrub. This parameter may be mutated if scrubbing is necessary. This parameter may be null.
@@ -36,7 +66,22 @@ public final class BundleScrubber
             return false;
         }
 
-        return scrub(intent.getExtras());
+        /*
+         * Probe the Intent's own extras rather than going through getExtras(), which would copy them. The copy would also be the
+         * wrong Bundle to clear.
+         */
+        try
+        {
+            // if a private serializable exists, this will throw an exception
+            intent.hasExtra(null);
+        }
+        catch (final Exception e)
+        {
+            intent.replaceExtras((Bundle) null);
+            return true;
+        }
+
+        return false;
     }
 
     /**
@@ -70,4 +115,166 @@ public final class BundleScrubber
 
         return false;
     }
+
+    /**
+     * Scrubs a Bundle as {@link #scrub(Bundle)} does, but looks at it before unparcelling if it is still parcelled. A parcel
+     * larger than {@code maxParcelSize}, or holding a Parcelable or Serializable extra, gets the Bundle cleared without being
+     * unparcelled. A parcel of plain values (strings, numbers, booleans and arrays of them) is passed without unparcelling. Only
+     * a Bundle which is already unparcelled, or whose parcel can't be read, is probed by {@link #scrub(Bundle)}.
+     * <p>
+     * Plug-in Bundles only ever hold plain values, so this must not be used on Bundles which may legitimately hold Parcelable or
+     * Serializable extras.
+     *
+     * @param bundle {@code Bundle} to scrub. This parameter may be mutated if scrubbing is necessary. This parameter may be null.
+     * @param maxParcelSize largest parcel to accept, in bytes. {@link #MAX_PARCEL_SIZE} for Bundles from Locale.
+     * @return true if the Bundle was scrubbed, false if the Bundle was not modified.
+     */
+    public static boolean scrub(final Bundle bundle, final int maxParcelSize)
+    {
+        if (null == bundle)
+        {
+            return false;
+        }
+
+        final Parcel parcel = getParcelledData(bundle);
+        if (null != parcel)
+        {
+            final ParcelSource source = SOURCE.get();
+            source.mParcel = parcel;
+            final int result;
+            try
+            {
+                result = ParcelInspector.inspect(source, maxParcelSize);
+            }
+            finally
+            {
+                source.mParcel = null;
+            }
+
+            switch (result)
+            {
+                case ParcelInspector.CLEAN:
+                    return false;
+                case ParcelInspector.REJECT:
+                    discard(bundle);
+                    return true;
+                default:
+                    break;
+            }
+        }
+
+        return scrub(bundle);
+    }
+
+    /**
+     * @param bundle a Bundle. Cannot be null.
+     * @return the Bundle's parcel, or null if it has been unparcelled or this platform keeps it elsewhere.
+     */
+    private static Parcel getParcelledData(final Bundle bundle)
+    {
+        if (null == PARCELLED_DATA)
+        {
+            return null;
+        }
+
+        try
+        {
+            return (Parcel) PARCELLED_DATA.get(bundle);
+        }
+        catch (final Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Clears a Bundle without unparcelling it, by dropping its parcel first.
+     *
+     * @param bundle a Bundle which {@link #getParcelledData(Bundle)} could read. Cannot be null.
+     */
+    private static void discard(final Bundle bundle)
+    {
+        try
+        {
+            PARCELLED_DATA.set(bundle, null);
+        }
+        catch (final Exception e)
+        {
+            // the field was readable, so this shouldn't happen; clear() then has to unparcel, which is caught below
+        }
+
+        try
+        {
+            bundle.clear();
+        }
+        catch (final Exception e)
+        {
+            // nothing more can be done
+        }
+    }
+
+    /**
+     * @return the hidden field mParcelledData of {@link Bundle} or its superclass, or null if there is none.
+     */
+    private static Field findParcelledDataField()
+    {
+        for (Class<?> type = Bundle.class; null != type; type = type.getSuperclass())
+        {
+            try
+            {
+                final Field field = type.getDeclaredField("mParcelledData"); //$NON-NLS-1$
+                if (Parcel.class != field.getType())
+                {
+                    return null;
+                }
+                field.setAccessible(true);
+                return field;
+            }
+            catch (final NoSuchFieldException e)
+            {
+                // try the superclass
+            }
+            catch (final SecurityException e)
+            {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads a {@link Parcel} for {@link ParcelInspector}.
+     */
+    private static final class ParcelSource implements ParcelInspector.Source
+    {
+        /**
+         * The parcel being inspected, or null between inspections.
+         */
+        /* package */Parcel mParcel;
+
+        @Override
+        public int dataPosition()
+        {
+            return mParcel.dataPosition();
+        }
+
+        @Override
+        public int dataSize()
+        {
+            return mParcel.dataSize();
+        }
+
+        @Override
+        public void setDataPosition(final int position)
+        {
+            mParcel.setDataPosition(position);
+        }
+
+        @Override
+        public int readInt()
+        {
+            return mParcel.readInt();
+        }
+    }
 }
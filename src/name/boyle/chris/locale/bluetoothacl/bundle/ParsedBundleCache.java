@@ -0,0 +1,231 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import android.os.Bundle;
+
+/**
+ * Remembers the conditions of recently queried Bundles. Locale sends the same Bundle for a condition on every poll, so a Bundle
+ * which {@link ParsedCondition#matches(Bundle) matches} a remembered one is answered without validating or decoding it again.
+ * <p>
+ * The cache holds at most a fixed number of conditions and evicts the least recently used. It is laid out as parallel arrays
+ * searched linearly, which for a handful of entries is faster than hashing and, unlike a map keyed by boxed fingerprints, lets a
+ * hit allocate nothing.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ParsedBundleCache
+{
+    /**
+     * Number of conditions kept by the shared instance. More than a user is likely to have on one plug-in.
+     */
+    /* package */static final int CAPACITY = 16;
+
+    /**
+     * Shared instance.
+     */
+    private static ParsedBundleCache sInstance;
+
+    /**
+     * Fingerprint of each entry.
+     */
+    private final int[] mFingerprints;
+
+    /**
+     * Each entry, or null in unused slots.
+     */
+    private final ParsedCondition[] mEntries;
+
+    /**
+     * When each entry was last used, as a value of {@link #mClock}.
+     */
+    private final long[] mLastUsed;
+
+    /**
+     * Ticks on every lookup.
+     */
+    private long mClock = 0;
+
+    /**
+     * Number of lookups answered from the cache.
+     */
+    private long mHitCount = 0;
+
+    /**
+     * Number of lookups which had to validate the Bundle.
+     */
+    private long mMissCount = 0;
+
+    /**
+     * Number of entries evicted to make room.
+     */
+    private long mEvictionCount = 0;
+
+    /**
+     * @param capacity maximum number of entries. Must be positive.
+     */
+    /* package */ParsedBundleCache(final int capacity)
+    {
+        mFingerprints = new int[capacity];
+        mEntries = new ParsedCondition[capacity];
+        mLastUsed = new long[capacity];
+    }
+
+    /**
+     * @return the shared instance.
+     */
+    public static synchronized ParsedBundleCache getInstance()
+    {
+        if (null == sInstance)
+        {
+            sInstance = new ParsedBundleCache(CAPACITY);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Gets the condition of a Bundle, validating and decoding it only if no remembered Bundle matches.
+     *
+     * @param bundle a scrubbed bundle, as from {@link BundleScrubber#scrub(Bundle)}. May be null or invalid.
+     * @return the condition, or null if {@code bundle} is invalid.
+     */
+    public ParsedCondition get(final Bundle bundle)
+    {
+        if (null == bundle)
+        {
+            return parse(bundle);
+        }
+
+        final int fingerprint = ParsedCondition.fingerprint(bundle);
+        synchronized (this)
+        {
+            mClock++;
+            for (int x = 0; x < mEntries.length; x++)
+            {
+                final ParsedCondition entry = mEntries[x];
+                if (null != entry && fingerprint == mFingerprints[x] && entry.matches(bundle))
+                {
+                    mLastUsed[x] = mClock;
+                    mHitCount++;
+                    return entry;
+                }
+            }
+            mMissCount++;
+        }
+
+        final ParsedCondition result = parse(bundle);
+        if (null != result)
+        {
+            put(result);
+        }
+        return result;
+    }
+
+    /**
+     * @return number of lookups answered from the cache.
+     */
+    public synchronized long getHitCount()
+    {
+        return mHitCount;
+    }
+
+    /**
+     * @return number of lookups which had to validate the Bundle, including those of invalid Bundles.
+     */
+    public synchronized long getMissCount()
+    {
+        return mMissCount;
+    }
+
+    /**
+     * @return number of entries evicted to make room for another.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return number of entries.
+     */
+    public synchronized int size()
+    {
+        int result = 0;
+        for (final ParsedCondition entry : mEntries)
+        {
+            if (null != entry)
+            {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return maximum number of entries.
+     */
+    public int getCapacity()
+    {
+        return mEntries.length;
+    }
+
+    /**
+     * Forgets every entry and resets the counters.
+     */
+    public synchronized void clear()
+    {
+        for (int x = 0; x < mEntries.length; x++)
+        {
+            mEntries[x] = null;
+        }
+        mClock = 0;
+        mHitCount = 0;
+        mMissCount = 0;
+        mEvictionCount = 0;
+    }
+
+    /**
+     * Validates and decodes a Bundle.
+     *
+     * @param bundle the bundle. May be null.
+     * @return the condition, or null if {@code bundle} is invalid.
+     */
+    private static ParsedCondition parse(final Bundle bundle)
+    {
+        if (!PluginBundleManager.isBundleValid(bundle))
+        {
+            return null;
+        }
+
+        return new ParsedCondition(bundle);
+    }
+
+    /**
+     * Adds an entry in an unused slot, or in place of the least recently used.
+     *
+     * @param entry the entry. Cannot be null.
+     */
+    private synchronized void put(final ParsedCondition entry)
+    {
+        int slot = 0;
+        for (int x = 0; x < mEntries.length; x++)
+        {
+            if (null == mEntries[x])
+            {
+                slot = x;
+                break;
+            }
+            if (mLastUsed[x] < mLastUsed[slot])
+            {
+                slot = x;
+            }
+        }
+        if (null != mEntries[slot])
+        {
+            mEvictionCount++;
+        }
+
+        mFingerprints[slot] = entry.getFingerprint();
+        mEntries[slot] = entry;
+        mLastUsed[slot] = ++mClock;
+    }
+}
@@ -0,0 +1,344 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+import name.boyle.chris.locale.bluetoothacl.state.ConditionExpression;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * The decoded condition of a valid Bundle, in any format. Instances are immutable, and may be shared between threads through
+ * {@link ParsedBundleCache}: the only state a {@link DeviceCondition} or {@link ConditionExpression} keeps for the stores
+ * evaluating it is a cache which is replaced whole.
+ * <p>
+ * Each instance also keeps the extras of the Bundle it was decoded from, so that {@link #matches(Bundle)} can tell whether
+ * another Bundle holds exactly the same extras, and so the same condition, without validating it again. That is what lets
+ * {@link ParsedBundleCache} answer a repeated query.
+ */
+public final class ParsedCondition
+{
+    /**
+     * Kind of a condition on one device, in the original format or the compact format.
+     */
+    public static final int KIND_SINGLE_DEVICE = 0;
+
+    /**
+     * Kind of a condition on a set of devices.
+     */
+    public static final int KIND_DEVICES = 1;
+
+    /**
+     * Kind of an expression.
+     */
+    public static final int KIND_EXPRESSION = 2;
+
+    /**
+     * Kind of a condition on a class of devices.
+     */
+    public static final int KIND_DEVICE_CLASS = 3;
+
+    /*
+     * Bits of mKeys, one per extra the source Bundle held
+     */
+    private static final int KEY_STATE = 1 << 0;
+    private static final int KEY_VERSION_CODE = 1 << 1;
+    private static final int KEY_MAC = 1 << 2;
+    private static final int KEY_FORMAT = 1 << 3;
+    private static final int KEY_MACS = 1 << 4;
+    private static final int KEY_QUANTIFIER = 1 << 5;
+    private static final int KEY_MIN_COUNT = 1 << 6;
+    private static final int KEY_EXPRESSION = 1 << 7;
+    private static final int KEY_MAJOR_DEVICE_CLASS = 1 << 8;
+    private static final int KEY_DEVICE_CLASS = 1 << 9;
+    private static final int KEY_CONDITION = 1 << 10;
+
+    /**
+     * One of {@link #KIND_SINGLE_DEVICE}, {@link #KIND_DEVICES}, {@link #KIND_EXPRESSION} or {@link #KIND_DEVICE_CLASS}.
+     */
+    private final int mKind;
+
+    /**
+     * True if devices are expected to be connected. Always true for {@link #KIND_EXPRESSION}.
+     */
+    private final boolean mIsConnectedExpected;
+
+    /**
+     * Packed MAC, for {@link #KIND_SINGLE_DEVICE}. May be {@link MacCodec#INVALID}.
+     */
+    private final long mDeviceMac;
+
+    /**
+     * Condition, for {@link #KIND_DEVICES}.
+     */
+    private final DeviceCondition mCondition;
+
+    /**
+     * Compiled expression, for {@link #KIND_EXPRESSION}.
+     */
+    private final ConditionExpression mExpression;
+
+    /**
+     * True for a major class, for {@link #KIND_DEVICE_CLASS}.
+     */
+    private final boolean mIsMajorClass;
+
+    /**
+     * Major class or device class, for {@link #KIND_DEVICE_CLASS}.
+     */
+    private final int mClassValue;
+
+    /**
+     * Fingerprint of the source Bundle, from {@link #fingerprint(Bundle)}.
+     */
+    private final int mFingerprint;
+
+    /**
+     * Number of extras in the source Bundle.
+     */
+    private final int mSize;
+
+    /**
+     * Which extras the source Bundle held, as {@code KEY_*} bits.
+     */
+    private final int mKeys;
+
+    /*
+     * Values of the source Bundle's extras. Arrays are private copies.
+     */
+    private final boolean mState;
+    private final int mVersionCode;
+    private final String mMac;
+    private final int mFormat;
+    private final String[] mMacs;
+    private final int mQuantifier;
+    private final int mMinCount;
+    private final String mExpressionText;
+    private final int mMajorDeviceClass;
+    private final int mDeviceClass;
+    private final byte[] mPayload;
+
+    /**
+     * Decodes a Bundle.
+     *
+     * @param bundle a valid bundle, as told by {@link PluginBundleManager#isBundleValid(Bundle)}. Cannot be null.
+     */
+    public ParsedCondition(final Bundle bundle)
+    {
+        if (PluginBundleManager.isMultiDevice(bundle))
+        {
+            mKind = KIND_DEVICES;
+        }
+        else if (PluginBundleManager.isExpression(bundle))
+        {
+            mKind = KIND_EXPRESSION;
+        }
+        else if (PluginBundleManager.isDeviceClass(bundle))
+        {
+            mKind = KIND_DEVICE_CLASS;
+        }
+        else
+        {
+            mKind = KIND_SINGLE_DEVICE;
+        }
+
+        mIsConnectedExpected = KIND_EXPRESSION == mKind || PluginBundleManager.isConnectedExpected(bundle);
+        mDeviceMac = KIND_SINGLE_DEVICE == mKind ? PluginBundleManager.getSingleDeviceMac(bundle) : MacCodec.INVALID;
+        mCondition = KIND_DEVICES == mKind ? PluginBundleManager.getCondition(bundle) : null;
+        mExpression = KIND_EXPRESSION == mKind ? PluginBundleManager.getExpression(bundle) : null;
+        mIsMajorClass = KIND_DEVICE_CLASS == mKind && PluginBundleManager.isMajorDeviceClass(bundle);
+        mClassValue = KIND_DEVICE_CLASS == mKind ? PluginBundleManager.getDeviceClass(bundle) : 0;
+
+        mFingerprint = fingerprint(bundle);
+        mSize = bundle.size();
+        mKeys = (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE) ? KEY_STATE : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE) ? KEY_VERSION_CODE : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC) ? KEY_MAC : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_INT_FORMAT) ? KEY_FORMAT : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS) ? KEY_MACS : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_INT_QUANTIFIER) ? KEY_QUANTIFIER : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_INT_MIN_COUNT) ? KEY_MIN_COUNT : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_STRING_EXPRESSION) ? KEY_EXPRESSION : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS) ? KEY_MAJOR_DEVICE_CLASS : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_INT_DEVICE_CLASS) ? KEY_DEVICE_CLASS : 0)
+                | (bundle.containsKey(PluginBundleManager.BUNDLE_EXTRA_BYTE_ARRAY_CONDITION) ? KEY_CONDITION : 0);
+
+        mState = bundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE);
+        mVersionCode = bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE);
+        mMac = bundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC);
+        mFormat = bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_FORMAT);
+        final String[] macs = bundle.getStringArray(PluginBundleManager.BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS);
+        mMacs = null == macs ? null : macs.clone();
+        mQuantifier = bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_QUANTIFIER);
+        mMinCount = bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_MIN_COUNT);
+        mExpressionText = bundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_EXPRESSION);
+        mMajorDeviceClass = bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS);
+        mDeviceClass = bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_DEVICE_CLASS);
+        final byte[] payload = bundle.getByteArray(PluginBundleManager.BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        mPayload = null == payload ? null : payload.clone();
+    }
+
+    /**
+     * Hashes the extras a Bundle may hold. Reads each through its typed getter, so it allocates nothing for a valid bundle.
+     *
+     * @param bundle a bundle, which may be invalid. Cannot be null.
+     * @return the fingerprint. Bundles with the same extras have the same fingerprint.
+     */
+    public static int fingerprint(final Bundle bundle)
+    {
+        int result = bundle.size();
+        result = 31 * result + (bundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE) ? 1 : 0);
+        result = 31 * result + bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE);
+        result = 31 * result + hashCode(bundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC));
+        result = 31 * result + bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_FORMAT);
+        result = 31 * result + Arrays.hashCode(bundle.getStringArray(PluginBundleManager.BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS));
+        result = 31 * result + bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_QUANTIFIER);
+        result = 31 * result + bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_MIN_COUNT);
+        result = 31 * result + hashCode(bundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_EXPRESSION));
+        result = 31 * result + bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS);
+        result = 31 * result + bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_DEVICE_CLASS);
+        result = 31 * result + Arrays.hashCode(bundle.getByteArray(PluginBundleManager.BUNDLE_EXTRA_BYTE_ARRAY_CONDITION));
+        return result;
+    }
+
+    /**
+     * Checks whether a Bundle holds exactly the extras this was decoded from. Every extra of the source Bundle must be present in
+     * {@code bundle} with the same type and value, and {@code bundle} must hold no more extras than that, so a match is as valid
+     * as the source Bundle was. Allocates nothing.
+     *
+     * @param bundle a bundle, which may be invalid. Cannot be null.
+     * @return true if {@code bundle} holds the same condition.
+     */
+    public boolean matches(final Bundle bundle)
+    {
+        if (mSize != bundle.size())
+        {
+            return false;
+        }
+
+        /*
+         * Typed getters return the default for a missing extra or one of the wrong type, so ints and booleans are read with two
+         * different defaults: only an extra of the right type returns the same value for both.
+         */
+        return (0 == (mKeys & KEY_STATE) || matchesBoolean(bundle, PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, mState))
+                && (0 == (mKeys & KEY_VERSION_CODE) || matchesInt(bundle, PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, mVersionCode))
+                && (0 == (mKeys & KEY_MAC) || matchesString(bundle, PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, mMac))
+                && (0 == (mKeys & KEY_FORMAT) || matchesInt(bundle, PluginBundleManager.BUNDLE_EXTRA_INT_FORMAT, mFormat))
+                && (0 == (mKeys & KEY_MACS) || (null != mMacs && Arrays.equals(mMacs, bundle.getStringArray(PluginBundleManager.BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS))))
+                && (0 == (mKeys & KEY_QUANTIFIER) || matchesInt(bundle, PluginBundleManager.BUNDLE_EXTRA_INT_QUANTIFIER, mQuantifier))
+                && (0 == (mKeys & KEY_MIN_COUNT) || matchesInt(bundle, PluginBundleManager.BUNDLE_EXTRA_INT_MIN_COUNT, mMinCount))
+                && (0 == (mKeys & KEY_EXPRESSION) || matchesString(bundle, PluginBundleManager.BUNDLE_EXTRA_STRING_EXPRESSION, mExpressionText))
+                && (0 == (mKeys & KEY_MAJOR_DEVICE_CLASS) || matchesInt(bundle, PluginBundleManager.BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS, mMajorDeviceClass))
+                && (0 == (mKeys & KEY_DEVICE_CLASS) || matchesInt(bundle, PluginBundleManager.BUNDLE_EXTRA_INT_DEVICE_CLASS, mDeviceClass))
+                && (0 == (mKeys & KEY_CONDITION) || (null != mPayload && Arrays.equals(mPayload, bundle.getByteArray(PluginBundleManager.BUNDLE_EXTRA_BYTE_ARRAY_CONDITION))));
+    }
+
+    /**
+     * @return one of {@link #KIND_SINGLE_DEVICE}, {@link #KIND_DEVICES}, {@link #KIND_EXPRESSION} or {@link #KIND_DEVICE_CLASS}.
+     */
+    public int getKind()
+    {
+        return mKind;
+    }
+
+    /**
+     * @return true if devices are expected to be connected, false if they are expected to be disconnected. Always true for
+     *         {@link #KIND_EXPRESSION}.
+     */
+    public boolean isConnectedExpected()
+    {
+        return mIsConnectedExpected;
+    }
+
+    /**
+     * @return MAC of the device packed by {@link MacCodec}, for {@link #KIND_SINGLE_DEVICE}. May be {@link MacCodec#INVALID} if
+     *         the Bundle held a malformed MAC.
+     */
+    public long getDeviceMac()
+    {
+        return mDeviceMac;
+    }
+
+    /**
+     * @return the condition, for {@link #KIND_DEVICES}. Null otherwise.
+     */
+    public DeviceCondition getCondition()
+    {
+        return mCondition;
+    }
+
+    /**
+     * @return the compiled expression, for {@link #KIND_EXPRESSION}. Null otherwise.
+     */
+    public ConditionExpression getExpression()
+    {
+        return mExpression;
+    }
+
+    /**
+     * @return true if the condition is on a major class, false if it is on a device class, for {@link #KIND_DEVICE_CLASS}.
+     */
+    public boolean isMajorDeviceClass()
+    {
+        return mIsMajorClass;
+    }
+
+    /**
+     * @return the major class or device class, for {@link #KIND_DEVICE_CLASS}.
+     */
+    public int getDeviceClass()
+    {
+        return mClassValue;
+    }
+
+    /**
+     * @return fingerprint of the source Bundle, from {@link #fingerprint(Bundle)}.
+     */
+    public int getFingerprint()
+    {
+        return mFingerprint;
+    }
+
+    /**
+     * @param string a string. May be null.
+     * @return hash code of {@code string}, or 0 if it is null.
+     */
+    private static int hashCode(final String string)
+    {
+        return null == string ? 0 : string.hashCode();
+    }
+
+    /**
+     * @param bundle bundle to check.
+     * @param key key of a boolean extra.
+     * @param value expected value.
+     * @return true if {@code bundle} holds a boolean {@code value} under {@code key}.
+     */
+    private static boolean matchesBoolean(final Bundle bundle, final String key, final boolean value)
+    {
+        return value == bundle.getBoolean(key, false) && value == bundle.getBoolean(key, true);
+    }
+
+    /**
+     * @param bundle bundle to check.
+     * @param key key of an int extra.
+     * @param value expected value.
+     * @return true if {@code bundle} holds an int {@code value} under {@code key}.
+     */
+    private static boolean matchesInt(final Bundle bundle, final String key, final int value)
+    {
+        return value == bundle.getInt(key, 0) && value == bundle.getInt(key, 1);
+    }
+
+    /**
+     * @param bundle bundle to check.
+     * @param key key of a String extra.
+     * @param value expected value. A null value never matches, as it can't be told from a missing extra.
+     * @return true if {@code bundle} holds a String equal to {@code value} under {@code key}.
+     */
+    private static boolean matchesString(final Bundle bundle, final String key, final String value)
+    {
+        return null != value && value.equals(bundle.getString(key));
+    }
+}
@@ -14,10 +14,34 @@ package name.boyle.chris.locale.bluetoothacl.bundle;
 import android.os.Bundle;
 import android.util.Log;
 
+import java.text.ParseException;
+
 import name.boyle.chris.locale.bluetoothacl.Constants;
+import name.boyle.chris.locale.bluetoothacl.state.ConditionExpression;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceClass;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
 
 /**
  * Class for managing the {@link com.twofortyfouram.locale.Intent#EXTRA_BUNDLE} for this plug-in.
+ * <p>
+ * There are several formats. The original one names a single device with {@link #BUNDLE_EXTRA_STRING_BLUETOOTH_MAC}. Format
+ * {@link #FORMAT_MULTI_DEVICE}, marked by {@link #BUNDLE_EXTRA_INT_FORMAT}, names a set of devices with
+ * {@link #BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS} and says how many of them must be in the expected state with
+ * {@link #BUNDLE_EXTRA_INT_QUANTIFIER}. Format {@link #FORMAT_EXPRESSION} holds a {@link ConditionExpression} in
+ * {@link #BUNDLE_EXTRA_STRING_EXPRESSION}. Format {@link #FORMAT_DEVICE_CLASS} asks whether any device of a Bluetooth class is
+ * connected, with either {@link #BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS} or {@link #BUNDLE_EXTRA_INT_DEVICE_CLASS}.
+ * <p>
+ * The compact format holds any condition but an expression as one byte array, {@link #BUNDLE_EXTRA_BYTE_ARRAY_CONDITION}, encoded
+ * by {@link ConditionCodec} with its own schema version. It parcels smaller than the others and is validated in one pass, so it
+ * is what the plug-in saves. The other formats are still read, and the accessors here answer the same for a condition in any of
+ * them, so conditions saved by older versions keep working and are migrated when next edited; {@link #migrate(Bundle)} does
+ * the conversion.
+ * <p>
+ * The conditions themselves, their encoding and their rules, such as which quantifiers exist or which formats migrate, belong to
+ * the Android-free core in {@link ConditionFormats}, {@link DeviceCondition}, {@link ConditionExpression} and
+ * {@link ConditionCodec}. This class only maps them to and from Bundle extras, checking that the extras are there and of the
+ * right types.
  */
 public final class PluginBundleManager
 {
@@ -57,6 +81,98 @@ public final class PluginBundleManager
      */
     public static final String BUNDLE_EXTRA_INT_VERSION_CODE = "name.boyle.chris.locale.bluetoothacl.extra.INT_VERSION_CODE"; //$NON-NLS-1$
 
+    /**
+     * Type: {@code int}
+     * <p>
+     * Format of the Bundle. Absent in the original single device format.
+     */
+    public static final String BUNDLE_EXTRA_INT_FORMAT = "name.boyle.chris.locale.bluetoothacl.extra.INT_FORMAT"; //$NON-NLS-1$
+
+    /**
+     * Type: {@code String[]}
+     * <p>
+     * Bluetooth MACs of the devices, uppercase with colons. Only in format {@link #FORMAT_MULTI_DEVICE}.
+     */
+    public static final String BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS = "name.boyle.chris.locale.bluetoothacl.extra.STRING_ARRAY_BLUETOOTH_MACS"; //$NON-NLS-1$
+
+    /**
+     * Type: {@code int}
+     * <p>
+     * One of {@link #QUANTIFIER_ANY}, {@link #QUANTIFIER_ALL} or {@link #QUANTIFIER_AT_LEAST}. Only in format
+     * {@link #FORMAT_MULTI_DEVICE}.
+     */
+    public static final String BUNDLE_EXTRA_INT_QUANTIFIER = "name.boyle.chris.locale.bluetoothacl.extra.INT_QUANTIFIER"; //$NON-NLS-1$
+
+    /**
+     * Type: {@code int}
+     * <p>
+     * Number of devices which must be in the expected state, for {@link #QUANTIFIER_AT_LEAST}. Ignored by the other quantifiers.
+     * Only in format {@link #FORMAT_MULTI_DEVICE}.
+     */
+    public static final String BUNDLE_EXTRA_INT_MIN_COUNT = "name.boyle.chris.locale.bluetoothacl.extra.INT_MIN_COUNT"; //$NON-NLS-1$
+
+    /**
+     * Type: {@code String}
+     * <p>
+     * Text of a {@link ConditionExpression}. Only in format {@link #FORMAT_EXPRESSION}.
+     */
+    public static final String BUNDLE_EXTRA_STRING_EXPRESSION = "name.boyle.chris.locale.bluetoothacl.extra.STRING_EXPRESSION"; //$NON-NLS-1$
+
+    /**
+     * Type: {@code int}
+     * <p>
+     * Major device class, as {@link android.bluetooth.BluetoothClass#getMajorDeviceClass()}. Only in format
+     * {@link #FORMAT_DEVICE_CLASS}, and only if {@link #BUNDLE_EXTRA_INT_DEVICE_CLASS} is absent.
+     */
+    public static final String BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS = "name.boyle.chris.locale.bluetoothacl.extra.INT_MAJOR_DEVICE_CLASS"; //$NON-NLS-1$
+
+    /**
+     * Type: {@code int}
+     * <p>
+     * Device class, as {@link android.bluetooth.BluetoothClass#getDeviceClass()}. Only in format {@link #FORMAT_DEVICE_CLASS}, and
+     * only if {@link #BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS} is absent. The two are kept apart because a major class has the same
+     * value as its uncategorized device class.
+     */
+    public static final String BUNDLE_EXTRA_INT_DEVICE_CLASS = "name.boyle.chris.locale.bluetoothacl.extra.INT_DEVICE_CLASS"; //$NON-NLS-1$
+
+    /**
+     * Type: {@code byte[]}
+     * <p>
+     * A condition encoded by {@link ConditionCodec}. Only in the compact format, which has no {@link #BUNDLE_EXTRA_INT_FORMAT}.
+     */
+    public static final String BUNDLE_EXTRA_BYTE_ARRAY_CONDITION = "name.boyle.chris.locale.bluetoothacl.extra.BYTE_ARRAY_CONDITION"; //$NON-NLS-1$
+
+    /**
+     * Value of {@link #BUNDLE_EXTRA_INT_FORMAT} for a condition on a set of devices.
+     */
+    public static final int FORMAT_MULTI_DEVICE = ConditionFormats.FORMAT_MULTI_DEVICE;
+
+    /**
+     * Value of {@link #BUNDLE_EXTRA_INT_FORMAT} for an expression over device states.
+     */
+    public static final int FORMAT_EXPRESSION = ConditionFormats.FORMAT_EXPRESSION;
+
+    /**
+     * Value of {@link #BUNDLE_EXTRA_INT_FORMAT} for a condition on a class of devices. {@link #BUNDLE_EXTRA_BOOLEAN_STATE} true
+     * means any device of the class is connected, false means none is.
+     */
+    public static final int FORMAT_DEVICE_CLASS = ConditionFormats.FORMAT_DEVICE_CLASS;
+
+    /**
+     * The condition is satisfied if any device is in the expected state.
+     */
+    public static final int QUANTIFIER_ANY = DeviceCondition.QUANTIFIER_ANY;
+
+    /**
+     * The condition is satisfied if every device is in the expected state.
+     */
+    public static final int QUANTIFIER_ALL = DeviceCondition.QUANTIFIER_ALL;
+
+    /**
+     * The condition is satisfied if at least {@link #BUNDLE_EXTRA_INT_MIN_COUNT} devices are in the expected state.
+     */
+    public static final int QUANTIFIER_AT_LEAST = DeviceCondition.QUANTIFIER_AT_LEAST;
+
     /**
      * Method to verify the content of the bundle are correct.
      * <p>
@@ -72,86 +188,522 @@ public final class PluginBundleManager
             return false;
         }
 
-        /*
-         * Make sure the expected extras exist
-         */
-        if (!bundle.containsKey(BUNDLE_EXTRA_STRING_BLUETOOTH_MAC))
+        if (bundle.containsKey(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION))
         {
-            if (Constants.IS_LOGGABLE)
+            return isCompactBundleValid(bundle);
+        }
+
+        if (bundle.containsKey(BUNDLE_EXTRA_INT_FORMAT))
+        {
+            final int format = bundle.getInt(BUNDLE_EXTRA_INT_FORMAT, 0);
+            if (!ConditionFormats.isKnownFormat(format))
             {
-                Log.e(Constants.LOG_TAG, String.format("bundle must contain extra %s", BUNDLE_EXTRA_STRING_BLUETOOTH_MAC)); //$NON-NLS-1$
+                return false;
             }
+
+            switch (format)
+            {
+                case FORMAT_MULTI_DEVICE:
+                    return isMultiDeviceBundleValid(bundle);
+                case FORMAT_EXPRESSION:
+                    return isExpressionBundleValid(bundle);
+                default:
+                    return isDeviceClassBundleValid(bundle);
+            }
+        }
+
+        /*
+         * The original format. Any MAC is accepted, as versions before the others validated nothing; a malformed one is never
+         * connected.
+         */
+        if (!hasExactly(bundle, BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, BUNDLE_EXTRA_BOOLEAN_STATE, BUNDLE_EXTRA_INT_VERSION_CODE))
+        {
             return false;
         }
-        if (!bundle.containsKey(BUNDLE_EXTRA_BOOLEAN_STATE))
+
+        if (null == bundle.getString(BUNDLE_EXTRA_STRING_BLUETOOTH_MAC))
         {
             if (Constants.IS_LOGGABLE)
             {
-                Log.e(Constants.LOG_TAG, String.format("bundle must contain extra %s", BUNDLE_EXTRA_BOOLEAN_STATE)); //$NON-NLS-1$
+                Log.e(Constants.LOG_TAG, String.format("bundle extra %s appears to be the wrong type.  It must be a String", BUNDLE_EXTRA_STRING_BLUETOOTH_MAC)); //$NON-NLS-1$
             }
             return false;
         }
-        if (!bundle.containsKey(BUNDLE_EXTRA_INT_VERSION_CODE))
+
+        return isBoolean(bundle, BUNDLE_EXTRA_BOOLEAN_STATE) && isInt(bundle, BUNDLE_EXTRA_INT_VERSION_CODE);
+    }
+
+    /**
+     * Verifies a Bundle in the compact format. Apart from the version code, everything is checked by one pass over the payload.
+     *
+     * @param bundle bundle to verify. Cannot be null.
+     * @return true if the Bundle is valid, false if the bundle is invalid.
+     */
+    private static boolean isCompactBundleValid(final Bundle bundle)
+    {
+        if (!hasExactly(bundle, BUNDLE_EXTRA_BYTE_ARRAY_CONDITION, BUNDLE_EXTRA_INT_VERSION_CODE) || !isInt(bundle, BUNDLE_EXTRA_INT_VERSION_CODE))
+        {
+            return false;
+        }
+
+        if (!ConditionCodec.isValid(bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION)))
         {
             if (Constants.IS_LOGGABLE)
             {
-                Log.e(Constants.LOG_TAG, String.format("bundle must contain extra %s", BUNDLE_EXTRA_INT_VERSION_CODE)); //$NON-NLS-1$
+                Log.e(Constants.LOG_TAG, String.format("bundle extra %s is not a valid condition", BUNDLE_EXTRA_BYTE_ARRAY_CONDITION)); //$NON-NLS-1$
             }
             return false;
         }
 
-        /*
-         * Make sure the correct number of extras exist. Run this test after checking for specific Bundle extras above so that the
-         * error message is more useful. (E.g. the caller will see what extras are missing, rather than just a message that there
-         * is the wrong number).
-         */
-        if (3 != bundle.keySet().size())
+        return true;
+    }
+
+    /**
+     * Verifies a Bundle in format {@link #FORMAT_MULTI_DEVICE}.
+     *
+     * @param bundle bundle to verify. Cannot be null.
+     * @return true if the Bundle is valid, false if the bundle is invalid.
+     */
+    private static boolean isMultiDeviceBundleValid(final Bundle bundle)
+    {
+        if (!hasExactly(bundle, BUNDLE_EXTRA_INT_FORMAT, BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS, BUNDLE_EXTRA_BOOLEAN_STATE, BUNDLE_EXTRA_INT_QUANTIFIER,
+                        BUNDLE_EXTRA_INT_MIN_COUNT, BUNDLE_EXTRA_INT_VERSION_CODE))
         {
-            if (Constants.IS_LOGGABLE)
-            {
-                Log.e(Constants.LOG_TAG, String.format("bundle must contain 3 keys, but currently contains %d keys: %s", Integer.valueOf(bundle.keySet().size()), bundle.keySet() //$NON-NLS-1$
-                                                                                                                                                                        .toString()));
-            }
             return false;
         }
 
-        /*
-         * Make sure the extra is the correct type
-         */
+        if (!isBoolean(bundle, BUNDLE_EXTRA_BOOLEAN_STATE) || !isInt(bundle, BUNDLE_EXTRA_INT_QUANTIFIER) || !isInt(bundle, BUNDLE_EXTRA_INT_MIN_COUNT)
+                || !isInt(bundle, BUNDLE_EXTRA_INT_VERSION_CODE))
+        {
+            return false;
+        }
 
-        if (bundle.getString(BUNDLE_EXTRA_STRING_BLUETOOTH_MAC) == null)
+        return ConditionFormats.isMultiDeviceValid(bundle.getStringArray(BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS), bundle.getInt(BUNDLE_EXTRA_INT_QUANTIFIER),
+                                                   bundle.getInt(BUNDLE_EXTRA_INT_MIN_COUNT));
+    }
+
+    /**
+     * Verifies a Bundle in format {@link #FORMAT_EXPRESSION}. A valid expression is compiled and cached on the way.
+     *
+     * @param bundle bundle to verify. Cannot be null.
+     * @return true if the Bundle is valid, false if the bundle is invalid.
+     */
+    private static boolean isExpressionBundleValid(final Bundle bundle)
+    {
+        if (!hasExactly(bundle, BUNDLE_EXTRA_INT_FORMAT, BUNDLE_EXTRA_STRING_EXPRESSION, BUNDLE_EXTRA_INT_VERSION_CODE) || !isInt(bundle, BUNDLE_EXTRA_INT_VERSION_CODE))
         {
-            if (Constants.IS_LOGGABLE)
+            return false;
+        }
+
+        return ConditionFormats.isExpressionValid(bundle.getString(BUNDLE_EXTRA_STRING_EXPRESSION));
+    }
+
+    /**
+     * Verifies a Bundle in format {@link #FORMAT_DEVICE_CLASS}.
+     *
+     * @param bundle bundle to verify. Cannot be null.
+     * @return true if the Bundle is valid, false if the bundle is invalid.
+     */
+    private static boolean isDeviceClassBundleValid(final Bundle bundle)
+    {
+        final boolean isMajor = bundle.containsKey(BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS);
+        final String classKey = isMajor ? BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS : BUNDLE_EXTRA_INT_DEVICE_CLASS;
+        if (!hasExactly(bundle, BUNDLE_EXTRA_INT_FORMAT, classKey, BUNDLE_EXTRA_BOOLEAN_STATE, BUNDLE_EXTRA_INT_VERSION_CODE))
+        {
+            return false;
+        }
+
+        if (!isBoolean(bundle, BUNDLE_EXTRA_BOOLEAN_STATE) || !isInt(bundle, classKey) || !isInt(bundle, BUNDLE_EXTRA_INT_VERSION_CODE))
+        {
+            return false;
+        }
+
+        return ConditionFormats.isDeviceClassValid(isMajor, bundle.getInt(classKey));
+    }
+
+    /**
+     * Checks that a Bundle holds exactly the given extras. The missing extras are checked first, so that the error message says
+     * which is missing rather than just that there is the wrong number.
+     *
+     * @param bundle bundle to verify. Cannot be null.
+     * @param keys every extra the Bundle must hold. Cannot be null.
+     * @return true if {@code bundle} holds each of {@code keys} and nothing else.
+     */
+    private static boolean hasExactly(final Bundle bundle, final String... keys)
+    {
+        for (final String key : keys)
+        {
+            if (!bundle.containsKey(key))
             {
-                Log.e(Constants.LOG_TAG, String.format("bundle extra %s appears to be the wrong type.  It must be a boolean", BUNDLE_EXTRA_BOOLEAN_STATE)); //$NON-NLS-1$
+                if (Constants.IS_LOGGABLE)
+                {
+                    Log.e(Constants.LOG_TAG, String.format("bundle must contain extra %s", key)); //$NON-NLS-1$
+                }
+                return false;
             }
+        }
 
+        if (keys.length != bundle.size())
+        {
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, String.format("bundle must contain %d keys, but currently contains %d keys: %s", Integer.valueOf(keys.length), Integer.valueOf(bundle.size()), bundle.keySet().toString())); //$NON-NLS-1$
+            }
             return false;
         }
 
-        if (bundle.getBoolean(BUNDLE_EXTRA_BOOLEAN_STATE, true) != bundle.getBoolean(BUNDLE_EXTRA_BOOLEAN_STATE, false))
+        return true;
+    }
+
+    /**
+     * @param bundle bundle to verify. Cannot be null.
+     * @param key an extra the Bundle holds.
+     * @return true if the extra is a boolean.
+     */
+    private static boolean isBoolean(final Bundle bundle, final String key)
+    {
+        if (bundle.getBoolean(key, true) != bundle.getBoolean(key, false))
         {
             if (Constants.IS_LOGGABLE)
             {
-                Log.e(Constants.LOG_TAG, String.format("bundle extra %s appears to be the wrong type.  It must be a boolean", BUNDLE_EXTRA_BOOLEAN_STATE)); //$NON-NLS-1$
+                Log.e(Constants.LOG_TAG, String.format("bundle extra %s appears to be the wrong type.  It must be a boolean", key)); //$NON-NLS-1$
             }
-
             return false;
         }
 
-        /*
-         * Make sure the extra is the correct type
-         */
-        if (bundle.getInt(BUNDLE_EXTRA_INT_VERSION_CODE, 0) != bundle.getInt(BUNDLE_EXTRA_INT_VERSION_CODE, 1))
+        return true;
+    }
+
+    /**
+     * @param bundle bundle to verify. Cannot be null.
+     * @param key an extra the Bundle holds.
+     * @return true if the extra is an int.
+     */
+    private static boolean isInt(final Bundle bundle, final String key)
+    {
+        if (bundle.getInt(key, 0) != bundle.getInt(key, 1))
         {
             if (Constants.IS_LOGGABLE)
             {
-                Log.e(Constants.LOG_TAG, String.format("bundle extra %s appears to be the wrong type.  It must be an int", BUNDLE_EXTRA_INT_VERSION_CODE)); //$NON-NLS-1$
+                Log.e(Constants.LOG_TAG, String.format("bundle extra %s appears to be the wrong type.  It must be an int", key)); //$NON-NLS-1$
             }
-
             return false;
         }
 
         return true;
     }
+
+    /**
+     * @param bundle a valid bundle. Cannot be null.
+     * @return true if {@code bundle} is in the compact format.
+     */
+    public static boolean isCompact(final Bundle bundle)
+    {
+        return bundle.containsKey(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+    }
+
+    /**
+     * @param bundle a valid bundle. Cannot be null.
+     * @return true if {@code bundle} is a condition on a class of devices, in format {@link #FORMAT_DEVICE_CLASS} or the compact
+     *         format.
+     */
+    public static boolean isDeviceClass(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.KIND_DEVICE_CLASS == ConditionCodec.getKind(payload);
+        }
+
+        return FORMAT_DEVICE_CLASS == bundle.getInt(BUNDLE_EXTRA_INT_FORMAT, 0);
+    }
+
+    /**
+     * @param bundle a valid bundle on a class of devices. Cannot be null.
+     * @return true if the condition is on a major class, false if it is on a device class.
+     */
+    public static boolean isMajorDeviceClass(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.isMajorDeviceClass(payload);
+        }
+
+        return bundle.containsKey(BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS);
+    }
+
+    /**
+     * @param bundle a valid bundle on a class of devices. Cannot be null.
+     * @return the major class or device class the condition is on, as told by {@link #isMajorDeviceClass(Bundle)}.
+     */
+    public static int getDeviceClass(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.getDeviceClass(payload);
+        }
+
+        return isMajorDeviceClass(bundle) ? bundle.getInt(BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS) : bundle.getInt(BUNDLE_EXTRA_INT_DEVICE_CLASS);
+    }
+
+    /**
+     * @param bundle a valid bundle which isn't an expression. Cannot be null.
+     * @return true if devices are expected to be connected, false if they are expected to be disconnected.
+     */
+    public static boolean isConnectedExpected(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.isConnectedExpected(payload);
+        }
+
+        return bundle.getBoolean(BUNDLE_EXTRA_BOOLEAN_STATE);
+    }
+
+    /**
+     * Gets the device of a single device condition without allocating, so that queries on it stay allocation-free.
+     *
+     * @param bundle a valid bundle on one device: in the original format, or the compact format with one device. Cannot be null.
+     * @return MAC of the device, packed by {@link MacCodec}. {@link MacCodec#INVALID} if a Bundle in the original format holds a
+     *         malformed MAC.
+     */
+    public static long getSingleDeviceMac(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.getDeviceMac(payload, 0);
+        }
+
+        return MacCodec.encode(bundle.getString(BUNDLE_EXTRA_STRING_BLUETOOTH_MAC));
+    }
+
+    /**
+     * @param bundle a valid bundle on one or more devices. Cannot be null.
+     * @return MACs of the devices, uppercase with colons. May hold one malformed MAC, from a Bundle in the original format.
+     */
+    public static String[] getDeviceMacs(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionFormats.getDeviceMacs(payload);
+        }
+
+        if (FORMAT_MULTI_DEVICE == bundle.getInt(BUNDLE_EXTRA_INT_FORMAT, 0))
+        {
+            return bundle.getStringArray(BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS);
+        }
+
+        return new String[] { bundle.getString(BUNDLE_EXTRA_STRING_BLUETOOTH_MAC) };
+    }
+
+    /**
+     * @param bundle a valid bundle on one or more devices. Cannot be null.
+     * @return one of {@link #QUANTIFIER_ANY}, {@link #QUANTIFIER_ALL} or {@link #QUANTIFIER_AT_LEAST}. {@link #QUANTIFIER_ANY} for
+     *         the original format.
+     */
+    public static int getQuantifier(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.getQuantifier(payload);
+        }
+
+        return bundle.getInt(BUNDLE_EXTRA_INT_QUANTIFIER, QUANTIFIER_ANY);
+    }
+
+    /**
+     * @param bundle a valid bundle on one or more devices. Cannot be null.
+     * @return number of devices which must be in the expected state, for {@link #QUANTIFIER_AT_LEAST}.
+     */
+    public static int getMinCount(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.getMinCount(payload);
+        }
+
+        return bundle.getInt(BUNDLE_EXTRA_INT_MIN_COUNT, 1);
+    }
+
+    /**
+     * Builds a Bundle in the compact format.
+     *
+     * @param versionCode versionCode of the plug-in.
+     * @param payload a valid payload from {@link ConditionCodec}. Cannot be null.
+     * @return a valid bundle.
+     */
+    public static Bundle generateCompactBundle(final int versionCode, final byte[] payload)
+    {
+        final Bundle result = new Bundle();
+        result.putInt(BUNDLE_EXTRA_INT_VERSION_CODE, versionCode);
+        result.putByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION, payload);
+        return result;
+    }
+
+    /**
+     * Converts a Bundle to the compact format. The version code is kept, as the plug-in which saved the condition hasn't changed.
+     *
+     * @param bundle a valid bundle. Cannot be null.
+     * @return the same condition in the compact format; or {@code bundle} itself if it is already compact, is an expression, or
+     *         holds a malformed MAC or more than {@link ConditionCodec#MAX_DEVICES} devices, which the compact format can't.
+     */
+    public static Bundle migrate(final Bundle bundle)
+    {
+        if (isCompact(bundle) || isExpression(bundle))
+        {
+            return bundle;
+        }
+
+        final int versionCode = bundle.getInt(BUNDLE_EXTRA_INT_VERSION_CODE);
+        if (isDeviceClass(bundle))
+        {
+            return generateCompactBundle(versionCode, ConditionCodec.encodeDeviceClass(isMajorDeviceClass(bundle), getDeviceClass(bundle), isConnectedExpected(bundle)));
+        }
+
+        final byte[] payload = ConditionFormats.toPayload(getDeviceMacs(bundle), isConnectedExpected(bundle), getQuantifier(bundle), getMinCount(bundle));
+        return null == payload ? bundle : generateCompactBundle(versionCode, payload);
+    }
+
+    /**
+     * Builds a Bundle for a condition on a class of devices.
+     *
+     * @param versionCode versionCode of the plug-in.
+     * @param isMajor true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class, as for {@link DeviceClass}.
+     * @param isConnectedExpected true if any device of the class must be connected, false if none may be.
+     * @return a valid bundle.
+     */
+    public static Bundle generateDeviceClassBundle(final int versionCode, final boolean isMajor, final int classValue, final boolean isConnectedExpected)
+    {
+        final Bundle result = new Bundle();
+        result.putInt(BUNDLE_EXTRA_INT_VERSION_CODE, versionCode);
+        result.putInt(BUNDLE_EXTRA_INT_FORMAT, FORMAT_DEVICE_CLASS);
+        result.putInt(isMajor ? BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS : BUNDLE_EXTRA_INT_DEVICE_CLASS, classValue);
+        result.putBoolean(BUNDLE_EXTRA_BOOLEAN_STATE, isConnectedExpected);
+        return result;
+    }
+
+    /**
+     * @param bundle a valid bundle. Cannot be null.
+     * @return true if {@code bundle} is a condition on more than one device, in format {@link #FORMAT_MULTI_DEVICE} or the compact
+     *         format.
+     */
+    public static boolean isMultiDevice(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionCodec.KIND_DEVICES == ConditionCodec.getKind(payload) && ConditionCodec.getDeviceCount(payload) > 1;
+        }
+
+        return FORMAT_MULTI_DEVICE == bundle.getInt(BUNDLE_EXTRA_INT_FORMAT, 0);
+    }
+
+    /**
+     * @param bundle a valid bundle. Cannot be null.
+     * @return true if {@code bundle} is in format {@link #FORMAT_EXPRESSION}.
+     */
+    public static boolean isExpression(final Bundle bundle)
+    {
+        return FORMAT_EXPRESSION == bundle.getInt(BUNDLE_EXTRA_INT_FORMAT, 0);
+    }
+
+    /**
+     * Gets the compiled expression of a Bundle. Locale queries the same Bundles over and over, so this is normally answered from
+     * the cache of {@link ConditionExpression#compile(String)} without parsing.
+     *
+     * @param bundle a valid bundle in format {@link #FORMAT_EXPRESSION}. Cannot be null.
+     * @return the compiled expression.
+     * @throws IllegalArgumentException if the expression is invalid, which a valid bundle's isn't.
+     */
+    public static ConditionExpression getExpression(final Bundle bundle)
+    {
+        try
+        {
+            return ConditionExpression.compile(bundle.getString(BUNDLE_EXTRA_STRING_EXPRESSION));
+        }
+        catch (final ParseException e)
+        {
+            throw new IllegalArgumentException("bundle is not valid", e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Builds a Bundle for an expression.
+     *
+     * @param versionCode versionCode of the plug-in.
+     * @param expression text of a valid {@link ConditionExpression}. Cannot be null.
+     * @return a valid bundle.
+     */
+    public static Bundle generateExpressionBundle(final int versionCode, final String expression)
+    {
+        final Bundle result = new Bundle();
+        result.putInt(BUNDLE_EXTRA_INT_VERSION_CODE, versionCode);
+        result.putInt(BUNDLE_EXTRA_INT_FORMAT, FORMAT_EXPRESSION);
+        result.putString(BUNDLE_EXTRA_STRING_EXPRESSION, expression);
+        return result;
+    }
+
+    /**
+     * Builds the condition a Bundle describes.
+     *
+     * @param bundle a valid bundle on one or more devices, in the original format, format {@link #FORMAT_MULTI_DEVICE} or the
+     *            compact format. Cannot be null.
+     * @return the condition.
+     */
+    public static DeviceCondition getCondition(final Bundle bundle)
+    {
+        final byte[] payload = bundle.getByteArray(BUNDLE_EXTRA_BYTE_ARRAY_CONDITION);
+        if (null != payload)
+        {
+            return ConditionFormats.toCondition(payload);
+        }
+
+        final boolean isConnectedExpected = bundle.getBoolean(BUNDLE_EXTRA_BOOLEAN_STATE);
+        if (!isMultiDevice(bundle))
+        {
+            return DeviceCondition.single(MacCodec.encode(bundle.getString(BUNDLE_EXTRA_STRING_BLUETOOTH_MAC)), isConnectedExpected);
+        }
+
+        return DeviceCondition.quantified(ConditionFormats.encodeMacs(bundle.getStringArray(BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS)), isConnectedExpected, bundle.getInt(BUNDLE_EXTRA_INT_QUANTIFIER),
+                                          bundle.getInt(BUNDLE_EXTRA_INT_MIN_COUNT));
+    }
+
+    /**
+     * Builds a Bundle for a condition on a set of devices, in the formats older versions of the plug-in read. A condition on one
+     * device is saved in the original format, whatever the quantifier, as they all mean the same for one device. The plug-in
+     * itself saves with {@link #generateCompactBundle(int, byte[])}.
+     *
+     * @param versionCode versionCode of the plug-in.
+     * @param macs MACs of the devices, uppercase with colons, without duplicates. Cannot be null or empty.
+     * @param isConnectedExpected true if devices must be connected, false if they must be disconnected.
+     * @param quantifier one of {@link #QUANTIFIER_ANY}, {@link #QUANTIFIER_ALL} or {@link #QUANTIFIER_AT_LEAST}.
+     * @param minCount number of devices which must be in the expected state, for {@link #QUANTIFIER_AT_LEAST}.
+     * @return a valid bundle.
+     */
+    public static Bundle generateBundle(final int versionCode, final String[] macs, final boolean isConnectedExpected, final int quantifier, final int minCount)
+    {
+        final Bundle result = new Bundle();
+        result.putInt(BUNDLE_EXTRA_INT_VERSION_CODE, versionCode);
+        result.putBoolean(BUNDLE_EXTRA_BOOLEAN_STATE, isConnectedExpected);
+
+        if (1 == macs.length)
+        {
+            result.putString(BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, macs[0]);
+            return result;
+        }
+
+        result.putInt(BUNDLE_EXTRA_INT_FORMAT, FORMAT_MULTI_DEVICE);
+        result.putStringArray(BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS, macs);
+        result.putInt(BUNDLE_EXTRA_INT_QUANTIFIER, quantifier);
+        result.putInt(BUNDLE_EXTRA_INT_MIN_COUNT, QUANTIFIER_AT_LEAST == quantifier ? minCount : 1);
+        return result;
+    }
 }
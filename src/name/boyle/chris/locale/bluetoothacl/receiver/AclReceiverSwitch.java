@@ -0,0 +1,253 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import name.boyle.chris.locale.bluetoothacl.Constants;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.WatchedDeviceRegistry;
+
+/**
+ * Turns {@link BluetoothConnectionReceiver} on and off, so that ACL broadcasts only start this process while some condition needs
+ * them.
+ * <p>
+ * The receiver is disabled in the manifest. It is enabled when a condition is saved or queried, and disabled again by the first ACL
+ * broadcast after the {@link WatchedDeviceRegistry} has run out of watched devices and no condition has been saved for
+ * {@link WatchedDeviceRegistry#EXPIRY_MILLIS}. The editor runs in another process from the registry, so a save is recorded in a
+ * file of its own, {@link #SAVED_FILE_NAME}, which keeps the receiver on until Locale's first query watches the condition's
+ * devices. Transitions that happen while it is disabled
+ * are missed, so on disabling every known state is forgotten rather than left to go stale. Once the receiver is enabled again, a
+ * condition on a device whose state was forgotten is answered as unknown, so that Locale keeps its last result, until the device
+ * next connects or disconnects.
+ */
+public final class AclReceiverSwitch
+{
+    /**
+     * Name of the file holding the wall clock time a condition was last saved, as a big-endian long.
+     */
+    /* package */static final String SAVED_FILE_NAME = "condition_saved"; //$NON-NLS-1$
+
+    /**
+     * Whether this process has seen the receiver enabled since it last disabled it. Only the {@code :background} process
+     * disables the receiver, so there this is accurate and saves a call to the {@link PackageManager} on each query. Written with
+     * the class lock held; volatile so that {@link #isKnownEnabled()} can read it without.
+     */
+    private static volatile boolean sIsKnownEnabled = false;
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private AclReceiverSwitch()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Makes sure the receiver is enabled, as a condition has just been queried. Must be called from the process which owns the
+     * {@link ConnectionStateCache}.
+     *
+     * @param context Context. Cannot be null.
+     */
+    public static synchronized void onQuery(final Context context)
+    {
+        if (!sIsKnownEnabled)
+        {
+            if (!isEnabled(context))
+            {
+                setEnabled(context, true);
+            }
+            sIsKnownEnabled = true;
+        }
+    }
+
+    /**
+     * @return true if {@link #onQuery(Context)} would have nothing to do, so that a query on the main thread can skip the
+     *         {@link PackageManager}. Doesn't block.
+     */
+    public static boolean isKnownEnabled()
+    {
+        return sIsKnownEnabled;
+    }
+
+    /**
+     * Disables the receiver if no device is watched any more and no condition has been saved recently, forgetting every known
+     * state but remembering which devices had one. Must be called from the process which owns the {@link ConnectionStateCache}.
+     *
+     * @param context Context. Cannot be null.
+     */
+    public static synchronized void disableIfUnused(final Context context)
+    {
+        if (WatchedDeviceRegistry.getInstance(context.getFilesDir()).hasWatchedDevices() || isRecentlySaved(context) || !isEnabled(context))
+        {
+            return;
+        }
+
+        ConnectionStateCache.getInstance(context).forget();
+        setEnabled(context, false);
+        sIsKnownEnabled = false;
+    }
+
+    /**
+     * Records that a condition has just been saved, then enables the receiver, so that it stays on until Locale's first query.
+     * Both touch the disk or the {@link PackageManager}, so they are done on the {@link BackgroundExecutor}. Safe to call from any
+     * process.
+     *
+     * @param context Context. Cannot be null.
+     */
+    public static void onSave(final Context context)
+    {
+        final Context applicationContext = context.getApplicationContext();
+        BackgroundExecutor.get().execute(new Runnable()
+        {
+            public void run()
+            {
+                markSaved(applicationContext);
+                enable(applicationContext);
+            }
+        });
+    }
+
+    /**
+     * Enables the receiver. Safe to call from any process.
+     *
+     * @param context Context. Cannot be null.
+     */
+    public static synchronized void enable(final Context context)
+    {
+        if (!isEnabled(context))
+        {
+            setEnabled(context, true);
+        }
+    }
+
+    /**
+     * Puts the receiver back to its manifest setting and forgets what this process knows about it, including when a condition
+     * was last saved.
+     *
+     * @param context Context. Cannot be null.
+     */
+    /* package */static synchronized void reset(final Context context)
+    {
+        context.getPackageManager().setComponentEnabledSetting(getComponent(context), PackageManager.COMPONENT_ENABLED_STATE_DEFAULT, PackageManager.DONT_KILL_APP);
+        new File(context.getFilesDir(), SAVED_FILE_NAME).delete();
+        sIsKnownEnabled = false;
+    }
+
+    /**
+     * Records the current time as when a condition was last saved.
+     *
+     * @param context Context. Cannot be null.
+     */
+    /* package */static void markSaved(final Context context)
+    {
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream(new FileOutputStream(new File(context.getFilesDir(), SAVED_FILE_NAME)));
+            out.writeLong(System.currentTimeMillis());
+        }
+        catch (final IOException e)
+        {
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, "Couldn't record the save of a condition", e); //$NON-NLS-1$
+            }
+        }
+        finally
+        {
+            if (null != out)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (final IOException e)
+                {
+                    // the time is written or it isn't; a missing one only lets the receiver be disabled early
+                }
+            }
+        }
+    }
+
+    /**
+     * @param context Context. Cannot be null.
+     * @return true if a condition was saved within {@link WatchedDeviceRegistry#EXPIRY_MILLIS}.
+     */
+    /* package */static boolean isRecentlySaved(final Context context)
+    {
+        final File file = new File(context.getFilesDir(), SAVED_FILE_NAME);
+        if (!file.exists())
+        {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new FileInputStream(file));
+            return System.currentTimeMillis() - in.readLong() < WatchedDeviceRegistry.EXPIRY_MILLIS;
+        }
+        catch (final IOException e)
+        {
+            return false;
+        }
+        finally
+        {
+            if (null != in)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (final IOException e)
+                {
+                    // nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * @param context Context. Cannot be null.
+     * @return true if the receiver is enabled. Must be called with the lock held.
+     */
+    /* package */static boolean isEnabled(final Context context)
+    {
+        return PackageManager.COMPONENT_ENABLED_STATE_ENABLED == context.getPackageManager().getComponentEnabledSetting(getComponent(context));
+    }
+
+    /**
+     * @param context Context. Cannot be null.
+     * @param isEnabled true to enable the receiver, false to disable it. Must be called with the lock held.
+     */
+    private static void setEnabled(final Context context, final boolean isEnabled)
+    {
+        if (Constants.IS_LOGGABLE)
+        {
+            Log.v(Constants.LOG_TAG, String.format("Setting ACL receiver enabled=%b", Boolean.valueOf(isEnabled))); //$NON-NLS-1$
+        }
+
+        context.getPackageManager().setComponentEnabledSetting(getComponent(context), isEnabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED, PackageManager.DONT_KILL_APP);
+    }
+
+    /**
+     * @param context Context. Cannot be null.
+     * @return the name of {@link BluetoothConnectionReceiver}.
+     */
+    private static ComponentName getComponent(final Context context)
+    {
+        return new ComponentName(context, BluetoothConnectionReceiver.class);
+    }
+}
@@ -0,0 +1,202 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+import name.boyle.chris.locale.bluetoothacl.Constants;
+import name.boyle.chris.locale.bluetoothacl.state.AclTrace;
+
+/**
+ * Records the ACL broadcasts taken in by {@link BluetoothConnectionReceiver} to an {@link AclTrace} in the app's files
+ * directory, so that a flapping incident can be pulled off a device and replayed through
+ * {@link name.boyle.chris.locale.bluetoothacl.state.TraceReplayer}. Recording is started and stopped through
+ * {@link TraceReceiver}.
+ * <p>
+ * While recording, events are appended to {@link #RECORDING_FILE_NAME}, whose existence is what marks recording as on, so it
+ * carries on in a new process. Stopping renames it to {@link #TRACE_FILE_NAME}, replacing the previous trace. When not recording,
+ * the cost to the receiver is one check of a field, after the first broadcast in a process.
+ * <p>
+ * Must only be used in the process which runs the receiver. This class is thread-safe.
+ */
+public final class AclTraceRecorder
+{
+    /**
+     * Name of the trace being recorded.
+     */
+    /* package */static final String RECORDING_FILE_NAME = "acl_trace.recording"; //$NON-NLS-1$
+
+    /**
+     * Name of the last complete trace.
+     */
+    public static final String TRACE_FILE_NAME = "acl_trace.txt"; //$NON-NLS-1$
+
+    /**
+     * Appends to the trace being recorded, or null if not recording. Guarded by the class lock.
+     */
+    private static AclTrace.Recorder sRecorder = null;
+
+    /**
+     * Whether this process has checked for a recording left on by a previous one. Guarded by the class lock.
+     */
+    private static boolean sIsChecked = false;
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private AclTraceRecorder()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Records a broadcast, if recording.
+     *
+     * @param context Context. Cannot be null.
+     * @param elapsedRealtime elapsed realtime at which the broadcast was taken in.
+     * @param deviceMac packed MAC of the device.
+     * @param deviceClass class reported with the broadcast.
+     * @param isConnected true if the device connected, false if it disconnected.
+     * @param isWatched true if some condition watches the device or its class.
+     */
+    public static synchronized void record(final Context context, final long elapsedRealtime, final long deviceMac, final int deviceClass, final boolean isConnected,
+                                           final boolean isWatched)
+    {
+        if (!sIsChecked)
+        {
+            sIsChecked = true;
+            if (getFile(context, RECORDING_FILE_NAME).exists())
+            {
+                open(context);
+            }
+        }
+
+        if (null == sRecorder)
+        {
+            return;
+        }
+
+        try
+        {
+            sRecorder.write(new AclTrace.Event(elapsedRealtime, deviceMac, isConnected, deviceClass, isWatched));
+        }
+        catch (final IOException e)
+        {
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, "Couldn't record broadcast, stopping trace", e); //$NON-NLS-1$
+            }
+            stop(context);
+        }
+    }
+
+    /**
+     * Starts recording a new trace, discarding any being recorded. Does nothing if the trace file can't be created.
+     *
+     * @param context Context. Cannot be null.
+     */
+    public static synchronized void start(final Context context)
+    {
+        close();
+        getFile(context, RECORDING_FILE_NAME).delete();
+        sIsChecked = true;
+        open(context);
+    }
+
+    /**
+     * Stops recording, and keeps what was recorded as {@link #TRACE_FILE_NAME}. Does nothing if not recording.
+     *
+     * @param context Context. Cannot be null.
+     */
+    public static synchronized void stop(final Context context)
+    {
+        close();
+        sIsChecked = true;
+
+        final File recording = getFile(context, RECORDING_FILE_NAME);
+        if (recording.exists())
+        {
+            final File trace = getFile(context, TRACE_FILE_NAME);
+            trace.delete();
+            if (!recording.renameTo(trace) && Constants.IS_LOGGABLE)
+            {
+                Log.w(Constants.LOG_TAG, String.format("Couldn't rename %s to %s", recording, trace)); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * @return true if recording.
+     */
+    public static synchronized boolean isRecording()
+    {
+        return null != sRecorder;
+    }
+
+    /**
+     * Forgets the state of this process, as if it had been restarted. The files are left alone.
+     */
+    /* package */static synchronized void resetInstance()
+    {
+        close();
+        sIsChecked = false;
+    }
+
+    /**
+     * Opens {@link #RECORDING_FILE_NAME} for appending. Must be called with the class lock held.
+     *
+     * @param context Context.
+     */
+    private static void open(final Context context)
+    {
+        try
+        {
+            sRecorder = new AclTrace.Recorder(getFile(context, RECORDING_FILE_NAME));
+        }
+        catch (final IOException e)
+        {
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, "Couldn't open trace", e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Closes the trace being recorded, if any. Must be called with the class lock held.
+     */
+    private static void close()
+    {
+        if (null == sRecorder)
+        {
+            return;
+        }
+
+        try
+        {
+            sRecorder.close();
+        }
+        catch (final IOException e)
+        {
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, "Couldn't close trace", e); //$NON-NLS-1$
+            }
+        }
+        sRecorder = null;
+    }
+
+    /**
+     * @param context Context.
+     * @param name name of a file.
+     * @return the file in the app's files directory.
+     */
+    private static File getFile(final Context context, final String name)
+    {
+        return new File(context.getFilesDir(), name);
+    }
+}
@@ -0,0 +1,51 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The thread on which the receivers do their work, so that loading state or touching the disk never stalls the main thread and,
+ * with it, the ordered broadcast the host is waiting on. One thread is enough: the work is short, and running it in order keeps
+ * transitions and queries from racing each other.
+ */
+public final class BackgroundExecutor
+{
+    /**
+     * The executor. Its thread is started by the first task.
+     */
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+    {
+        public Thread newThread(final Runnable runnable)
+        {
+            return new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, BackgroundExecutor.class.getSimpleName());
+        }
+    });
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private BackgroundExecutor()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * @return the executor for receiver work.
+     */
+    public static ExecutorService get()
+    {
+        return sExecutor;
+    }
+}
@@ -1,47 +1,125 @@
 package name.boyle.chris.locale.bluetoothacl.receiver;
 
+import java.util.concurrent.ScheduledExecutorService;
+
 import name.boyle.chris.locale.bluetoothacl.Constants;
-import name.boyle.chris.locale.bluetoothacl.ui.EditActivity;
+import name.boyle.chris.locale.bluetoothacl.core.BackgroundScheduler;
+import name.boyle.chris.locale.bluetoothacl.state.Clock;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceClass;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+import name.boyle.chris.locale.bluetoothacl.state.RequeryBatcher;
+import name.boyle.chris.locale.bluetoothacl.state.TransitionDebouncer;
+import name.boyle.chris.locale.bluetoothacl.state.TransitionProcessor;
+import name.boyle.chris.locale.bluetoothacl.state.WatchedDeviceRegistry;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
+// Turns ACL broadcasts into transitions for the core's TransitionProcessor; everything after that is plain Java.
 public class BluetoothConnectionReceiver extends BroadcastReceiver
 {
-	private final Intent REQUEST_REQUERY = new Intent(com.twofortyfouram.locale.Intent.ACTION_REQUEST_QUERY).putExtra(com.twofortyfouram.locale.Intent.EXTRA_ACTIVITY, EditActivity.class.getName());
-	private static final String PREFS_NAME = "last_known_state";
+	private static TransitionProcessor processor;
+	private static ScheduledExecutorService processorExecutor;
+
+	// The process-wide processor, over the process-wide cache. Tests discard the cache to simulate a new process, so start a
+	// new processor if the cache has changed rather than settling into a store nobody reads.
+	static synchronized TransitionProcessor getProcessor(Context context) {
+		Context appContext = context.getApplicationContext();
+		ConnectionStateCache cache = ConnectionStateCache.getInstance(appContext);
+		if (processor == null || processor.getStore() != cache) {
+			if (processorExecutor == null) {
+				processorExecutor = BackgroundScheduler.newInstance(TransitionProcessor.class.getSimpleName());
+			}
+			processor = new TransitionProcessor(cache, WatchedDeviceRegistry.getInstance(appContext.getFilesDir()), Clock.SYSTEM,
+					TransitionDebouncer.DEFAULT_WINDOW_MILLIS, RequeryScheduler.getInstance(appContext), processorExecutor);
+		}
+		return processor;
+	}
 
 	@Override
 	public void onReceive(Context context, Intent intent)
+	{
+		try {
+			receive(context, intent);
+		} finally {
+			ColdStartTimer.onReceiveFinished(this);
+		}
+	}
+
+	private void receive(Context context, Intent intent)
 	{
 		if (! BluetoothDevice.ACTION_ACL_CONNECTED.equals(intent.getAction())
 				&& ! BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(intent.getAction())) {
 			return;
 		}
-		boolean connected = BluetoothDevice.ACTION_ACL_CONNECTED.equals(intent.getAction());
+		final boolean connected = BluetoothDevice.ACTION_ACL_CONNECTED.equals(intent.getAction());
 
 		BluetoothDevice dev = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 		if (dev == null) return;
 		String addr = dev.getAddress();
-		Log.v(Constants.LOG_TAG, "device "+addr+" is "+(connected ? "connected" : "disconnected"));
-		if (addr == null) return;
-		SharedPreferences.Editor ed = context.getSharedPreferences(PREFS_NAME, 0).edit();
-		ed.putBoolean(addr, connected);
-		ed.commit();
+		if (Constants.IS_LOGGABLE) {
+			Log.v(Constants.LOG_TAG, "device "+addr+" is "+(connected ? "connected" : "disconnected"));
+		}
+		final long mac = MacCodec.encode(addr);
+		if (mac == MacCodec.INVALID) return;
+		// The class is cached by the system, so this doesn't wait on the radio; it's null if the device never reported one
+		BluetoothClass cls = dev.getBluetoothClass();
+		final int deviceClass = cls == null ? DeviceClass.UNKNOWN : cls.getDeviceClass();
 
-		context.sendBroadcast(REQUEST_REQUERY);
+		// Everything from here may touch the disk, so keep it off the main thread where possible
+		if (Build.VERSION.SDK_INT >= 11) {
+			final PendingResult result = goAsync();
+			final Context appContext = context.getApplicationContext();
+			BackgroundExecutor.get().execute(new Runnable() {
+				public void run() {
+					onTransition(appContext, mac, deviceClass, connected, result);
+				}
+			});
+		} else {
+			onTransition(context, mac, deviceClass, connected, null);
+		}
 	}
 
-	public static boolean isConnected(Context context, String deviceMac)
+	// result is the pending broadcast, to be finished once the transition is settled, committed and reported; or null if this
+	// is running inside onReceive, so all that has to happen before returning.
+	private static void onTransition(Context context, long mac, int deviceClass, boolean connected, final PendingResult result)
 	{
-		Log.v(Constants.LOG_TAG, "asked about "+deviceMac);
-		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, 0);
-		boolean b = prefs.getBoolean(deviceMac, false);
-		Log.v(Constants.LOG_TAG, "result "+b);
-		return b;
-	}
+		TransitionProcessor processor = getProcessor(context);
+
+		// Once the broadcast is finished, this process may be killed at any time. Keep it open until the debounce window
+		// has closed, its result is on disk and the requery has gone out; before goAsync() existed, the only option is to
+		// settle and commit here, and hope the requery batch is sent before the process dies.
+		Runnable idle = null;
+		if (result != null) {
+			final RequeryBatcher scheduler = RequeryScheduler.getInstance(context);
+			final Runnable finish = new Runnable() {
+				public void run() {
+					result.finish();
+				}
+			};
+			idle = new Runnable() {
+				public void run() {
+					scheduler.runWhenSent(finish);
+				}
+			};
+		}
+		boolean watched = processor.onAclTransition(mac, deviceClass, connected, idle);
+		AclTraceRecorder.record(context, SystemClock.elapsedRealtime(), mac, deviceClass, connected, watched);
 
+		// No condition cares about this device or its class, so its state is only kept in memory and there's nothing to wait for. If no
+		// condition cares about any device, stop receiving these at all.
+		if (! watched) {
+			AclReceiverSwitch.disableIfUnused(context);
+			if (result != null) result.finish();
+			return;
+		}
+
+		if (result == null) processor.settleAll();
+	}
 }
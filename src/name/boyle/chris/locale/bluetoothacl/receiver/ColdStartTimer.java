@@ -0,0 +1,142 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.BroadcastReceiver;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import name.boyle.chris.locale.bluetoothacl.Constants;
+import name.boyle.chris.locale.bluetoothacl.PluginApplication;
+
+/**
+ * Measures how long a receiver that started its process took to answer: from the process starting to the end of the first
+ * {@link BroadcastReceiver#onReceive(android.content.Context, android.content.Intent) onReceive} it ran. Every ACL broadcast can
+ * start the background process, so this is the cost paid on each of them while the process is not kept around.
+ * <p>
+ * Recording costs two reads of the clock. Where Android can say when the process was forked, the start is taken from there when
+ * the time is read; otherwise it is when {@link PluginApplication} was loaded, the earliest code of this app to run.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ColdStartTimer
+{
+    /**
+     * Longest acceptable time to the end of the first {@code onReceive}, in milliseconds. Generous for a slow device, so a test
+     * exceeding it means something was added to the startup path.
+     */
+    public static final long BUDGET_MILLIS = 500;
+
+    /**
+     * Start of the process, in {@link SystemClock#elapsedRealtime()} time.
+     */
+    private static long sProcessStartMillis = SystemClock.elapsedRealtime();
+
+    /**
+     * Whether {@link #sProcessStartMillis} is exact, rather than when the app's code started running.
+     */
+    private static boolean sIsStartExact = false;
+
+    /**
+     * End of the first {@code onReceive}, in {@link SystemClock#elapsedRealtime()} time, or -1 if none has finished.
+     */
+    private static long sFirstReceiveEndMillis = -1;
+
+    /**
+     * Simple class name of the receiver which started the process, or null if none has finished.
+     */
+    private static String sFirstReceiver = null;
+
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private ColdStartTimer()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Marks the start of the process. Called as the application class is loaded.
+     */
+    public static synchronized void onProcessStart()
+    {
+        sProcessStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records the end of an {@code onReceive}, if it is the first in this process.
+     *
+     * @param receiver the receiver. Cannot be null.
+     */
+    public static synchronized void onReceiveFinished(final BroadcastReceiver receiver)
+    {
+        if (-1 != sFirstReceiveEndMillis)
+        {
+            return;
+        }
+
+        sFirstReceiveEndMillis = SystemClock.elapsedRealtime();
+        sFirstReceiver = receiver.getClass().getSimpleName();
+
+        if (Constants.IS_LOGGABLE)
+        {
+            Log.v(Constants.LOG_TAG, String.format("%s finished %dms after the process started", sFirstReceiver, Long.valueOf(getColdStartMillis()))); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @return time from the start of the process to the end of its first {@code onReceive}, in milliseconds, or -1 if no
+     *         receiver has finished yet.
+     */
+    public static synchronized long getColdStartMillis()
+    {
+        if (-1 == sFirstReceiveEndMillis)
+        {
+            return -1;
+        }
+
+        if (!sIsStartExact)
+        {
+            sIsStartExact = true;
+            if (Build.VERSION.SDK_INT >= 24)
+            {
+                try
+                {
+                    sProcessStartMillis = ((Long) Process.class.getMethod("getStartElapsedRealtime").invoke(null)).longValue(); //$NON-NLS-1$
+                }
+                catch (final Exception e)
+                {
+                    if (Constants.IS_LOGGABLE)
+                    {
+                        Log.w(Constants.LOG_TAG, "Couldn't get the process start time", e); //$NON-NLS-1$
+                    }
+                }
+            }
+        }
+
+        return sFirstReceiveEndMillis - sProcessStartMillis;
+    }
+
+    /**
+     * @return simple class name of the receiver which started the process, or null if no receiver has finished yet.
+     */
+    public static synchronized String getColdStartReceiver()
+    {
+        return sFirstReceiver;
+    }
+
+    /**
+     * Forgets the first receiver, as though the process had just started.
+     *
+     * @param processStartMillis start of the process, in {@link SystemClock#elapsedRealtime()} time.
+     */
+    /* package */static synchronized void reset(final long processStartMillis)
+    {
+        sProcessStartMillis = processStartMillis;
+        sIsStartExact = true;
+        sFirstReceiveEndMillis = -1;
+        sFirstReceiver = null;
+    }
+}
@@ -0,0 +1,74 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.Context;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import name.boyle.chris.locale.bluetoothacl.bundle.ParsedBundleCache;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.RequeryBatcher;
+
+/**
+ * Writes the counters of the background machinery in a human-readable form, one per line.
+ */
+public final class MetricsDump
+{
+    /**
+     * Private constructor prevents instantiation.
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private MetricsDump()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * @param context Context. Cannot be null.
+     * @param writer destination of the dump. Cannot be null.
+     */
+    public static void dump(final Context context, final PrintWriter writer)
+    {
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(context);
+        writer.printf("state lookups: hits=%d misses=%d%n", Long.valueOf(cache.getHitCount()), Long.valueOf(cache.getMissCount())); //$NON-NLS-1$
+        printRatio(writer, "query results", cache.getQueryHitCount(), cache.getQueryMissCount()); //$NON-NLS-1$
+        writer.printf("journal: commits=%d transitions=%d%n", Long.valueOf(cache.getCommitCount()), Long.valueOf(cache.getCommittedTransitionCount())); //$NON-NLS-1$
+
+        final ParsedBundleCache bundles = ParsedBundleCache.getInstance();
+        printRatio(writer, "parsed bundles", bundles.getHitCount(), bundles.getMissCount()); //$NON-NLS-1$
+        writer.printf("parsed bundle cache: size=%d/%d evictions=%d%n", Integer.valueOf(bundles.size()), Integer.valueOf(bundles.getCapacity()), Long.valueOf(bundles.getEvictionCount())); //$NON-NLS-1$
+
+        final QueryRunner runner = QueryRunner.getInstance();
+        writer.printf("background queries: total=%d deadline fallbacks=%d unknown=%d%n", Long.valueOf(runner.getQueryCount()), Long.valueOf(runner.getFallbackCount()), Long.valueOf(runner.getUnknownFallbackCount())); //$NON-NLS-1$
+
+        writer.printf("debounce: merged=%d%n", Long.valueOf(BluetoothConnectionReceiver.getProcessor(context).getMergedCount())); //$NON-NLS-1$
+
+        final RequeryBatcher scheduler = RequeryScheduler.getInstance(context);
+        writer.printf("requeries: sent=%d suppressed=%d%n", Long.valueOf(scheduler.getSentCount()), Long.valueOf(scheduler.getSuppressedCount())); //$NON-NLS-1$
+
+        final long coldStartMillis = ColdStartTimer.getColdStartMillis();
+        if (-1 == coldStartMillis)
+        {
+            writer.printf("cold start: none%n"); //$NON-NLS-1$
+        }
+        else
+        {
+            writer.printf("cold start: %dms in %s, budget %dms%n", Long.valueOf(coldStartMillis), ColdStartTimer.getColdStartReceiver(), Long.valueOf(ColdStartTimer.BUDGET_MILLIS)); //$NON-NLS-1$
+        }
+
+        writer.flush();
+    }
+
+    /**
+     * @param writer destination of the dump.
+     * @param name name of the counters.
+     * @param hits number of hits.
+     * @param misses number of misses.
+     */
+    private static void printRatio(final PrintWriter writer, final String name, final long hits, final long misses)
+    {
+        final long total = hits + misses;
+        writer.printf(Locale.US, "%s: hits=%d misses=%d hit ratio=%.3f%n", name, Long.valueOf(hits), Long.valueOf(misses), Double.valueOf(0 == total ? 0 : (double) hits / total)); //$NON-NLS-1$
+    }
+}
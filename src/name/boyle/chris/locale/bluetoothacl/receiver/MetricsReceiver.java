@@ -0,0 +1,66 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Answers an ordered {@link #ACTION_DUMP_METRICS} broadcast with the {@link MetricsDump} of the background process as its result
+ * data, so the counters of that process can be read from the UI process and from tests. The receiver isn't exported, so only this
+ * app can ask.
+ */
+public final class MetricsReceiver extends BroadcastReceiver
+{
+    /**
+     * Action of the broadcast this receives.
+     */
+    public static final String ACTION_DUMP_METRICS = "name.boyle.chris.locale.bluetoothacl.action.DUMP_METRICS"; //$NON-NLS-1$
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onReceive(final Context context, final Intent intent)
+    {
+        if (!ACTION_DUMP_METRICS.equals(intent.getAction()))
+        {
+            return;
+        }
+
+        /*
+         * Dumping loads the state machinery, which may touch the disk
+         */
+        if (Build.VERSION.SDK_INT >= 11)
+        {
+            final PendingResult result = goAsync();
+            final Context applicationContext = context.getApplicationContext();
+            BackgroundExecutor.get().execute(new Runnable()
+            {
+                public void run()
+                {
+                    result.setResultData(dump(applicationContext));
+                    result.finish();
+                }
+            });
+        }
+        else
+        {
+            setResultData(dump(context));
+        }
+    }
+
+    /**
+     * @param context Context. Cannot be null.
+     * @return the dump.
+     */
+    private static String dump(final Context context)
+    {
+        final StringWriter out = new StringWriter();
+        MetricsDump.dump(context, new PrintWriter(out));
+        return out.toString();
+    }
+}
@@ -14,16 +14,24 @@ package name.boyle.chris.locale.bluetoothacl.receiver;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 
 import name.boyle.chris.locale.bluetoothacl.Constants;
 import name.boyle.chris.locale.bluetoothacl.bundle.BundleScrubber;
-import name.boyle.chris.locale.bluetoothacl.bundle.PluginBundleManager;
+import name.boyle.chris.locale.bluetoothacl.bundle.ParsedBundleCache;
+import name.boyle.chris.locale.bluetoothacl.bundle.ParsedCondition;
+import name.boyle.chris.locale.bluetoothacl.state.ConditionEvaluator;
+import name.boyle.chris.locale.bluetoothacl.state.ConditionExpression;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
 import name.boyle.chris.locale.bluetoothacl.ui.EditActivity;
 
 /**
- * This is the "query" BroadcastReceiver for a Locale Plug-in condition.
+ * This is the "query" BroadcastReceiver for a Locale Plug-in condition. It decodes the query and hands it to a
+ * {@link ConditionEvaluator}, which answers it from the connection state.
  */
 public final class QueryReceiver extends BroadcastReceiver
 {
@@ -36,6 +44,179 @@ public final class QueryReceiver extends BroadcastReceiver
      */
     @Override
     public void onReceive(final Context context, final Intent intent)
+    {
+        final int resultCode = receive(context, intent);
+        if (com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN != resultCode)
+        {
+            setResultCode(resultCode);
+        }
+    }
+
+    /**
+     * Does the work of {@link #onReceive(Context, Intent)}, short of setting the result. Kept apart so that tests can run exactly
+     * what a broadcast runs, without the pending result that only a real broadcast has.
+     *
+     * @param context Context. Cannot be null.
+     * @param intent the incoming Intent, as for {@link #onReceive(Context, Intent)}.
+     * @return the result code to set, or {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if the result should be
+     *         left alone: the Intent is invalid, a device's state was forgotten, or the query is being answered in the
+     *         background.
+     */
+    /* package */int receive(final Context context, final Intent intent)
+    {
+        try
+        {
+            final ParsedCondition condition = parse(intent);
+            if (null == condition)
+            {
+                return com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN;
+            }
+
+            /*
+             * Once the state is loaded, a query is normally answered from memory, so it is answered here without allocating.
+             * Otherwise evaluating has to load state from disk or rewrite the registry of watched devices, which mustn't hold up
+             * the main thread and Locale's ordered broadcast with it. Before goAsync() existed, there is no choice.
+             */
+            if (Build.VERSION.SDK_INT >= 11 && !isAnsweredFromMemory(condition))
+            {
+                runInBackground(context, condition, goAsync());
+                return com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN;
+            }
+
+            return evaluate(context, condition);
+        }
+        finally
+        {
+            ColdStartTimer.onReceiveFinished(this);
+        }
+    }
+
+    /**
+     * Evaluates a query on the {@link QueryRunner}, and finishes the broadcast with its answer.
+     *
+     * @param context Context. Cannot be null.
+     * @param condition the decoded condition. Cannot be null.
+     * @param result the broadcast's pending result, from {@link #goAsync()}. Cannot be null.
+     */
+    private static void runInBackground(final Context context, final ParsedCondition condition, final PendingResult result)
+    {
+        final QueryRunner.Callback callback = new QueryRunner.Callback()
+        {
+            public void onResult(final int resultCode)
+            {
+                if (com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN != resultCode)
+                {
+                    result.setResultCode(resultCode);
+                }
+                result.finish();
+            }
+        };
+
+        final Context applicationContext = context.getApplicationContext();
+        switch (condition.getKind())
+        {
+            case ParsedCondition.KIND_DEVICES:
+                QueryRunner.getInstance().run(applicationContext, condition.getCondition(), callback);
+                break;
+            case ParsedCondition.KIND_EXPRESSION:
+                QueryRunner.getInstance().run(applicationContext, condition.getExpression(), callback);
+                break;
+            case ParsedCondition.KIND_DEVICE_CLASS:
+                QueryRunner.getInstance().run(applicationContext, condition.isMajorDeviceClass(), condition.getDeviceClass(), condition.isConnectedExpected(), callback);
+                break;
+            default:
+                QueryRunner.getInstance().run(applicationContext, condition.getDeviceMac(), condition.isConnectedExpected(), callback);
+                break;
+        }
+    }
+
+    /**
+     * @param condition the decoded condition. Cannot be null.
+     * @return true if {@code condition} can be answered without waiting for the disk or the {@code PackageManager}: the state
+     *         machinery has been loaded, the ACL receiver is known to be enabled, and answering won't rewrite the registry of
+     *         watched devices, as a device asked about for the first time or the first time in a day would. A condition on a
+     *         malformed MAC needs none of them. Doesn't block.
+     */
+    private static boolean isAnsweredFromMemory(final ParsedCondition condition)
+    {
+        if (ParsedCondition.KIND_SINGLE_DEVICE == condition.getKind() && MacCodec.INVALID == condition.getDeviceMac())
+        {
+            return true;
+        }
+
+        final ConditionEvaluator evaluator = ConnectionStateCache.getLoadedEvaluator();
+        if (null == evaluator || !AclReceiverSwitch.isKnownEnabled())
+        {
+            return false;
+        }
+
+        switch (condition.getKind())
+        {
+            case ParsedCondition.KIND_DEVICES:
+                return evaluator.isAnsweredFromMemory(condition.getCondition());
+            case ParsedCondition.KIND_EXPRESSION:
+                return evaluator.isAnsweredFromMemory(condition.getExpression());
+            case ParsedCondition.KIND_DEVICE_CLASS:
+                return evaluator.isClassAnsweredFromMemory(condition.isMajorDeviceClass(), condition.getDeviceClass());
+            default:
+                return evaluator.isAnsweredFromMemory(condition.getDeviceMac());
+        }
+    }
+
+    /**
+     * Answers a query on the calling thread. Locale polls conditions continually, so once the state machinery is loaded a query
+     * on a single device allocates nothing: logging is compiled out unless {@link Constants#IS_LOGGABLE}, and every lookup goes
+     * through primitive tables.
+     *
+     * @param context Context. Cannot be null.
+     * @param intent the incoming Intent, as for {@link #onReceive(Context, Intent)}.
+     * @return {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_SATISFIED} or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNSATISFIED}, or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if the Intent is invalid or a device's state was
+     *         forgotten, and the result should be left alone.
+     */
+    /* package */static int query(final Context context, final Intent intent)
+    {
+        final ParsedCondition condition = parse(intent);
+        if (null == condition)
+        {
+            return com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN;
+        }
+
+        return evaluate(context, condition);
+    }
+
+    /**
+     * Evaluates a condition of any kind. May load state from disk.
+     *
+     * @param context Context. Cannot be null.
+     * @param condition the decoded condition. Cannot be null.
+     * @return {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_SATISFIED} or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNSATISFIED}, or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if a device's state was forgotten.
+     */
+    private static int evaluate(final Context context, final ParsedCondition condition)
+    {
+        switch (condition.getKind())
+        {
+            case ParsedCondition.KIND_DEVICES:
+                return evaluate(context, condition.getCondition());
+            case ParsedCondition.KIND_EXPRESSION:
+                return evaluate(context, condition.getExpression());
+            case ParsedCondition.KIND_DEVICE_CLASS:
+                return evaluate(context, condition.isMajorDeviceClass(), condition.getDeviceClass(), condition.isConnectedExpected());
+            default:
+                return evaluate(context, condition.getDeviceMac(), condition.isConnectedExpected());
+        }
+    }
+
+    /**
+     * Scrubs a query Intent and decodes its condition. Doesn't touch any connection state, so it is safe on the main thread.
+     *
+     * @param intent the incoming Intent, as for {@link #onReceive(Context, Intent)}.
+     * @return the condition, or null if the Intent is invalid.
+     */
+    private static ParsedCondition parse(final Intent intent)
     {
         /*
          * Always be sure to be strict on input parameters! A malicious third-party app could always send an empty or otherwise
@@ -49,50 +230,131 @@ public final class QueryReceiver extends BroadcastReceiver
             {
                 Log.e(Constants.LOG_TAG, String.format("Received unexpected Intent action %s", intent.getAction())); //$NON-NLS-1$
             }
-            return;
+            return null;
         }
 
         /*
          * A hack to prevent a private serializable classloader attack
          */
         BundleScrubber.scrub(intent);
-        BundleScrubber.scrub(intent.getBundleExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE));
-
         final Bundle bundle = intent.getBundleExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE);
+        BundleScrubber.scrub(bundle, BundleScrubber.MAX_PARCEL_SIZE);
 
         /*
-         * Verify the Bundle is correct
+         * Verify the Bundle is correct. Locale sends the same Bundle on every poll, so it has normally been verified and decoded
+         * before. The scrubbing above still happens every time, as it is what stops a hostile Bundle before anything reads it.
          */
-        if (!PluginBundleManager.isBundleValid(bundle))
+        final ParsedCondition condition = ParsedBundleCache.getInstance().get(bundle);
+        if (null == condition)
         {
             if (Constants.IS_LOGGABLE)
             {
                 Log.e(Constants.LOG_TAG, "Received an invalid bundle"); //$NON-NLS-1$
             }
 
-            return;
+            return null;
         }
 
+        return condition;
+    }
+
+    /**
+     * Evaluates a condition. May load state from disk.
+     *
+     * @param context Context. Cannot be null.
+     * @param deviceMac MAC of the device, packed by {@link MacCodec}. May be {@link MacCodec#INVALID}.
+     * @param conditionState state the condition expects.
+     * @return {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_SATISFIED} or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNSATISFIED}, or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if a device's state was forgotten.
+     */
+    /* package */static int evaluate(final Context context, final long deviceMac, final boolean conditionState)
+    {
         /*
-         * Handle the query
+         * Make sure ACL broadcasts are being received for the device the condition asks about. A malformed MAC never connects,
+         * so there's nothing to receive for it.
          */
-        final String deviceMac = bundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC);
-        final boolean conditionState = bundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE);
-
-        final boolean isDeviceConnected = BluetoothConnectionReceiver.isConnected(context, deviceMac);
-
-        if (Constants.IS_LOGGABLE)
+        if (MacCodec.INVALID != deviceMac)
         {
-            Log.v(Constants.LOG_TAG, String.format("Screen state is %b and condition state is %b", Boolean.valueOf(isDeviceConnected), Boolean.valueOf(conditionState))); //$NON-NLS-1$
+            AclReceiverSwitch.onQuery(context);
         }
 
-        if (isDeviceConnected == conditionState)
-        {
-           setResultCode(com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED);
-        }
-        else
+        final ConditionEvaluator evaluator = ConnectionStateCache.getEvaluator(context);
+        final boolean isSatisfied = evaluator.isSatisfied(deviceMac, conditionState);
+        return toResultCode(MacCodec.INVALID == deviceMac || evaluator.getStore().isKnown(deviceMac), isSatisfied);
+    }
+
+    /**
+     * Evaluates a condition on a set of devices. May load state from disk.
+     *
+     * @param context Context. Cannot be null.
+     * @param condition the condition. Cannot be null.
+     * @return {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_SATISFIED} or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNSATISFIED}, or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if a device's state was forgotten.
+     */
+    /* package */static int evaluate(final Context context, final DeviceCondition condition)
+    {
+        AclReceiverSwitch.onQuery(context);
+
+        final ConditionEvaluator evaluator = ConnectionStateCache.getEvaluator(context);
+        final boolean isSatisfied = evaluator.isSatisfied(condition);
+        return toResultCode(evaluator.getStore().isKnown(condition), isSatisfied);
+    }
+
+    /**
+     * Evaluates an expression over device states. May load state from disk.
+     *
+     * @param context Context. Cannot be null.
+     * @param expression the compiled expression. Cannot be null.
+     * @return {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_SATISFIED} or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNSATISFIED}, or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if a device's state was forgotten.
+     */
+    /* package */static int evaluate(final Context context, final ConditionExpression expression)
+    {
+        AclReceiverSwitch.onQuery(context);
+
+        final ConditionEvaluator evaluator = ConnectionStateCache.getEvaluator(context);
+        final boolean isSatisfied = evaluator.isSatisfied(expression);
+        return toResultCode(evaluator.getStore().isKnown(expression), isSatisfied);
+    }
+
+    /**
+     * Evaluates a condition on a class of devices. May load state from disk.
+     *
+     * @param context Context. Cannot be null.
+     * @param isMajorClass true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class.
+     * @param conditionState true if the condition is satisfied by any device of the class being connected, false if it is
+     *            satisfied by none being connected.
+     * @return {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_SATISFIED} or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNSATISFIED}, or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if a device's state was forgotten.
+     */
+    /* package */static int evaluate(final Context context, final boolean isMajorClass, final int classValue, final boolean conditionState)
+    {
+        AclReceiverSwitch.onQuery(context);
+
+        final ConditionEvaluator evaluator = ConnectionStateCache.getEvaluator(context);
+        final boolean isSatisfied = evaluator.isClassSatisfied(isMajorClass, classValue, conditionState);
+        return toResultCode(evaluator.getStore().isClassKnown(isMajorClass, classValue), isSatisfied);
+    }
+
+    /**
+     * @param isKnown whether the states the condition depends on are known. The receiver was off while a device whose state was
+     *            forgotten may have changed, so the result is left to Locale rather than guessed.
+     * @param isSatisfied whether a condition is satisfied.
+     * @return {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_SATISFIED} or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNSATISFIED}, or
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN} if {@code isKnown} is false.
+     */
+    /* package */static int toResultCode(final boolean isKnown, final boolean isSatisfied)
+    {
+        if (!isKnown)
         {
-           setResultCode(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED);
+            return com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN;
         }
+        return isSatisfied ? com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED : com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED;
     }
 }
@@ -0,0 +1,386 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import name.boyle.chris.locale.bluetoothacl.Constants;
+import name.boyle.chris.locale.bluetoothacl.state.ConditionExpression;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateStore;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceClass;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceStateTable;
+import name.boyle.chris.locale.bluetoothacl.state.WatchedDeviceRegistry;
+
+/**
+ * Evaluates queries on a background executor, and guarantees an answer within {@link #DEADLINE_MILLIS}.
+ * <p>
+ * A query is normally answered as soon as it has been evaluated. If that takes too long, for example because the first query in
+ * a process has to load state from disk behind a busy executor, the deadline answers instead. If the device states are in memory
+ * by then, it evaluates the condition against them, without touching the disk or the {@link WatchedDeviceRegistry}. Otherwise it
+ * answers with the result the same condition got last time, or {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN}
+ * if there is none, as no state is known at all. The evaluation still completes, so the next query is answered properly.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class QueryRunner
+{
+    /**
+     * Receives the answer to a query. Called exactly once per query, on either the executor or the deadline handler's thread.
+     */
+    public interface Callback
+    {
+        /**
+         * @param resultCode the Locale result code.
+         */
+        void onResult(int resultCode);
+    }
+
+    /**
+     * Evaluates one query.
+     */
+    private interface Evaluation
+    {
+        /**
+         * Evaluates the query fully. May load state from disk.
+         *
+         * @return the Locale result code.
+         */
+        int evaluate();
+
+        /**
+         * Evaluates the query against states already in memory, for the deadline.
+         *
+         * @param store a store which has loaded its states. Cannot be null.
+         * @return the Locale result code.
+         */
+        int evaluate(ConnectionStateStore store);
+    }
+
+    /**
+     * Time within which every query is answered.
+     */
+    public static final long DEADLINE_MILLIS = 500;
+
+    /**
+     * The process-wide instance. Guarded by the class lock.
+     */
+    private static QueryRunner sInstance = null;
+
+    /**
+     * Executor on which queries are evaluated.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Handler on which deadlines are posted.
+     */
+    private final Handler mHandler;
+
+    /**
+     * Time within which every query is answered.
+     */
+    private final long mDeadlineMillis;
+
+    /**
+     * Last result of each condition, keyed as {@link #getKey(long, boolean)}, with connected meaning satisfied. Kept apart
+     * from the state machinery's own locks, so that the deadline can always read it. Guarded by {@code this}.
+     */
+    private final DeviceStateTable mLastResults = new DeviceStateTable();
+
+    /**
+     * Last result of each condition on a set of devices, keyed by {@link DeviceCondition#getFingerprint()}, as
+     * {@link #mLastResults}. Guarded by {@code this}.
+     */
+    private final DeviceStateTable mLastConditionResults = new DeviceStateTable();
+
+    /**
+     * Last result of each expression, keyed by {@link ConditionExpression#getFingerprint()}, as {@link #mLastResults}. Guarded by
+     * {@code this}.
+     */
+    private final DeviceStateTable mLastExpressionResults = new DeviceStateTable();
+
+    /**
+     * Last result of each condition on a class of devices, keyed by its {@link DeviceClass#getWatchKey(boolean, int)} and expected
+     * state as {@link #getKey(long, boolean)}, as {@link #mLastResults}. Guarded by {@code this}.
+     */
+    private final DeviceStateTable mLastClassResults = new DeviceStateTable();
+
+    /**
+     * Number of queries run. Guarded by {@code this}.
+     */
+    private long mQueryCount = 0;
+
+    /**
+     * Number of queries answered by their deadline. Guarded by {@code this}.
+     */
+    private long mFallbackCount = 0;
+
+    /**
+     * Number of queries answered by their deadline with
+     * {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN}, as there was no state to answer from. Guarded by
+     * {@code this}.
+     */
+    private long mUnknownFallbackCount = 0;
+
+    /**
+     * @param executor executor on which queries are evaluated. Cannot be null.
+     * @param handler handler on which deadlines are posted. Cannot be null.
+     * @param deadlineMillis time within which every query is answered.
+     */
+    public QueryRunner(final Executor executor, final Handler handler, final long deadlineMillis)
+    {
+        mExecutor = executor;
+        mHandler = handler;
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * Gets the process-wide runner, which evaluates on the {@link BackgroundExecutor} with deadlines on the main thread.
+     *
+     * @return the runner for this process.
+     */
+    public static synchronized QueryRunner getInstance()
+    {
+        if (null == sInstance)
+        {
+            sInstance = new QueryRunner(BackgroundExecutor.get(), new Handler(Looper.getMainLooper()), DEADLINE_MILLIS);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Evaluates a query in the background.
+     *
+     * @param context Application context. Cannot be null.
+     * @param deviceMac MAC of the device, packed by {@link name.boyle.chris.locale.bluetoothacl.state.MacCodec}. Must be valid.
+     * @param isConnectedExpected state the condition expects.
+     * @param callback receives the answer. Cannot be null.
+     */
+    public void run(final Context context, final long deviceMac, final boolean isConnectedExpected, final Callback callback)
+    {
+        submit(mLastResults, getKey(deviceMac, isConnectedExpected), new Evaluation()
+        {
+            public int evaluate()
+            {
+                return QueryReceiver.evaluate(context, deviceMac, isConnectedExpected);
+            }
+
+            public int evaluate(final ConnectionStateStore store)
+            {
+                return QueryReceiver.toResultCode(store.isKnown(deviceMac), store.isSatisfied(deviceMac, isConnectedExpected));
+            }
+        }, callback);
+    }
+
+    /**
+     * Evaluates a query on a set of devices in the background.
+     *
+     * @param context Application context. Cannot be null.
+     * @param condition the condition. Cannot be null.
+     * @param callback receives the answer. Cannot be null.
+     */
+    public void run(final Context context, final DeviceCondition condition, final Callback callback)
+    {
+        submit(mLastConditionResults, condition.getFingerprint(), new Evaluation()
+        {
+            public int evaluate()
+            {
+                return QueryReceiver.evaluate(context, condition);
+            }
+
+            public int evaluate(final ConnectionStateStore store)
+            {
+                return QueryReceiver.toResultCode(store.isKnown(condition), store.isSatisfied(condition));
+            }
+        }, callback);
+    }
+
+    /**
+     * Evaluates an expression over device states in the background.
+     *
+     * @param context Application context. Cannot be null.
+     * @param expression the compiled expression. Cannot be null.
+     * @param callback receives the answer. Cannot be null.
+     */
+    public void run(final Context context, final ConditionExpression expression, final Callback callback)
+    {
+        submit(mLastExpressionResults, expression.getFingerprint(), new Evaluation()
+        {
+            public int evaluate()
+            {
+                return QueryReceiver.evaluate(context, expression);
+            }
+
+            public int evaluate(final ConnectionStateStore store)
+            {
+                return QueryReceiver.toResultCode(store.isKnown(expression), store.isSatisfied(expression));
+            }
+        }, callback);
+    }
+
+    /**
+     * Evaluates a query on a class of devices in the background.
+     *
+     * @param context Application context. Cannot be null.
+     * @param isMajorClass true if {@code classValue} is a major class, false if it is a device class.
+     * @param classValue a valid major class or device class.
+     * @param isConnectedExpected state the condition expects.
+     * @param callback receives the answer. Cannot be null.
+     */
+    public void run(final Context context, final boolean isMajorClass, final int classValue, final boolean isConnectedExpected, final Callback callback)
+    {
+        submit(mLastClassResults, getKey(DeviceClass.getWatchKey(isMajorClass, classValue), isConnectedExpected), new Evaluation()
+        {
+            public int evaluate()
+            {
+                return QueryReceiver.evaluate(context, isMajorClass, classValue, isConnectedExpected);
+            }
+
+            public int evaluate(final ConnectionStateStore store)
+            {
+                final int connectedCount = isMajorClass ? store.getConnectedCountByMajorClass(classValue) : store.getConnectedCountByDeviceClass(classValue);
+                return QueryReceiver.toResultCode(store.isClassKnown(isMajorClass, classValue), (connectedCount > 0) == isConnectedExpected);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs an evaluation on the executor, racing it against the deadline.
+     *
+     * @param lastResults table of last results to answer the deadline from and record the result in.
+     * @param key key of the condition in {@code lastResults}.
+     * @param evaluation evaluates the query. Cannot be null.
+     * @param callback receives the answer. Cannot be null.
+     */
+    private void submit(final DeviceStateTable lastResults, final long key, final Evaluation evaluation, final Callback callback)
+    {
+        synchronized (this)
+        {
+            mQueryCount++;
+        }
+
+        final AtomicBoolean isAnswered = new AtomicBoolean(false);
+        final Runnable deadline = new Runnable()
+        {
+            public void run()
+            {
+                if (isAnswered.compareAndSet(false, true))
+                {
+                    /*
+                     * Once loaded, the store only holds its lock for work in memory: forget() and clear() write their files
+                     * after releasing it, and transitions are committed by the write-behind thread. So reading it here doesn't
+                     * wait for the disk
+                     */
+                    final ConnectionStateStore store = ConnectionStateCache.getLoadedInstance();
+                    int resultCode = null == store ? com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN : evaluation.evaluate(store);
+                    synchronized (QueryRunner.this)
+                    {
+                        mFallbackCount++;
+                        if (com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN == resultCode)
+                        {
+                            resultCode = getLastResult(lastResults, key);
+                        }
+                        if (com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN == resultCode)
+                        {
+                            mUnknownFallbackCount++;
+                        }
+                    }
+
+                    if (Constants.IS_LOGGABLE)
+                    {
+                        Log.w(Constants.LOG_TAG, String.format("Query missed its deadline, answering %d", Integer.valueOf(resultCode))); //$NON-NLS-1$
+                    }
+
+                    callback.onResult(resultCode);
+                }
+            }
+        };
+        mHandler.postDelayed(deadline, mDeadlineMillis);
+
+        mExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                final int resultCode = evaluation.evaluate();
+                synchronized (QueryRunner.this)
+                {
+                    if (com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN == resultCode)
+                    {
+                        lastResults.remove(key);
+                    }
+                    else
+                    {
+                        lastResults.put(key, com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED == resultCode);
+                    }
+                }
+
+                if (isAnswered.compareAndSet(false, true))
+                {
+                    mHandler.removeCallbacks(deadline);
+                    callback.onResult(resultCode);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return number of queries run.
+     */
+    public synchronized long getQueryCount()
+    {
+        return mQueryCount;
+    }
+
+    /**
+     * @return number of queries answered by their deadline, from memory or the last result.
+     */
+    public synchronized long getFallbackCount()
+    {
+        return mFallbackCount;
+    }
+
+    /**
+     * @return number of queries answered by their deadline with
+     *         {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN}.
+     */
+    public synchronized long getUnknownFallbackCount()
+    {
+        return mUnknownFallbackCount;
+    }
+
+    /**
+     * @param lastResults table of last results.
+     * @param key key of the condition in {@code lastResults}.
+     * @return the last result of the condition, or {@link com.twofortyfouram.locale.Intent#RESULT_CONDITION_UNKNOWN}. Must be
+     *         called with the lock held.
+     */
+    private static int getLastResult(final DeviceStateTable lastResults, final long key)
+    {
+        switch (lastResults.get(key))
+        {
+            case DeviceStateTable.STATE_CONNECTED:
+                return com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED;
+            case DeviceStateTable.STATE_DISCONNECTED:
+                return com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED;
+            default:
+                return com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN;
+        }
+    }
+
+    /**
+     * @param deviceMac MAC of the device, or a key from {@link DeviceClass#getWatchKey(boolean, int)}.
+     * @param isConnectedExpected state the condition expects.
+     * @return key of the condition in {@link #mLastResults} or {@link #mLastClassResults}.
+     */
+    private static long getKey(final long deviceMac, final boolean isConnectedExpected)
+    {
+        return (deviceMac << 1) | (isConnectedExpected ? 1 : 0);
+    }
+}
@@ -0,0 +1,62 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.Context;
+import android.content.Intent;
+
+import name.boyle.chris.locale.bluetoothacl.core.BackgroundScheduler;
+import name.boyle.chris.locale.bluetoothacl.state.Clock;
+import name.boyle.chris.locale.bluetoothacl.state.RequeryBatcher;
+import name.boyle.chris.locale.bluetoothacl.state.TransitionProcessor;
+import name.boyle.chris.locale.bluetoothacl.ui.EditActivity;
+
+/**
+ * Holds the process-wide {@link RequeryBatcher}, which merges requery requests from every device into as few
+ * {@link #REQUEST_REQUERY} broadcasts as possible. The batching itself is in the core, so that a replayed trace counts the
+ * broadcasts the app would have sent.
+ */
+public final class RequeryScheduler
+{
+    /**
+     * Broadcast to ask Locale to requery.
+     */
+    /* package */static final Intent REQUEST_REQUERY = new Intent(com.twofortyfouram.locale.Intent.ACTION_REQUEST_QUERY).putExtra(com.twofortyfouram.locale.Intent.EXTRA_ACTIVITY,
+                                                                                                                                   EditActivity.class.getName());
+
+    /**
+     * The process-wide instance. Guarded by the class lock.
+     */
+    private static RequeryBatcher sInstance = null;
+
+    /**
+     * Private constructor prevents instantiation
+     *
+     * @throws UnsupportedOperationException because this class cannot be instantiated.
+     */
+    private RequeryScheduler()
+    {
+        throw new UnsupportedOperationException("This class is non-instantiable"); //$NON-NLS-1$
+    }
+
+    /**
+     * Gets the process-wide batcher, which sends {@link #REQUEST_REQUERY} broadcasts from a background thread of its own.
+     *
+     * @param context Context for broadcasts. Cannot be null.
+     * @return the batcher for this process.
+     */
+    public static synchronized RequeryBatcher getInstance(final Context context)
+    {
+        if (null == sInstance)
+        {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new RequeryBatcher(new TransitionProcessor.RequerySender()
+            {
+                public void requestRequery()
+                {
+                    applicationContext.sendBroadcast(REQUEST_REQUERY);
+                }
+            }, Clock.SYSTEM, BackgroundScheduler.newInstance(RequeryScheduler.class.getSimpleName()));
+        }
+
+        return sInstance;
+    }
+}
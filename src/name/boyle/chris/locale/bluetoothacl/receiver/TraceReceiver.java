@@ -0,0 +1,41 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Starts and stops recording of ACL broadcasts by {@link AclTraceRecorder}, in the process which takes them in. The receiver
+ * isn't exported, so only this app can ask.
+ */
+public final class TraceReceiver extends BroadcastReceiver
+{
+    /**
+     * Action of the broadcast which starts a new trace.
+     */
+    public static final String ACTION_START_TRACE = "name.boyle.chris.locale.bluetoothacl.action.START_TRACE"; //$NON-NLS-1$
+
+    /**
+     * Action of the broadcast which stops the trace and keeps it as {@link AclTraceRecorder#TRACE_FILE_NAME}.
+     */
+    public static final String ACTION_STOP_TRACE = "name.boyle.chris.locale.bluetoothacl.action.STOP_TRACE"; //$NON-NLS-1$
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onReceive(final Context context, final Intent intent)
+    {
+        /*
+         * Opening or renaming a file is quick enough to do here
+         */
+        if (ACTION_START_TRACE.equals(intent.getAction()))
+        {
+            AclTraceRecorder.start(context);
+        }
+        else if (ACTION_STOP_TRACE.equals(intent.getAction()))
+        {
+            AclTraceRecorder.stop(context);
+        }
+    }
+}
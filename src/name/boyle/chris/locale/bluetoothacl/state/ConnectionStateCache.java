@@ -0,0 +1,190 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Map;
+
+import name.boyle.chris.locale.bluetoothacl.Constants;
+
+/**
+ * Process-wide {@link ConnectionStateStore}, kept in the app's files directory, along with the {@link ConditionEvaluator} that
+ * answers queries from it.
+ * <p>
+ * Older versions stored one boolean per device in {@link SharedPreferences}. Those are moved into the journal on first load.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ConnectionStateCache extends ConnectionStateStore
+{
+    /**
+     * Name of the legacy {@link SharedPreferences} file holding one boolean per device MAC.
+     */
+    /* package */static final String PREFS_NAME = "last_known_state"; //$NON-NLS-1$
+
+    /**
+     * The process-wide instance. Written with the class lock held; volatile so that {@link #getLoadedInstance()} can read it
+     * without.
+     */
+    private static volatile ConnectionStateCache sInstance = null;
+
+    /**
+     * The process-wide evaluator over {@link #sInstance}. Written with the class lock held; volatile so that
+     * {@link #getLoadedEvaluator()} can read it without.
+     */
+    private static volatile ConditionEvaluator sEvaluator = null;
+
+    /**
+     * Application context, used to reach the legacy {@link SharedPreferences}.
+     */
+    private final Context mContext;
+
+    /**
+     * @param context Application context. Cannot be null.
+     */
+    private ConnectionStateCache(final Context context)
+    {
+        super(context.getFilesDir());
+        mContext = context;
+    }
+
+    /**
+     * Gets the process-wide cache.
+     *
+     * @param context Context used to reach the backing store. Cannot be null.
+     * @return the cache for this process.
+     * @throws IllegalArgumentException if {@code context} is null.
+     */
+    public static synchronized ConnectionStateCache getInstance(final Context context)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == context)
+            {
+                throw new IllegalArgumentException("context cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        if (null == sInstance)
+        {
+            final Context applicationContext = context.getApplicationContext();
+            sInstance = new ConnectionStateCache(null == applicationContext ? context : applicationContext);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Gets the process-wide evaluator, which answers queries from the process-wide cache and marks what they ask about in the
+     * process-wide {@link WatchedDeviceRegistry}. Kept here, rather than created for each query, so that a query allocates nothing.
+     *
+     * @param context Context used to reach the backing store. Cannot be null.
+     * @return the evaluator for this process.
+     */
+    public static synchronized ConditionEvaluator getEvaluator(final Context context)
+    {
+        if (null == sEvaluator)
+        {
+            final ConnectionStateCache cache = getInstance(context);
+            sEvaluator = new ConditionEvaluator(cache, WatchedDeviceRegistry.getInstance(cache.mContext.getFilesDir()), Clock.SYSTEM);
+        }
+
+        return sEvaluator;
+    }
+
+    /**
+     * Gets the process-wide cache if it has already read its states, for callers on the main thread which mustn't wait for the
+     * disk.
+     *
+     * @return the cache for this process, or null if it doesn't exist yet or hasn't read its states. Doesn't block.
+     */
+    public static ConnectionStateCache getLoadedInstance()
+    {
+        final ConnectionStateCache cache = sInstance;
+        return null != cache && cache.isLoaded() ? cache : null;
+    }
+
+    /**
+     * Gets the process-wide evaluator if it has already read everything a query needs, as {@link #getLoadedInstance()}.
+     *
+     * @return the evaluator for this process, or null if it doesn't exist yet or hasn't read its state. Doesn't block.
+     */
+    public static ConditionEvaluator getLoadedEvaluator()
+    {
+        final ConditionEvaluator evaluator = sEvaluator;
+        return null != evaluator && evaluator.isLoaded() ? evaluator : null;
+    }
+
+    /**
+     * Commits any pending writes on the calling thread, if this process has a cache. Called when the process may be about to be
+     * killed.
+     */
+    public static void flushIfLoaded()
+    {
+        final ConnectionStateCache cache;
+        synchronized (ConnectionStateCache.class)
+        {
+            cache = sInstance;
+        }
+
+        if (null != cache)
+        {
+            cache.flush();
+        }
+    }
+
+    /**
+     * Discards the process-wide cache and its evaluator, so that the next {@link #getInstance(Context)} reloads from the backing
+     * store. This simulates a fresh process. Pending writes are discarded with it, as they would be if the process were killed.
+     */
+    /* package */static synchronized void resetInstance()
+    {
+        if (null != sInstance)
+        {
+            sInstance.discard();
+            sInstance = null;
+            sEvaluator = null;
+        }
+    }
+
+    /**
+     * Moves device states from the legacy {@link SharedPreferences} into the journal.
+     */
+    @Override
+    protected void importLegacyStates(final TransitionJournal journal)
+    {
+        final SharedPreferences prefs = mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        final Map<String, ?> all = prefs.getAll();
+        if (all.isEmpty())
+        {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        try
+        {
+            for (final Map.Entry<String, ?> entry : all.entrySet())
+            {
+                final long packed = MacCodec.encode(entry.getKey());
+                if (MacCodec.INVALID != packed && entry.getValue() instanceof Boolean)
+                {
+                    journal.append(new Transition(packed, ((Boolean) entry.getValue()).booleanValue(), now));
+                }
+            }
+            journal.compact();
+            journal.close();
+        }
+        catch (final IOException e)
+        {
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, "Couldn't migrate device states", e); //$NON-NLS-1$
+            }
+            return;
+        }
+
+        prefs.edit().clear().commit();
+    }
+}
@@ -0,0 +1,469 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Set;
+
+import name.boyle.chris.locale.bluetoothacl.Constants;
+
+/**
+ * Persistent list of the paired devices, for the editor to offer.
+ * <p>
+ * Listing paired devices and their names goes through the Bluetooth service, and only works while Bluetooth is on. The catalog
+ * keeps the last list on disk, so the editor can show it at once and {@link #refresh(BluetoothAdapter)} it in the background. A
+ * refresh while Bluetooth is off changes nothing, so conditions can still be edited then.
+ * <p>
+ * The file is {@link #MAGIC}, {@link #FORMAT_VERSION}, a count, then per device a long MAC packed by {@link MacCodec}, an int
+ * class or {@link DeviceClass#UNKNOWN}, a long wall clock time it was last seen paired, and its name as modified UTF-8. It is
+ * rewritten whole, and only when the list changes or a device's last seen time is more than {@link #REFRESH_MILLIS} old.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class DeviceCatalog
+{
+    /**
+     * Name of the catalog file.
+     */
+    /* package */static final String FILE_NAME = "device_catalog"; //$NON-NLS-1$
+
+    /**
+     * Minimum age of a device's stored last seen time before a refresh rewrites it.
+     */
+    public static final long REFRESH_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * First word of the file.
+     */
+    private static final int MAGIC = 0x42544443; // "BTDC"
+
+    /**
+     * Second word of the file.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Order in which devices are listed: by name ignoring case, then by MAC.
+     */
+    private static final Comparator<Device> ORDER = new Comparator<Device>()
+    {
+        public int compare(final Device lhs, final Device rhs)
+        {
+            final int result = lhs.getDisplayName().compareToIgnoreCase(rhs.getDisplayName());
+            if (0 != result)
+            {
+                return result;
+            }
+            return lhs.mMac < rhs.mMac ? -1 : (lhs.mMac == rhs.mMac ? 0 : 1);
+        }
+    };
+
+    /**
+     * The process-wide instance. Guarded by the class lock.
+     */
+    private static DeviceCatalog sInstance = null;
+
+    /**
+     * Catalog file.
+     */
+    private final File mFile;
+
+    /**
+     * Source of time.
+     */
+    private final Clock mClock;
+
+    /**
+     * The devices, in {@link #ORDER}. Replaced, never modified. Guarded by {@code this}.
+     */
+    private Device[] mDevices = new Device[0];
+
+    /**
+     * Whether the file has been read. Guarded by {@code this}.
+     */
+    private boolean mIsLoaded = false;
+
+    /**
+     * A paired device. Instances are immutable.
+     */
+    public static final class Device
+    {
+        /**
+         * Packed MAC.
+         */
+        private final long mMac;
+
+        /**
+         * Name, or empty if the device has none.
+         */
+        private final String mName;
+
+        /**
+         * Class, or {@link DeviceClass#UNKNOWN}.
+         */
+        private final int mDeviceClass;
+
+        /**
+         * Wall clock time the device was last seen paired.
+         */
+        private final long mLastSeen;
+
+        /**
+         * @param mac MAC packed by {@link MacCodec}. Cannot be {@link MacCodec#INVALID}.
+         * @param name name of the device. May be null if it has none.
+         * @param deviceClass class of the device, or {@link DeviceClass#UNKNOWN}.
+         * @param lastSeen wall clock time the device was last seen paired.
+         */
+        public Device(final long mac, final String name, final int deviceClass, final long lastSeen)
+        {
+            if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+            {
+                if (MacCodec.INVALID == mac)
+                {
+                    throw new IllegalArgumentException("mac cannot be INVALID"); //$NON-NLS-1$
+                }
+            }
+
+            mMac = mac;
+            mName = null == name ? "" : name; //$NON-NLS-1$
+            mDeviceClass = DeviceClass.isValid(deviceClass) ? deviceClass : DeviceClass.UNKNOWN;
+            mLastSeen = lastSeen;
+        }
+
+        /**
+         * @return MAC packed by {@link MacCodec}.
+         */
+        public long getMac()
+        {
+            return mMac;
+        }
+
+        /**
+         * @return MAC, uppercase with colons, as {@link BluetoothDevice#getAddress()} returns it.
+         */
+        public String getAddress()
+        {
+            return MacCodec.decode(mMac);
+        }
+
+        /**
+         * @return name of the device, or empty if it has none.
+         */
+        public String getName()
+        {
+            return mName;
+        }
+
+        /**
+         * @return name of the device, or its MAC if it has no name.
+         */
+        public String getDisplayName()
+        {
+            return 0 == mName.length() ? getAddress() : mName;
+        }
+
+        /**
+         * @return class of the device, or {@link DeviceClass#UNKNOWN}.
+         */
+        public int getDeviceClass()
+        {
+            return mDeviceClass;
+        }
+
+        /**
+         * @return wall clock time the device was last seen paired.
+         */
+        public long getLastSeen()
+        {
+            return mLastSeen;
+        }
+
+        /**
+         * @param other another device.
+         * @return true if {@code other} is the same device with the same name and class, whenever it was seen.
+         */
+        /* package */boolean isSameAs(final Device other)
+        {
+            return mMac == other.mMac && mDeviceClass == other.mDeviceClass && mName.equals(other.mName);
+        }
+    }
+
+    /**
+     * @param directory directory holding the catalog file. Cannot be null.
+     * @param clock source of time. Cannot be null.
+     */
+    public DeviceCatalog(final File directory, final Clock clock)
+    {
+        if (Constants.IS_PARAMETER_CHECKING_ENABLED)
+        {
+            if (null == directory)
+            {
+                throw new IllegalArgumentException("directory cannot be null"); //$NON-NLS-1$
+            }
+            if (null == clock)
+            {
+                throw new IllegalArgumentException("clock cannot be null"); //$NON-NLS-1$
+            }
+        }
+
+        mFile = new File(directory, FILE_NAME);
+        mClock = clock;
+    }
+
+    /**
+     * Gets the process-wide catalog.
+     *
+     * @param context Context used to reach the catalog file. Cannot be null.
+     * @return the catalog for this process.
+     */
+    public static synchronized DeviceCatalog getInstance(final Context context)
+    {
+        if (null == sInstance)
+        {
+            sInstance = new DeviceCatalog(context.getFilesDir(), Clock.SYSTEM);
+        }
+
+        return sInstance;
+    }
+
+    /**
+     * Discards the process-wide catalog, so that the next {@link #getInstance(Context)} rereads the file.
+     */
+    /* package */static synchronized void resetInstance()
+    {
+        sInstance = null;
+    }
+
+    /**
+     * Gets the devices, reading the file if it hasn't been read yet. The file is small, so this is quick enough for the main
+     * thread.
+     *
+     * @return the devices, by name. The array must not be modified.
+     */
+    public synchronized Device[] getDevices()
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        return mDevices;
+    }
+
+    /**
+     * Lists the paired devices and replaces the catalog with them. Talks to the Bluetooth service, so it must not be called on
+     * the main thread.
+     *
+     * @param adapter the Bluetooth adapter. Cannot be null.
+     * @return true if the devices, their names or classes changed. False if Bluetooth is off, which leaves the catalog as it was.
+     */
+    public boolean refresh(final BluetoothAdapter adapter)
+    {
+        if (!adapter.isEnabled())
+        {
+            return false;
+        }
+        final Set<BluetoothDevice> bonded = adapter.getBondedDevices();
+        if (null == bonded)
+        {
+            return false;
+        }
+
+        final long now = mClock.currentTimeMillis();
+        final Device[] devices = new Device[bonded.size()];
+        int count = 0;
+        for (final BluetoothDevice device : bonded)
+        {
+            final long mac = MacCodec.encode(device.getAddress());
+            if (MacCodec.INVALID != mac && count < devices.length)
+            {
+                final BluetoothClass bluetoothClass = device.getBluetoothClass();
+                devices[count++] = new Device(mac, device.getName(), null == bluetoothClass ? DeviceClass.UNKNOWN : bluetoothClass.getDeviceClass(), now);
+            }
+        }
+
+        final Device[] result = new Device[count];
+        System.arraycopy(devices, 0, result, 0, count);
+        return update(result);
+    }
+
+    /**
+     * Replaces the catalog with the devices paired now.
+     *
+     * @param devices the paired devices. Cannot be null. Their last seen times should be now.
+     * @return true if the devices, their names or classes changed.
+     */
+    public synchronized boolean update(final Device[] devices)
+    {
+        if (!mIsLoaded)
+        {
+            load();
+        }
+
+        final Device[] sorted = devices.clone();
+        Arrays.sort(sorted, ORDER);
+
+        boolean isChanged = sorted.length != mDevices.length;
+        boolean isStale = false;
+        for (int x = 0; x < sorted.length && !isChanged; x++)
+        {
+            isChanged = !sorted[x].isSameAs(mDevices[x]);
+            isStale |= sorted[x].mLastSeen - mDevices[x].mLastSeen >= REFRESH_MILLIS;
+        }
+
+        if (isChanged || isStale)
+        {
+            mDevices = sorted;
+            save();
+
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.v(Constants.LOG_TAG, String.format("Device catalog now has %d devices, changed=%b", Integer.valueOf(sorted.length), Boolean.valueOf(isChanged))); //$NON-NLS-1$
+            }
+        }
+
+        return isChanged;
+    }
+
+    /**
+     * Reads the catalog file. A missing or corrupt file leaves the catalog empty. Must be called with the lock held.
+     */
+    private void load()
+    {
+        mIsLoaded = true;
+        mDevices = new Device[0];
+
+        if (!mFile.exists())
+        {
+            return;
+        }
+
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile(mFile, "r"); //$NON-NLS-1$
+            final byte[] bytes = new byte[(int) Math.min(file.length(), Integer.MAX_VALUE)];
+            file.readFully(bytes);
+
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (MAGIC != in.readInt() || FORMAT_VERSION != in.readInt())
+            {
+                return;
+            }
+
+            final int count = in.readInt();
+            if (count < 0 || count > bytes.length)
+            {
+                return;
+            }
+
+            final Device[] devices = new Device[count];
+            for (int x = 0; x < count; x++)
+            {
+                final long mac = in.readLong();
+                final int deviceClass = in.readInt();
+                final long lastSeen = in.readLong();
+                final String name = in.readUTF();
+                if (MacCodec.INVALID == mac)
+                {
+                    return;
+                }
+                devices[x] = new Device(mac, name, deviceClass, lastSeen);
+            }
+            Arrays.sort(devices, ORDER);
+            mDevices = devices;
+        }
+        catch (final IOException e)
+        {
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, "Couldn't read the device catalog", e); //$NON-NLS-1$
+            }
+        }
+        finally
+        {
+            if (null != file)
+            {
+                try
+                {
+                    file.close();
+                }
+                catch (final IOException e)
+                {
+                    // nothing was written
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the catalog file. The file is written to a temporary file and renamed into place, so a crash leaves either the old
+     * catalog or the new one. Must be called with the lock held.
+     */
+    private void save()
+    {
+        final File temp = new File(mFile.getPath() + ".tmp"); //$NON-NLS-1$
+        try
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(mDevices.length);
+            for (final Device device : mDevices)
+            {
+                out.writeLong(device.mMac);
+                out.writeInt(device.mDeviceClass);
+                out.writeLong(device.mLastSeen);
+                out.writeUTF(device.mName);
+            }
+            out.flush();
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+
+            final RandomAccessFile file = new RandomAccessFile(temp, "rw"); //$NON-NLS-1$
+            try
+            {
+                final FileChannel channel = file.getChannel();
+                channel.truncate(0);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            finally
+            {
+                file.close();
+            }
+
+            if (!temp.renameTo(mFile))
+            {
+                throw new IOException("Couldn't rename " + temp + " to " + mFile); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+        catch (final IOException e)
+        {
+            /*
+             * The in-memory catalog is still right for this process; the next successful save catches the file up
+             */
+            if (Constants.IS_LOGGABLE)
+            {
+                Log.e(Constants.LOG_TAG, "Couldn't save the device catalog", e); //$NON-NLS-1$
+            }
+        }
+    }
+}
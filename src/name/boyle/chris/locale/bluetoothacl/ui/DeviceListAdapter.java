@@ -0,0 +1,90 @@
+package name.boyle.chris.locale.bluetoothacl.ui;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows the devices of a {@link DeviceListModel} which match its filter. Rows are recycled by the {@code ListView}, so only the
+ * rows on screen exist however many devices there are.
+ */
+public final class DeviceListAdapter extends BaseAdapter
+{
+    /**
+     * Inflates new rows.
+     */
+    private final LayoutInflater mInflater;
+
+    /**
+     * Devices shown.
+     */
+    private final DeviceListModel mModel;
+
+    /**
+     * @param context Context to inflate rows with. Cannot be null.
+     * @param model devices to show. Cannot be null.
+     */
+    public DeviceListAdapter(final Context context, final DeviceListModel model)
+    {
+        mInflater = LayoutInflater.from(context);
+        mModel = model;
+    }
+
+    /**
+     * @return the devices shown.
+     */
+    public DeviceListModel getModel()
+    {
+        return mModel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getCount()
+    {
+        return mModel.getVisibleCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getItem(final int row)
+    {
+        return mModel.getName(mModel.getVisiblePosition(row));
+    }
+
+    /**
+     * @return the position of the device in the model, which doesn't change with the filter.
+     */
+    @Override
+    public long getItemId(final int row)
+    {
+        return mModel.getVisiblePosition(row);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasStableIds()
+    {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public View getView(final int row, final View convertView, final ViewGroup parent)
+    {
+        final TextView view = (TextView) (null == convertView ? mInflater.inflate(android.R.layout.simple_list_item_multiple_choice, parent, false) : convertView);
+        view.setText(mModel.getName(mModel.getVisiblePosition(row)));
+        return view;
+    }
+}
@@ -0,0 +1,278 @@
+package name.boyle.chris.locale.bluetoothacl.ui;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCatalog;
+
+/**
+ * The devices {@link EditActivity} offers, which of them are checked, and which of them match the search typed above the list.
+ * <p>
+ * Devices are numbered by their position in the catalog, and a MAC is found through an index rather than by searching the list,
+ * so preselecting the devices of a saved condition costs the same with a thousand paired devices as with ten. The checked state
+ * belongs to the device rather than to a row of the list, so it survives filtering.
+ * <p>
+ * This class is not thread-safe; it is used on the UI thread.
+ */
+public final class DeviceListModel
+{
+    /**
+     * MAC of each device.
+     */
+    private final String[] mMacs;
+
+    /**
+     * Display name of each device.
+     */
+    private final String[] mNames;
+
+    /**
+     * Lower case name and MAC of each device, which the filter is matched against.
+     */
+    private final String[] mSearchKeys;
+
+    /**
+     * Position of each MAC.
+     */
+    private final HashMap<String, Integer> mPositions;
+
+    /**
+     * Whether each device is checked.
+     */
+    private final boolean[] mChecked;
+
+    /**
+     * Positions of the devices matching {@link #mFilter}, in order. Only the first {@link #mVisibleCount} are used.
+     */
+    private final int[] mVisible;
+
+    /**
+     * Number of devices matching {@link #mFilter}.
+     */
+    private int mVisibleCount;
+
+    /**
+     * Number of checked devices.
+     */
+    private int mCheckedCount = 0;
+
+    /**
+     * Current filter, in lower case. Empty when every device is shown.
+     */
+    private String mFilter = ""; //$NON-NLS-1$
+
+    /**
+     * Locale used to fold the case of names and filters.
+     */
+    private final Locale mLocale = Locale.getDefault();
+
+    /**
+     * @param devices devices in the order they are shown, as from {@link DeviceCatalog#getDevices()}. Cannot be null.
+     */
+    public DeviceListModel(final DeviceCatalog.Device[] devices)
+    {
+        mMacs = new String[devices.length];
+        mNames = new String[devices.length];
+        mSearchKeys = new String[devices.length];
+        mPositions = new HashMap<String, Integer>(devices.length * 4 / 3 + 1);
+        mChecked = new boolean[devices.length];
+        mVisible = new int[devices.length];
+
+        for (int x = 0; x < devices.length; x++)
+        {
+            mMacs[x] = devices[x].getAddress();
+            mNames[x] = devices[x].getDisplayName();
+            mSearchKeys[x] = (mNames[x] + ' ' + mMacs[x]).toLowerCase(mLocale);
+            mPositions.put(mMacs[x], Integer.valueOf(x));
+            mVisible[x] = x;
+        }
+        mVisibleCount = devices.length;
+    }
+
+    /**
+     * @return number of devices, whether or not they match the filter.
+     */
+    public int size()
+    {
+        return mMacs.length;
+    }
+
+    /**
+     * @param position position of a device.
+     * @return its MAC.
+     */
+    public String getMac(final int position)
+    {
+        return mMacs[position];
+    }
+
+    /**
+     * @param position position of a device.
+     * @return its display name.
+     */
+    public String getName(final int position)
+    {
+        return mNames[position];
+    }
+
+    /**
+     * @param mac a MAC in the form {@code 00:11:22:33:44:55}. May be null.
+     * @return position of the device with that MAC, or -1 if there is none.
+     */
+    public int indexOf(final String mac)
+    {
+        final Integer position = mPositions.get(mac);
+        return null == position ? -1 : position.intValue();
+    }
+
+    /**
+     * @param position position of a device.
+     * @return whether it is checked.
+     */
+    public boolean isChecked(final int position)
+    {
+        return mChecked[position];
+    }
+
+    /**
+     * @param position position of a device.
+     * @param isChecked whether it should be checked.
+     */
+    public void setChecked(final int position, final boolean isChecked)
+    {
+        if (mChecked[position] != isChecked)
+        {
+            mChecked[position] = isChecked;
+            mCheckedCount += isChecked ? 1 : -1;
+        }
+    }
+
+    /**
+     * Checks the device with a MAC, if there is one.
+     *
+     * @param mac a MAC in the form {@code 00:11:22:33:44:55}. May be null.
+     * @return true if the device is in the list.
+     */
+    public boolean check(final String mac)
+    {
+        final int position = indexOf(mac);
+        if (position < 0)
+        {
+            return false;
+        }
+
+        setChecked(position, true);
+        return true;
+    }
+
+    /**
+     * @return number of checked devices.
+     */
+    public int getCheckedCount()
+    {
+        return mCheckedCount;
+    }
+
+    /**
+     * @return MACs of the checked devices, in list order.
+     */
+    public ArrayList<String> getCheckedMacs()
+    {
+        return getChecked(mMacs);
+    }
+
+    /**
+     * @return display names of the checked devices, in list order.
+     */
+    public ArrayList<String> getCheckedNames()
+    {
+        return getChecked(mNames);
+    }
+
+    /**
+     * Shows only the devices whose name or MAC contains some text, ignoring case. Typing more of a filter only searches the
+     * devices which matched before.
+     *
+     * @param filter the text. Null or empty shows every device.
+     * @return true if the devices shown may have changed.
+     */
+    public boolean setFilter(final CharSequence filter)
+    {
+        final String newFilter = null == filter ? "" : filter.toString().trim().toLowerCase(mLocale); //$NON-NLS-1$
+        if (newFilter.equals(mFilter))
+        {
+            return false;
+        }
+
+        final int oldCount = mVisibleCount;
+        final boolean isNarrowing = newFilter.startsWith(mFilter);
+        int count = 0;
+        if (isNarrowing)
+        {
+            /*
+             * A longer filter can only narrow what matched the shorter one, and mVisible is compacted in place in order
+             */
+            for (int x = 0; x < mVisibleCount; x++)
+            {
+                if (mSearchKeys[mVisible[x]].contains(newFilter))
+                {
+                    mVisible[count++] = mVisible[x];
+                }
+            }
+        }
+        else
+        {
+            for (int x = 0; x < mSearchKeys.length; x++)
+            {
+                if (mSearchKeys[x].contains(newFilter))
+                {
+                    mVisible[count++] = x;
+                }
+            }
+        }
+        mVisibleCount = count;
+        mFilter = newFilter;
+
+        return !isNarrowing || oldCount != count;
+    }
+
+    /**
+     * @return number of devices matching the filter.
+     */
+    public int getVisibleCount()
+    {
+        return mVisibleCount;
+    }
+
+    /**
+     * @param row a row of the filtered list, less than {@link #getVisibleCount()}.
+     * @return position of the device shown in that row.
+     */
+    public int getVisiblePosition(final int row)
+    {
+        if (row >= mVisibleCount)
+        {
+            throw new IndexOutOfBoundsException();
+        }
+
+        return mVisible[row];
+    }
+
+    /**
+     * @param values a value for each device.
+     * @return the values of the checked devices, in list order.
+     */
+    private ArrayList<String> getChecked(final String[] values)
+    {
+        final ArrayList<String> result = new ArrayList<String>(mCheckedCount);
+        for (int x = 0; x < values.length; x++)
+        {
+            if (mChecked[x])
+            {
+                result.add(values[x]);
+            }
+        }
+        return result;
+    }
+}
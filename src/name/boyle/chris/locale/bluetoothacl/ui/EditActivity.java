@@ -10,27 +10,40 @@
  */
 package name.boyle.chris.locale.bluetoothacl.ui;
 
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.Vector;
 
 import name.boyle.chris.locale.bluetoothacl.Constants;
+import name.boyle.chris.locale.bluetoothacl.PluginApplication;
 import name.boyle.chris.locale.bluetoothacl.R;
 import name.boyle.chris.locale.bluetoothacl.bundle.BundleScrubber;
 import name.boyle.chris.locale.bluetoothacl.bundle.PluginBundleManager;
+import name.boyle.chris.locale.bluetoothacl.receiver.AclReceiverSwitch;
+import name.boyle.chris.locale.bluetoothacl.state.ConditionExpression;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCatalog;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothClass;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.TypedArray;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Spinner;
 import android.widget.Toast;
@@ -48,6 +61,30 @@ public final class EditActivity extends Activity
      */
     private static final String HELP_URL = "http://chris.boyle.name/projects/bluetoothacl"; //$NON-NLS-1$
 
+    /**
+     * Elements of {@link R.array#device_classes} which are classes, parallel to {@link #MAJOR_CLASSES}.
+     */
+    private static final int[] CLASS_IDS = new int[]
+        { R.string.list_class_audio_video, R.string.list_class_computer, R.string.list_class_phone, R.string.list_class_peripheral, R.string.list_class_wearable,
+                R.string.list_class_health, R.string.list_class_imaging };
+
+    /**
+     * Major device class of each element of {@link #CLASS_IDS}.
+     */
+    private static final int[] MAJOR_CLASSES = new int[]
+        { BluetoothClass.Device.Major.AUDIO_VIDEO, BluetoothClass.Device.Major.COMPUTER, BluetoothClass.Device.Major.PHONE, BluetoothClass.Device.Major.PERIPHERAL,
+                BluetoothClass.Device.Major.WEARABLE, BluetoothClass.Device.Major.HEALTH, BluetoothClass.Device.Major.IMAGING };
+
+    /**
+     * Number of devices from which {@link #deviceFilter} is shown
+     */
+    private static final int MIN_DEVICES_FOR_FILTER = 10;
+
+    /**
+     * Key in the saved instance state of the MACs of the checked devices, including {@link #pendingMacs}
+     */
+    private static final String STATE_CHECKED_MACS = "checked_macs"; //$NON-NLS-1$
+
     /**
      * Flag boolean that can only be set to true via the "Don't Save"
      * {@link com.twofortyfouram.locale.platform.R.id#twofortyfouram_locale_menu_dontsave} menu item in
@@ -67,10 +104,56 @@ public final class EditActivity extends Activity
      */
     private ListView mList = null;
 
-    private Spinner deviceSpinner = null;
+    /**
+     * Spinner choosing a class of devices from {@link R.array#device_classes}, which replaces the selected devices unless it is
+     * {@link R.string#list_class_selected}
+     */
+    private Spinner classSpinner = null;
+
+    /**
+     * Search box narrowing {@link #deviceList} to devices whose name or MAC contains its text
+     */
+    private EditText deviceFilter = null;
+
+    /**
+     * Multiple choice list of paired devices, showing {@link #devices} through {@link #deviceAdapter}
+     */
+    private ListView deviceList = null;
+
+    /**
+     * Adapter of {@link #deviceList}
+     */
+    private DeviceListAdapter deviceAdapter = null;
+
+    /**
+     * Spinner choosing how many of the selected devices must be in the chosen state, from {@link R.array#quantifiers}
+     */
+    private Spinner quantifierSpinner = null;
+
+    /**
+     * Spinner choosing the count for {@link R.string#list_quantifier_at_least}. Position 0 is a count of 1.
+     */
+    private Spinner minCountSpinner = null;
 
-    Vector<String> deviceMacs = new Vector<String>();
-    Vector<String> deviceNames = new Vector<String>();
+    /**
+     * Optional {@link ConditionExpression}, which replaces the other choices when it isn't empty
+     */
+    private EditText expressionText = null;
+
+    /**
+     * Paired devices and which of them are checked; the rows of {@link #deviceList} are only a filtered view of this
+     */
+    DeviceListModel devices = null;
+
+    /**
+     * MACs the saved condition wants which aren't in the catalog yet, to be checked if a refresh finds them
+     */
+    Vector<String> pendingMacs = new Vector<String>();
+
+    /**
+     * Count the saved condition wants for {@link R.string#list_quantifier_at_least}, if there are too few devices to show it yet
+     */
+    int pendingMinCount = 0;
 
     /**
      * {@inheritDoc}
@@ -79,14 +162,11 @@ public final class EditActivity extends Activity
     protected void onCreate(final Bundle savedInstanceState)
     {
         super.onCreate(savedInstanceState);
-        BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
-        if (a != null) {
-            for (BluetoothDevice d : a.getBondedDevices()) {
-                deviceNames.add(d.getName());
-                deviceMacs.add(d.getAddress());
-            }
-        }
-        if(deviceNames.isEmpty()) {
+        PluginApplication.enableDebugOptions(getApplicationContext());
+        // listing paired devices is IPC and needs Bluetooth on, so show the catalog now and refresh it once the UI is up
+        final BluetoothAdapter a = BluetoothAdapter.getDefaultAdapter();
+        setDevices(readCatalog());
+        if (a == null && devices.size() == 0) {
             Toast.makeText(this, R.string.no_devices, Toast.LENGTH_LONG).show();
             mIsCancelled = true;
             finish();
@@ -97,7 +177,7 @@ public final class EditActivity extends Activity
          * A hack to prevent a private serializable classloader attack
          */
         BundleScrubber.scrub(getIntent());
-        BundleScrubber.scrub(getIntent().getBundleExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE));
+        BundleScrubber.scrub(getIntent().getBundleExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE), BundleScrubber.MAX_PARCEL_SIZE);
 
         setContentView(R.layout.main);
 
@@ -128,10 +208,57 @@ public final class EditActivity extends Activity
         mList = ((ListView) findViewById(android.R.id.list));
         mList.setAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_single_choice, android.R.id.text1, getResources().getStringArray(R.array.bt_states)));
 
-        deviceSpinner = ((Spinner) findViewById(R.id.deviceSpinner));
-        ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, android.R.id.text1, deviceNames);
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        deviceSpinner.setAdapter(adapter);
+        classSpinner = ((Spinner) findViewById(R.id.classSpinner));
+        ArrayAdapter<String> classAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, android.R.id.text1, getResources().getStringArray(R.array.device_classes));
+        classAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        classSpinner.setAdapter(classAdapter);
+
+        deviceFilter = ((EditText) findViewById(R.id.deviceFilter));
+        deviceList = ((ListView) findViewById(R.id.deviceList));
+        deviceList.setFastScrollEnabled(true);
+
+        quantifierSpinner = ((Spinner) findViewById(R.id.quantifierSpinner));
+        ArrayAdapter<String> quantifierAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, android.R.id.text1, getResources().getStringArray(R.array.quantifiers));
+        quantifierAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        quantifierSpinner.setAdapter(quantifierAdapter);
+
+        minCountSpinner = ((Spinner) findViewById(R.id.minCountSpinner));
+        setDeviceAdapters();
+
+        expressionText = ((EditText) findViewById(R.id.expressionText));
+
+        // the ListView toggles the row; the model remembers the device, whatever the filter
+        deviceList.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                devices.setChecked((int) id, deviceList.isItemChecked(position));
+            }
+        });
+        deviceFilter.addTextChangedListener(new TextWatcher() {
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            public void afterTextChanged(Editable s) {
+                if (devices.setFilter(s)) {
+                    deviceAdapter.notifyDataSetChanged();
+                    syncCheckedRows();
+                }
+            }
+        });
+
+        // the count only means something for "at least"
+        quantifierSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                boolean isAtLeast = R.string.list_quantifier_at_least == getResourceIdForPositionInArray(getApplicationContext(), R.array.quantifiers, position);
+                minCountSpinner.setVisibility(isAtLeast ? View.VISIBLE : View.GONE);
+            }
+
+            public void onNothingSelected(AdapterView<?> parent) {
+                minCountSpinner.setVisibility(View.GONE);
+            }
+        });
 
         /*
          * if savedInstanceState is null, then then this is a new Activity instance and a check for EXTRA_BUNDLE is needed
@@ -139,27 +266,208 @@ public final class EditActivity extends Activity
         if (null == savedInstanceState)
         {
             final Bundle forwardedBundle = getIntent().getBundleExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE);
-            if (PluginBundleManager.isBundleValid(forwardedBundle))
+            if (PluginBundleManager.isBundleValid(forwardedBundle) && PluginBundleManager.isExpression(forwardedBundle))
+            {
+                expressionText.setText(forwardedBundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_EXPRESSION));
+                mList.setItemChecked(getPositionForIdInArray(getApplicationContext(), R.array.bt_states, R.string.list_connected), true);
+            }
+            else if (PluginBundleManager.isBundleValid(forwardedBundle) && PluginBundleManager.isDeviceClass(forwardedBundle))
             {
-                String wantedMac = forwardedBundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC);
-                int i=0;
-                for (String mac : deviceMacs) {
-                    if (mac.equals(wantedMac)) {
-                        deviceSpinner.setSelection(i);
-                        break;
+                // only major classes can be chosen here; anything finer is left as it was unless changed
+                int classId = PluginBundleManager.isMajorDeviceClass(forwardedBundle) ? getIdForMajorClass(PluginBundleManager.getDeviceClass(forwardedBundle)) : 0;
+                if (classId != 0) {
+                    classSpinner.setSelection(getPositionForIdInArray(getApplicationContext(), R.array.device_classes, classId));
+                }
+                mList.setItemChecked(getPositionForIdInArray(getApplicationContext(), R.array.bt_states, PluginBundleManager.isConnectedExpected(forwardedBundle) ? R.string.list_connected
+                        : R.string.list_disconnected), true);
+            }
+            else if (PluginBundleManager.isBundleValid(forwardedBundle))
+            {
+                int quantifierId = R.string.list_quantifier_any;
+                String[] wantedMacs = PluginBundleManager.getDeviceMacs(forwardedBundle);
+                if (PluginBundleManager.isMultiDevice(forwardedBundle)) {
+                    switch (PluginBundleManager.getQuantifier(forwardedBundle)) {
+                        case PluginBundleManager.QUANTIFIER_ALL:
+                            quantifierId = R.string.list_quantifier_all;
+                            break;
+                        case PluginBundleManager.QUANTIFIER_AT_LEAST:
+                            quantifierId = R.string.list_quantifier_at_least;
+                            int minCount = PluginBundleManager.getMinCount(forwardedBundle);
+                            if (minCount > devices.size()) {
+                                pendingMinCount = minCount;
+                            }
+                            minCountSpinner.setSelection(Math.max(Math.min(minCount, devices.size()) - 1, 0));
+                            break;
                     }
-                    i++;
                 }
-                mList.setItemChecked(getPositionForIdInArray(getApplicationContext(), R.array.bt_states, forwardedBundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE) ? R.string.list_connected
+                for (String wantedMac : wantedMacs) {
+                    if (!devices.check(wantedMac)) {
+                        pendingMacs.add(wantedMac);
+                    }
+                }
+                syncCheckedRows();
+                quantifierSpinner.setSelection(getPositionForIdInArray(getApplicationContext(), R.array.quantifiers, quantifierId));
+                mList.setItemChecked(getPositionForIdInArray(getApplicationContext(), R.array.bt_states, PluginBundleManager.isConnectedExpected(forwardedBundle) ? R.string.list_connected
                         : R.string.list_disconnected), true);
             } else {
                 mList.setItemChecked(getPositionForIdInArray(getApplicationContext(), R.array.bt_states, R.string.list_connected), true);
             }
         }
-        /*
-         * if savedInstanceState isn't null, there is no need to restore any Activity state directly via onSaveInstanceState(), as
-         * the ListView object handles that automatically
-         */
+        else
+        {
+            /*
+             * the ListView objects restore their own state, but the checked devices are kept by MAC because the rows of
+             * deviceList depend on the filter
+             */
+            checkMacs(savedInstanceState.getStringArray(STATE_CHECKED_MACS));
+        }
+
+        if (a != null) {
+            new AsyncTask<Void, Void, Boolean>() {
+                @Override
+                protected Boolean doInBackground(Void... params) {
+                    return Boolean.valueOf(DeviceCatalog.getInstance(getApplicationContext()).refresh(a));
+                }
+
+                @Override
+                protected void onPostExecute(Boolean isChanged) {
+                    if (isFinishing()) {
+                        return;
+                    }
+                    if (isChanged.booleanValue()) {
+                        onDevicesChanged();
+                    }
+                    if (devices.size() == 0) {
+                        Toast.makeText(EditActivity.this, R.string.no_devices, Toast.LENGTH_LONG).show();
+                    }
+                }
+            }.execute();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onSaveInstanceState(final Bundle outState)
+    {
+        super.onSaveInstanceState(outState);
+
+        ArrayList<String> checkedMacs = devices.getCheckedMacs();
+        checkedMacs.addAll(pendingMacs);
+        outState.putStringArray(STATE_CHECKED_MACS, checkedMacs.toArray(new String[checkedMacs.size()]));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onRestoreInstanceState(final Bundle savedInstanceState)
+    {
+        super.onRestoreInstanceState(savedInstanceState);
+
+        // the restored filter text and checked rows may not agree with the model until the filter is applied again
+        devices.setFilter(deviceFilter.getText());
+        deviceAdapter.notifyDataSetChanged();
+        syncCheckedRows();
+    }
+
+    /**
+     * Gets the devices from the catalog, which reads its file the first time. The file is small enough to read on the main
+     * thread, so StrictMode, which {@link PluginApplication#enableDebugOptions(Context)} turns on, is told to allow it for the
+     * read, and the previous policy is restored after
+     *
+     * @return devices from {@link DeviceCatalog#getDevices()}
+     */
+    private DeviceCatalog.Device[] readCatalog()
+    {
+        final Object policy = PluginApplication.allowThreadDiskReads();
+        try
+        {
+            return DeviceCatalog.getInstance(getApplicationContext()).getDevices();
+        }
+        finally
+        {
+            PluginApplication.restoreThreadPolicy(policy);
+        }
+    }
+
+    /**
+     * Replaces {@link #devices} with those from the catalog, none of them checked
+     *
+     * @param catalog devices from {@link DeviceCatalog#getDevices()}
+     */
+    private void setDevices(final DeviceCatalog.Device[] catalog)
+    {
+        devices = new DeviceListModel(catalog);
+    }
+
+    /**
+     * Points {@link #deviceList} and {@link #minCountSpinner} at the current devices
+     */
+    private void setDeviceAdapters()
+    {
+        // a search box only gets in the way of a short list, but stays while it has text
+        devices.setFilter(deviceFilter.getText());
+        deviceFilter.setVisibility(devices.size() >= MIN_DEVICES_FOR_FILTER || deviceFilter.getText().length() > 0 ? View.VISIBLE : View.GONE);
+        deviceAdapter = new DeviceListAdapter(this, devices);
+        deviceList.setAdapter(deviceAdapter);
+
+        Vector<String> counts = new Vector<String>();
+        for (int i = 1; i <= devices.size(); i++) {
+            counts.add(Integer.toString(i));
+        }
+        ArrayAdapter<String> countAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_spinner_item, android.R.id.text1, counts);
+        countAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        minCountSpinner.setAdapter(countAdapter);
+    }
+
+    /**
+     * Checks the rows of {@link #deviceList} whose devices are checked in {@link #devices}
+     */
+    private void syncCheckedRows()
+    {
+        deviceList.clearChoices();
+        for (int row = 0; row < devices.getVisibleCount(); row++) {
+            if (devices.isChecked(devices.getVisiblePosition(row))) {
+                deviceList.setItemChecked(row, true);
+            }
+        }
+    }
+
+    /**
+     * Checks devices by MAC, keeping those not in the list in {@link #pendingMacs}
+     *
+     * @param macs MACs to check. May be null.
+     */
+    private void checkMacs(final String[] macs)
+    {
+        pendingMacs.clear();
+        if (macs != null) {
+            for (String mac : macs) {
+                if (!devices.check(mac)) {
+                    pendingMacs.add(mac);
+                }
+            }
+        }
+        syncCheckedRows();
+    }
+
+    /**
+     * Shows the refreshed catalog, keeping the devices and count already chosen
+     */
+    private void onDevicesChanged()
+    {
+        ArrayList<String> checkedMacs = devices.getCheckedMacs();
+        checkedMacs.addAll(pendingMacs);
+        int minCount = Math.max(minCountSpinner.getSelectedItemPosition() + 1, pendingMinCount);
+
+        setDevices(DeviceCatalog.getInstance(getApplicationContext()).getDevices());
+        setDeviceAdapters();
+        checkMacs(checkedMacs.toArray(new String[checkedMacs.size()]));
+
+        pendingMinCount = minCount > devices.size() ? minCount : 0;
+        minCountSpinner.setSelection(Math.max(Math.min(minCount, devices.size()) - 1, 0));
     }
 
     /**
@@ -168,6 +476,53 @@ public final class EditActivity extends Activity
     @Override
     public void finish()
     {
+        String expression = expressionText == null ? "" : expressionText.getText().toString().trim(); //$NON-NLS-1$
+        if (!mIsCancelled && expression.length() > 0) {
+            try {
+                ConditionExpression.compile(expression);
+
+                final Intent resultIntent = new Intent();
+                resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE, PluginBundleManager.generateExpressionBundle(Constants.getVersionCode(this), expression));
+                resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_STRING_BLURB, getString(R.string.blurb_expression) + ": " + expression); //$NON-NLS-1$
+                setResult(RESULT_OK, resultIntent);
+                AclReceiverSwitch.onSave(getApplicationContext());
+            } catch (ParseException e) {
+                Toast.makeText(this, getString(R.string.expression_invalid, e.getMessage(), Integer.valueOf(e.getErrorOffset() + 1)), Toast.LENGTH_LONG).show();
+            }
+            super.finish();
+            return;
+        }
+
+        int classId = classSpinner == null ? R.string.list_class_selected
+                : getResourceIdForPositionInArray(getApplicationContext(), R.array.device_classes, classSpinner.getSelectedItemPosition());
+        if (!mIsCancelled && R.string.list_class_selected != classId && mList != null && ListView.INVALID_POSITION != mList.getCheckedItemPosition()) {
+            // "connected" means any device of the class is, "disconnected" that none is
+            boolean isConnectedExpected = R.string.list_connected == getResourceIdForPositionInArray(getApplicationContext(), R.array.bt_states, mList.getCheckedItemPosition());
+            String stateBlurb = getString(isConnectedExpected ? R.string.blurb_connected : R.string.blurb_disconnected);
+            String names = getString(isConnectedExpected ? R.string.blurb_any : R.string.blurb_all, getString(classId));
+
+            final Intent resultIntent = new Intent();
+            resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE, PluginBundleManager.migrate(PluginBundleManager.generateDeviceClassBundle(Constants.getVersionCode(this), true, getMajorClassForId(classId), isConnectedExpected)));
+            resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_STRING_BLURB, stateBlurb + ": " + names); //$NON-NLS-1$
+            setResult(RESULT_OK, resultIntent);
+            AclReceiverSwitch.onSave(getApplicationContext());
+            super.finish();
+            return;
+        }
+
+        // checked devices count even if the filter hides them
+        ArrayList<String> selectedMacs = devices == null ? new ArrayList<String>() : devices.getCheckedMacs();
+        ArrayList<String> selectedNames = devices == null ? new ArrayList<String>() : devices.getCheckedNames();
+        if (deviceList != null) {
+            // devices the catalog doesn't know yet stay in the condition
+            selectedMacs.addAll(pendingMacs);
+            selectedNames.addAll(pendingMacs);
+        }
+        if (!mIsCancelled && deviceList != null && selectedMacs.isEmpty()) {
+            Toast.makeText(this, R.string.no_devices_selected, Toast.LENGTH_LONG).show();
+            mIsCancelled = true;
+        }
+
         if (!mIsCancelled && mList != null && ListView.INVALID_POSITION != mList.getCheckedItemPosition())
         {
             final int selectedResourceId = getResourceIdForPositionInArray(getApplicationContext(), R.array.bt_states, mList.getCheckedItemPosition());
@@ -184,24 +539,17 @@ public final class EditActivity extends Activity
              * Java objects (e.g. a private subclass to this plug-in cannot be stored in the Bundle, as Locale's classloader will
              * not recognize it).
              */
-            final Bundle resultBundle = new Bundle();
-
-            resultBundle.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, Constants.getVersionCode(this));
-
-            resultBundle.putString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC,
-                    deviceMacs.get(deviceSpinner.getSelectedItemPosition()));
-
+            final boolean isConnectedExpected;
+            final String stateBlurb;
             if (R.string.list_connected == selectedResourceId)
             {
-                resultBundle.putBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, true);
-                resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_STRING_BLURB,
-                        getString(R.string.blurb_connected) + ": " + deviceNames.get(deviceSpinner.getSelectedItemPosition()));
+                isConnectedExpected = true;
+                stateBlurb = getString(R.string.blurb_connected);
             }
             else if (R.string.list_disconnected == selectedResourceId)
             {
-                resultBundle.putBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, false);
-                resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_STRING_BLURB,
-                        getString(R.string.blurb_disconnected) + ": " + deviceNames.get(deviceSpinner.getSelectedItemPosition()));
+                isConnectedExpected = false;
+                stateBlurb = getString(R.string.blurb_disconnected);
             }
             else
             {
@@ -209,9 +557,44 @@ public final class EditActivity extends Activity
                 throw new AssertionError();
             }
 
+            // "at least" can't ask for more devices than were selected
+            final int quantifierId = getResourceIdForPositionInArray(getApplicationContext(), R.array.quantifiers, quantifierSpinner.getSelectedItemPosition());
+            final int minCount = Math.min(Math.max(minCountSpinner.getSelectedItemPosition() + 1, pendingMinCount), selectedMacs.size());
+            final int quantifier;
+            String names = TextUtils.join(", ", selectedNames); //$NON-NLS-1$
+            if (1 == selectedMacs.size())
+            {
+                quantifier = PluginBundleManager.QUANTIFIER_ANY;
+            }
+            else if (R.string.list_quantifier_all == quantifierId)
+            {
+                quantifier = PluginBundleManager.QUANTIFIER_ALL;
+                names = getString(R.string.blurb_all, names);
+            }
+            else if (R.string.list_quantifier_at_least == quantifierId)
+            {
+                quantifier = PluginBundleManager.QUANTIFIER_AT_LEAST;
+                names = getString(R.string.blurb_at_least, Integer.valueOf(minCount), names);
+            }
+            else
+            {
+                quantifier = PluginBundleManager.QUANTIFIER_ANY;
+                names = getString(R.string.blurb_any, names);
+            }
+
+            // saved in the compact format, unless it can't hold the condition
+            final Bundle resultBundle = PluginBundleManager.migrate(PluginBundleManager.generateBundle(Constants.getVersionCode(this), selectedMacs.toArray(new String[selectedMacs.size()]),
+                    isConnectedExpected, quantifier, minCount));
+            resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_STRING_BLURB, stateBlurb + ": " + names); //$NON-NLS-1$
+
             resultIntent.putExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE, resultBundle);
 
             setResult(RESULT_OK, resultIntent);
+
+            /*
+             * Start tracking connections now, rather than waiting for Locale's first query
+             */
+            AclReceiverSwitch.onSave(getApplicationContext());
         }
 
         super.finish();
@@ -400,4 +783,39 @@ public final class EditActivity extends Activity
             }
         }
     }
+
+    /**
+     * @param classId an element of {@link #CLASS_IDS}
+     * @return the major device class of {@code classId}
+     * @throws NoSuchElementException if {@code classId} is not a class
+     */
+    /* package */static int getMajorClassForId(final int classId)
+    {
+        for (int x = 0; x < CLASS_IDS.length; x++)
+        {
+            if (CLASS_IDS[x] == classId)
+            {
+                return MAJOR_CLASSES[x];
+            }
+        }
+
+        throw new NoSuchElementException();
+    }
+
+    /**
+     * @param majorClass a major device class
+     * @return the element of {@link #CLASS_IDS} for {@code majorClass}, or 0 if it can't be chosen
+     */
+    /* package */static int getIdForMajorClass(final int majorClass)
+    {
+        for (int x = 0; x < MAJOR_CLASSES.length; x++)
+        {
+            if (MAJOR_CLASSES[x] == majorClass)
+            {
+                return CLASS_IDS[x];
+            }
+        }
+
+        return 0;
+    }
 }
@@ -0,0 +1,137 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+import name.boyle.chris.locale.bluetoothacl.test.BundleTestHelper;
+
+/**
+ * Compares the compact Bundle format with the formats it replaces: the parcelled size of each, and how fast a query can read one
+ * back from a parcel, validate it and decode its condition, as {@link name.boyle.chris.locale.bluetoothacl.receiver.QueryReceiver}
+ * does. Results are written to logcat under {@link #TAG}.
+ */
+public final class BundleFormatBenchmark extends AndroidTestCase
+{
+    /**
+     * Log tag for results.
+     */
+    private static final String TAG = "BundleFormatBenchmark"; //$NON-NLS-1$
+
+    /**
+     * Minimum time spent on each measurement.
+     */
+    private static final long MEASURE_MILLIS = 1000;
+
+    /**
+     * Times conditions on 1, 10 and 100 devices, and on a class.
+     */
+    @LargeTest
+    public void testFormats()
+    {
+        measure(1);
+        measure(10);
+        measure(100);
+
+        final Bundle legacy = PluginBundleManager.generateDeviceClassBundle(1, true, 0x0400, true);
+        final Bundle compact = PluginBundleManager.migrate(legacy);
+        BundleTestHelper.assertSerializable(compact);
+        final byte[] legacyParcel = marshall(legacy);
+        final byte[] compactParcel = marshall(compact);
+        assertTrue(compactParcel.length < legacyParcel.length);
+        Log.i(TAG, String.format("class: %d bytes, %.0f/s; compact %d bytes, %.0f/s", //$NON-NLS-1$
+                                 Integer.valueOf(legacyParcel.length), Double.valueOf(measure(legacyParcel)), Integer.valueOf(compactParcel.length),
+                                 Double.valueOf(measure(compactParcel))));
+    }
+
+    /**
+     * Compares the formats for a condition on {@code deviceCount} devices.
+     *
+     * @param deviceCount number of devices in the condition.
+     */
+    private void measure(final int deviceCount)
+    {
+        final String[] macs = new String[deviceCount];
+        for (int x = 0; x < deviceCount; x++)
+        {
+            macs[x] = MacCodec.decode(0x001122000000L + x);
+        }
+        final Bundle legacy = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_ALL, 1);
+        final Bundle compact = PluginBundleManager.migrate(legacy);
+        assertTrue(PluginBundleManager.isCompact(compact));
+        BundleTestHelper.assertSerializable(compact);
+
+        final byte[] legacyParcel = marshall(legacy);
+        final byte[] compactParcel = marshall(compact);
+        assertTrue(compactParcel.length < legacyParcel.length);
+        Log.i(TAG, String.format("%d devices: %d bytes, %.0f/s; compact %d bytes, %.0f/s", //$NON-NLS-1$
+                                 Integer.valueOf(deviceCount), Integer.valueOf(legacyParcel.length), Double.valueOf(measure(legacyParcel)),
+                                 Integer.valueOf(compactParcel.length), Double.valueOf(measure(compactParcel))));
+    }
+
+    /**
+     * Times reading a Bundle from a parcel, validating it and decoding its condition.
+     *
+     * @param marshalled a parcel holding a valid bundle, from {@link #marshall(Bundle)}.
+     * @return Bundles read per second.
+     */
+    private static double measure(final byte[] marshalled)
+    {
+        long count = 0;
+        final long start = SystemClock.elapsedRealtime();
+        long elapsed;
+        do
+        {
+            final Parcel parcel = Parcel.obtain();
+            try
+            {
+                parcel.unmarshall(marshalled, 0, marshalled.length);
+                parcel.setDataPosition(0);
+                final Bundle bundle = parcel.readBundle();
+                assertTrue(PluginBundleManager.isBundleValid(bundle));
+                if (PluginBundleManager.isDeviceClass(bundle))
+                {
+                    assertEquals(0x0400, PluginBundleManager.getDeviceClass(bundle));
+                }
+                else if (PluginBundleManager.isMultiDevice(bundle))
+                {
+                    assertTrue(PluginBundleManager.getCondition(bundle).isConnectedExpected());
+                }
+                else
+                {
+                    assertTrue(MacCodec.INVALID != PluginBundleManager.getSingleDeviceMac(bundle));
+                }
+            }
+            finally
+            {
+                parcel.recycle();
+            }
+            count++;
+            elapsed = SystemClock.elapsedRealtime() - start;
+        }
+        while (elapsed < MEASURE_MILLIS);
+        return count * 1000.0 / elapsed;
+    }
+
+    /**
+     * @param bundle bundle to parcel. Cannot be null.
+     * @return the parcelled Bundle, as it crosses processes.
+     */
+    private static byte[] marshall(final Bundle bundle)
+    {
+        final Parcel parcel = Parcel.obtain();
+        try
+        {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Compares {@link BundleScrubber#scrub(Bundle)} with {@link BundleScrubber#scrub(Bundle, int)} on parcelled Bundles: a clean
+ * plug-in Bundle, a large but valid one, an oversized one, and a hostile one holding a big Serializable. As in
+ * {@link BundleScrubberTest}, a Serializable from this process deserializes without error, so the hostile case measures what the
+ * probe spends deserializing it rather than the exception. {@link #testExtraCount()} also times
+ * {@link PluginBundleManager#isBundleValid(Bundle)} on plug-in Bundles padded to 1, 100 and 10000 extras, which the JVM benchmarks
+ * in core can't, as they have no real Bundle. Results are written to logcat under {@link #TAG}.
+ */
+public final class BundleScrubberBenchmark extends AndroidTestCase
+{
+    /**
+     * Log tag for results.
+     */
+    private static final String TAG = "BundleScrubberBenchmark"; //$NON-NLS-1$
+
+    /**
+     * Minimum time spent on each measurement.
+     */
+    private static final long MEASURE_MILLIS = 1000;
+
+    /**
+     * Times every case.
+     */
+    @LargeTest
+    public void testScrub()
+    {
+        measure("clean", PluginBundleManager.generateBundle(1, new String[] { "00:11:22:33:44:55" }, true, PluginBundleManager.QUANTIFIER_ANY, 1), false); //$NON-NLS-1$ //$NON-NLS-2$
+
+        final String[] macs = new String[ConditionCodec.MAX_DEVICES];
+        for (int x = 0; x < macs.length; x++)
+        {
+            macs[x] = MacCodec.decode(0x001122000000L + x);
+        }
+        measure("large", PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_ALL, 1), false); //$NON-NLS-1$
+
+        final Bundle oversized = new Bundle();
+        oversized.putStringArray("macs", macs); //$NON-NLS-1$
+        oversized.putByteArray("padding", new byte[BundleScrubber.MAX_PARCEL_SIZE]); //$NON-NLS-1$
+        measure("oversized", oversized, true); //$NON-NLS-1$
+
+        final ArrayList<String> payload = new ArrayList<String>();
+        for (int x = 0; x < 1000; x++)
+        {
+            payload.add(MacCodec.decode(x));
+        }
+        final Bundle hostile = new Bundle();
+        hostile.putString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, "00:11:22:33:44:55"); //$NON-NLS-1$
+        hostile.putSerializable("payload", payload); //$NON-NLS-1$
+        measure("hostile", hostile, true); //$NON-NLS-1$
+    }
+
+    /**
+     * Times scrubbing and validating plug-in Bundles by their number of extras. The largest is over
+     * {@link BundleScrubber#MAX_PARCEL_SIZE}, so it is rejected by size.
+     */
+    @LargeTest
+    public void testExtraCount()
+    {
+        for (final int extraCount : new int[] { 1, 100, 10000 })
+        {
+            final Bundle bundle = PluginBundleManager.generateBundle(1, new String[] { "00:11:22:33:44:55" }, true, PluginBundleManager.QUANTIFIER_ANY, 1); //$NON-NLS-1$
+            for (int x = bundle.size(); x < extraCount; x++)
+            {
+                bundle.putString("extra." + x, MacCodec.decode(x)); //$NON-NLS-1$
+            }
+
+            final byte[] marshalled = marshall(bundle);
+            measure(extraCount + " extras", bundle, marshalled.length > BundleScrubber.MAX_PARCEL_SIZE); //$NON-NLS-1$
+
+            final double validateMicros = time(marshalled, 3) - time(marshalled, 0);
+            Log.i(TAG, String.format("%d extras: validate %.1fus", Integer.valueOf(extraCount), Double.valueOf(validateMicros))); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Times both ways of scrubbing a Bundle, each on a fresh parcelled copy.
+     *
+     * @param name name of the case, for the log.
+     * @param bundle bundle to scrub. Cannot be null.
+     * @param isRejected whether {@link BundleScrubber#scrub(Bundle, int)} should clear it.
+     */
+    private static void measure(final String name, final Bundle bundle, final boolean isRejected)
+    {
+        final byte[] marshalled = marshall(bundle);
+        assertEquals(isRejected, BundleScrubber.scrub(unmarshall(marshalled), BundleScrubber.MAX_PARCEL_SIZE));
+
+        /*
+         * Unparcelling a fresh copy costs the same for both, so it is timed on its own and subtracted
+         */
+        final double copyMicros = time(marshalled, 0);
+        final double probeMicros = time(marshalled, 1) - copyMicros;
+        final double fastMicros = time(marshalled, 2) - copyMicros;
+
+        Log.i(TAG, String.format("%s, %d bytes: probe %.1fus, fast path %.1fus", name, Integer.valueOf(marshalled.length), Double.valueOf(probeMicros), //$NON-NLS-1$
+                                 Double.valueOf(fastMicros)));
+    }
+
+    /**
+     * @param marshalled a parcelled Bundle, from {@link #marshall(Bundle)}.
+     * @param mode 0 to only copy the Bundle, 1 to also probe it with {@link BundleScrubber#scrub(Bundle)}, 2 to also scrub it with
+     *            {@link BundleScrubber#scrub(Bundle, int)}, 3 to also validate it with {@link PluginBundleManager#isBundleValid(Bundle)}.
+     * @return mean time per Bundle, in microseconds.
+     */
+    private static double time(final byte[] marshalled, final int mode)
+    {
+        long count = 0;
+        final long start = SystemClock.elapsedRealtime();
+        long elapsed;
+        do
+        {
+            final Bundle bundle = unmarshall(marshalled);
+            if (1 == mode)
+            {
+                BundleScrubber.scrub(bundle);
+            }
+            else if (2 == mode)
+            {
+                BundleScrubber.scrub(bundle, BundleScrubber.MAX_PARCEL_SIZE);
+            }
+            else if (3 == mode)
+            {
+                PluginBundleManager.isBundleValid(bundle);
+            }
+            count++;
+            elapsed = SystemClock.elapsedRealtime() - start;
+        }
+        while (elapsed < MEASURE_MILLIS);
+        return elapsed * 1000.0 / count;
+    }
+
+    /**
+     * @param bundle bundle to parcel. Cannot be null.
+     * @return the parcelled Bundle, as it crosses processes.
+     */
+    private static byte[] marshall(final Bundle bundle)
+    {
+        final Parcel parcel = Parcel.obtain();
+        try
+        {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @param marshalled a parcelled Bundle, from {@link #marshall(Bundle)}.
+     * @return a copy of the Bundle, still parcelled.
+     */
+    private static Bundle unmarshall(final byte[] marshalled)
+    {
+        final Parcel parcel = Parcel.obtain();
+        try
+        {
+            parcel.unmarshall(marshalled, 0, marshalled.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle();
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+    }
+}
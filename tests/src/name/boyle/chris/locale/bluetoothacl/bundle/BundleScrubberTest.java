@@ -13,9 +13,12 @@ package name.boyle.chris.locale.bluetoothacl.bundle;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Parcel;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import java.util.Date;
+
 /**
  * Tests the {@link BundleScrubber}.
  */
@@ -104,4 +107,101 @@ public final class BundleScrubberTest extends AndroidTestCase
             assertEquals("test", intent.getStringExtra("test")); //$NON-NLS-1$//$NON-NLS-2$
         }
     }
+
+    /**
+     * Verifies that {@link BundleScrubber#scrub(Bundle, int)} passes parcelled plug-in Bundles of every format untouched.
+     */
+    @SmallTest
+    public void testScrubParcelledValidBundle()
+    {
+        final Bundle[] bundles = new Bundle[] {
+            PluginBundleManager.generateBundle(1, new String[] { "00:11:22:33:44:55" }, true, PluginBundleManager.QUANTIFIER_ANY, 1), //$NON-NLS-1$
+            PluginBundleManager.generateBundle(1, new String[] { "00:11:22:33:44:55", "00:11:22:33:44:66" }, false, PluginBundleManager.QUANTIFIER_AT_LEAST, 2), //$NON-NLS-1$ //$NON-NLS-2$
+            PluginBundleManager.generateExpressionBundle(1, "00:11:22:33:44:55 OR 00:11:22:33:44:66"), //$NON-NLS-1$
+            PluginBundleManager.generateDeviceClassBundle(1, true, 0x0400, true),
+            PluginBundleManager.migrate(PluginBundleManager.generateBundle(1, new String[] { "00:11:22:33:44:55", "00:11:22:33:44:66" }, true, PluginBundleManager.QUANTIFIER_ALL, 1)) }; //$NON-NLS-1$ //$NON-NLS-2$
+
+        for (final Bundle original : bundles)
+        {
+            final Bundle bundle = parcel(original);
+            assertFalse(BundleScrubber.scrub(bundle, BundleScrubber.MAX_PARCEL_SIZE));
+            assertTrue(PluginBundleManager.isBundleValid(bundle));
+            assertEquals(original.keySet(), bundle.keySet());
+        }
+    }
+
+    /**
+     * Verifies that {@link BundleScrubber#scrub(Bundle, int)} clears a parcelled Bundle holding a Serializable, without
+     * unparcelling it.
+     */
+    @SmallTest
+    public void testScrubParcelledSerializable()
+    {
+        final Bundle original = new Bundle();
+        original.putString("test", "test"); //$NON-NLS-1$ //$NON-NLS-2$
+        original.putSerializable("serializable", new Date()); //$NON-NLS-1$
+
+        final Bundle bundle = parcel(original);
+        assertTrue(BundleScrubber.scrub(bundle, BundleScrubber.MAX_PARCEL_SIZE));
+        assertEquals(0, bundle.size());
+    }
+
+    /**
+     * Verifies that {@link BundleScrubber#scrub(Bundle, int)} clears an oversized parcelled Bundle.
+     */
+    @SmallTest
+    public void testScrubParcelledOversized()
+    {
+        final Bundle original = new Bundle();
+        original.putString("test", "test"); //$NON-NLS-1$ //$NON-NLS-2$
+
+        Bundle bundle = parcel(original);
+        assertTrue(BundleScrubber.scrub(bundle, 8));
+        assertEquals(0, bundle.size());
+
+        original.putByteArray("large", new byte[BundleScrubber.MAX_PARCEL_SIZE]); //$NON-NLS-1$
+        bundle = parcel(original);
+        assertTrue(BundleScrubber.scrub(bundle, BundleScrubber.MAX_PARCEL_SIZE));
+        assertEquals(0, bundle.size());
+    }
+
+    /**
+     * Verifies that {@link BundleScrubber#scrub(Bundle, int)} falls back to probing a Bundle which isn't parcelled, and that null
+     * is passed.
+     */
+    @SmallTest
+    public void testScrubUnparcelled()
+    {
+        assertFalse(BundleScrubber.scrub(null, BundleScrubber.MAX_PARCEL_SIZE));
+
+        /*
+         * A Serializable put in from this process is available to the app's class loader, so the probe passes it
+         */
+        final Bundle bundle = new Bundle();
+        bundle.putSerializable("serializable", new Date()); //$NON-NLS-1$
+        assertFalse(BundleScrubber.scrub(bundle, BundleScrubber.MAX_PARCEL_SIZE));
+        assertEquals(1, bundle.size());
+    }
+
+    /**
+     * Round-trips a Bundle through a Parcel, as it would cross from Locale's process. The result stays parcelled until it is
+     * first read.
+     *
+     * @param bundle bundle to parcel. Cannot be null.
+     * @return a parcelled copy of {@code bundle}.
+     */
+    /* package */static Bundle parcel(final Bundle bundle)
+    {
+        final Parcel parcel = Parcel.obtain();
+        try
+        {
+            parcel.writeBundle(bundle);
+            parcel.setDataPosition(0);
+            return parcel.readBundle();
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+    }
 }
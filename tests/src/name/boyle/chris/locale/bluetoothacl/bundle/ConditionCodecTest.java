@@ -0,0 +1,165 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ConditionCodec}.
+ */
+public final class ConditionCodecTest extends TestCase
+{
+    /**
+     * Packed MACs of test devices.
+     */
+    private static final long MAC_1 = 0x001122334401L, MAC_2 = 0x001122334402L, MAC_3 = 0xFFEEDDCCBBAAL;
+
+    /**
+     * Tests a condition on devices survives encoding, with its devices sorted and duplicates dropped.
+     */
+    @SmallTest
+    public void testDevices()
+    {
+        final byte[] payload = ConditionCodec.encodeDevices(new long[] { MAC_3, MAC_1, MAC_2, MAC_1 }, true, PluginBundleManager.QUANTIFIER_AT_LEAST, 2);
+        assertTrue(ConditionCodec.isValid(payload));
+        assertEquals(5 + 3 * 6, payload.length);
+        assertEquals(ConditionCodec.KIND_DEVICES, ConditionCodec.getKind(payload));
+        assertTrue(ConditionCodec.isConnectedExpected(payload));
+        assertEquals(PluginBundleManager.QUANTIFIER_AT_LEAST, ConditionCodec.getQuantifier(payload));
+        assertEquals(2, ConditionCodec.getMinCount(payload));
+        assertEquals(3, ConditionCodec.getDeviceCount(payload));
+        assertEquals(MAC_1, ConditionCodec.getDeviceMac(payload, 0));
+        assertEquals(MAC_2, ConditionCodec.getDeviceMac(payload, 1));
+        assertEquals(MAC_3, ConditionCodec.getDeviceMac(payload, 2));
+
+        final byte[] single = ConditionCodec.encodeDevices(new long[] { MAC_2 }, false, PluginBundleManager.QUANTIFIER_ALL, 5);
+        assertTrue(ConditionCodec.isValid(single));
+        assertEquals(11, single.length);
+        assertFalse(ConditionCodec.isConnectedExpected(single));
+        assertEquals(PluginBundleManager.QUANTIFIER_ALL, ConditionCodec.getQuantifier(single));
+        assertEquals(1, ConditionCodec.getMinCount(single));
+        assertEquals(MAC_2, ConditionCodec.getDeviceMac(single, 0));
+    }
+
+    /**
+     * Tests a condition on a class survives encoding.
+     */
+    @SmallTest
+    public void testDeviceClass()
+    {
+        byte[] payload = ConditionCodec.encodeDeviceClass(true, 0x1F00, false);
+        assertTrue(ConditionCodec.isValid(payload));
+        assertEquals(ConditionCodec.KIND_DEVICE_CLASS, ConditionCodec.getKind(payload));
+        assertFalse(ConditionCodec.isConnectedExpected(payload));
+        assertTrue(ConditionCodec.isMajorDeviceClass(payload));
+        assertEquals(0x1F00, ConditionCodec.getDeviceClass(payload));
+
+        payload = ConditionCodec.encodeDeviceClass(false, 0x0404, true);
+        assertTrue(ConditionCodec.isValid(payload));
+        assertTrue(ConditionCodec.isConnectedExpected(payload));
+        assertFalse(ConditionCodec.isMajorDeviceClass(payload));
+        assertEquals(0x0404, ConditionCodec.getDeviceClass(payload));
+    }
+
+    /**
+     * Tests conditions which can't be encoded are rejected.
+     */
+    @SmallTest
+    public void testEncodeBadValues()
+    {
+        assertEncodeFails(new long[0], PluginBundleManager.QUANTIFIER_ANY, 1);
+        assertEncodeFails(new long[] { MAC_1, -1 }, PluginBundleManager.QUANTIFIER_ANY, 1);
+        assertEncodeFails(new long[] { MAC_1 }, 3, 1);
+        assertEncodeFails(new long[] { MAC_1, MAC_2 }, PluginBundleManager.QUANTIFIER_AT_LEAST, 0);
+        assertEncodeFails(new long[] { MAC_1, MAC_2, MAC_1 }, PluginBundleManager.QUANTIFIER_AT_LEAST, 3);
+
+        final long[] tooMany = new long[ConditionCodec.MAX_DEVICES + 1];
+        for (int x = 0; x < tooMany.length; x++)
+        {
+            tooMany[x] = MAC_1 + x;
+        }
+        assertEncodeFails(tooMany, PluginBundleManager.QUANTIFIER_ANY, 1);
+
+        try
+        {
+            ConditionCodec.encodeDeviceClass(true, 0x0404, true);
+            fail();
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // expected exception
+        }
+    }
+
+    /**
+     * Tests damaged payloads are rejected.
+     */
+    @SmallTest
+    public void testValidateBadValues()
+    {
+        assertFalse(ConditionCodec.isValid(null));
+        assertFalse(ConditionCodec.isValid(new byte[0]));
+        assertFalse(ConditionCodec.isValid(new byte[] { 1, 0 }));
+
+        final byte[] devices = ConditionCodec.encodeDevices(new long[] { MAC_1, MAC_2 }, true, PluginBundleManager.QUANTIFIER_ANY, 1);
+        assertInvalid(devices, 0, (byte) (ConditionCodec.SCHEMA_VERSION + 1));
+        assertInvalid(devices, 1, (byte) 2);
+        assertInvalid(devices, 2, (byte) 0x08);
+        assertInvalid(devices, 2, (byte) (3 << 1));
+        assertInvalid(devices, 3, (byte) 2);
+        assertInvalid(devices, 4, (byte) 3);
+        assertInvalid(devices, 4, (byte) 0);
+        assertInvalid(devices, 10, (byte) 0x02);
+
+        byte[] truncated = new byte[devices.length - 1];
+        System.arraycopy(devices, 0, truncated, 0, truncated.length);
+        assertFalse(ConditionCodec.isValid(truncated));
+
+        final byte[] atLeast = ConditionCodec.encodeDevices(new long[] { MAC_1, MAC_2 }, true, PluginBundleManager.QUANTIFIER_AT_LEAST, 2);
+        assertInvalid(atLeast, 3, (byte) 0);
+        assertInvalid(atLeast, 3, (byte) 3);
+
+        final byte[] deviceClass = ConditionCodec.encodeDeviceClass(true, 0x0400, true);
+        assertInvalid(deviceClass, 2, (byte) 0x04);
+        assertInvalid(deviceClass, 4, (byte) 0x04);
+        assertInvalid(deviceClass, 3, (byte) 0x20);
+        truncated = new byte[deviceClass.length - 1];
+        System.arraycopy(deviceClass, 0, truncated, 0, truncated.length);
+        assertFalse(ConditionCodec.isValid(truncated));
+    }
+
+    /**
+     * Asserts encoding a condition on devices fails.
+     *
+     * @param macs packed MACs.
+     * @param quantifier quantifier.
+     * @param minCount minimum count.
+     */
+    private static void assertEncodeFails(final long[] macs, final int quantifier, final int minCount)
+    {
+        try
+        {
+            ConditionCodec.encodeDevices(macs, true, quantifier, minCount);
+            fail();
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // expected exception
+        }
+    }
+
+    /**
+     * Asserts a valid payload becomes invalid when one byte is changed.
+     *
+     * @param payload a valid payload. Not modified.
+     * @param offset offset of the byte to change.
+     * @param value new value of the byte.
+     */
+    private static void assertInvalid(final byte[] payload, final int offset, final byte value)
+    {
+        assertTrue(ConditionCodec.isValid(payload));
+        final byte[] damaged = payload.clone();
+        damaged[offset] = value;
+        assertFalse(ConditionCodec.isValid(damaged));
+    }
+}
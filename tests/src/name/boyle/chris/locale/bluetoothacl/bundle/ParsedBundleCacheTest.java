@@ -0,0 +1,160 @@
+package name.boyle.chris.locale.bluetoothacl.bundle;
+
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Tests {@link ParsedBundleCache} and {@link ParsedCondition}.
+ */
+public final class ParsedBundleCacheTest extends TestCase
+{
+    /**
+     * MACs of test devices.
+     */
+    private static final String MAC_1 = "00:11:22:33:44:01", MAC_2 = "00:11:22:33:44:02"; //$NON-NLS-1$ //$NON-NLS-2$
+
+    /**
+     * Tests that a repeated Bundle is answered from the cache, with the same condition.
+     */
+    @SmallTest
+    public void testHit()
+    {
+        final ParsedBundleCache cache = new ParsedBundleCache(4);
+        final ParsedCondition first = cache.get(newSingleDevice(MAC_1, true));
+        assertNotNull(first);
+        assertEquals(ParsedCondition.KIND_SINGLE_DEVICE, first.getKind());
+        assertEquals(MacCodec.encode(MAC_1), first.getDeviceMac());
+        assertTrue(first.isConnectedExpected());
+
+        assertSame(first, cache.get(newSingleDevice(MAC_1, true)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+
+        final ParsedCondition other = cache.get(newSingleDevice(MAC_1, false));
+        assertNotSame(first, other);
+        assertFalse(other.isConnectedExpected());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    /**
+     * Tests every kind of condition is decoded.
+     */
+    @SmallTest
+    public void testKinds()
+    {
+        final ParsedBundleCache cache = new ParsedBundleCache(4);
+
+        ParsedCondition condition = cache.get(PluginBundleManager.generateBundle(1, new String[] { MAC_1, MAC_2 }, false, PluginBundleManager.QUANTIFIER_ALL, 1));
+        assertEquals(ParsedCondition.KIND_DEVICES, condition.getKind());
+        assertEquals(2, condition.getCondition().getRequiredCount());
+        assertFalse(condition.isConnectedExpected());
+
+        condition = cache.get(PluginBundleManager.migrate(PluginBundleManager.generateBundle(1, new String[] { MAC_2 }, true, PluginBundleManager.QUANTIFIER_ANY, 1)));
+        assertEquals(ParsedCondition.KIND_SINGLE_DEVICE, condition.getKind());
+        assertEquals(MacCodec.encode(MAC_2), condition.getDeviceMac());
+
+        condition = cache.get(PluginBundleManager.generateExpressionBundle(1, MAC_1 + " AND NOT " + MAC_2)); //$NON-NLS-1$
+        assertEquals(ParsedCondition.KIND_EXPRESSION, condition.getKind());
+        assertEquals(2, condition.getExpression().getDeviceCount());
+
+        condition = cache.get(PluginBundleManager.generateDeviceClassBundle(1, true, 0x0400, true));
+        assertEquals(ParsedCondition.KIND_DEVICE_CLASS, condition.getKind());
+        assertTrue(condition.isMajorDeviceClass());
+        assertEquals(0x0400, condition.getDeviceClass());
+    }
+
+    /**
+     * Tests the least recently used entry is evicted, and counted.
+     */
+    @SmallTest
+    public void testEviction()
+    {
+        final ParsedBundleCache cache = new ParsedBundleCache(2);
+        final ParsedCondition first = cache.get(newSingleDevice(MAC_1, true));
+        cache.get(newSingleDevice(MAC_2, true));
+        assertSame(first, cache.get(newSingleDevice(MAC_1, true)));
+        assertEquals(0, cache.getEvictionCount());
+
+        /*
+         * MAC_2 was used least recently
+         */
+        cache.get(newSingleDevice(MAC_1, false));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(2, cache.size());
+        assertSame(first, cache.get(newSingleDevice(MAC_1, true)));
+        cache.get(newSingleDevice(MAC_2, true));
+        assertEquals(2, cache.getEvictionCount());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    /**
+     * Tests that invalid Bundles are never answered from the cache, even when they differ from a cached one only in type or by an
+     * extra.
+     */
+    @SmallTest
+    public void testInvalid()
+    {
+        final ParsedBundleCache cache = new ParsedBundleCache(4);
+        assertNull(cache.get(null));
+        assertNull(cache.get(new Bundle()));
+        assertNotNull(cache.get(newSingleDevice(MAC_1, false)));
+
+        Bundle bundle = newSingleDevice(MAC_1, false);
+        bundle.putString(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, "false"); //$NON-NLS-1$
+        assertNull(cache.get(bundle));
+
+        bundle = newSingleDevice(MAC_1, false);
+        bundle.putLong(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, 1);
+        assertNull(cache.get(bundle));
+
+        bundle = newSingleDevice(MAC_1, false);
+        bundle.putString("other", "value"); //$NON-NLS-1$ //$NON-NLS-2$
+        assertNull(cache.get(bundle));
+
+        bundle = newSingleDevice(MAC_1, false);
+        bundle.remove(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE);
+        assertNull(cache.get(bundle));
+
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Tests a cached condition isn't affected by changes to the Bundle it came from.
+     */
+    @SmallTest
+    public void testSourceModified()
+    {
+        final ParsedBundleCache cache = new ParsedBundleCache(4);
+        final Bundle bundle = PluginBundleManager.generateBundle(1, new String[] { MAC_1, MAC_2 }, true, PluginBundleManager.QUANTIFIER_ANY, 1);
+        final ParsedCondition condition = cache.get(bundle);
+        bundle.getStringArray(PluginBundleManager.BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS)[1] = "not a MAC"; //$NON-NLS-1$
+
+        assertFalse(condition.matches(bundle));
+        assertTrue(condition.matches(PluginBundleManager.generateBundle(1, new String[] { MAC_1, MAC_2 }, true, PluginBundleManager.QUANTIFIER_ANY, 1)));
+    }
+
+    /**
+     * @param mac MAC of the device.
+     * @param isConnectedExpected state the condition expects.
+     * @return a Bundle in the original format.
+     */
+    private static Bundle newSingleDevice(final String mac, final boolean isConnectedExpected)
+    {
+        final Bundle bundle = new Bundle();
+        bundle.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, 1);
+        bundle.putString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, mac);
+        bundle.putBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, isConnectedExpected);
+        return bundle;
+    }
+}
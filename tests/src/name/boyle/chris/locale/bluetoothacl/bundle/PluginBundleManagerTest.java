@@ -16,11 +16,19 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import junit.framework.TestCase;
 
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+import name.boyle.chris.locale.bluetoothacl.test.BundleTestHelper;
+
 /**
  * Tests {@link PluginBundleManager}.
  */
 public final class PluginBundleManagerTest extends TestCase
 {
+    /**
+     * MACs of test devices.
+     */
+    private static final String MAC_1 = "00:11:22:33:44:01", MAC_2 = "00:11:22:33:44:02", MAC_3 = "00:11:22:33:44:03"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 
     /**
      * Tests the extra constants haven't been accidentally changed.
@@ -37,6 +45,20 @@ public final class PluginBundleManagerTest extends TestCase
          */
         assertEquals("name.boyle.chris.locale.bluetoothacl.extra.BOOLEAN_STATE", PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE); //$NON-NLS-1$
         assertEquals("name.boyle.chris.locale.bluetoothacl.extra.INT_VERSION_CODE", PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE); //$NON-NLS-1$
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.INT_FORMAT", PluginBundleManager.BUNDLE_EXTRA_INT_FORMAT); //$NON-NLS-1$
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.STRING_ARRAY_BLUETOOTH_MACS", PluginBundleManager.BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS); //$NON-NLS-1$
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.INT_QUANTIFIER", PluginBundleManager.BUNDLE_EXTRA_INT_QUANTIFIER); //$NON-NLS-1$
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.INT_MIN_COUNT", PluginBundleManager.BUNDLE_EXTRA_INT_MIN_COUNT); //$NON-NLS-1$
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.STRING_EXPRESSION", PluginBundleManager.BUNDLE_EXTRA_STRING_EXPRESSION); //$NON-NLS-1$
+        assertEquals(2, PluginBundleManager.FORMAT_MULTI_DEVICE);
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.INT_MAJOR_DEVICE_CLASS", PluginBundleManager.BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS); //$NON-NLS-1$
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.INT_DEVICE_CLASS", PluginBundleManager.BUNDLE_EXTRA_INT_DEVICE_CLASS); //$NON-NLS-1$
+        assertEquals(3, PluginBundleManager.FORMAT_EXPRESSION);
+        assertEquals(4, PluginBundleManager.FORMAT_DEVICE_CLASS);
+        assertEquals("name.boyle.chris.locale.bluetoothacl.extra.BYTE_ARRAY_CONDITION", PluginBundleManager.BUNDLE_EXTRA_BYTE_ARRAY_CONDITION); //$NON-NLS-1$
+        assertEquals(0, PluginBundleManager.QUANTIFIER_ANY);
+        assertEquals(1, PluginBundleManager.QUANTIFIER_ALL);
+        assertEquals(2, PluginBundleManager.QUANTIFIER_AT_LEAST);
     }
 
     /**
@@ -106,4 +128,248 @@ public final class PluginBundleManagerTest extends TestCase
             assertFalse(PluginBundleManager.isBundleValid(bundle));
         }
     }
+
+    /**
+     * Tests that a condition on one device is saved in the original format, whatever the quantifier.
+     */
+    @SmallTest
+    public void testGenerateSingleDevice()
+    {
+        final Bundle bundle = PluginBundleManager.generateBundle(1, new String[] { MAC_1 }, true, PluginBundleManager.QUANTIFIER_ALL, 1);
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertFalse(PluginBundleManager.isMultiDevice(bundle));
+        assertEquals(MAC_1, bundle.getString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC));
+        assertEquals(DeviceCondition.single(MacCodec.encode(MAC_1), true), PluginBundleManager.getCondition(bundle));
+    }
+
+    /**
+     * Tests the condition each quantifier produces.
+     */
+    @SmallTest
+    public void testGenerateMultiDevice()
+    {
+        final String[] macs = new String[] { MAC_1, MAC_2, MAC_3 };
+        final long[] packed = new long[] { MacCodec.encode(MAC_1), MacCodec.encode(MAC_2), MacCodec.encode(MAC_3) };
+
+        Bundle bundle = PluginBundleManager.generateBundle(1, macs, false, PluginBundleManager.QUANTIFIER_ANY, 3);
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertTrue(PluginBundleManager.isMultiDevice(bundle));
+        assertEquals(new DeviceCondition(packed, false, 1), PluginBundleManager.getCondition(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_ALL, 1);
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertEquals(new DeviceCondition(packed, true, 3), PluginBundleManager.getCondition(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_AT_LEAST, 2);
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertEquals(new DeviceCondition(packed, true, 2), PluginBundleManager.getCondition(bundle));
+    }
+
+    /**
+     * Tests the {@link PluginBundleManager#isBundleValid(Bundle)} method with multiple device bundles that don't make sense
+     */
+    @SmallTest
+    public void testVerifyMultiDeviceBundleBadValues()
+    {
+        final String[] macs = new String[] { MAC_1, MAC_2 };
+
+        Bundle bundle = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_ANY, 1);
+        bundle.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_FORMAT, 3);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_ANY, 1);
+        bundle.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_QUANTIFIER, 3);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_AT_LEAST, 3);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, new String[] { MAC_1, MAC_1 }, true, PluginBundleManager.QUANTIFIER_AT_LEAST, 2);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, new String[] { MAC_1, "nonsense" }, true, PluginBundleManager.QUANTIFIER_ANY, 1); //$NON-NLS-1$
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_ANY, 1);
+        bundle.putStringArray(PluginBundleManager.BUNDLE_EXTRA_STRING_ARRAY_BLUETOOTH_MACS, new String[0]);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateBundle(1, macs, true, PluginBundleManager.QUANTIFIER_ANY, 1);
+        bundle.putString("test", "test"); //$NON-NLS-1$//$NON-NLS-2$
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+    }
+
+    /**
+     * Tests the {@link PluginBundleManager#isBundleValid(Bundle)} method with expression bundles
+     */
+    @SmallTest
+    public void testVerifyExpressionBundle()
+    {
+        Bundle bundle = PluginBundleManager.generateExpressionBundle(1, MAC_1 + " AND NOT " + MAC_2); //$NON-NLS-1$
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertTrue(PluginBundleManager.isExpression(bundle));
+        assertFalse(PluginBundleManager.isMultiDevice(bundle));
+        assertEquals(2, PluginBundleManager.getExpression(bundle).getDeviceCount());
+
+        bundle = PluginBundleManager.generateExpressionBundle(1, MAC_1 + " AND"); //$NON-NLS-1$
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateExpressionBundle(1, MAC_1);
+        bundle.putBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, true);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateExpressionBundle(1, MAC_1);
+        bundle.putInt(PluginBundleManager.BUNDLE_EXTRA_STRING_EXPRESSION, 1);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+    }
+
+    /**
+     * Tests Bundles in format {@link PluginBundleManager#FORMAT_DEVICE_CLASS}.
+     */
+    @SmallTest
+    public void testVerifyDeviceClassBundle()
+    {
+        Bundle bundle = PluginBundleManager.generateDeviceClassBundle(1, true, 0x0400, true);
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertTrue(PluginBundleManager.isDeviceClass(bundle));
+        assertFalse(PluginBundleManager.isMultiDevice(bundle));
+        assertFalse(PluginBundleManager.isExpression(bundle));
+        assertTrue(PluginBundleManager.isMajorDeviceClass(bundle));
+        assertEquals(0x0400, PluginBundleManager.getDeviceClass(bundle));
+
+        bundle = PluginBundleManager.generateDeviceClassBundle(1, false, 0x0404, false);
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertFalse(PluginBundleManager.isMajorDeviceClass(bundle));
+        assertEquals(0x0404, PluginBundleManager.getDeviceClass(bundle));
+
+        /*
+         * Minor bits aren't a major class, and nothing outside the class bits is a device class
+         */
+        assertFalse(PluginBundleManager.isBundleValid(PluginBundleManager.generateDeviceClassBundle(1, true, 0x0404, true)));
+        assertFalse(PluginBundleManager.isBundleValid(PluginBundleManager.generateDeviceClassBundle(1, false, 0x0405, true)));
+        assertFalse(PluginBundleManager.isBundleValid(PluginBundleManager.generateDeviceClassBundle(1, false, -1, true)));
+
+        bundle = PluginBundleManager.generateDeviceClassBundle(1, true, 0x0400, true);
+        bundle.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_DEVICE_CLASS, 0x0404);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateDeviceClassBundle(1, true, 0x0400, true);
+        bundle.remove(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateDeviceClassBundle(1, true, 0x0400, true);
+        bundle.putString(PluginBundleManager.BUNDLE_EXTRA_INT_MAJOR_DEVICE_CLASS, "AUDIO_VIDEO"); //$NON-NLS-1$
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+    }
+
+    /**
+     * Tests Bundles in the compact format answer the same as the formats they replace.
+     */
+    @SmallTest
+    public void testCompactBundle()
+    {
+        Bundle bundle = PluginBundleManager.generateCompactBundle(1, ConditionCodec.encodeDevices(new long[] { MacCodec.encode(MAC_1) }, true, PluginBundleManager.QUANTIFIER_ANY, 1));
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        BundleTestHelper.assertSerializable(bundle);
+        assertTrue(PluginBundleManager.isCompact(bundle));
+        assertFalse(PluginBundleManager.isMultiDevice(bundle));
+        assertFalse(PluginBundleManager.isExpression(bundle));
+        assertFalse(PluginBundleManager.isDeviceClass(bundle));
+        assertTrue(PluginBundleManager.isConnectedExpected(bundle));
+        assertEquals(MacCodec.encode(MAC_1), PluginBundleManager.getSingleDeviceMac(bundle));
+        assertEquals(1, PluginBundleManager.getDeviceMacs(bundle).length);
+        assertEquals(MAC_1, PluginBundleManager.getDeviceMacs(bundle)[0]);
+
+        bundle = PluginBundleManager.generateCompactBundle(1, ConditionCodec.encodeDevices(new long[] { MacCodec.encode(MAC_3), MacCodec.encode(MAC_1), MacCodec.encode(MAC_2) }, false,
+                                                                                           PluginBundleManager.QUANTIFIER_AT_LEAST, 2));
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        BundleTestHelper.assertSerializable(bundle);
+        assertTrue(PluginBundleManager.isMultiDevice(bundle));
+        assertFalse(PluginBundleManager.isConnectedExpected(bundle));
+        assertEquals(PluginBundleManager.QUANTIFIER_AT_LEAST, PluginBundleManager.getQuantifier(bundle));
+        assertEquals(2, PluginBundleManager.getMinCount(bundle));
+        final String[] macs = PluginBundleManager.getDeviceMacs(bundle);
+        assertEquals(3, macs.length);
+        assertEquals(MAC_1, macs[0]);
+        assertEquals(MAC_2, macs[1]);
+        assertEquals(MAC_3, macs[2]);
+        final DeviceCondition condition = PluginBundleManager.getCondition(bundle);
+        assertEquals(3, condition.getDeviceCount());
+        assertEquals(2, condition.getRequiredCount());
+        assertFalse(condition.isConnectedExpected());
+
+        bundle = PluginBundleManager.generateCompactBundle(1, ConditionCodec.encodeDeviceClass(true, 0x0400, true));
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        BundleTestHelper.assertSerializable(bundle);
+        assertTrue(PluginBundleManager.isDeviceClass(bundle));
+        assertFalse(PluginBundleManager.isMultiDevice(bundle));
+        assertTrue(PluginBundleManager.isMajorDeviceClass(bundle));
+        assertEquals(0x0400, PluginBundleManager.getDeviceClass(bundle));
+        assertTrue(PluginBundleManager.isConnectedExpected(bundle));
+    }
+
+    /**
+     * Tests the {@link PluginBundleManager#isBundleValid(Bundle)} method with compact bundles that don't make sense
+     */
+    @SmallTest
+    public void testVerifyCompactBundleBadValues()
+    {
+        Bundle bundle = PluginBundleManager.generateCompactBundle(1, ConditionCodec.encodeDeviceClass(true, 0x0400, true));
+        bundle.putBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, true);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateCompactBundle(1, ConditionCodec.encodeDeviceClass(true, 0x0400, true));
+        bundle.remove(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE);
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateCompactBundle(1, ConditionCodec.encodeDeviceClass(true, 0x0400, true));
+        bundle.putString(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, "1"); //$NON-NLS-1$
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        bundle = PluginBundleManager.generateCompactBundle(1, ConditionCodec.encodeDeviceClass(true, 0x0400, true));
+        bundle.putString(PluginBundleManager.BUNDLE_EXTRA_BYTE_ARRAY_CONDITION, "condition"); //$NON-NLS-1$
+        assertFalse(PluginBundleManager.isBundleValid(bundle));
+
+        assertFalse(PluginBundleManager.isBundleValid(PluginBundleManager.generateCompactBundle(1, new byte[0])));
+        assertFalse(PluginBundleManager.isBundleValid(PluginBundleManager.generateCompactBundle(1, new byte[] { 2, 1, 1, 4, 0 })));
+    }
+
+    /**
+     * Tests {@link PluginBundleManager#migrate(Bundle)} keeps the meaning of every format.
+     */
+    @SmallTest
+    public void testMigrate()
+    {
+        Bundle bundle = PluginBundleManager.migrate(PluginBundleManager.generateBundle(7, new String[] { MAC_1 }, false, PluginBundleManager.QUANTIFIER_ANY, 1));
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertTrue(PluginBundleManager.isCompact(bundle));
+        assertEquals(7, bundle.getInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE));
+        assertFalse(PluginBundleManager.isConnectedExpected(bundle));
+        assertEquals(MacCodec.encode(MAC_1), PluginBundleManager.getSingleDeviceMac(bundle));
+
+        bundle = PluginBundleManager.migrate(PluginBundleManager.generateBundle(7, new String[] { MAC_2, MAC_1, MAC_2 }, true, PluginBundleManager.QUANTIFIER_ALL, 1));
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertTrue(PluginBundleManager.isCompact(bundle));
+        assertTrue(PluginBundleManager.isMultiDevice(bundle));
+        assertEquals(PluginBundleManager.QUANTIFIER_ALL, PluginBundleManager.getQuantifier(bundle));
+        assertEquals(2, PluginBundleManager.getCondition(bundle).getRequiredCount());
+
+        bundle = PluginBundleManager.migrate(PluginBundleManager.generateDeviceClassBundle(7, false, 0x0404, false));
+        assertTrue(PluginBundleManager.isBundleValid(bundle));
+        assertTrue(PluginBundleManager.isCompact(bundle));
+        assertFalse(PluginBundleManager.isMajorDeviceClass(bundle));
+        assertEquals(0x0404, PluginBundleManager.getDeviceClass(bundle));
+
+        /*
+         * Conditions the compact format can't hold are left as they are
+         */
+        final Bundle expression = PluginBundleManager.generateExpressionBundle(7, MAC_1);
+        assertSame(expression, PluginBundleManager.migrate(expression));
+        final Bundle malformed = new Bundle();
+        malformed.putString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, "not a MAC"); //$NON-NLS-1$
+        malformed.putBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, true);
+        malformed.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, 7);
+        assertSame(malformed, PluginBundleManager.migrate(malformed));
+        assertSame(bundle, PluginBundleManager.migrate(bundle));
+    }
 }
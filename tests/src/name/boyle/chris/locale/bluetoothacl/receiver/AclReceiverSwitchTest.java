@@ -0,0 +1,115 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCacheTest;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+import name.boyle.chris.locale.bluetoothacl.state.WatchedDeviceRegistry;
+
+/**
+ * Tests {@link AclReceiverSwitch}.
+ */
+public final class AclReceiverSwitchTest extends AndroidTestCase
+{
+    /**
+     * A packed MAC.
+     */
+    private static final long MAC = MacCodec.encode("00:11:22:33:44:01"); //$NON-NLS-1$
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        ConnectionStateCacheTest.reset(getContext());
+        AclReceiverSwitch.reset(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        AclReceiverSwitch.reset(getContext());
+        ConnectionStateCacheTest.reset(getContext());
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests that the receiver is disabled until a condition needs it.
+     */
+    @MediumTest
+    public void testDisabledByDefault()
+    {
+        assertFalse(AclReceiverSwitch.isEnabled(getContext()));
+    }
+
+    /**
+     * Tests that a query enables the receiver, and that it stays enabled while a device is watched.
+     */
+    @MediumTest
+    public void testQuery()
+    {
+        WatchedDeviceRegistry.getInstance(getContext().getFilesDir()).touch(MAC);
+        AclReceiverSwitch.onQuery(getContext());
+        assertTrue(AclReceiverSwitch.isEnabled(getContext()));
+
+        AclReceiverSwitch.disableIfUnused(getContext());
+        assertTrue(AclReceiverSwitch.isEnabled(getContext()));
+    }
+
+    /**
+     * Tests that a saved condition keeps the receiver enabled, and its states known, before Locale first queries it.
+     */
+    @MediumTest
+    public void testSave()
+    {
+        AclReceiverSwitch.markSaved(getContext());
+        AclReceiverSwitch.enable(getContext());
+        ConnectionStateCache.getInstance(getContext()).setConnected(MAC, true, 1);
+
+        AclReceiverSwitch.disableIfUnused(getContext());
+        assertTrue(AclReceiverSwitch.isEnabled(getContext()));
+        assertTrue(ConnectionStateCache.getInstance(getContext()).isKnown(MAC));
+        assertTrue(ConnectionStateCache.getInstance(getContext()).isConnected(MAC));
+    }
+
+    /**
+     * Tests that the receiver is disabled once nothing is watched, and that the states which would go stale are forgotten.
+     */
+    @MediumTest
+    public void testDisable()
+    {
+        AclReceiverSwitch.enable(getContext());
+        ConnectionStateCache.getInstance(getContext()).setConnected(MAC, true, 1);
+
+        AclReceiverSwitch.disableIfUnused(getContext());
+        assertFalse(AclReceiverSwitch.isEnabled(getContext()));
+        assertFalse(ConnectionStateCache.getInstance(getContext()).isConnected(MAC));
+        assertFalse(ConnectionStateCache.getInstance(getContext()).isKnown(MAC));
+
+        AclReceiverSwitch.onQuery(getContext());
+        assertTrue(AclReceiverSwitch.isEnabled(getContext()));
+    }
+
+    /**
+     * Tests that a device whose state was forgotten is reported as unknown, rather than as disconnected, once the receiver is
+     * enabled again, even by a new process; and that its next transition makes it known again.
+     */
+    @MediumTest
+    public void testQueryAfterDisable()
+    {
+        AclReceiverSwitch.enable(getContext());
+        ConnectionStateCache.getInstance(getContext()).setConnected(MAC, true, 1);
+        AclReceiverSwitch.disableIfUnused(getContext());
+
+        ConnectionStateCacheTest.restart();
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN, QueryReceiver.evaluate(getContext(), MAC, false));
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN, QueryReceiver.evaluate(getContext(), MAC, true));
+        assertTrue(AclReceiverSwitch.isEnabled(getContext()));
+
+        ConnectionStateCache.getInstance(getContext()).setConnected(MAC, false, 2);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED, QueryReceiver.evaluate(getContext(), MAC, false));
+    }
+}
@@ -0,0 +1,97 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import name.boyle.chris.locale.bluetoothacl.state.AclTrace;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceClass;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Tests {@link AclTraceRecorder}.
+ */
+public final class AclTraceRecorderTest extends AndroidTestCase
+{
+    /**
+     * A packed MAC.
+     */
+    private static final long MAC = MacCodec.encode("00:11:22:33:44:55"); //$NON-NLS-1$
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        reset();
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests that nothing is recorded until recording starts.
+     */
+    @SmallTest
+    public void testNotRecording()
+    {
+        AclTraceRecorder.record(getContext(), 1, MAC, DeviceClass.UNKNOWN, true, true);
+        assertFalse(AclTraceRecorder.isRecording());
+        assertFalse(getFile(AclTraceRecorder.RECORDING_FILE_NAME).exists());
+        assertFalse(getFile(AclTraceRecorder.TRACE_FILE_NAME).exists());
+    }
+
+    /**
+     * Tests that broadcasts recorded between start and stop end up in the trace, across a restart of the process.
+     */
+    @SmallTest
+    public void testRecord() throws IOException
+    {
+        AclTraceRecorder.start(getContext());
+        assertTrue(AclTraceRecorder.isRecording());
+        AclTraceRecorder.record(getContext(), 100, MAC, 0x0404, true, true);
+
+        AclTraceRecorder.resetInstance();
+        AclTraceRecorder.record(getContext(), 200, MAC, 0x0404, false, false);
+        assertTrue(AclTraceRecorder.isRecording());
+
+        AclTraceRecorder.stop(getContext());
+        assertFalse(AclTraceRecorder.isRecording());
+        AclTraceRecorder.record(getContext(), 300, MAC, 0x0404, true, true);
+
+        final List<AclTrace.Event> events = AclTrace.read(getFile(AclTraceRecorder.TRACE_FILE_NAME));
+        assertEquals(2, events.size());
+        assertEquals(100, events.get(0).getElapsedRealtime());
+        assertTrue(events.get(0).isWatched());
+        assertEquals(200, events.get(1).getElapsedRealtime());
+        assertFalse(events.get(1).isConnected());
+        assertFalse(getFile(AclTraceRecorder.RECORDING_FILE_NAME).exists());
+    }
+
+    /**
+     * Stops any recording and deletes the trace files.
+     */
+    private void reset()
+    {
+        AclTraceRecorder.resetInstance();
+        getFile(AclTraceRecorder.RECORDING_FILE_NAME).delete();
+        getFile(AclTraceRecorder.TRACE_FILE_NAME).delete();
+    }
+
+    /**
+     * @param name name of a file.
+     * @return the file in the app's files directory.
+     */
+    private File getFile(final String name)
+    {
+        return new File(getContext().getFilesDir(), name);
+    }
+}
@@ -0,0 +1,176 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.format.DateUtils;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import name.boyle.chris.locale.bluetoothacl.bundle.PluginBundleManager;
+
+/**
+ * Tests {@link ColdStartTimer}, and that a query starting the background process is answered within
+ * {@link ColdStartTimer#BUDGET_MILLIS}.
+ */
+public final class ColdStartTimerTest extends AndroidTestCase
+{
+    /**
+     * Amount of time to wait for the background process to stop or for a broadcast to be answered.
+     */
+    private static final long WAIT_TIME = 5 * DateUtils.SECOND_IN_MILLIS;
+
+    /**
+     * Looper for the results of ordered broadcasts.
+     */
+    private Looper mLooper;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        final HandlerThread h = new HandlerThread(getClass().getSimpleName());
+        h.start();
+        mLooper = h.getLooper();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mLooper.quit();
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests that only the first receiver to finish is recorded.
+     */
+    @SmallTest
+    public void testFirstReceiveOnly()
+    {
+        ColdStartTimer.reset(SystemClock.elapsedRealtime() - 100);
+        assertEquals(-1, ColdStartTimer.getColdStartMillis());
+        assertNull(ColdStartTimer.getColdStartReceiver());
+
+        ColdStartTimer.onReceiveFinished(new QueryReceiver());
+        final long coldStartMillis = ColdStartTimer.getColdStartMillis();
+        assertTrue(coldStartMillis >= 100);
+        assertEquals("QueryReceiver", ColdStartTimer.getColdStartReceiver()); //$NON-NLS-1$
+
+        ColdStartTimer.onReceiveFinished(new BluetoothConnectionReceiver());
+        assertEquals(coldStartMillis, ColdStartTimer.getColdStartMillis());
+        assertEquals("QueryReceiver", ColdStartTimer.getColdStartReceiver()); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that the dump reports the cold start.
+     */
+    @SmallTest
+    public void testDump()
+    {
+        ColdStartTimer.reset(SystemClock.elapsedRealtime());
+        assertTrue(dump().contains("cold start: none")); //$NON-NLS-1$
+
+        ColdStartTimer.onReceiveFinished(new QueryReceiver());
+        assertTrue(dump(), dump().contains(" in QueryReceiver, budget " + ColdStartTimer.BUDGET_MILLIS + "ms")); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+
+    /**
+     * Stops the background process, starts it again with a query, and checks the time it took with {@link MetricsReceiver}.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    @LargeTest
+    public void testColdStartBudget() throws InterruptedException
+    {
+        final String processName = getContext().getPackageName() + ":background"; //$NON-NLS-1$
+        final ActivityManager activityManager = (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        final long deadline = SystemClock.elapsedRealtime() + WAIT_TIME;
+        int pid;
+        while (0 != (pid = getPid(activityManager, processName)))
+        {
+            Process.killProcess(pid);
+            assertTrue("background process didn't stop", SystemClock.elapsedRealtime() < deadline); //$NON-NLS-1$
+            Thread.sleep(50);
+        }
+
+        final Intent query = new Intent(com.twofortyfouram.locale.Intent.ACTION_QUERY_CONDITION).setClass(getContext(), QueryReceiver.class)
+                                                                                                 .putExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE,
+                                                                                                           PluginBundleManager.generateBundle(1, new String[] { "00:11:22:33:44:55" }, true, PluginBundleManager.QUANTIFIER_ANY, 1)); //$NON-NLS-1$
+        sendAndWait(query);
+
+        final String dump = sendAndWait(new Intent(MetricsReceiver.ACTION_DUMP_METRICS).setClass(getContext(), MetricsReceiver.class));
+        assertNotNull(dump);
+        final Matcher matcher = Pattern.compile("cold start: (\\d+)ms in (\\w+)").matcher(dump); //$NON-NLS-1$
+        assertTrue(dump, matcher.find());
+        assertEquals(dump, QueryReceiver.class.getSimpleName(), matcher.group(2));
+        assertTrue(dump, Long.parseLong(matcher.group(1)) <= ColdStartTimer.BUDGET_MILLIS);
+    }
+
+    /**
+     * @return the dump of this process.
+     */
+    private String dump()
+    {
+        final StringWriter out = new StringWriter();
+        MetricsDump.dump(getContext(), new PrintWriter(out));
+        return out.toString();
+    }
+
+    /**
+     * @param activityManager the activity manager.
+     * @param processName name of a process of this app.
+     * @return its pid, or 0 if it isn't running.
+     */
+    private static int getPid(final ActivityManager activityManager, final String processName)
+    {
+        for (final ActivityManager.RunningAppProcessInfo info : activityManager.getRunningAppProcesses())
+        {
+            if (processName.equals(info.processName))
+            {
+                return info.pid;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sends an ordered broadcast and waits for its result.
+     *
+     * @param intent the broadcast.
+     * @return its result data.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private String sendAndWait(final Intent intent) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final String[] result = new String[1];
+        getContext().sendOrderedBroadcast(intent, null, new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(final Context context, final Intent i)
+            {
+                result[0] = getResultData();
+                latch.countDown();
+            }
+        }, new Handler(mLooper), com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN, null, null);
+
+        assertTrue(latch.await(WAIT_TIME, TimeUnit.MILLISECONDS));
+        return result[0];
+    }
+}
@@ -0,0 +1,73 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import name.boyle.chris.locale.bluetoothacl.bundle.ParsedBundleCache;
+import name.boyle.chris.locale.bluetoothacl.bundle.PluginBundleManager;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCacheTest;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Tests {@link MetricsDump}.
+ */
+public final class MetricsDumpTest extends AndroidTestCase
+{
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        ConnectionStateCacheTest.reset(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        ConnectionStateCacheTest.reset(getContext());
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests that the dump reports the query result hit ratio.
+     */
+    @SmallTest
+    public void testQueryHitRatio()
+    {
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        final long mac = MacCodec.encode("00:11:22:33:44:55"); //$NON-NLS-1$
+        for (int x = 0; x < 4; x++)
+        {
+            cache.isSatisfied(mac, true);
+        }
+
+        final StringWriter out = new StringWriter();
+        MetricsDump.dump(getContext(), new PrintWriter(out));
+        assertTrue(out.toString(), out.toString().contains("query results: hits=3 misses=1 hit ratio=0.750")); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that the dump reports the parsed bundle cache.
+     */
+    @SmallTest
+    public void testParsedBundles()
+    {
+        final ParsedBundleCache bundles = ParsedBundleCache.getInstance();
+        bundles.clear();
+        for (int x = 0; x < 3; x++)
+        {
+            assertNotNull(bundles.get(PluginBundleManager.generateBundle(1, new String[] { "00:11:22:33:44:55" }, true, PluginBundleManager.QUANTIFIER_ANY, 1))); //$NON-NLS-1$
+        }
+
+        final StringWriter out = new StringWriter();
+        MetricsDump.dump(getContext(), new PrintWriter(out));
+        assertTrue(out.toString(), out.toString().contains("parsed bundles: hits=2 misses=1 hit ratio=0.667")); //$NON-NLS-1$
+        assertTrue(out.toString(), out.toString().contains(String.format("parsed bundle cache: size=1/%d evictions=0", Integer.valueOf(bundles.getCapacity())))); //$NON-NLS-1$
+        bundles.clear();
+    }
+}
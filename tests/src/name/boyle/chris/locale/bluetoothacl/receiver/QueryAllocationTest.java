@@ -0,0 +1,186 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Parcel;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import name.boyle.chris.locale.bluetoothacl.Constants;
+import name.boyle.chris.locale.bluetoothacl.bundle.PluginBundleManager;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCacheTest;
+
+/**
+ * Checks that a steady-state query stays within its allocation budget, by counting the allocations of the calling thread.
+ * <p>
+ * Each query runs through {@link QueryReceiver#receive(Context, Intent)}, which is everything {@code onReceive} does but setting
+ * the result, on a fresh copy of the Intent read back from a {@link Parcel}, as a broadcast delivers it. Reading that copy
+ * unparcels its extras, which costs allocations whatever the plug-in does, so that cost is measured on its own and allowed for.
+ * <p>
+ * This has to run on a device, as the Intent and Bundle handling is only stubbed on the JVM. The core half of the query, from
+ * payload validation to evaluation, has a JVM budget of its own in the core module's {@code QueryAllocationBudgetTest}, which the
+ * Maven build runs.
+ */
+public final class QueryAllocationTest extends AndroidTestCase
+{
+    /**
+     * Number of queries counted.
+     */
+    private static final int QUERIES = 1000;
+
+    /**
+     * Number of queries run first, so that one-off work such as loading state and enabling the ACL receiver isn't counted.
+     */
+    private static final int WARM_UP_QUERIES = 10;
+
+    /**
+     * Allocations allowed across all {@link #QUERIES}, on top of those of unparcelling their Intents. A query should allocate
+     * nothing itself; this leaves room for the odd allocation the runtime makes on the thread's behalf, but not for one per
+     * query.
+     */
+    private static final int ALLOCATION_BUDGET = QUERIES / 100;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        ConnectionStateCacheTest.reset(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        AclReceiverSwitch.reset(getContext());
+        ConnectionStateCacheTest.reset(getContext());
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests a query for a satisfied condition.
+     */
+    @MediumTest
+    public void testSatisfiedQuery()
+    {
+        assertWithinBudget(newQuery("00:11:22:33:44:55", false), com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests a query for an unsatisfied condition.
+     */
+    @MediumTest
+    public void testUnsatisfiedQuery()
+    {
+        assertWithinBudget(newQuery("00:11:22:33:44:55", true), com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED); //$NON-NLS-1$
+    }
+
+    /**
+     * Runs copies of {@code intent} through the receiver, and fails if the counted queries allocate more than unparcelling their
+     * Intents does, plus the budget.
+     *
+     * @param intent query Intent.
+     * @param expectedResult result code every query should return.
+     */
+    private void assertWithinBudget(final Intent intent, final int expectedResult)
+    {
+        /*
+         * A broadcast would load the state in the background on the first query, but there's no pending result here to finish,
+         * so load it on this thread
+         */
+        assertEquals(expectedResult, QueryReceiver.query(getContext(), intent));
+
+        final QueryReceiver receiver = new QueryReceiver();
+        for (final Intent query : copy(intent, WARM_UP_QUERIES))
+        {
+            assertEquals(expectedResult, receiver.receive(getContext(), query));
+        }
+
+        final Intent[] unparcelled = copy(intent, QUERIES);
+        startCounting();
+        for (final Intent query : unparcelled)
+        {
+            query.hasExtra(null);
+        }
+        final int unparcelAllocations = stopCounting();
+
+        final Intent[] queries = copy(intent, QUERIES);
+        int mismatches = 0;
+        startCounting();
+        for (final Intent query : queries)
+        {
+            if (expectedResult != receiver.receive(getContext(), query))
+            {
+                mismatches++;
+            }
+        }
+        final int allocations = stopCounting();
+
+        assertEquals(0, mismatches);
+        assertTrue(String.format("%d allocations in %d queries, unparcelling costs %d and the budget is %d", Integer.valueOf(allocations), Integer.valueOf(QUERIES), //$NON-NLS-1$
+                                 Integer.valueOf(unparcelAllocations), Integer.valueOf(ALLOCATION_BUDGET)), allocations <= unparcelAllocations + ALLOCATION_BUDGET);
+    }
+
+    /**
+     * Starts counting the allocations of the calling thread, from zero.
+     */
+    private static void startCounting()
+    {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+    }
+
+    /**
+     * Stops counting allocations.
+     *
+     * @return number of allocations of the calling thread since {@link #startCounting()}.
+     */
+    private static int stopCounting()
+    {
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount();
+    }
+
+    /**
+     * @param intent Intent to copy.
+     * @param count number of copies.
+     * @return copies of {@code intent}, each written to a {@link Parcel} and read back, so that their extras are still parcelled
+     *         as in a delivered broadcast.
+     */
+    private static Intent[] copy(final Intent intent, final int count)
+    {
+        final Intent[] copies = new Intent[count];
+        final Parcel parcel = Parcel.obtain();
+        try
+        {
+            intent.writeToParcel(parcel, 0);
+            for (int x = 0; x < count; x++)
+            {
+                parcel.setDataPosition(0);
+                copies[x] = Intent.CREATOR.createFromParcel(parcel);
+            }
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+        return copies;
+    }
+
+    /**
+     * @param deviceMac MAC of the device.
+     * @param isConnectedExpected state the condition expects.
+     * @return a query Intent as Locale would send it.
+     */
+    private Intent newQuery(final String deviceMac, final boolean isConnectedExpected)
+    {
+        final Bundle bundle = new Bundle();
+        bundle.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, Constants.getVersionCode(getContext()));
+        bundle.putString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, deviceMac);
+        bundle.putBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE, isConnectedExpected);
+
+        return new Intent(com.twofortyfouram.locale.Intent.ACTION_QUERY_CONDITION).putExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE, bundle);
+    }
+}
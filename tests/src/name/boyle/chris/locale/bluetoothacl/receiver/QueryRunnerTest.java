@@ -0,0 +1,206 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCacheTest;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCondition;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Tests {@link QueryRunner}.
+ */
+public final class QueryRunnerTest extends AndroidTestCase
+{
+    /**
+     * A packed MAC.
+     */
+    private static final long MAC = MacCodec.encode("00:11:22:33:44:55"); //$NON-NLS-1$
+
+    /**
+     * Deadline used by these tests.
+     */
+    private static final long DEADLINE_MILLIS = 50;
+
+    /**
+     * Time to wait for an answer.
+     */
+    private static final long WAIT_MILLIS = 2000;
+
+    /**
+     * Thread for the deadline handler.
+     */
+    private HandlerThread mThread;
+
+    /**
+     * Tasks given to {@link #mHeldExecutor}, which only run when the test says so.
+     */
+    private final List<Runnable> mHeldTasks = new ArrayList<Runnable>();
+
+    /**
+     * Executor which holds tasks, as if it were busy.
+     */
+    private final Executor mHeldExecutor = new Executor()
+    {
+        public void execute(final Runnable command)
+        {
+            mHeldTasks.add(command);
+        }
+    };
+
+    /**
+     * Answers received, in order.
+     */
+    private final LinkedBlockingQueue<Integer> mResults = new LinkedBlockingQueue<Integer>();
+
+    /**
+     * Puts answers into {@link #mResults}.
+     */
+    private final QueryRunner.Callback mCallback = new QueryRunner.Callback()
+    {
+        public void onResult(final int resultCode)
+        {
+            mResults.add(Integer.valueOf(resultCode));
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        ConnectionStateCacheTest.reset(getContext());
+        mThread = new HandlerThread(getClass().getSimpleName());
+        mThread.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        mThread.quit();
+        AclReceiverSwitch.reset(getContext());
+        ConnectionStateCacheTest.reset(getContext());
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests that a query evaluated in time is answered with its result, and not by its deadline.
+     */
+    @MediumTest
+    public void testInTime() throws InterruptedException
+    {
+        ConnectionStateCache.getInstance(getContext()).setConnected(MAC, true, 1);
+        final QueryRunner runner = new QueryRunner(new Executor()
+        {
+            public void execute(final Runnable command)
+            {
+                command.run();
+            }
+        }, new Handler(mThread.getLooper()), DEADLINE_MILLIS);
+
+        runner.run(getContext(), MAC, true, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED, mResults.take().intValue());
+
+        assertNull(mResults.poll(DEADLINE_MILLIS * 4, TimeUnit.MILLISECONDS));
+        assertEquals(1, runner.getQueryCount());
+        assertEquals(0, runner.getFallbackCount());
+    }
+
+    /**
+     * Tests that a query which misses its deadline before any state is in memory is answered from the last result, and only once.
+     */
+    @MediumTest
+    public void testDeadline() throws InterruptedException
+    {
+        final QueryRunner runner = new QueryRunner(mHeldExecutor, new Handler(mThread.getLooper()), DEADLINE_MILLIS);
+
+        /*
+         * Nothing is loaded and the query has never been answered, so the deadline doesn't know
+         */
+        runner.run(getContext(), MAC, true, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        assertEquals(1, runner.getFallbackCount());
+        assertEquals(1, runner.getUnknownFallbackCount());
+
+        /*
+         * The late evaluation is remembered, but not sent
+         */
+        mHeldTasks.remove(0).run();
+        assertNull(mResults.poll(DEADLINE_MILLIS * 2, TimeUnit.MILLISECONDS));
+
+        ConnectionStateCacheTest.restart();
+        runner.run(getContext(), MAC, true, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        assertEquals(2, runner.getQueryCount());
+        assertEquals(2, runner.getFallbackCount());
+        assertEquals(1, runner.getUnknownFallbackCount());
+    }
+
+    /**
+     * Tests that a query which misses its deadline once the states are in memory is answered from them, even if it has never been
+     * answered before or its last result is out of date.
+     */
+    @MediumTest
+    public void testDeadlineFromMemory() throws InterruptedException
+    {
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        cache.setConnected(MAC, true, 1);
+        final QueryRunner runner = new QueryRunner(mHeldExecutor, new Handler(mThread.getLooper()), DEADLINE_MILLIS);
+
+        runner.run(getContext(), MAC, true, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        mHeldTasks.remove(0).run();
+
+        cache.setConnected(MAC, false, 2);
+        runner.run(getContext(), MAC, true, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        runner.run(getContext(), true, 0x0400, false, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        assertEquals(3, runner.getFallbackCount());
+        assertEquals(0, runner.getUnknownFallbackCount());
+    }
+
+    /**
+     * Tests that a condition on a set of devices which misses its deadline is answered from its own last result, not from that of
+     * another condition.
+     */
+    @MediumTest
+    public void testConditionDeadline() throws InterruptedException
+    {
+        ConnectionStateCache.getInstance(getContext()).setConnected(MAC, true, 1);
+        final QueryRunner runner = new QueryRunner(mHeldExecutor, new Handler(mThread.getLooper()), DEADLINE_MILLIS);
+        final DeviceCondition any = new DeviceCondition(new long[] { MAC, MAC + 1 }, true, 1);
+        final DeviceCondition all = new DeviceCondition(new long[] { MAC, MAC + 1 }, true, 2);
+
+        runner.run(getContext(), any, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        mHeldTasks.remove(0).run();
+
+        runner.run(getContext(), all, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        mHeldTasks.remove(0).run();
+
+        /*
+         * With nothing in memory, only the last results are left to answer from
+         */
+        ConnectionStateCacheTest.restart();
+        runner.run(getContext(), new DeviceCondition(new long[] { MAC + 1, MAC }, true, 1), mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_SATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        runner.run(getContext(), all, mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNSATISFIED, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        runner.run(getContext(), new DeviceCondition(new long[] { MAC }, false, 1), mCallback);
+        assertEquals(com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN, mResults.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS).intValue());
+        assertEquals(5, runner.getFallbackCount());
+        assertEquals(1, runner.getUnknownFallbackCount());
+    }
+}
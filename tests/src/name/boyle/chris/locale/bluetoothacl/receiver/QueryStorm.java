@@ -0,0 +1,445 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import name.boyle.chris.locale.bluetoothacl.bundle.PluginBundleManager;
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCache;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Load generator for the query path: fires a weighted mix of query Intents at {@link QueryReceiver#query(Context, Intent)} from
+ * several threads for a fixed time, as a host polling many conditions would, and measures each query. Optionally, another
+ * thread writes transitions of the queried devices to the {@link ConnectionStateCache} meanwhile, so that contention between
+ * the two shows up as a difference in latency.
+ * <p>
+ * Each query gets a fresh Intent whose plug-in Bundle is still parcelled, as when it arrives from the host's process. Building
+ * it isn't timed.
+ */
+public final class QueryStorm
+{
+    /**
+     * Weights of the kinds of query in a storm.
+     */
+    public static final class Mix
+    {
+        /**
+         * Weight of conditions on one device.
+         */
+        /* package */final int mValid;
+
+        /**
+         * Weight of conditions on several devices.
+         */
+        /* package */final int mMultiDevice;
+
+        /**
+         * Weight of Bundles which fail validation.
+         */
+        /* package */final int mInvalid;
+
+        /**
+         * Weight of Bundles carrying a Serializable, which the scrubber must reject.
+         */
+        /* package */final int mHostile;
+
+        /**
+         * @param valid weight of conditions on one device.
+         * @param multiDevice weight of conditions on several devices.
+         * @param invalid weight of Bundles which fail validation.
+         * @param hostile weight of Bundles carrying a Serializable.
+         */
+        public Mix(final int valid, final int multiDevice, final int invalid, final int hostile)
+        {
+            mValid = valid;
+            mMultiDevice = multiDevice;
+            mInvalid = invalid;
+            mHostile = hostile;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "valid=%d multi=%d invalid=%d hostile=%d", Integer.valueOf(mValid), Integer.valueOf(mMultiDevice), Integer.valueOf(mInvalid), //$NON-NLS-1$
+                                 Integer.valueOf(mHostile));
+        }
+    }
+
+    /**
+     * What a storm measured.
+     */
+    public static final class Report
+    {
+        /**
+         * Number of queries answered.
+         */
+        /* package */final int mQueryCount;
+
+        /**
+         * Queries answered per second, across all threads.
+         */
+        /* package */final double mThroughput;
+
+        /**
+         * Median latency, in microseconds.
+         */
+        /* package */final double mP50Micros;
+
+        /**
+         * 99th percentile latency, in microseconds.
+         */
+        /* package */final double mP99Micros;
+
+        /**
+         * 99.9th percentile latency, in microseconds.
+         */
+        /* package */final double mP999Micros;
+
+        /**
+         * Number of transitions written meanwhile.
+         */
+        /* package */final int mWriteCount;
+
+        /**
+         * Number of queries whose result was wrong for their kind.
+         */
+        /* package */final int mWrongResultCount;
+
+        /**
+         * @param latencies latency of each query in nanoseconds, sorted.
+         * @param elapsedNanos length of the storm.
+         * @param writeCount number of transitions written meanwhile.
+         * @param wrongResultCount number of queries whose result was wrong for their kind.
+         */
+        /* package */Report(final long[] latencies, final long elapsedNanos, final int writeCount, final int wrongResultCount)
+        {
+            mQueryCount = latencies.length;
+            mThroughput = latencies.length * 1e9 / elapsedNanos;
+            mP50Micros = percentile(latencies, 0.5) / 1e3;
+            mP99Micros = percentile(latencies, 0.99) / 1e3;
+            mP999Micros = percentile(latencies, 0.999) / 1e3;
+            mWriteCount = writeCount;
+            mWrongResultCount = wrongResultCount;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "%d queries, %.0f/s, p50 %.1fus, p99 %.1fus, p99.9 %.1fus, %d writes", Integer.valueOf(mQueryCount), Double.valueOf(mThroughput), //$NON-NLS-1$
+                                 Double.valueOf(mP50Micros), Double.valueOf(mP99Micros), Double.valueOf(mP999Micros), Integer.valueOf(mWriteCount));
+        }
+    }
+
+    /**
+     * Most queries one thread measures, which bounds the memory a storm takes.
+     */
+    private static final int MAX_QUERIES_PER_THREAD = 200000;
+
+    /**
+     * Devices the queries ask about, and the writer writes.
+     */
+    private static final String[] MACS = new String[] { "00:11:22:33:44:01", "00:11:22:33:44:02", "00:11:22:33:44:03", "00:11:22:33:44:04", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        "00:11:22:33:44:05", "00:11:22:33:44:06", "00:11:22:33:44:07", "00:11:22:33:44:08" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+    /**
+     * Kind of a query on one device.
+     */
+    private static final int KIND_VALID = 0;
+
+    /**
+     * Kind of a query on several devices.
+     */
+    private static final int KIND_MULTI_DEVICE = 1;
+
+    /**
+     * Kind of a query which fails validation.
+     */
+    private static final int KIND_INVALID = 2;
+
+    /**
+     * Kind of a query carrying a Serializable.
+     */
+    private static final int KIND_HOSTILE = 3;
+
+    /**
+     * Context the queries run in.
+     */
+    private final Context mContext;
+
+    /**
+     * Parcelled plug-in Bundle of each kind, indexed by kind.
+     */
+    private final byte[][] mBundles = new byte[4][];
+
+    /**
+     * @param context Context the queries run in. Cannot be null.
+     */
+    public QueryStorm(final Context context)
+    {
+        mContext = context;
+
+        mBundles[KIND_VALID] = marshall(PluginBundleManager.generateBundle(1, new String[] { MACS[0] }, true, PluginBundleManager.QUANTIFIER_ANY, 1));
+        mBundles[KIND_MULTI_DEVICE] = marshall(PluginBundleManager.generateBundle(1, MACS, true, PluginBundleManager.QUANTIFIER_AT_LEAST, 2));
+
+        final Bundle invalid = new Bundle();
+        invalid.putInt(PluginBundleManager.BUNDLE_EXTRA_INT_VERSION_CODE, 1);
+        invalid.putString(PluginBundleManager.BUNDLE_EXTRA_STRING_BLUETOOTH_MAC, MACS[0]);
+        mBundles[KIND_INVALID] = marshall(invalid);
+
+        final ArrayList<String> payload = new ArrayList<String>();
+        for (int x = 0; x < 100; x++)
+        {
+            payload.add(MacCodec.decode(x));
+        }
+        final Bundle hostile = PluginBundleManager.generateBundle(1, new String[] { MACS[0] }, true, PluginBundleManager.QUANTIFIER_ANY, 1);
+        hostile.putSerializable("payload", payload); //$NON-NLS-1$
+        mBundles[KIND_HOSTILE] = marshall(hostile);
+    }
+
+    /**
+     * Runs a storm and waits for it to finish.
+     *
+     * @param mix weights of the kinds of query. Cannot be null.
+     * @param threadCount number of querying threads.
+     * @param durationMillis how long to query for.
+     * @param isWriting true to write transitions of the queried devices meanwhile.
+     * @return what the storm measured.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws RuntimeException if a query threw.
+     */
+    public Report run(final Mix mix, final int threadCount, final long durationMillis, final boolean isWriting) throws InterruptedException
+    {
+        final int[] kinds = newKindTable(mix);
+        final long[][] latencies = new long[threadCount][];
+        final int[] wrongResults = new int[threadCount];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final long[] deadline = new long[1];
+
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int index = t;
+            threads[t] = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        final Random random = new Random(index);
+                        final long[] samples = new long[MAX_QUERIES_PER_THREAD];
+                        int count = 0;
+                        while (count < samples.length && System.nanoTime() < deadline[0])
+                        {
+                            final int kind = kinds[random.nextInt(kinds.length)];
+                            final Intent intent = newQuery(kind);
+
+                            final long before = System.nanoTime();
+                            final int result = QueryReceiver.query(mContext, intent);
+                            samples[count++] = System.nanoTime() - before;
+
+                            if (!isExpected(kind, result))
+                            {
+                                wrongResults[index]++;
+                            }
+                        }
+                        latencies[index] = new long[count];
+                        System.arraycopy(samples, 0, latencies[index], 0, count);
+                    }
+                    catch (final Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }, "QueryStorm-" + t); //$NON-NLS-1$
+            threads[t].start();
+        }
+
+        final int[] writeCount = new int[1];
+        final Thread writer = isWriting ? newWriter(done, writeCount, failure) : null;
+
+        final long startNanos = System.nanoTime();
+        deadline[0] = startNanos + durationMillis * 1000000;
+        start.countDown();
+        if (null != writer)
+        {
+            writer.start();
+        }
+        done.await();
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        if (null != writer)
+        {
+            writer.join();
+        }
+
+        if (null != failure.get())
+        {
+            throw new RuntimeException(failure.get());
+        }
+
+        int total = 0;
+        int wrong = 0;
+        for (int t = 0; t < threadCount; t++)
+        {
+            total += latencies[t].length;
+            wrong += wrongResults[t];
+        }
+        final long[] all = new long[total];
+        int offset = 0;
+        for (int t = 0; t < threadCount; t++)
+        {
+            System.arraycopy(latencies[t], 0, all, offset, latencies[t].length);
+            offset += latencies[t].length;
+        }
+        Arrays.sort(all);
+
+        return new Report(all, elapsedNanos, writeCount[0], wrong);
+    }
+
+    /**
+     * @param done counted down once every querying thread has finished, which stops the writer.
+     * @param writeCount receives the number of transitions written.
+     * @param failure receives the first exception thrown.
+     * @return a thread which flips the queried devices in the {@link ConnectionStateCache}, one every millisecond, until
+     *         {@code done} is reached.
+     */
+    private Thread newWriter(final CountDownLatch done, final int[] writeCount, final AtomicReference<Throwable> failure)
+    {
+        return new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    final ConnectionStateCache cache = ConnectionStateCache.getInstance(mContext);
+                    int count = 0;
+                    while (done.getCount() > 0)
+                    {
+                        cache.setConnected(MacCodec.encode(MACS[count % MACS.length]), 0 == (count / MACS.length) % 2, System.currentTimeMillis(), true);
+                        count++;
+                        Thread.sleep(1);
+                    }
+                    writeCount[0] = count;
+                }
+                catch (final Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }, "QueryStorm-writer"); //$NON-NLS-1$
+    }
+
+    /**
+     * @param kind kind of query.
+     * @return a new query Intent of that kind, as the host would send it.
+     */
+    private Intent newQuery(final int kind)
+    {
+        return new Intent(com.twofortyfouram.locale.Intent.ACTION_QUERY_CONDITION).putExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE, unmarshall(mBundles[kind]));
+    }
+
+    /**
+     * @param kind kind of query.
+     * @param result result code of the query.
+     * @return true if {@code result} is right for the kind: an answer for a valid query, none otherwise.
+     */
+    private static boolean isExpected(final int kind, final int result)
+    {
+        final boolean isAnswered = com.twofortyfouram.locale.Intent.RESULT_CONDITION_UNKNOWN != result;
+        return isAnswered == (KIND_VALID == kind || KIND_MULTI_DEVICE == kind);
+    }
+
+    /**
+     * @param mix weights of the kinds of query.
+     * @return a table holding each kind as many times as its weight, so a uniform pick from it follows the mix.
+     */
+    private static int[] newKindTable(final Mix mix)
+    {
+        final int[] weights = new int[] { mix.mValid, mix.mMultiDevice, mix.mInvalid, mix.mHostile };
+        int total = 0;
+        for (final int weight : weights)
+        {
+            total += weight;
+        }
+        if (0 == total)
+        {
+            throw new IllegalArgumentException("mix cannot be empty"); //$NON-NLS-1$
+        }
+
+        final int[] table = new int[total];
+        int offset = 0;
+        for (int kind = 0; kind < weights.length; kind++)
+        {
+            Arrays.fill(table, offset, offset + weights[kind], kind);
+            offset += weights[kind];
+        }
+        return table;
+    }
+
+    /**
+     * @param sorted values, sorted. Cannot be empty.
+     * @param fraction fraction of values at or below the percentile, from 0 to 1.
+     * @return the percentile, by the nearest-rank method.
+     */
+    /* package */static long percentile(final long[] sorted, final double fraction)
+    {
+        if (0 == sorted.length)
+        {
+            return 0;
+        }
+        final int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * @param bundle bundle to parcel. Cannot be null.
+     * @return the parcelled Bundle, as it crosses processes.
+     */
+    private static byte[] marshall(final Bundle bundle)
+    {
+        final Parcel parcel = Parcel.obtain();
+        try
+        {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @param marshalled a parcelled Bundle, from {@link #marshall(Bundle)}.
+     * @return a copy of the Bundle, still parcelled.
+     */
+    private static Bundle unmarshall(final byte[] marshalled)
+    {
+        final Parcel parcel = Parcel.obtain();
+        try
+        {
+            parcel.unmarshall(marshalled, 0, marshalled.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle();
+        }
+        finally
+        {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package name.boyle.chris.locale.bluetoothacl.receiver;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import name.boyle.chris.locale.bluetoothacl.state.ConnectionStateCacheTest;
+
+/**
+ * Fires {@link QueryStorm}s of several mixes and thread counts, each without and then with transitions being written
+ * concurrently. Throughput and latency percentiles are written to logcat under {@link #TAG}. A storm whose p99 latency grows by
+ * more than {@link #CONTENTION_FACTOR} while transitions are written is flagged there as contention; the test itself only fails
+ * if a query throws or answers wrongly for its kind, as timings on a shared device are too noisy to gate on.
+ */
+public final class QueryStormBenchmark extends AndroidTestCase
+{
+    /**
+     * Log tag for results.
+     */
+    private static final String TAG = "QueryStormBenchmark"; //$NON-NLS-1$
+
+    /**
+     * How long each storm lasts.
+     */
+    private static final long DURATION_MILLIS = 2000;
+
+    /**
+     * Growth of p99 latency under concurrent writes beyond which a storm is flagged.
+     */
+    private static final double CONTENTION_FACTOR = 3;
+
+    /**
+     * Thread counts to storm with: one host polling, and several hosts or conditions at once.
+     */
+    private static final int[] THREAD_COUNTS = new int[] { 1, 8 };
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        ConnectionStateCacheTest.reset(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        ConnectionStateCacheTest.reset(getContext());
+
+        super.tearDown();
+    }
+
+    /**
+     * Storms with valid single device queries only, as a host polling a few conditions does.
+     */
+    @LargeTest
+    public void testValid() throws InterruptedException
+    {
+        storm("valid", new QueryStorm.Mix(1, 0, 0, 0)); //$NON-NLS-1$
+    }
+
+    /**
+     * Storms with a mix of every kind, mostly valid.
+     */
+    @LargeTest
+    public void testMixed() throws InterruptedException
+    {
+        storm("mixed", new QueryStorm.Mix(6, 2, 1, 1)); //$NON-NLS-1$
+    }
+
+    /**
+     * Storms with mostly hostile and invalid queries, as an app attacking the plug-in would send.
+     */
+    @LargeTest
+    public void testHostile() throws InterruptedException
+    {
+        storm("hostile", new QueryStorm.Mix(1, 0, 1, 3)); //$NON-NLS-1$
+    }
+
+    /**
+     * Runs {@code mix} at each thread count, without and with concurrent writes, and logs the results.
+     *
+     * @param name name of the mix, for the log.
+     * @param mix the mix.
+     * @throws InterruptedException if interrupted.
+     */
+    private void storm(final String name, final QueryStorm.Mix mix) throws InterruptedException
+    {
+        final QueryStorm storm = new QueryStorm(getContext());
+
+        /*
+         * Loads the state and compiles the query path before anything is timed
+         */
+        storm.run(mix, 1, DURATION_MILLIS / 4, false);
+
+        for (final int threadCount : THREAD_COUNTS)
+        {
+            final QueryStorm.Report quiet = storm.run(mix, threadCount, DURATION_MILLIS, false);
+            final QueryStorm.Report writing = storm.run(mix, threadCount, DURATION_MILLIS, true);
+            assertEquals(0, quiet.mWrongResultCount);
+            assertEquals(0, writing.mWrongResultCount);
+
+            Log.i(TAG, String.format("%s (%s), %d threads: quiet %s; writing %s", name, mix, Integer.valueOf(threadCount), quiet, writing)); //$NON-NLS-1$
+            if (writing.mP99Micros > quiet.mP99Micros * CONTENTION_FACTOR)
+            {
+                Log.w(TAG, String.format("%s, %d threads: contention with writes, p99 %.1fus -> %.1fus", name, Integer.valueOf(threadCount), Double.valueOf(quiet.mP99Micros), //$NON-NLS-1$
+                                         Double.valueOf(writing.mP99Micros)));
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import java.text.ParseException;
+
+/**
+ * Measures the throughput of {@link ConditionExpression} evaluation, against parsing the expression on every query as it would
+ * be without the compiled program and its cache. Results are written to logcat under {@link #TAG}.
+ */
+public final class ConditionExpressionBenchmark extends AndroidTestCase
+{
+    /**
+     * Log tag for results.
+     */
+    private static final String TAG = "ConditionExpressionBenchmark"; //$NON-NLS-1$
+
+    /**
+     * Minimum time spent on each measurement.
+     */
+    private static final long MEASURE_MILLIS = 1000;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        ConnectionStateCacheTest.reset(getContext());
+        ConditionExpression.clearCache();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        ConnectionStateCacheTest.reset(getContext());
+        ConditionExpression.clearCache();
+
+        super.tearDown();
+    }
+
+    /**
+     * Times expressions of 10, 100 and 1000 devices.
+     */
+    @LargeTest
+    public void testThroughput() throws ParseException
+    {
+        measure(10);
+        measure(100);
+        measure(1000);
+    }
+
+    /**
+     * Times evaluation of an expression of {@code deviceCount} devices, half of them connected.
+     *
+     * @param deviceCount number of devices in the expression.
+     * @throws ParseException never.
+     */
+    private void measure(final int deviceCount) throws ParseException
+    {
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        final String source = buildExpression(deviceCount);
+        for (int x = 0; x < deviceCount; x++)
+        {
+            cache.setConnected(0x001122000000L + x, 0 == x % 2, x);
+        }
+
+        /*
+         * Every query parses: what evaluation would cost without the cache
+         */
+        ConditionExpression.clearCache();
+        final boolean expected = cache.isSatisfied(ConditionExpression.compile(source));
+        long count = 0;
+        long start = SystemClock.elapsedRealtime();
+        long elapsed;
+        do
+        {
+            ConditionExpression.clearCache();
+            assertEquals(expected, cache.isSatisfied(ConditionExpression.compile(source)));
+            count++;
+            elapsed = SystemClock.elapsedRealtime() - start;
+        }
+        while (elapsed < MEASURE_MILLIS);
+        final double parsedPerSecond = count * 1000.0 / elapsed;
+
+        /*
+         * Every query looks the text up in the cache, as QueryReceiver does
+         */
+        count = 0;
+        start = SystemClock.elapsedRealtime();
+        do
+        {
+            assertEquals(expected, cache.isSatisfied(ConditionExpression.compile(source)));
+            count++;
+            elapsed = SystemClock.elapsedRealtime() - start;
+        }
+        while (elapsed < MEASURE_MILLIS);
+        final double cachedPerSecond = count * 1000.0 / elapsed;
+
+        /*
+         * The compiled program alone
+         */
+        final ConditionExpression expression = ConditionExpression.compile(source);
+        count = 0;
+        start = SystemClock.elapsedRealtime();
+        do
+        {
+            for (int x = 0; x < 100; x++)
+            {
+                assertEquals(expected, cache.isSatisfied(expression));
+            }
+            count += 100;
+            elapsed = SystemClock.elapsedRealtime() - start;
+        }
+        while (elapsed < MEASURE_MILLIS);
+        final double programPerSecond = count * 1000.0 / elapsed;
+
+        Log.i(TAG, String.format("%d devices, %d instructions: parsed %.0f/s, cached %.0f/s, program %.0f/s", //$NON-NLS-1$
+                                 Integer.valueOf(deviceCount), Integer.valueOf(expression.getProgramLength()), Double.valueOf(parsedPerSecond), Double.valueOf(cachedPerSecond),
+                                 Double.valueOf(programPerSecond)));
+    }
+
+    /**
+     * Builds an expression mixing every operator, of the form {@code (a AND NOT b) OR (c AND NOT d) OR ...}.
+     *
+     * @param deviceCount number of devices in the expression. Must be even.
+     * @return text of the expression.
+     */
+    private static String buildExpression(final int deviceCount)
+    {
+        final StringBuilder builder = new StringBuilder();
+        for (int x = 0; x < deviceCount; x += 2)
+        {
+            if (0 != x)
+            {
+                builder.append(" OR "); //$NON-NLS-1$
+            }
+            builder.append('(').append(MacCodec.decode(0x001122000000L + x)).append(" AND NOT ").append(MacCodec.decode(0x001122000000L + x + 1)).append(')'); //$NON-NLS-1$
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,421 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.text.ParseException;
+
+/**
+ * Tests {@link ConnectionStateCache}.
+ */
+public final class ConnectionStateCacheTest extends AndroidTestCase
+{
+    /**
+     * A MAC which no other test uses.
+     */
+    private static final String MAC = "00:11:22:33:44:55"; //$NON-NLS-1$
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        reset(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        ConnectionStateCache.resetInstance();
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests that unknown devices are reported as disconnected.
+     */
+    @SmallTest
+    public void testUnknownDevice()
+    {
+        assertFalse(ConnectionStateCache.getInstance(getContext()).isConnected(MAC));
+    }
+
+    /**
+     * Tests that only the first lookup in a process reads the backing store.
+     */
+    @SmallTest
+    public void testHitMissCounters()
+    {
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+
+        cache.isConnected(MAC);
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        cache.isConnected(MAC);
+        cache.isConnected(MAC);
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * Tests that writes are visible to the next lookup without reloading.
+     */
+    @SmallTest
+    public void testWriteThenRead()
+    {
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        cache.setConnected(MAC, true);
+        assertTrue(cache.isConnected(MAC));
+        cache.setConnected(MAC, false);
+        assertFalse(cache.isConnected(MAC));
+        assertEquals(0, cache.getMissCount());
+    }
+
+    /**
+     * Tests that a new process sees the state written by the previous one.
+     */
+    @SmallTest
+    public void testReload()
+    {
+        ConnectionStateCache.getInstance(getContext()).setConnected(MAC, true);
+        ConnectionStateCache.flushIfLoaded();
+
+        ConnectionStateCache.resetInstance();
+
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        assertTrue(cache.isConnected(MAC));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * Tests that query results are memoized until the device's state changes.
+     */
+    @SmallTest
+    public void testQueryMemo()
+    {
+        final long packed = MacCodec.encode(MAC);
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        assertTrue(cache.isSatisfied(packed, false));
+        assertTrue(cache.isSatisfied(packed, false));
+        assertFalse(cache.isSatisfied(packed, true));
+        assertEquals(1, cache.getQueryHitCount());
+        assertEquals(2, cache.getQueryMissCount());
+
+        cache.setConnected(packed, false, 1);
+        assertTrue(cache.isSatisfied(packed, false));
+        assertEquals(2, cache.getQueryHitCount());
+
+        cache.setConnected(packed, true, 2);
+        assertFalse(cache.isSatisfied(packed, false));
+        assertTrue(cache.isSatisfied(packed, true));
+        assertEquals(2, cache.getQueryHitCount());
+        assertEquals(4, cache.getQueryMissCount());
+
+        cache.clear();
+        assertFalse(cache.isSatisfied(packed, true));
+        assertEquals(5, cache.getQueryMissCount());
+    }
+
+    /**
+     * Tests that memory-only transitions aren't written, and that {@link ConnectionStateCache#persist(long, long)} writes them.
+     */
+    @SmallTest
+    public void testMemoryOnly()
+    {
+        final long packed = MacCodec.encode(MAC);
+        ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        assertTrue(cache.setConnected(packed, true, 1, false));
+        assertTrue(cache.isConnected(packed));
+        ConnectionStateCache.flushIfLoaded();
+        ConnectionStateCache.resetInstance();
+
+        cache = ConnectionStateCache.getInstance(getContext());
+        assertFalse(cache.isConnected(packed));
+        assertTrue(cache.setConnected(packed, true, 2, false));
+        cache.persist(packed, 3);
+        ConnectionStateCache.flushIfLoaded();
+        ConnectionStateCache.resetInstance();
+
+        assertTrue(ConnectionStateCache.getInstance(getContext()).isConnected(packed));
+    }
+
+    /**
+     * Tests that clearing forgets every state, in this process and the next.
+     */
+    @SmallTest
+    public void testClear()
+    {
+        ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        cache.setConnected(MAC, true);
+        ConnectionStateCache.flushIfLoaded();
+        cache.setConnected(mac(1), true);
+
+        cache.clear();
+        assertFalse(cache.isConnected(MAC));
+        assertFalse(cache.isConnected(mac(1)));
+        ConnectionStateCache.flushIfLoaded();
+        ConnectionStateCache.resetInstance();
+
+        cache = ConnectionStateCache.getInstance(getContext());
+        assertFalse(cache.isConnected(MAC));
+        assertFalse(cache.isConnected(mac(1)));
+    }
+
+    /**
+     * Tests that states stored by older versions are moved out of {@link android.content.SharedPreferences}.
+     */
+    @SmallTest
+    public void testMigration()
+    {
+        getContext().getSharedPreferences(ConnectionStateCache.PREFS_NAME, Context.MODE_PRIVATE).edit().putBoolean(MAC, true).commit();
+
+        assertTrue(ConnectionStateCache.getInstance(getContext()).isConnected(MAC));
+        assertTrue(getContext().getSharedPreferences(ConnectionStateCache.PREFS_NAME, Context.MODE_PRIVATE).getAll().isEmpty());
+
+        ConnectionStateCache.resetInstance();
+
+        assertTrue(ConnectionStateCache.getInstance(getContext()).isConnected(MAC));
+    }
+
+    /**
+     * Tests conditions on a set of devices with each quantifier.
+     */
+    @SmallTest
+    public void testCondition()
+    {
+        final long[] macs = new long[] { MacCodec.encode(mac(1)), MacCodec.encode(mac(2)), MacCodec.encode(mac(3)) };
+        final DeviceCondition any = new DeviceCondition(macs, true, 1);
+        final DeviceCondition two = new DeviceCondition(macs, true, 2);
+        final DeviceCondition all = new DeviceCondition(macs, true, 3);
+        final DeviceCondition anyDisconnected = new DeviceCondition(macs, false, 1);
+        final DeviceCondition allDisconnected = new DeviceCondition(macs, false, 3);
+
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        assertFalse(cache.isSatisfied(any));
+        assertTrue(cache.isSatisfied(anyDisconnected));
+        assertTrue(cache.isSatisfied(allDisconnected));
+
+        cache.setConnected(macs[1], true, 1);
+        assertTrue(cache.isSatisfied(any));
+        assertFalse(cache.isSatisfied(two));
+        assertTrue(cache.isSatisfied(anyDisconnected));
+        assertFalse(cache.isSatisfied(allDisconnected));
+
+        cache.setConnected(macs[0], true, 2);
+        cache.setConnected(macs[2], true, 3);
+        assertTrue(cache.isSatisfied(two));
+        assertTrue(cache.isSatisfied(all));
+        assertFalse(cache.isSatisfied(anyDisconnected));
+
+        cache.setConnected(macs[1], false, 4);
+        assertTrue(cache.isSatisfied(two));
+        assertFalse(cache.isSatisfied(all));
+        assertTrue(cache.isSatisfied(anyDisconnected));
+    }
+
+    /**
+     * Tests that a condition compiled before one of its devices first connected sees that device, and that devices outside the
+     * condition don't count.
+     */
+    @SmallTest
+    public void testConditionRecompiles()
+    {
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        final long mac = MacCodec.encode(MAC);
+        final DeviceCondition condition = new DeviceCondition(new long[] { mac, MacCodec.INVALID }, true, 1);
+        assertFalse(cache.isSatisfied(condition));
+
+        for (int x = 0; x < 200; x++)
+        {
+            cache.setConnected(0x001122000000L + x, true, x);
+        }
+        assertFalse(cache.isSatisfied(condition));
+
+        cache.setConnected(mac, true, 1000);
+        assertTrue(cache.isSatisfied(condition));
+        assertFalse(cache.isSatisfied(new DeviceCondition(new long[] { mac, MacCodec.INVALID }, true, 2)));
+    }
+
+    /**
+     * Tests that conditions survive a reload and a clear.
+     */
+    @SmallTest
+    public void testConditionReloadAndClear()
+    {
+        final long mac = MacCodec.encode(MAC);
+        final DeviceCondition condition = DeviceCondition.single(mac, true);
+        ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        cache.setConnected(mac, true, 1);
+        assertTrue(cache.isSatisfied(condition));
+        ConnectionStateCache.flushIfLoaded();
+
+        restart();
+        cache = ConnectionStateCache.getInstance(getContext());
+        assertTrue(cache.isSatisfied(condition));
+
+        cache.clear();
+        assertFalse(cache.isSatisfied(condition));
+    }
+
+    /**
+     * Tests that an expression is evaluated against the current states, including devices which first connect after it was
+     * compiled.
+     */
+    @SmallTest
+    public void testExpression() throws ParseException
+    {
+        final String mac1 = mac(1);
+        final String mac2 = mac(2);
+        final String mac3 = mac(3);
+        final ConditionExpression expression = ConditionExpression.compile("(" + mac1 + " AND NOT " + mac2 + ") OR " + mac3); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        assertFalse(cache.isSatisfied(expression));
+
+        cache.setConnected(mac1, true);
+        assertTrue(cache.isSatisfied(expression));
+
+        cache.setConnected(mac2, true);
+        assertFalse(cache.isSatisfied(expression));
+
+        cache.setConnected(mac3, true);
+        assertTrue(cache.isSatisfied(expression));
+
+        cache.setConnected(mac3, false);
+        cache.setConnected(mac2, false);
+        assertTrue(cache.isSatisfied(expression));
+
+        cache.clear();
+        assertFalse(cache.isSatisfied(expression));
+        assertTrue(cache.isSatisfied(ConditionExpression.compile("NOT " + mac1))); //$NON-NLS-1$
+    }
+
+    /**
+     * Tests that the per-class counters follow connections, disconnections and changes of class, and count each device once.
+     */
+    @SmallTest
+    public void testDeviceClassCounters()
+    {
+        final int headset = 0x0404;
+        final int speaker = 0x0414;
+        final int phone = 0x020C;
+        final long mac1 = MacCodec.encode(mac(1));
+        final long mac2 = MacCodec.encode(mac(2));
+        final long mac3 = MacCodec.encode(mac(3));
+        final ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+
+        /*
+         * A class recorded before the device connects is counted when it does
+         */
+        assertTrue(cache.setDeviceClass(mac1, headset));
+        assertFalse(cache.setDeviceClass(mac1, headset));
+        assertEquals(0, cache.getConnectedCountByMajorClass(0x0400));
+        cache.setConnected(mac1, true, 1);
+        cache.setConnected(mac1, true, 2);
+        assertEquals(1, cache.getConnectedCountByMajorClass(0x0400));
+        assertEquals(1, cache.getConnectedCountByDeviceClass(headset));
+        assertEquals(0, cache.getConnectedCountByDeviceClass(speaker));
+
+        /*
+         * A class recorded while the device is connected is counted at once
+         */
+        cache.setConnected(mac2, true, 3);
+        cache.setDeviceClass(mac2, speaker);
+        cache.setConnected(mac3, true, 4);
+        cache.setDeviceClass(mac3, phone);
+        assertEquals(2, cache.getConnectedCountByMajorClass(0x0400));
+        assertEquals(1, cache.getConnectedCountByDeviceClass(speaker));
+        assertEquals(1, cache.getConnectedCountByMajorClass(0x0200));
+
+        /*
+         * A change of class moves the device, and an unknown class doesn't forget the known one
+         */
+        cache.setDeviceClass(mac2, headset);
+        assertEquals(0, cache.getConnectedCountByDeviceClass(speaker));
+        assertEquals(2, cache.getConnectedCountByDeviceClass(headset));
+        assertFalse(cache.setDeviceClass(mac2, DeviceClass.UNKNOWN));
+        assertEquals(headset, cache.getDeviceClass(mac2));
+
+        cache.setConnected(mac1, false, 5);
+        cache.setConnected(mac1, false, 6);
+        assertEquals(1, cache.getConnectedCountByMajorClass(0x0400));
+        assertEquals(1, cache.getConnectedCountByDeviceClass(headset));
+
+        /*
+         * Invalid classes are never counted
+         */
+        assertEquals(0, cache.getConnectedCountByMajorClass(0x0404));
+        assertEquals(0, cache.getConnectedCountByDeviceClass(-1));
+        assertEquals(DeviceClass.UNKNOWN, cache.getDeviceClass(MacCodec.encode(MAC)));
+
+        cache.clear();
+        assertEquals(0, cache.getConnectedCountByMajorClass(0x0400));
+        assertEquals(0, cache.getConnectedCountByMajorClass(0x0200));
+        assertEquals(DeviceClass.UNKNOWN, cache.getDeviceClass(mac2));
+    }
+
+    /**
+     * Tests that classes are persisted with transitions, so the counters are rebuilt on reload.
+     */
+    @SmallTest
+    public void testDeviceClassReload()
+    {
+        final long mac1 = MacCodec.encode(mac(1));
+        final long mac2 = MacCodec.encode(mac(2));
+        ConnectionStateCache cache = ConnectionStateCache.getInstance(getContext());
+        cache.setDeviceClass(mac1, 0x0404);
+        cache.setConnected(mac1, true, 1);
+        cache.setDeviceClass(mac2, 0x0408);
+        cache.setConnected(mac2, false, 2);
+        ConnectionStateCache.flushIfLoaded();
+
+        restart();
+        cache = ConnectionStateCache.getInstance(getContext());
+        assertEquals(1, cache.getConnectedCountByMajorClass(0x0400));
+        assertEquals(1, cache.getConnectedCountByDeviceClass(0x0404));
+        assertEquals(0, cache.getConnectedCountByDeviceClass(0x0408));
+        assertEquals(0x0408, cache.getDeviceClass(mac2));
+
+        cache.setConnected(mac2, true, 3);
+        assertEquals(2, cache.getConnectedCountByMajorClass(0x0400));
+    }
+
+    /**
+     * Discards the process-wide cache and registry and everything they have stored, so that the next
+     * {@link ConnectionStateCache#getInstance(Context)} and {@link WatchedDeviceRegistry#getInstance(java.io.File)} start empty.
+     *
+     * @param context test context. Cannot be null.
+     */
+    public static void reset(final Context context)
+    {
+        ConnectionStateCache.resetInstance();
+        context.getSharedPreferences(ConnectionStateCache.PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+        new File(context.getFilesDir(), TransitionJournal.SNAPSHOT_FILE).delete();
+        new File(context.getFilesDir(), TransitionJournal.JOURNAL_FILE).delete();
+        new File(context.getFilesDir(), StaleDevices.FILE_NAME).delete();
+        WatchedDeviceRegistry.resetInstance();
+        new File(context.getFilesDir(), WatchedDeviceRegistry.FILE_NAME).delete();
+    }
+
+    /**
+     * Discards the process-wide cache but keeps what it has stored, as if the process had been restarted.
+     */
+    public static void restart()
+    {
+        ConnectionStateCache.resetInstance();
+    }
+
+    /**
+     * @param device index of the device.
+     * @return a MAC for the device at {@code device}.
+     */
+    /* package */static String mac(final int device)
+    {
+        return String.format("00:11:22:33:44:%02X", Integer.valueOf(device)); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,149 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import name.boyle.chris.locale.bluetoothacl.test.FakeClock;
+
+/**
+ * Tests {@link DeviceCatalog}.
+ */
+public final class DeviceCatalogTest extends AndroidTestCase
+{
+    /**
+     * Directory holding the catalog file.
+     */
+    private File mDirectory;
+
+    /**
+     * Clock driving the catalog.
+     */
+    private FakeClock mClock;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        mDirectory = getContext().getCacheDir();
+        getFile().delete();
+        mClock = new FakeClock();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        getFile().delete();
+
+        super.tearDown();
+    }
+
+    /**
+     * Tests that devices are listed by name, with the MAC standing in for a missing name.
+     */
+    @SmallTest
+    public void testOrder()
+    {
+        final DeviceCatalog catalog = new DeviceCatalog(mDirectory, mClock);
+        assertEquals(0, catalog.getDevices().length);
+
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(1, "watch", 0x0704), device(2, null, DeviceClass.UNKNOWN), device(3, "Car", 0x0420) })); //$NON-NLS-1$ //$NON-NLS-2$
+        final DeviceCatalog.Device[] devices = catalog.getDevices();
+        assertEquals(3, devices.length);
+        assertEquals(ConnectionStateCacheTest.mac(2), devices[0].getDisplayName());
+        assertEquals("", devices[0].getName()); //$NON-NLS-1$
+        assertEquals("Car", devices[1].getDisplayName()); //$NON-NLS-1$
+        assertEquals(0x0420, devices[1].getDeviceClass());
+        assertEquals("watch", devices[2].getDisplayName()); //$NON-NLS-1$
+        assertEquals(ConnectionStateCacheTest.mac(1), devices[2].getAddress());
+    }
+
+    /**
+     * Tests that the catalog survives a restart, and that an unchanged list isn't rewritten until its times are stale.
+     */
+    @SmallTest
+    public void testPersistence()
+    {
+        DeviceCatalog catalog = new DeviceCatalog(mDirectory, mClock);
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(1, "Headset", 0x0404) })); //$NON-NLS-1$
+        final long savedAt = mClock.currentTimeMillis();
+
+        mClock.advance(1000);
+        assertFalse(catalog.update(new DeviceCatalog.Device[] { device(1, "Headset", 0x0404) })); //$NON-NLS-1$
+
+        catalog = new DeviceCatalog(mDirectory, mClock);
+        DeviceCatalog.Device[] devices = catalog.getDevices();
+        assertEquals(1, devices.length);
+        assertEquals(MacCodec.encode(ConnectionStateCacheTest.mac(1)), devices[0].getMac());
+        assertEquals("Headset", devices[0].getName()); //$NON-NLS-1$
+        assertEquals(0x0404, devices[0].getDeviceClass());
+        assertEquals(savedAt, devices[0].getLastSeen());
+
+        mClock.advance(DeviceCatalog.REFRESH_MILLIS);
+        assertFalse(catalog.update(new DeviceCatalog.Device[] { device(1, "Headset", 0x0404) })); //$NON-NLS-1$
+        devices = new DeviceCatalog(mDirectory, mClock).getDevices();
+        assertEquals(mClock.currentTimeMillis(), devices[0].getLastSeen());
+    }
+
+    /**
+     * Tests that renamed, reclassified, added and removed devices count as changes.
+     */
+    @SmallTest
+    public void testChanges()
+    {
+        final DeviceCatalog catalog = new DeviceCatalog(mDirectory, mClock);
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(1, "Headset", 0x0404) })); //$NON-NLS-1$
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(1, "My headset", 0x0404) })); //$NON-NLS-1$
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(1, "My headset", 0x0418) })); //$NON-NLS-1$
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(1, "My headset", 0x0418), device(2, "Car", 0x0420) })); //$NON-NLS-1$ //$NON-NLS-2$
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(2, "Car", 0x0420) })); //$NON-NLS-1$
+        assertEquals(1, new DeviceCatalog(mDirectory, mClock).getDevices().length);
+        assertTrue(catalog.update(new DeviceCatalog.Device[0]));
+        assertEquals(0, new DeviceCatalog(mDirectory, mClock).getDevices().length);
+    }
+
+    /**
+     * Tests that a corrupt file leaves the catalog empty.
+     */
+    @SmallTest
+    public void testCorruptFile() throws IOException
+    {
+        final FileOutputStream out = new FileOutputStream(getFile());
+        try
+        {
+            out.write(new byte[] { 0x42, 0x54, 0x44, 0x43, 0, 0, 0, 1, 0, 0, 0, 5, 1, 2, 3 });
+        }
+        finally
+        {
+            out.close();
+        }
+
+        final DeviceCatalog catalog = new DeviceCatalog(mDirectory, mClock);
+        assertEquals(0, catalog.getDevices().length);
+        assertTrue(catalog.update(new DeviceCatalog.Device[] { device(1, "Headset", 0x0404) })); //$NON-NLS-1$
+        assertEquals(1, new DeviceCatalog(mDirectory, mClock).getDevices().length);
+    }
+
+    /**
+     * @param n number of the test device.
+     * @param name name of the device.
+     * @param deviceClass class of the device.
+     * @return the device, seen now.
+     */
+    private DeviceCatalog.Device device(final int n, final String name, final int deviceClass)
+    {
+        return new DeviceCatalog.Device(MacCodec.encode(ConnectionStateCacheTest.mac(n)), name, deviceClass, mClock.currentTimeMillis());
+    }
+
+    /**
+     * @return the catalog file.
+     */
+    private File getFile()
+    {
+        return new File(mDirectory, DeviceCatalog.FILE_NAME);
+    }
+}
@@ -0,0 +1,111 @@
+package name.boyle.chris.locale.bluetoothacl.state;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Compares the cost of a device state lookup in {@link DeviceStateTable} against the {@link SharedPreferences} lookup it
+ * replaced. Results are written to logcat under {@link #TAG}.
+ */
+public final class DeviceStateLookupBenchmark extends AndroidTestCase
+{
+    /**
+     * Log tag for results.
+     */
+    private static final String TAG = "DeviceStateLookupBenchmark"; //$NON-NLS-1$
+
+    /**
+     * Name of a scratch {@link SharedPreferences} file, so the real store is left alone.
+     */
+    private static final String PREFS_NAME = "benchmark_last_known_state"; //$NON-NLS-1$
+
+    /**
+     * Number of lookups timed for each case.
+     */
+    private static final int ITERATIONS = 100000;
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+
+        super.tearDown();
+    }
+
+    /**
+     * Times lookups with 10 and 100 known devices.
+     */
+    @LargeTest
+    public void testLookupCost()
+    {
+        measure(10);
+        measure(100);
+    }
+
+    /**
+     * Times {@link #ITERATIONS} lookups through each path.
+     *
+     * @param deviceCount number of known devices.
+     */
+    private void measure(final int deviceCount)
+    {
+        final String[] macs = new String[deviceCount];
+        final long[] packed = new long[deviceCount];
+        final DeviceStateTable table = new DeviceStateTable();
+        final SharedPreferences prefs = getContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        final SharedPreferences.Editor editor = prefs.edit().clear();
+        for (int x = 0; x < deviceCount; x++)
+        {
+            macs[x] = ConnectionStateCacheTest.mac(x);
+            packed[x] = MacCodec.encode(macs[x]);
+            table.put(packed[x], 0 == x % 2);
+            editor.putBoolean(macs[x], 0 == x % 2);
+        }
+        editor.commit();
+
+        int connectedCount = 0;
+
+        long start = SystemClock.elapsedRealtime();
+        for (int x = 0; x < ITERATIONS; x++)
+        {
+            if (prefs.getBoolean(macs[x % deviceCount], false))
+            {
+                connectedCount++;
+            }
+        }
+        final long prefsMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int x = 0; x < ITERATIONS; x++)
+        {
+            if (DeviceStateTable.STATE_CONNECTED == table.get(MacCodec.encode(macs[x % deviceCount])))
+            {
+                connectedCount--;
+            }
+        }
+        final long encodeAndTableMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int x = 0; x < ITERATIONS; x++)
+        {
+            if (DeviceStateTable.STATE_CONNECTED == table.get(packed[x % deviceCount]))
+            {
+                connectedCount++;
+            }
+        }
+        final long tableMillis = SystemClock.elapsedRealtime() - start;
+
+        /*
+         * Half the devices are connected and each loop visits every device equally often, so the loops cancel out to one loop's
+         * count. Checking it also keeps the loops from being optimized away.
+         */
+        assertEquals(ITERATIONS / 2, connectedCount);
+
+        Log.i(TAG, String.format("%d devices, %d lookups: prefs %d ms, encode+table %d ms, table %d ms", //$NON-NLS-1$
+                                 Integer.valueOf(deviceCount), Integer.valueOf(ITERATIONS), Long.valueOf(prefsMillis), Long.valueOf(encodeAndTableMillis), Long.valueOf(tableMillis)));
+    }
+}
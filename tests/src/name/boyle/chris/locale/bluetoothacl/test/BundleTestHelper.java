@@ -157,6 +157,7 @@ public class BundleTestHelper extends AndroidTestCase
         bundle.putString("test2", "test"); //$NON-NLS-1$ //$NON-NLS-2$
         bundle.putBoolean("test3", false); //$NON-NLS-1$
         bundle.putStringArray("test4", new String[] { "a", "b", "c" }); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+        bundle.putByteArray("test5", new byte[] { 1, 2, 3 }); //$NON-NLS-1$
 
         checkBundle(bundle);
     }
@@ -215,7 +216,8 @@ public class BundleTestHelper extends AndroidTestCase
                 {
                     try
                     {
-                        ClassLoader.getSystemClassLoader().loadClass(value.getClass().getName());
+                        // Class.forName, unlike ClassLoader.loadClass, resolves array types such as byte[]
+                        Class.forName(value.getClass().getName(), false, ClassLoader.getSystemClassLoader());
                     }
                     catch (final ClassNotFoundException e)
                     {
@@ -0,0 +1,122 @@
+package name.boyle.chris.locale.bluetoothacl.ui;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCatalog;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Tests {@link DeviceListModel}.
+ */
+public final class DeviceListModelTest extends TestCase
+{
+    /**
+     * Tests that devices are found by MAC and checked by position.
+     */
+    @SmallTest
+    public void testIndex()
+    {
+        final DeviceListModel model = new DeviceListModel(newDevices(new String[] { "Car", "Headset", "Watch" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        assertEquals(3, model.size());
+        assertEquals(1, model.indexOf(mac(1)));
+        assertEquals("Headset", model.getName(1)); //$NON-NLS-1$
+        assertEquals(mac(1), model.getMac(1));
+        assertEquals(-1, model.indexOf(mac(3)));
+        assertEquals(-1, model.indexOf(null));
+
+        assertTrue(model.check(mac(2)));
+        assertFalse(model.check(mac(3)));
+        model.setChecked(0, true);
+        model.setChecked(0, true);
+        assertEquals(2, model.getCheckedCount());
+        assertEquals(Arrays.asList(mac(0), mac(2)), model.getCheckedMacs());
+        assertEquals(Arrays.asList("Car", "Watch"), model.getCheckedNames()); //$NON-NLS-1$ //$NON-NLS-2$
+
+        model.setChecked(2, false);
+        assertFalse(model.isChecked(2));
+        assertEquals(1, model.getCheckedCount());
+    }
+
+    /**
+     * Tests that the filter matches names and MACs, ignoring case, and narrows and widens as it is typed.
+     */
+    @SmallTest
+    public void testFilter()
+    {
+        final DeviceListModel model = new DeviceListModel(newDevices(new String[] { "Car kit", "Headset", "Carol's phone" })); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        assertEquals(3, model.getVisibleCount());
+        assertFalse(model.setFilter(null));
+
+        assertTrue(model.setFilter("c")); //$NON-NLS-1$
+        assertEquals(2, model.getVisibleCount());
+        assertEquals(0, model.getVisiblePosition(0));
+        assertEquals(2, model.getVisiblePosition(1));
+
+        assertTrue(model.setFilter("CARO")); //$NON-NLS-1$
+        assertEquals(1, model.getVisibleCount());
+        assertEquals(2, model.getVisiblePosition(0));
+        assertFalse(model.setFilter("caro ")); //$NON-NLS-1$
+
+        assertTrue(model.setFilter("ca")); //$NON-NLS-1$
+        assertEquals(2, model.getVisibleCount());
+
+        assertTrue(model.setFilter(mac(1).substring(12).toLowerCase())); // "44:01"
+        assertEquals(1, model.getVisibleCount());
+        assertEquals(1, model.getVisiblePosition(0));
+
+        assertTrue(model.setFilter("nothing")); //$NON-NLS-1$
+        assertEquals(0, model.getVisibleCount());
+        try
+        {
+            model.getVisiblePosition(0);
+            fail();
+        }
+        catch (final IndexOutOfBoundsException e)
+        {
+            // expected exception
+        }
+
+        assertTrue(model.setFilter("")); //$NON-NLS-1$
+        assertEquals(3, model.getVisibleCount());
+    }
+
+    /**
+     * Tests that devices stay checked while the filter hides them.
+     */
+    @SmallTest
+    public void testCheckedWhileHidden()
+    {
+        final DeviceListModel model = new DeviceListModel(newDevices(new String[] { "Car", "Headset" })); //$NON-NLS-1$ //$NON-NLS-2$
+        model.setChecked(0, true);
+        model.setFilter("head"); //$NON-NLS-1$
+        assertEquals(1, model.getVisibleCount());
+        assertEquals(Arrays.asList(mac(0)), model.getCheckedMacs());
+    }
+
+    /**
+     * @param device number of the test device.
+     * @return its MAC.
+     */
+    /* package */static String mac(final int device)
+    {
+        return MacCodec.decode(0x001122334400L + device);
+    }
+
+    /**
+     * @param names name of each device, in order.
+     * @return devices with those names.
+     */
+    /* package */static DeviceCatalog.Device[] newDevices(final String[] names)
+    {
+        final DeviceCatalog.Device[] result = new DeviceCatalog.Device[names.length];
+        for (int x = 0; x < names.length; x++)
+        {
+            result[x] = new DeviceCatalog.Device(MacCodec.encode(mac(x)), names[x], 0, 0);
+        }
+        return result;
+    }
+}
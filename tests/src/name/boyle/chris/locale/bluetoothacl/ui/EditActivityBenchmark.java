@@ -0,0 +1,169 @@
+package name.boyle.chris.locale.bluetoothacl.ui;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.widget.EditText;
+
+import java.util.Vector;
+
+import name.boyle.chris.locale.bluetoothacl.R;
+import name.boyle.chris.locale.bluetoothacl.bundle.PluginBundleManager;
+import name.boyle.chris.locale.bluetoothacl.state.DeviceCatalog;
+import name.boyle.chris.locale.bluetoothacl.state.MacCodec;
+
+/**
+ * Measures how long {@link EditActivity} takes to become interactive with 10, 100 and 1,000 paired devices, editing a condition
+ * which selects a tenth of them; how long the list takes to follow a search typed a character at a time; and how long preselection
+ * takes with {@link DeviceListModel#indexOf(String)} compared with the linear search it replaced. Results are written to logcat
+ * under {@link #TAG}.
+ * <p>
+ * The catalog is seeded before each launch and put back afterwards. On a device with Bluetooth on, the Activity's own refresh may
+ * replace the seeded devices while the search is timed, so this is best run with Bluetooth off.
+ */
+public final class EditActivityBenchmark extends InstrumentationTestCase
+{
+    /**
+     * Log tag for results.
+     */
+    private static final String TAG = "EditActivityBenchmark"; //$NON-NLS-1$
+
+    /**
+     * Number of launches timed for each size.
+     */
+    private static final int LAUNCHES = 5;
+
+    /**
+     * Number of preselections timed for each size.
+     */
+    private static final int PRESELECTIONS = 100;
+
+    /**
+     * Search typed into the filter, which matches every seeded device until its last character.
+     */
+    private static final String SEARCH = "test device 7"; //$NON-NLS-1$
+
+    /**
+     * Devices in the catalog before the benchmark, restored in {@link #tearDown()}.
+     */
+    private DeviceCatalog.Device[] mSavedDevices;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        mSavedDevices = DeviceCatalog.getInstance(getInstrumentation().getTargetContext()).getDevices();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        DeviceCatalog.getInstance(getInstrumentation().getTargetContext()).update(mSavedDevices);
+
+        super.tearDown();
+    }
+
+    /**
+     * Times every size.
+     */
+    @LargeTest
+    public void testOpenToInteractive()
+    {
+        measure(10);
+        measure(100);
+        measure(1000);
+    }
+
+    /**
+     * @param deviceCount number of paired devices.
+     */
+    private void measure(final int deviceCount)
+    {
+        final Instrumentation instrumentation = getInstrumentation();
+        final DeviceCatalog.Device[] devices = new DeviceCatalog.Device[deviceCount];
+        final String[] wanted = new String[deviceCount / 10];
+        for (int x = 0; x < deviceCount; x++)
+        {
+            final long mac = 0x001122000000L + x;
+            devices[x] = new DeviceCatalog.Device(mac, "Test device " + x, 0, 0); //$NON-NLS-1$
+            if (0 == x % 10)
+            {
+                wanted[x / 10] = MacCodec.decode(mac);
+            }
+        }
+
+        final Intent intent = new Intent(com.twofortyfouram.locale.Intent.ACTION_EDIT_CONDITION).setClass(instrumentation.getTargetContext(), EditActivity.class)
+                                                                                                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK)
+                                                                                                .putExtra(com.twofortyfouram.locale.Intent.EXTRA_BUNDLE, PluginBundleManager.generateBundle(1, wanted, true, PluginBundleManager.QUANTIFIER_ANY, 1));
+
+        long openMillis = 0;
+        long searchMillis = 0;
+        for (int x = 0; x < LAUNCHES; x++)
+        {
+            DeviceCatalog.getInstance(instrumentation.getTargetContext()).update(devices);
+
+            /*
+             * The Activity is interactive once it has been laid out and drawn, which has happened when the UI thread goes idle
+             */
+            long start = SystemClock.elapsedRealtime();
+            final Activity activity = instrumentation.startActivitySync(intent);
+            instrumentation.waitForIdleSync();
+            openMillis += SystemClock.elapsedRealtime() - start;
+
+            final EditText filter = (EditText) activity.findViewById(R.id.deviceFilter);
+            start = SystemClock.elapsedRealtime();
+            for (int length = 1; length <= SEARCH.length(); length++)
+            {
+                final CharSequence typed = SEARCH.substring(0, length);
+                instrumentation.runOnMainSync(new Runnable()
+                {
+                    public void run()
+                    {
+                        filter.setText(typed);
+                    }
+                });
+                instrumentation.waitForIdleSync();
+            }
+            searchMillis += SystemClock.elapsedRealtime() - start;
+
+            instrumentation.invokeMenuActionSync(activity, com.twofortyfouram.locale.platform.R.id.twofortyfouram_locale_menu_dontsave, 0);
+            instrumentation.waitForIdleSync();
+        }
+
+        final DeviceListModel model = new DeviceListModel(devices);
+        final Vector<String> macs = new Vector<String>();
+        for (int x = 0; x < deviceCount; x++)
+        {
+            macs.add(model.getMac(x));
+        }
+        int found = 0;
+        long start = SystemClock.elapsedRealtime();
+        for (int x = 0; x < PRESELECTIONS; x++)
+        {
+            for (final String mac : wanted)
+            {
+                found += macs.indexOf(mac) >= 0 ? 1 : 0;
+            }
+        }
+        final long linearMillis = SystemClock.elapsedRealtime() - start;
+        start = SystemClock.elapsedRealtime();
+        for (int x = 0; x < PRESELECTIONS; x++)
+        {
+            for (final String mac : wanted)
+            {
+                found += model.indexOf(mac) >= 0 ? 1 : 0;
+            }
+        }
+        final long indexedMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(2 * PRESELECTIONS * wanted.length, found);
+
+        Log.i(TAG, String.format("%d devices: open %dms, search %.1fms per character, preselect linear %.3fms indexed %.3fms", //$NON-NLS-1$
+                                 Integer.valueOf(deviceCount), Long.valueOf(openMillis / LAUNCHES), Double.valueOf((double) searchMillis / LAUNCHES / SEARCH.length()),
+                                 Double.valueOf((double) linearMillis / PRESELECTIONS), Double.valueOf((double) indexedMillis / PRESELECTIONS)));
+    }
+}
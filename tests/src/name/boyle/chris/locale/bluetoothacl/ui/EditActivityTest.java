@@ -243,7 +243,7 @@ public final class EditActivityTest extends ActivityInstrumentationTestCase2<Edi
          */
         assertTrue(PluginBundleManager.isBundleValid(pluginBundle));
 
-        assertEquals(false, pluginBundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE));
+        assertEquals(false, PluginBundleManager.isConnectedExpected(pluginBundle));
     }
 
     /**
@@ -307,7 +307,7 @@ public final class EditActivityTest extends ActivityInstrumentationTestCase2<Edi
          */
         assertTrue(PluginBundleManager.isBundleValid(pluginBundle));
 
-        assertEquals(true, pluginBundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE));
+        assertEquals(true, PluginBundleManager.isConnectedExpected(pluginBundle));
     }
 
     /**
@@ -365,7 +365,7 @@ public final class EditActivityTest extends ActivityInstrumentationTestCase2<Edi
          * The following are tests specific to this plug-in's bundle
          */
         assertTrue(PluginBundleManager.isBundleValid(pluginBundle));
-        assertEquals(false, pluginBundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE));
+        assertEquals(false, PluginBundleManager.isConnectedExpected(pluginBundle));
     }
 
     /**
@@ -423,7 +423,7 @@ public final class EditActivityTest extends ActivityInstrumentationTestCase2<Edi
          * The following are tests specific to this plug-in's bundle
          */
         assertTrue(PluginBundleManager.isBundleValid(pluginBundle));
-        assertEquals(true, pluginBundle.getBoolean(PluginBundleManager.BUNDLE_EXTRA_BOOLEAN_STATE));
+        assertEquals(true, PluginBundleManager.isConnectedExpected(pluginBundle));
     }
 
     /**